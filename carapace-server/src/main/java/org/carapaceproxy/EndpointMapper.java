@@ -22,6 +22,7 @@ package org.carapaceproxy;
 import io.netty.handler.codec.http.HttpRequest;
 import java.util.List;
 import java.util.Map;
+import org.carapaceproxy.client.ConnectionsManagerStats;
 import org.carapaceproxy.client.EndpointKey;
 import org.carapaceproxy.configstore.ConfigurationStore;
 import org.carapaceproxy.server.RequestHandler;
@@ -70,4 +71,12 @@ public abstract class EndpointMapper {
     public void setDynamicCertificateManager(DynamicCertificatesManager manager) {
     }
 
+    /**
+     * Live stats of the backends, for load balancing
+     *
+     * @param stats
+     */
+    public void setConnectionsManagerStats(ConnectionsManagerStats stats) {
+    }
+
 }
@@ -19,6 +19,7 @@
  */
 package org.carapaceproxy;
 
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import org.carapaceproxy.client.EndpointKey;
@@ -30,12 +31,18 @@ import org.carapaceproxy.client.EndpointKey;
  */
 public class EndpointStats {
 
+    private static final double LATENCY_DECAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+
     private final AtomicInteger openConnections = new AtomicInteger();
     private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicInteger idleConnections = new AtomicInteger();
     private final AtomicInteger totalConnections = new AtomicInteger();
     private final AtomicInteger totalRequests = new AtomicInteger();
     private final AtomicLong lastActivity = new AtomicLong();
     private final EndpointKey key;
+    // peak EWMA of the time to receive the response headers, in nanoseconds, as double bits
+    private final AtomicLong latencyEwma = new AtomicLong(Double.doubleToRawLongBits(0));
+    private final AtomicLong latencyTs = new AtomicLong(System.nanoTime());
 
     public EndpointStats(EndpointKey key) {
         this.key = key;
@@ -57,6 +64,14 @@ public class EndpointStats {
         return activeConnections;
     }
 
+    /**
+     * @return connections waiting for a request in the pools bound to the
+     * event loops, see connectionsmanager.eventloopaffinity
+     */
+    public AtomicInteger getIdleConnections() {
+        return idleConnections;
+    }
+
     public AtomicInteger getTotalConnections() {
         return totalConnections;
     }
@@ -65,9 +80,45 @@ public class EndpointStats {
         return key;
     }
 
+    /**
+     * Records the time to receive the response headers. Peaks are taken as
+     * they are, otherwise the average decays towards the sample.
+     *
+     * @param nanos
+     */
+    public void recordLatency(long nanos) {
+        long now = System.nanoTime();
+        long current;
+        double next;
+        do {
+            current = latencyEwma.get();
+            double value = Double.longBitsToDouble(current);
+            if (nanos > value) {
+                next = nanos;
+            } else {
+                double w = Math.exp(-(now - latencyTs.get()) / LATENCY_DECAY_NANOS);
+                next = value * w + nanos * (1 - w);
+            }
+        } while (!latencyEwma.compareAndSet(current, Double.doubleToRawLongBits(next)));
+        // concurrent samples may move the timestamp slightly out of order, the error is negligible
+        latencyTs.accumulateAndGet(now, Math::max);
+    }
+
+    /**
+     * The average decays towards 0 while no response is received, so that a
+     * backend which had a latency spike is not starved for ever.
+     *
+     * @return peak EWMA of the latency, in nanoseconds, 0 if unknown
+     */
+    public double getLatencyEwma() {
+        double value = Double.longBitsToDouble(latencyEwma.get());
+        long elapsed = System.nanoTime() - latencyTs.get();
+        return elapsed > 0 ? value * Math.exp(-elapsed / LATENCY_DECAY_NANOS) : value;
+    }
+
     @Override
     public String toString() {
-        return "EndpointStats{" + "openConnections=" + openConnections + ", activeConnections=" + activeConnections + ", totalConnections=" + totalConnections + ", totalRequests=" + totalRequests + ", lastActivity=" + lastActivity + ", key=" + key + '}';
+        return "EndpointStats{" + "openConnections=" + openConnections + ", activeConnections=" + activeConnections + ", idleConnections=" + idleConnections + ", totalConnections=" + totalConnections + ", totalRequests=" + totalRequests + ", lastActivity=" + lastActivity + ", key=" + key + '}';
     }
 
 }
@@ -19,7 +19,10 @@
  */
 package org.carapaceproxy;
 
+import java.util.Collections;
 import java.util.List;
+import org.carapaceproxy.client.EndpointKey;
+import org.carapaceproxy.server.config.CompressionConfiguration;
 import org.carapaceproxy.server.mapper.CustomHeader;
 
 public class MapResult {
@@ -36,6 +39,18 @@ public class MapResult {
     public String redirectLocation;
     public String redirectProto;
     public String redirectPath;
+    // defaults for cached contents, in seconds (see RFC 5861)
+    public int staleWhileRevalidate;
+    // a negative value means that stale contents must not be served in case of errors
+    public int staleIfError = -1;
+    // attempts on the other backends in case of connection failures, for idempotent requests
+    public int retries;
+    // maximum size of the body of a request which may be retried
+    public int retryBodySize;
+    // the other backends of the director, in order of preference
+    public List<EndpointKey> retryBackends = Collections.emptyList();
+    // compression of the response to the client
+    public CompressionConfiguration compression = CompressionConfiguration.DISABLED;
 
     public MapResult(String host, int port, Action action, String routeid) {
         this.host = host;
@@ -90,9 +105,53 @@ public class MapResult {
         return this;
     }    
 
+    public MapResult setStaleWhileRevalidate(int staleWhileRevalidate) {
+        this.staleWhileRevalidate = staleWhileRevalidate;
+        return this;
+    }
+
+    public MapResult setStaleIfError(int staleIfError) {
+        this.staleIfError = staleIfError;
+        return this;
+    }
+
+    public MapResult setRetries(int retries, int retryBodySize, List<EndpointKey> retryBackends) {
+        this.retries = retries;
+        this.retryBodySize = retryBodySize;
+        this.retryBackends = retryBackends;
+        return this;
+    }
+
+    public MapResult setCompression(CompressionConfiguration compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * @param host
+     * @param port
+     * @return a copy of this result, pointing to another backend
+     */
+    public MapResult withBackend(String host, int port) {
+        MapResult copy = new MapResult(host, port, action, routeid);
+        copy.errorcode = errorcode;
+        copy.resource = resource;
+        copy.customHeaders = customHeaders;
+        copy.redirectLocation = redirectLocation;
+        copy.redirectProto = redirectProto;
+        copy.redirectPath = redirectPath;
+        copy.staleWhileRevalidate = staleWhileRevalidate;
+        copy.staleIfError = staleIfError;
+        copy.retries = retries;
+        copy.retryBodySize = retryBodySize;
+        copy.retryBackends = retryBackends;
+        copy.compression = compression;
+        return copy;
+    }
+
     @Override
     public String toString() {
-        return "MapResult{" + "host=" + host + ", port=" + port + ", action=" + action + ", routeid=" + routeid + ", errorcode=" + errorcode + ", resource=" + resource + ", customHeaders=" + customHeaders + ", redirectLocation=" + redirectLocation + ", redirectProto=" + redirectProto + ", redirectPath=" + redirectPath + '}';
+        return "MapResult{" + "host=" + host + ", port=" + port + ", action=" + action + ", routeid=" + routeid + ", errorcode=" + errorcode + ", resource=" + resource + ", customHeaders=" + customHeaders + ", redirectLocation=" + redirectLocation + ", redirectProto=" + redirectProto + ", redirectPath=" + redirectPath + ", staleWhileRevalidate=" + staleWhileRevalidate + ", staleIfError=" + staleIfError + ", retries=" + retries + ", compression=" + compression + '}';
     }
 
     public static enum Action {
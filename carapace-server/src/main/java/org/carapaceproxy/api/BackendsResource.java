@@ -57,6 +57,8 @@ public class BackendsResource {
         private boolean isAvailable;
         private boolean reportedAsUnreachable;
         private long reportedAsUnreachableTs;
+        private boolean ejected;
+        private long ejectedUntilTs;
         private String lastProbePath;
         private long lastProbeTs;
         private boolean lastProbeSuccess;
@@ -105,6 +107,14 @@ public class BackendsResource {
             return reportedAsUnreachableTs;
         }
 
+        public boolean isEjected() {
+            return ejected;
+        }
+
+        public long getEjectedUntilTs() {
+            return ejectedUntilTs;
+        }
+
         public String getLastProbePath() {
             return lastProbePath;
         }
@@ -150,6 +160,8 @@ public class BackendsResource {
                 bean.isAvailable = bhs.isAvailable();
                 bean.reportedAsUnreachable = bhs.isReportedAsUnreachable();
                 bean.reportedAsUnreachableTs = bhs.getReportedAsUnreachableTs();
+                bean.ejected = bhs.isEjected();
+                bean.ejectedUntilTs = bean.ejected ? bhs.getEjectedUntilTs() : 0;
                 BackendHealthCheck lastProbe = bhs.getLastProbe();
                 if (lastProbe != null) {
                     bean.lastProbeTs = lastProbe.getEndTs();
@@ -19,14 +19,21 @@
  */
 package org.carapaceproxy.api;
 
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import javax.servlet.ServletContext;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
 import org.carapaceproxy.server.HttpProxyServer;
+import org.carapaceproxy.server.cache.CacheEntryInfo;
 import org.carapaceproxy.server.cache.CacheStats;
 import org.carapaceproxy.server.cache.ContentsCache;
 
@@ -74,9 +81,45 @@ public class CacheResource {
     
     @Path("/inspect")
     @GET
-    public List<Map<String, Object>> inspect() {
+    public List<Map<String, Object>> inspect(@QueryParam("offset") @DefaultValue("0") int offset,
+            @QueryParam("limit") @DefaultValue("0") int limit) {
         HttpProxyServer server = (HttpProxyServer) context.getAttribute("server");
         ContentsCache cache = server.getCache();
-        return cache.inspectCache();
+        return toMaps(cache.inspectCache(offset, limit));
+    }
+
+    /**
+     * The most valuable contents in cache
+     *
+     * @param n number of contents
+     * @param by "hits" or "bytessaved"
+     * @return
+     */
+    @Path("/top")
+    @GET
+    public List<Map<String, Object>> top(@QueryParam("n") @DefaultValue("10") int n,
+            @QueryParam("by") @DefaultValue("hits") String by) {
+        Comparator<CacheEntryInfo> order;
+        switch (by) {
+            case "hits":
+                order = CacheEntryInfo.BY_HITS;
+                break;
+            case "bytessaved":
+                order = CacheEntryInfo.BY_BYTES_SAVED;
+                break;
+            default:
+                throw new WebApplicationException("unknown order '" + by + "', use 'hits' or 'bytessaved'", Response.Status.BAD_REQUEST);
+        }
+        HttpProxyServer server = (HttpProxyServer) context.getAttribute("server");
+        ContentsCache cache = server.getCache();
+        return toMaps(cache.topEntries(n, order));
+    }
+
+    private static List<Map<String, Object>> toMaps(List<CacheEntryInfo> entries) {
+        List<Map<String, Object>> res = new ArrayList<>(entries.size());
+        for (CacheEntryInfo entry : entries) {
+            res.add(entry.toMap());
+        }
+        return res;
     }
 }
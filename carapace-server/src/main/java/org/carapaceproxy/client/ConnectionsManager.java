@@ -19,7 +19,10 @@
  */
 package org.carapaceproxy.client;
 
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
 import org.carapaceproxy.server.RuntimeServerConfiguration;
+import org.carapaceproxy.server.config.RequestBufferConfiguration;
 
 /**
  * Handles connection to all the endpoints
@@ -38,6 +41,27 @@ public interface ConnectionsManager extends AutoCloseable {
      */
     EndpointConnection getConnection(EndpointKey key) throws EndpointNotAvailableException;
 
+    /**
+     * Obtain asynchronously a connection to the requested endpoint. This method
+     * never blocks: if the pool for the endpoint is exhausted the request waits
+     * in a queue until a connection is returned or the borrow timeout expires.
+     * The returned future is always notified on the given executor, and in case
+     * of failure its cause is an {@link EndpointNotAvailableException}.
+     *
+     * When event loop affinity is enabled and the executor is an event loop the
+     * connection is taken from a pool owned by that event loop and its channel
+     * is registered on the same loop.
+     *
+     * Connections are pooled, so the returned object MUST be returned to the
+     * pool
+     *
+     * @param key
+     * @param executor the executor (usually the event loop of the client
+     * channel) which will be notified
+     * @return
+     */
+    Future<EndpointConnection> getConnectionAsync(EndpointKey key, EventExecutor executor);
+
     void start();
 
     @Override
@@ -45,6 +69,21 @@ public interface ConnectionsManager extends AutoCloseable {
 
     ConnectionsManagerStats getStats();
 
+    /**
+     * Budget of the retries of the requests on other backends, shared by all
+     * the requests
+     *
+     * @return
+     */
+    RetryBudget getRetryBudget();
+
+    /**
+     * Limits of the buffering of the bodies of the requests
+     *
+     * @return
+     */
+    RequestBufferConfiguration getRequestBufferConfiguration();
+
     /**
      * Apply new configuration an runtime
      *
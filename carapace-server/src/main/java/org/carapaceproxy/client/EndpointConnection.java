@@ -42,4 +42,21 @@ public interface EndpointConnection {
 
     public void sendChunk(HttpContent httpContent, RequestHandler handler);
 
+    /**
+     * Tells whether the backend is keeping up with the contents we are
+     * sending, see {@link RequestHandler#endpointWritabilityChanged(org.carapaceproxy.client.EndpointConnection)}
+     *
+     * @return false if too many bytes are waiting to be written to the
+     * backend
+     */
+    public boolean isWritable();
+
+    /**
+     * Pauses/resumes the reading of the response from the backend, used when
+     * the client is slower than the backend
+     *
+     * @param autoRead
+     */
+    public void setAutoRead(boolean autoRead);
+
 }
@@ -0,0 +1,104 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.client;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of retries of the requests, in order not to amplify the
+ * load on the backends when they are in trouble.
+ * <p>
+ * Every retriable request deposits a fraction of a retry, a retry is allowed
+ * only if there is at least one retry in the budget. In order not to starve
+ * the retries when the traffic is low a few retries per second are always
+ * allowed.
+ * </p>
+ */
+public class RetryBudget {
+
+    private static final long SCALE = 1000;
+    // deposits older than this are not useful
+    private static final long MAX_BALANCE = 1000 * SCALE;
+
+    private final AtomicLong balance = new AtomicLong();
+    private final AtomicLong currentSecond = new AtomicLong();
+    private final AtomicInteger retriesInCurrentSecond = new AtomicInteger();
+    private volatile long deposit;
+    private volatile int minRetriesPerSecond;
+
+    public RetryBudget(int percent, int minRetriesPerSecond) {
+        configure(percent, minRetriesPerSecond);
+    }
+
+    /**
+     * @param percent retries allowed every 100 requests
+     * @param minRetriesPerSecond retries always allowed, every second
+     */
+    public final void configure(int percent, int minRetriesPerSecond) {
+        this.deposit = percent * SCALE / 100;
+        this.minRetriesPerSecond = minRetriesPerSecond;
+    }
+
+    /**
+     * Accounts a request which may be retried
+     */
+    public void deposit() {
+        long amount = deposit;
+        if (amount <= 0) {
+            return;
+        }
+        long current;
+        do {
+            current = balance.get();
+            if (current >= MAX_BALANCE) {
+                return;
+            }
+        } while (!balance.compareAndSet(current, Math.min(MAX_BALANCE, current + amount)));
+    }
+
+    /**
+     * Withdraws a retry from the budget
+     *
+     * @return true if the retry is allowed
+     */
+    public boolean tryAcquire() {
+        int min = minRetriesPerSecond;
+        if (min > 0) {
+            long second = System.currentTimeMillis() / 1000;
+            long last = currentSecond.get();
+            if (last != second && currentSecond.compareAndSet(last, second)) {
+                retriesInCurrentSecond.set(0);
+            }
+            if (retriesInCurrentSecond.incrementAndGet() <= min) {
+                return true;
+            }
+        }
+        long current;
+        do {
+            current = balance.get();
+            if (current < SCALE) {
+                return false;
+            }
+        } while (!balance.compareAndSet(current, current - SCALE));
+        return true;
+    }
+
+}
@@ -20,23 +20,32 @@
 package org.carapaceproxy.client.impl;
 
 import com.google.common.annotations.VisibleForTesting;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.EventLoop;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.epoll.Epoll;
 import io.netty.channel.epoll.EpollEventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.Promise;
 import io.prometheus.client.Counter;
 import io.prometheus.client.Gauge;
-import java.net.ConnectException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.carapaceproxy.EndpointStats;
@@ -45,9 +54,11 @@ import org.carapaceproxy.client.ConnectionsManagerStats;
 import org.carapaceproxy.client.EndpointConnection;
 import org.carapaceproxy.client.EndpointKey;
 import org.carapaceproxy.client.EndpointNotAvailableException;
+import org.carapaceproxy.client.RetryBudget;
 import org.carapaceproxy.server.RuntimeServerConfiguration;
 import org.carapaceproxy.server.RequestHandler;
 import org.carapaceproxy.server.backends.BackendHealthManager;
+import org.carapaceproxy.server.config.RequestBufferConfiguration;
 import org.apache.commons.pool2.KeyedPooledObjectFactory;
 import org.apache.commons.pool2.PooledObject;
 import org.apache.commons.pool2.PooledObjectState;
@@ -66,15 +77,26 @@ public class ConnectionsManagerImpl implements ConnectionsManager, AutoCloseable
 
     private final GenericKeyedObjectPool<EndpointKey, EndpointConnectionImpl> connections;
     private int idleTimeout;
+    private final RetryBudget retryBudget = new RetryBudget(0, 0);
     private int stuckRequestTimeout;
     private int connectTimeout;
+    private volatile RequestBufferConfiguration requestBufferConfiguration;
     private int borrowTimeout;
+    private int maxConnectionsPerEndpoint;
+    private volatile boolean eventLoopAffinity;
     private final ConcurrentHashMap<EndpointKey, EndpointStats> endpointsStats = new ConcurrentHashMap<>();
     private final EventLoopGroup group;
     private final EventLoopGroup eventLoopForOutboundConnections;
 
     private ScheduledFuture<?> stuckRequestsReaperFuture;
     private ConcurrentHashMap<Long, RequestHandler> pendingRequests = new ConcurrentHashMap<>();
+    // requests waiting for a connection, the pool is never blocking
+    private final ConcurrentHashMap<EndpointKey, Deque<Promise<EndpointConnection>>> pendingAcquires = new ConcurrentHashMap<>();
+    // connections bound to the event loops of the clients, see connectionsmanager.eventloopaffinity
+    private final ConcurrentHashMap<EventLoop, EventLoopConnectionsPool> eventLoopPools = new ConcurrentHashMap<>();
+    // connections opened by all the event loop pools, bounded by maxConnectionsPerEndpoint
+    private final ConcurrentHashMap<EndpointKey, AtomicInteger> eventLoopConnections = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<EndpointKey, AtomicInteger> eventLoopWaiters = new ConcurrentHashMap<>();
 
     final BackendHealthManager backendHealthManager;
     final ScheduledExecutorService scheduler;
@@ -88,18 +110,84 @@ public class ConnectionsManagerImpl implements ConnectionsManager, AutoCloseable
     @VisibleForTesting
     public void returnConnection(EndpointConnectionImpl con) {
         LOG.log(Level.INFO, "returnConnection:{0}", con);
+        EventLoopConnectionsPool ownerPool = con.getOwnerPool();
+        if (ownerPool != null) {
+            ownerPool.release(con);
+            return;
+        }
         connections.returnObject(con.getKey(), con);
+        servePendingAcquires(con.getKey());
+    }
+
+    private void invalidateConnection(EndpointConnectionImpl con) {
+        try {
+            connections.invalidateObject(con.getKey(), con);
+        } catch (Exception err) {
+            LOG.log(Level.SEVERE, "cannot invalidate connection " + con, err);
+        }
+        servePendingAcquires(con.getKey());
     }
 
     public int getConnectTimeout() {
         return connectTimeout;
     }
 
+    int getMaxConnectionsPerEndpoint() {
+        return maxConnectionsPerEndpoint;
+    }
+
+    /**
+     * Takes a slot of the budget of connections to the given endpoint, shared
+     * by all the event loop pools.
+     *
+     * @param key
+     * @return false if maxConnectionsPerEndpoint connections are already open
+     */
+    boolean reserveEventLoopConnection(EndpointKey key) {
+        AtomicInteger count = eventLoopConnections.computeIfAbsent(key, k -> new AtomicInteger());
+        int current;
+        do {
+            current = count.get();
+            if (current >= maxConnectionsPerEndpoint) {
+                return false;
+            }
+        } while (!count.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    void releaseEventLoopConnection(EndpointKey key) {
+        eventLoopConnections.get(key).decrementAndGet();
+        // waiters may be parked on any event loop
+        eventLoopPools.values().forEach(pool -> pool.serveWaiters(key));
+    }
+
+    /**
+     * @param key
+     * @return the number of requests waiting for a connection to the given
+     * endpoint on all the event loop pools
+     */
+    AtomicInteger getEventLoopWaiters(EndpointKey key) {
+        return eventLoopWaiters.computeIfAbsent(key, k -> new AtomicInteger());
+    }
+
+    void reclaimIdleEventLoopConnection(EndpointKey key, EventLoopConnectionsPool requestor) {
+        AtomicBoolean reclaimed = new AtomicBoolean();
+        eventLoopPools.values().forEach(pool -> {
+            if (pool != requestor) {
+                pool.reclaimIdleConnection(key, reclaimed);
+            }
+        });
+    }
+
+    EndpointStats getEndpointStats(EndpointKey key) {
+        return endpointsStats.computeIfAbsent(key, EndpointStats::new);
+    }
+
     private final class ConnectionsFactory implements KeyedPooledObjectFactory<EndpointKey, EndpointConnectionImpl> {
 
         @Override
         public PooledObject<EndpointConnectionImpl> makeObject(EndpointKey k) throws Exception {
-            EndpointStats endpointstats = endpointsStats.computeIfAbsent(k, EndpointStats::new);
+            EndpointStats endpointstats = getEndpointStats(k);
             EndpointConnectionImpl con = new EndpointConnectionImpl(k, ConnectionsManagerImpl.this, endpointstats);
             LOG.log(Level.INFO, "opened new connection {0}", new Object[]{con});
             return new DefaultPooledObject<>(con);
@@ -197,7 +285,10 @@ public class ConnectionsManagerImpl implements ConnectionsManager, AutoCloseable
         this.stuckRequestTimeout = configuration.getStuckRequestTimeout();
         this.connectTimeout = configuration.getConnectTimeout();
         this.borrowTimeout = configuration.getBorrowTimeout();
-        int maxConnectionsPerEndpoint = configuration.getMaxConnectionsPerEndpoint();
+        this.maxConnectionsPerEndpoint = configuration.getMaxConnectionsPerEndpoint();
+        this.eventLoopAffinity = configuration.isConnectionsEventLoopAffinity();
+        this.requestBufferConfiguration = configuration.getRequestBuffer();
+        this.retryBudget.configure(configuration.getRetryBudgetPercent(), configuration.getRetryBudgetMinRetriesPerSecond());
         connections.setMaxTotalPerKey(maxConnectionsPerEndpoint);
         connections.setMaxIdlePerKey(maxConnectionsPerEndpoint);
         connections.setMaxTotal(-1);
@@ -220,7 +311,8 @@ public class ConnectionsManagerImpl implements ConnectionsManager, AutoCloseable
         config.setTestOnReturn(true);
         config.setTestOnBorrow(true);
         config.setTestWhileIdle(true);
-        config.setBlockWhenExhausted(true);
+        // never block the caller, see getConnectionAsync
+        config.setBlockWhenExhausted(false);
         config.setJmxEnabled(false);
         group = Epoll.isAvailable() ? new EpollEventLoopGroup() : new NioEventLoopGroup();
         eventLoopForOutboundConnections =  Epoll.isAvailable() ? new EpollEventLoopGroup() : new NioEventLoopGroup();
@@ -229,42 +321,153 @@ public class ConnectionsManagerImpl implements ConnectionsManager, AutoCloseable
         applyNewConfiguration(configuration);
     }
 
+    @Override
+    public RetryBudget getRetryBudget() {
+        return retryBudget;
+    }
+
+    @Override
+    public RequestBufferConfiguration getRequestBufferConfiguration() {
+        return requestBufferConfiguration;
+    }
+
     EventLoopGroup getEventLoopForOutboundConnections() {
         return eventLoopForOutboundConnections;
     }
 
     @Override
     public EndpointConnection getConnection(EndpointKey key) throws EndpointNotAvailableException {
-        long _start = System.currentTimeMillis();
+        Future<EndpointConnection> result = getConnectionAsync(key, GlobalEventExecutor.INSTANCE);
         try {
-            EndpointConnection result = connections.borrowObject(key, borrowTimeout);
-            return result;
-        } catch (NoSuchElementException ex) {
-            if (LOG.isLoggable(Level.FINER)) {
-                long delta = System.currentTimeMillis() - _start;
-                LOG.log(Level.FINER,
-                        "Too many connections to " + key + " and/or cannot create a new connection (elapsed "
-                        + delta + ", borrowTimeout " + borrowTimeout + ")", ex);
-                connections.listAllObjects().forEach((k, list) -> {
-                    if (list != null) {
-                        list.forEach(po -> {
-                            LOG.log(Level.FINER, "current {0} con {1}", new Object[]{k, po.getPooledObjectToString()});
-                        });
-                    }
-                });
-            }
-            throw new EndpointNotAvailableException("Too many connections to " + key
-                    + " and/or cannot create a new connection ("+ex.getMessage()+")", ex);
+            result.await();
         } catch (InterruptedException ex) {
             Thread.currentThread().interrupt();
-            throw new EndpointNotAvailableException("Interrupted while borrowing a connection from the pool for key "+key, ex);
-        } catch (ConnectException ex) {
-            throw new EndpointNotAvailableException("Endpoint error while borrowing a connection from the pool for key "+key, ex);
+            // a connection eventually assigned to the cancelled request will be returned to the pool
+            result.cancel(false);
+            throw new EndpointNotAvailableException("Interrupted while borrowing a connection from the pool for key " + key, ex);
+        }
+        if (result.isSuccess()) {
+            return result.getNow();
+        }
+        Throwable cause = result.cause();
+        if (cause instanceof EndpointNotAvailableException) {
+            throw (EndpointNotAvailableException) cause;
+        }
+        throw new EndpointNotAvailableException(cause);
+    }
+
+    @Override
+    public Future<EndpointConnection> getConnectionAsync(EndpointKey key, EventExecutor executor) {
+        Promise<EndpointConnection> promise = executor.newPromise();
+        if (eventLoopAffinity && executor instanceof EventLoop) {
+            // connections already in use keep on being returned to their own pool
+            // even if the configuration changes
+            eventLoopPools
+                    .computeIfAbsent((EventLoop) executor, (loop) -> new EventLoopConnectionsPool(loop, this))
+                    .acquire(key, promise);
+            return promise;
+        }
+        if (!tryAcquire(key, promise)) {
+            enqueuePendingAcquire(key, promise, executor);
+        }
+        return promise;
+    }
+
+    /**
+     * Borrows a connection from the pool without blocking. If the connection
+     * is still connecting the promise will be completed as soon as the connect
+     * operation finishes.
+     *
+     * @return false if the pool for the given key is exhausted
+     */
+    private boolean tryAcquire(EndpointKey key, Promise<EndpointConnection> promise) {
+        EndpointConnectionImpl con;
+        try {
+            con = connections.borrowObject(key);
+        } catch (NoSuchElementException ex) {
+            if (isExhausted(key)) {
+                return false;
+            }
+            // a brand new connection failed validation, it is already closed
+            promise.tryFailure(new EndpointNotAvailableException("Endpoint error while borrowing a connection from the pool for key " + key, ex));
+            return true;
         } catch (Exception ex) {
-            LOG.log(Level.SEVERE,"Internal error while borrowing a connection for " + key, ex);
-            throw new EndpointNotAvailableException(ex);
+            LOG.log(Level.SEVERE, "Internal error while borrowing a connection for " + key, ex);
+            promise.tryFailure(new EndpointNotAvailableException(ex));
+            return true;
+        }
+        ChannelFuture connectFuture = con.getConnectFuture();
+        if (connectFuture.isDone()) {
+            completeAcquire(key, con, connectFuture, promise);
+        } else {
+            connectFuture.addListener((ChannelFuture future) -> completeAcquire(key, con, future, promise));
+        }
+        return true;
+    }
+
+    private boolean isExhausted(EndpointKey key) {
+        int maxTotalPerKey = connections.getMaxTotalPerKey();
+        return maxTotalPerKey >= 0 && connections.getNumActive(key) >= maxTotalPerKey;
+    }
+
+    private void completeAcquire(EndpointKey key, EndpointConnectionImpl con, ChannelFuture connectFuture, Promise<EndpointConnection> promise) {
+        if (connectFuture.isSuccess()) {
+            if (!promise.trySuccess(con)) {
+                // the requestor gave up (timeout or cancellation)
+                returnConnection(con);
+            }
+        } else {
+            invalidateConnection(con);
+            promise.tryFailure(new EndpointNotAvailableException("Endpoint error while connecting to " + key, connectFuture.cause()));
+        }
+    }
+
+    private void enqueuePendingAcquire(EndpointKey key, Promise<EndpointConnection> promise, EventExecutor executor) {
+        Deque<Promise<EndpointConnection>> queue = pendingAcquires.computeIfAbsent(key, (k) -> new ConcurrentLinkedDeque<>());
+        queue.add(promise);
+        int _borrowTimeout = borrowTimeout;
+        Future<?> timeout = executor.schedule(() -> {
+            if (promise.tryFailure(new EndpointNotAvailableException("Too many connections to " + key
+                    + " and/or cannot create a new connection (borrowTimeout " + _borrowTimeout + " ms)", null))) {
+                queue.remove(promise);
+                if (LOG.isLoggable(Level.FINER)) {
+                    connections.listAllObjects().forEach((k, list) -> {
+                        if (list != null) {
+                            list.forEach(po -> {
+                                LOG.log(Level.FINER, "current {0} con {1}", new Object[]{k, po.getPooledObjectToString()});
+                            });
+                        }
+                    });
+                }
+            }
+        }, _borrowTimeout, TimeUnit.MILLISECONDS);
+        promise.addListener((Future<EndpointConnection> future) -> {
+            timeout.cancel(false);
+        });
+        // a connection may have been returned meanwhile
+        servePendingAcquires(key);
+    }
+
+    private void servePendingAcquires(EndpointKey key) {
+        Deque<Promise<EndpointConnection>> queue = pendingAcquires.get(key);
+        if (queue == null || queue.isEmpty()) {
+            return;
+        }
+        // borrowing is not blocking, we synchronize only in order to not lose any wakeup
+        synchronized (queue) {
+            Promise<EndpointConnection> waiter;
+            while ((waiter = queue.poll()) != null) {
+                if (waiter.isDone()) {
+                    continue;
+                }
+                if (!tryAcquire(key, waiter)) {
+                    queue.addFirst(waiter);
+                    return;
+                }
+            }
         }
     }
+
     private static final Logger LOG = Logger.getLogger(ConnectionsManagerImpl.class.getName());
 
     @Override
@@ -295,6 +498,14 @@ public class ConnectionsManagerImpl implements ConnectionsManager, AutoCloseable
         });
 
         connections.close();
+        eventLoopPools.values().forEach(EventLoopConnectionsPool::close);
+        eventLoopPools.clear();
+        pendingAcquires.forEach((key, queue) -> {
+            Promise<EndpointConnection> waiter;
+            while ((waiter = queue.poll()) != null) {
+                waiter.tryFailure(new EndpointNotAvailableException("ConnectionsManager has been closed, cannot connect to " + key, null));
+            }
+        });
         group.shutdownGracefully();
         eventLoopForOutboundConnections.shutdownGracefully();
     }
@@ -31,11 +31,11 @@ import io.netty.channel.epoll.Epoll;
 import io.netty.channel.epoll.EpollSocketChannel;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
-import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.HttpClientCodec;
 import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpObject;
 import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.handler.timeout.ReadTimeoutHandler;
 import io.netty.handler.timeout.WriteTimeoutHandler;
@@ -44,9 +44,6 @@ import io.prometheus.client.Counter;
 import io.prometheus.client.Gauge;
 import io.prometheus.client.Summary;
 import java.io.IOException;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
@@ -77,10 +74,15 @@ public class EndpointConnectionImpl implements EndpointConnection {
     private final AtomicBoolean active = new AtomicBoolean();    
 
     private final Channel channelToEndpoint;
+    private final ChannelFuture connectFuture;
+    private final EventLoopConnectionsPool ownerPool;
 
     private AtomicReference<ConnectionState> state = new AtomicReference<>(ConnectionState.IDLE);
     private volatile boolean forcedInvalid = false;
     private volatile RequestHandler clientSidePeerHandler;
+    private volatile long requestStartTs;
+    // confined to the event loop of the owner pool
+    private long idleSince;
 
     // stats
     private static final Summary CONNECTION_STATS_SUMMARY = PrometheusUtils.createSummary("backends", "connection_time_ns",
@@ -103,7 +105,9 @@ public class EndpointConnectionImpl implements EndpointConnection {
     }
 
     /**
-     * Creates and return always a "CONNECTED" connection. This constructor will block until the backend is connected
+     * Creates a new connection and starts connecting to the backend. This
+     * constructor does not block, use {@link #getConnectFuture()} in order to
+     * know when the connection is ready to be used
      *
      * @param key
      * @param parent
@@ -111,13 +115,29 @@ public class EndpointConnectionImpl implements EndpointConnection {
      * @throws IOException
      */
     public EndpointConnectionImpl(EndpointKey key, ConnectionsManagerImpl parent, EndpointStats endpointstats) throws IOException {
+        this(key, parent, endpointstats, parent.getEventLoopForOutboundConnections(), null);
+    }
+
+    /**
+     * Creates a new connection bound to the given event loop group.
+     *
+     * @param key
+     * @param parent
+     * @param endpointstats
+     * @param eventLoopForOutboundConnections
+     * @param ownerPool the per-event-loop pool which owns this connection,
+     * null for connections managed by the shared pool
+     * @throws IOException
+     */
+    EndpointConnectionImpl(EndpointKey key, ConnectionsManagerImpl parent, EndpointStats endpointstats,
+            EventLoopGroup eventLoopForOutboundConnections, EventLoopConnectionsPool ownerPool) throws IOException {
         this.key = key;
         this.parent = parent;
+        this.ownerPool = ownerPool;
         this.forcedInvalid = false;
         this.endpointstats = endpointstats;
         activityDone();
 
-        EventLoopGroup eventLoopForOutboundConnections = parent.getEventLoopForOutboundConnections();
         if (eventLoopForOutboundConnections.isShuttingDown()) {
             throw new IOException("eventLoopForOutboundConnections "
                     + eventLoopForOutboundConnections + " has been shutdown, cannot connect to " + key);
@@ -144,7 +164,8 @@ public class EndpointConnectionImpl implements EndpointConnection {
                     }
                 });
 
-        final ChannelFuture connectFuture = b.connect(key.getHost(), key.getPort());
+        connectFuture = b.connect(key.getHost(), key.getPort());
+        channelToEndpoint = connectFuture.channel();
 
         connectFuture.addListener((Future<Void> future) -> {
             if (future.isSuccess()) {
@@ -153,43 +174,44 @@ public class EndpointConnectionImpl implements EndpointConnection {
                 openConnectionsStats.inc();
                 CONNECTION_STATS_SUMMARY.labels(METRIC_LABEL_RESULT_SUCCESS, labelHost)
                         .observe(System.nanoTime() - startTime);
+                channelToEndpoint
+                        .closeFuture()
+                        .addListener((Future<? super Void> closeFuture) -> {
+                            LOG.log(Level.FINE, "channel closed to {0}", key);
+                            endpointstats.getOpenConnections().decrementAndGet();
+                            openConnectionsStats.dec();
+                        });
             } else {
                 CONNECTION_STATS_SUMMARY.labels(METRIC_LABEL_RESULT_FAILURE, labelHost)
                         .observe(System.nanoTime() - startTime);
                 LOG.log(Level.INFO, "connect failed to " + key, future.cause());
                 parent.backendHealthManager.reportBackendUnreachable(key.getHostPort(),
                         System.currentTimeMillis(), "connection failed");
+                invalidate();
             }
         });
-        try {
-            connectFuture.get(parent.getConnectTimeout(), TimeUnit.MILLISECONDS);
-        } catch (InterruptedException err) {
-            Thread.currentThread().interrupt();
-            throw new IOException(err);
-        } catch (ExecutionException err) {
-            LOG.log(Level.INFO, "cannot create a valid connection to " + key, err.getCause());
-            if (err.getCause() instanceof IOException) {
-                throw (IOException) err.getCause();
-            } else {
-                throw new IOException(err.getCause());
-            }
-        } catch (TimeoutException err) {
-            LOG.log(Level.INFO, "timed out creating a valid connection to " + key, err);
-            throw new IOException(err);
-        }
-        if (forcedInvalid) {
-            throw new IOException("Cannot connect to " + key+" (already invalidated)");
-        }
+    }
 
-        channelToEndpoint = connectFuture.channel();
-        channelToEndpoint
-                .closeFuture()
-                .addListener((Future<? super Void> future) -> {
-                    LOG.log(Level.FINE, "channel closed to {0}", key);
-                    endpointstats.getOpenConnections().decrementAndGet();
-                    openConnectionsStats.dec();
-                });
-        
+    /**
+     * Completes when the connection to the backend has been established (or
+     * failed)
+     *
+     * @return
+     */
+    ChannelFuture getConnectFuture() {
+        return connectFuture;
+    }
+
+    EventLoopConnectionsPool getOwnerPool() {
+        return ownerPool;
+    }
+
+    long getIdleSince() {
+        return idleSince;
+    }
+
+    void setIdleSince(long idleSince) {
+        this.idleSince = idleSince;
     }
 
     @Override
@@ -212,6 +234,7 @@ public class EndpointConnectionImpl implements EndpointConnection {
         endpointstats.getActiveConnections().incrementAndGet();
         activeConnectionsStats.inc();
         endpointstats.getTotalRequests().incrementAndGet();
+        requestStartTs = System.nanoTime();
         requestsStats.inc();
 
         parent.registerPendingRequest(clientSidePeerHandler);
@@ -310,6 +333,8 @@ public class EndpointConnectionImpl implements EndpointConnection {
         LOG.log(Level.INFO, "release {0} {1}", new Object[]{close, this});
         checkHandler(clientSidePeerHandler);
         connectionDeactivated();
+        // the reads may have been paused by a slow client
+        channelToEndpoint.config().setAutoRead(true);
 
         if (close) {
             destroy();
@@ -364,14 +389,15 @@ public class EndpointConnectionImpl implements EndpointConnection {
                 return;
             }
             if (msg instanceof HttpContent) {
+                // the message is relayed as-is, without copying the buffer:
+                // SimpleChannelInboundHandler is going to release it, the write
+                // to the client will release the reference we are taking here
                 HttpContent f = (HttpContent) msg;
-                _clientSidePeerHandler.receivedFromRemote(f.copy(),
+                _clientSidePeerHandler.receivedFromRemote(f.retain(),
                         EndpointConnectionImpl.this);
-            } else if (msg instanceof DefaultHttpResponse) {
-                DefaultHttpResponse f = (DefaultHttpResponse) msg;
-                // DefaultHttpResponse has no "copy" method
-                _clientSidePeerHandler.receivedFromRemote(
-                        new DefaultHttpResponse(f.protocolVersion(), f.status(), f.headers()),
+            } else if (msg instanceof HttpResponse) {
+                endpointstats.recordLatency(System.nanoTime() - requestStartTs);
+                _clientSidePeerHandler.receivedFromRemote(msg,
                         EndpointConnectionImpl.this);
             } else {
                 LOG.log(Level.SEVERE, "unknown message type " + msg.getClass() + ": " + msg);
@@ -387,6 +413,15 @@ public class EndpointConnectionImpl implements EndpointConnection {
             }
         }
 
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            RequestHandler _clientSidePeerHandler = clientSidePeerHandler;
+            if (_clientSidePeerHandler != null) {
+                _clientSidePeerHandler.endpointWritabilityChanged(EndpointConnectionImpl.this);
+            }
+            ctx.fireChannelWritabilityChanged();
+        }
+
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
             LOG.log(Level.SEVERE, "I/O error on endpoint " + key, cause);
@@ -426,5 +461,15 @@ public class EndpointConnectionImpl implements EndpointConnection {
     public EndpointKey getKey() {
         return key;
     }
+
+    @Override
+    public boolean isWritable() {
+        return channelToEndpoint.isWritable();
+    }
+
+    @Override
+    public void setAutoRead(boolean autoRead) {
+        channelToEndpoint.config().setAutoRead(autoRead);
+    }
     
 }
@@ -0,0 +1,308 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.client.impl;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.carapaceproxy.EndpointStats;
+import org.carapaceproxy.client.EndpointConnection;
+import org.carapaceproxy.client.EndpointKey;
+import org.carapaceproxy.client.EndpointNotAvailableException;
+
+/**
+ * Pool of connections to the backends owned by a single {@link EventLoop}.
+ * <p>
+ * Connections are registered on the same event loop which serves the client
+ * channel, so requests and responses are relayed without any thread hop. All
+ * the state is confined to the event loop, no locking is needed: calls coming
+ * from other threads are rescheduled on the loop.
+ * </p>
+ * <p>
+ * connectionsmanager.maxconnectionsperendpoint is a budget shared by all the
+ * event loops, see {@link ConnectionsManagerImpl#reserveEventLoopConnection}.
+ * Connections idle for more than connectionsmanager.idletimeout are closed.
+ * </p>
+ */
+final class EventLoopConnectionsPool {
+
+    private static final Logger LOG = Logger.getLogger(EventLoopConnectionsPool.class.getName());
+
+    private final EventLoop eventLoop;
+    private final ConnectionsManagerImpl parent;
+    private final Map<EndpointKey, EndpointPool> pools = new HashMap<>();
+    private final Future<?> idleConnectionsReaper;
+
+    private static final class EndpointPool {
+
+        private final EndpointStats stats;
+        // waiters for this endpoint on all the event loops
+        private final AtomicInteger sharedWaiters;
+        // most recently used connection is at the tail
+        private final ArrayDeque<EndpointConnectionImpl> idle = new ArrayDeque<>();
+        private final ArrayDeque<Promise<EndpointConnection>> waiters = new ArrayDeque<>();
+        private int total;
+
+        private EndpointPool(EndpointStats stats, AtomicInteger sharedWaiters) {
+            this.stats = stats;
+            this.sharedWaiters = sharedWaiters;
+        }
+    }
+
+    EventLoopConnectionsPool(EventLoop eventLoop, ConnectionsManagerImpl parent) {
+        this.eventLoop = eventLoop;
+        this.parent = parent;
+        long period = Math.max(1, parent.getIdleTimeout() / 4);
+        this.idleConnectionsReaper = eventLoop.scheduleWithFixedDelay(this::closeIdleConnections, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    EventLoop getEventLoop() {
+        return eventLoop;
+    }
+
+    void acquire(EndpointKey key, Promise<EndpointConnection> promise) {
+        if (!eventLoop.inEventLoop()) {
+            eventLoop.execute(() -> acquire(key, promise));
+            return;
+        }
+        EndpointPool pool = pools.computeIfAbsent(key, k -> new EndpointPool(parent.getEndpointStats(k), parent.getEventLoopWaiters(k)));
+        EndpointConnectionImpl con;
+        while ((con = pollIdle(pool)) != null) {
+            String validationResult = con.validate();
+            if (validationResult == null) {
+                if (!promise.trySuccess(con)) {
+                    offerIdle(pool, con);
+                }
+                return;
+            }
+            LOG.log(Level.WARNING, "validate {0} {1}-> {2}", new Object[]{key, con, validationResult});
+            destroy(pool, con);
+        }
+        if (parent.reserveEventLoopConnection(key)) {
+            connect(key, pool, promise);
+            return;
+        }
+        addWaiter(pool, promise);
+        // the budget may be held by connections idle on other event loops
+        parent.reclaimIdleEventLoopConnection(key, this);
+        int _borrowTimeout = parent.getBorrowTimeout();
+        Future<?> timeout = eventLoop.schedule(() -> {
+            if (promise.tryFailure(new EndpointNotAvailableException("Too many connections to " + key
+                    + " and/or cannot create a new connection (borrowTimeout " + _borrowTimeout + " ms)", null))) {
+                if (pool.waiters.remove(promise)) {
+                    pool.sharedWaiters.decrementAndGet();
+                }
+            }
+        }, _borrowTimeout, TimeUnit.MILLISECONDS);
+        promise.addListener((Future<EndpointConnection> future) -> {
+            timeout.cancel(false);
+        });
+    }
+
+    void release(EndpointConnectionImpl con) {
+        if (!eventLoop.inEventLoop()) {
+            eventLoop.execute(() -> release(con));
+            return;
+        }
+        EndpointKey key = con.getKey();
+        EndpointPool pool = pools.get(key);
+        if (pool == null) {
+            // pool already closed
+            con.destroy();
+            return;
+        }
+        String validationResult = con.validate();
+        if (validationResult != null) {
+            LOG.log(Level.INFO, "destroy con {0} {1}: {2}", new Object[]{key, con, validationResult});
+            destroy(pool, con);
+            return;
+        }
+        Promise<EndpointConnection> waiter;
+        while ((waiter = pollWaiter(pool)) != null) {
+            if (waiter.trySuccess(con)) {
+                return;
+            }
+        }
+        if (pool.sharedWaiters.get() > 0) {
+            // another event loop is waiting for the budget held by this connection
+            destroy(pool, con);
+            return;
+        }
+        offerIdle(pool, con);
+    }
+
+    /**
+     * Opens new connections for the waiters, if the shared budget allows it.
+     * Called whenever a connection is closed on any event loop.
+     *
+     * @param key
+     */
+    void serveWaiters(EndpointKey key) {
+        // always deferred, the caller may be iterating over the waiters
+        eventLoop.execute(() -> {
+            EndpointPool pool = pools.get(key);
+            if (pool == null) {
+                return;
+            }
+            Promise<EndpointConnection> waiter;
+            while ((waiter = pool.waiters.peek()) != null) {
+                if (!waiter.isDone()) {
+                    if (!parent.reserveEventLoopConnection(key)) {
+                        return;
+                    }
+                    connect(key, pool, waiter);
+                }
+                pollWaiter(pool);
+            }
+        });
+    }
+
+    /**
+     * Closes the least recently used idle connection, in order to give back
+     * its budget to another event loop.
+     *
+     * @param key
+     * @param reclaimed shared by all the event loops, at most one connection
+     * is closed
+     */
+    void reclaimIdleConnection(EndpointKey key, AtomicBoolean reclaimed) {
+        eventLoop.execute(() -> {
+            EndpointPool pool = pools.get(key);
+            if (pool == null || pool.idle.isEmpty() || !reclaimed.compareAndSet(false, true)) {
+                return;
+            }
+            EndpointConnectionImpl con = pool.idle.pollFirst();
+            pool.stats.getIdleConnections().decrementAndGet();
+            LOG.log(Level.FINE, "reclaim con {0} {1}", new Object[]{key, con});
+            destroy(pool, con);
+        });
+    }
+
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        int idleTimeout = parent.getIdleTimeout();
+        pools.forEach((key, pool) -> {
+            for (Iterator<EndpointConnectionImpl> it = pool.idle.iterator(); it.hasNext();) {
+                EndpointConnectionImpl con = it.next();
+                String validationResult = now - con.getIdleSince() >= idleTimeout
+                        ? "idle for more than " + idleTimeout + " ms"
+                        : con.validate();
+                if (validationResult != null) {
+                    LOG.log(Level.INFO, "destroy con {0} {1}: {2}", new Object[]{key, con, validationResult});
+                    it.remove();
+                    pool.stats.getIdleConnections().decrementAndGet();
+                    destroy(pool, con);
+                }
+            }
+        });
+    }
+
+    private void connect(EndpointKey key, EndpointPool pool, Promise<EndpointConnection> promise) {
+        EndpointConnectionImpl con;
+        try {
+            con = new EndpointConnectionImpl(key, parent, pool.stats, eventLoop, this);
+        } catch (Exception ex) {
+            parent.releaseEventLoopConnection(key);
+            promise.tryFailure(new EndpointNotAvailableException("Endpoint error while connecting to " + key, ex));
+            return;
+        }
+        pool.total++;
+        LOG.log(Level.INFO, "opened new connection {0}", new Object[]{con});
+        // the channel is registered on our event loop, so the listener will run on it
+        con.getConnectFuture().addListener((ChannelFuture future) -> {
+            if (future.isSuccess()) {
+                if (!promise.trySuccess(con)) {
+                    // the requestor gave up (timeout or cancellation)
+                    release(con);
+                }
+            } else {
+                destroy(pool, con);
+                promise.tryFailure(new EndpointNotAvailableException("Endpoint error while connecting to " + key, future.cause()));
+            }
+        });
+    }
+
+    private void addWaiter(EndpointPool pool, Promise<EndpointConnection> waiter) {
+        pool.waiters.add(waiter);
+        pool.sharedWaiters.incrementAndGet();
+    }
+
+    private Promise<EndpointConnection> pollWaiter(EndpointPool pool) {
+        Promise<EndpointConnection> waiter = pool.waiters.poll();
+        if (waiter != null) {
+            pool.sharedWaiters.decrementAndGet();
+        }
+        return waiter;
+    }
+
+    private EndpointConnectionImpl pollIdle(EndpointPool pool) {
+        EndpointConnectionImpl con = pool.idle.pollLast();
+        if (con != null) {
+            pool.stats.getIdleConnections().decrementAndGet();
+        }
+        return con;
+    }
+
+    private void offerIdle(EndpointPool pool, EndpointConnectionImpl con) {
+        con.setIdleSince(System.currentTimeMillis());
+        pool.idle.addLast(con);
+        pool.stats.getIdleConnections().incrementAndGet();
+    }
+
+    private void destroy(EndpointPool pool, EndpointConnectionImpl con) {
+        pool.total--;
+        con.destroy();
+        parent.releaseEventLoopConnection(con.getKey());
+    }
+
+    void close() {
+        idleConnectionsReaper.cancel(false);
+        if (eventLoop.isShuttingDown()) {
+            // channels will be closed by the event loop itself
+            return;
+        }
+        if (!eventLoop.inEventLoop()) {
+            eventLoop.execute(this::close);
+            return;
+        }
+        pools.forEach((key, pool) -> {
+            LOG.fine("[POOL] " + eventLoop + " " + key + " -> " + pool.total + " connections, " + pool.idle.size() + " idle");
+            pool.stats.getIdleConnections().addAndGet(-pool.idle.size());
+            pool.idle.forEach(EndpointConnectionImpl::destroy);
+            pool.idle.clear();
+            Promise<EndpointConnection> waiter;
+            while ((waiter = pollWaiter(pool)) != null) {
+                waiter.tryFailure(new EndpointNotAvailableException("ConnectionsManager has been closed, cannot connect to " + key, null));
+            }
+        });
+        pools.clear();
+    }
+
+}
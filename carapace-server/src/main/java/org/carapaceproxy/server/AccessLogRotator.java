@@ -0,0 +1,171 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+import static org.carapaceproxy.server.RuntimeServerConfiguration.ACCESS_LOG_COMPRESSION_GZIP;
+
+/**
+ * Rotates the access log file.
+ * <p>
+ * The file is renamed by the writer thread of the {@link RequestsLogger},
+ * compression of the rotated segments and removal of the ones exceeding the
+ * retention are done by a background thread.
+ * </p>
+ */
+class AccessLogRotator implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(AccessLogRotator.class.getName());
+
+    private static final String GZIP_EXTENSION = ".gz";
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "accesslog-rotation");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // owned by the writer thread
+    private final SimpleDateFormat segmentSuffix = new SimpleDateFormat("yyyyMMdd-HHmmss");
+
+    /**
+     * Renames the (closed) access log file and schedules the compression of
+     * the segment and the removal of the oldest ones
+     *
+     * @param file
+     * @param compression
+     * @param retention number of segments to keep, 0 means all
+     * @throws IOException
+     */
+    void rotate(Path file, String compression, int retention) throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        String name = file.getFileName() + "." + segmentSuffix.format(new Date());
+        Path segment = file.resolveSibling(name);
+        for (int i = 1; Files.exists(segment) || Files.exists(segment.resolveSibling(segment.getFileName() + GZIP_EXTENSION)); i++) {
+            segment = file.resolveSibling(name + "-" + i);
+        }
+        Files.move(file, segment, StandardCopyOption.ATOMIC_MOVE);
+        LOG.log(Level.INFO, "Access log rotated to {0}", segment);
+
+        Path rotated = segment;
+        executor.execute(() -> {
+            if (ACCESS_LOG_COMPRESSION_GZIP.equals(compression)) {
+                compress(rotated);
+            }
+            if (retention > 0) {
+                purge(file, retention);
+            }
+        });
+    }
+
+    private static void compress(Path segment) {
+        Path compressed = segment.resolveSibling(segment.getFileName() + GZIP_EXTENSION);
+        Path temp = segment.resolveSibling(segment.getFileName() + GZIP_EXTENSION + ".tmp");
+        try {
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(temp), 64 * 1024)) {
+                Files.copy(segment, out);
+            }
+            Files.move(temp, compressed, StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(segment);
+        } catch (IOException err) {
+            LOG.log(Level.SEVERE, "Cannot compress access log segment " + segment, err);
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private static void purge(Path file, int retention) {
+        Pattern segmentName = Pattern.compile(Pattern.quote(file.getFileName().toString())
+                + "\\.\\d{8}-\\d{6}(-\\d+)?(" + Pattern.quote(GZIP_EXTENSION) + ")?");
+        List<Path> segments = new ArrayList<>();
+        Path dir = file.toAbsolutePath().getParent();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                if (segmentName.matcher(path.getFileName().toString()).matches()) {
+                    segments.add(path);
+                }
+            }
+            if (segments.size() <= retention) {
+                return;
+            }
+            segments.sort(Comparator.comparingLong(AccessLogRotator::lastModified));
+            for (Path segment : segments.subList(0, segments.size() - retention)) {
+                LOG.log(Level.INFO, "Deleting access log segment {0}", segment);
+                Files.deleteIfExists(segment);
+            }
+        } catch (IOException err) {
+            LOG.log(Level.SEVERE, "Cannot delete old access log segments of " + file, err);
+        }
+    }
+
+    private static long lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException err) {
+            return 0;
+        }
+    }
+
+    /**
+     * Waits for the completion of the scheduled compressions
+     */
+    void awaitPendingTasks() throws InterruptedException {
+        try {
+            executor.submit(() -> {
+            }).get();
+        } catch (ExecutionException impossible) {
+            throw new RuntimeException(impossible);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(60, TimeUnit.SECONDS)) {
+                LOG.log(Level.SEVERE, "Access log segments compression did not complete in time");
+            }
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -29,8 +29,8 @@ import io.netty.handler.codec.http.LastHttpContent;
 import io.prometheus.client.Counter;
 import io.prometheus.client.Gauge;
 import java.net.SocketAddress;
+import java.util.ArrayDeque;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -66,7 +66,12 @@ public class ClientConnectionHandler extends SimpleChannelInboundHandler<Object>
     final long connectionStartsTs;
     volatile boolean keepAlive = true;
     volatile boolean refuseOtherRequests;
-    private final List<RequestHandler> pendingRequests = new CopyOnWriteArrayList<>();
+    // requests waiting for their response to be completely written, in order of arrival:
+    // with HTTP/1.1 pipelining only the first one can write to the client.
+    // Accessed only by the event loop of the channel
+    private final ArrayDeque<RequestHandler> pendingRequests = new ArrayDeque<>();
+    // the request whose body is being received
+    private RequestHandler currentRequest;
     final Runnable onClientDisconnected;
     private final String listenerHost;
     private final int listenerPort;
@@ -106,6 +111,16 @@ public class ClientConnectionHandler extends SimpleChannelInboundHandler<Object>
         return clientAddress;
     }
 
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        currentRequest = null;
+        for (RequestHandler request : pendingRequests) {
+            request.discardResponse();
+        }
+        pendingRequests.clear();
+        super.channelInactive(ctx);
+    }
+
     @Override
     public void channelUnregistered(ChannelHandlerContext ctx) throws Exception {
         onClientDisconnected.run();
@@ -116,6 +131,17 @@ public class ClientConnectionHandler extends SimpleChannelInboundHandler<Object>
         ctx.flush();
     }
 
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            // resume reading the responses from the backends
+            for (RequestHandler request : pendingRequests) {
+                request.clientWritabilityChanged();
+            }
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
         super.exceptionCaught(ctx, cause);
@@ -141,33 +167,35 @@ public class ClientConnectionHandler extends SimpleChannelInboundHandler<Object>
                 this.keepAlive = false;
                 refuseOtherRequests = true;
             }
-            RequestHandler currentRequest = new RequestHandler(requestIdGenerator.incrementAndGet(),
+            currentRequest = new RequestHandler(nextRequestId(),
                     request, filters, this, ctx, () -> RUNNING_REQUESTS_GAUGE.dec(), backendHealthManager, requestsLogger);
             addPendingRequest(currentRequest);
             currentRequest.start();
         } else if (msg instanceof LastHttpContent) {
             LastHttpContent trailer = (LastHttpContent) msg;
-            try {
-                RequestHandler currentRequest = pendingRequests.get(0);
-                currentRequest.clientRequestFinished(trailer);
-                totalRequests.inc();
-                RUNNING_REQUESTS_GAUGE.inc();
-            } catch (java.lang.ArrayIndexOutOfBoundsException noMorePendingRequests) {
+            RequestHandler request = currentRequest;
+            if (request == null) {
                 LOG.log(Level.INFO, "{0} swallow {1}, no more pending requests", new Object[]{this, msg});
                 refuseOtherRequests = true;
                 ctx.close();
+                return;
             }
+            // next contents belong to the next request
+            currentRequest = null;
+            request.clientRequestFinished(trailer);
+            totalRequests.inc();
+            RUNNING_REQUESTS_GAUGE.inc();
         } else if (msg instanceof HttpContent) {
             // for example chunks from client
             HttpContent httpContent = (HttpContent) msg;
-            try {
-                RequestHandler currentRequest = pendingRequests.get(0);
-                currentRequest.continueClientRequest(httpContent);
-            } catch (java.lang.ArrayIndexOutOfBoundsException noMorePendingRequests) {
+            RequestHandler request = currentRequest;
+            if (request == null) {
                 LOG.log(Level.INFO, "{0} swallow {1}, no more pending requests", new Object[]{this, msg});
                 refuseOtherRequests = true;
                 ctx.close();
+                return;
             }
+            request.continueClientRequest(httpContent);
         }
     }
     
@@ -199,13 +227,27 @@ public class ClientConnectionHandler extends SimpleChannelInboundHandler<Object>
     }
 
     public void errorSendingRequest(RequestHandler request, EndpointConnectionImpl endpointConnection, ChannelHandlerContext peerChannel, Throwable error) {
-        pendingRequests.remove(request);
         mapper.endpointFailed(endpointConnection.getKey(), error);
         LOG.log(Level.INFO, error, () -> this + " errorSendingRequest " + endpointConnection);
     }
 
-    public void lastHttpContentSent(RequestHandler requestHandler) {        
-        pendingRequests.remove(requestHandler);
+    /**
+     * The response to the request has been written (or it failed), the
+     * response to the next pipelined request can be written. Called by the
+     * event loop of the channel.
+     *
+     * @param request
+     */
+    void responseCompleted(RequestHandler request) {
+        if (pendingRequests.peekFirst() != request) {
+            // already done
+            return;
+        }
+        pendingRequests.pollFirst();
+        RequestHandler next = pendingRequests.peekFirst();
+        if (next != null) {
+            next.releaseResponse();
+        }
     }
 
     @Override
@@ -213,8 +255,25 @@ public class ClientConnectionHandler extends SimpleChannelInboundHandler<Object>
         return "ClientConnectionHandler{" + id + ",ka=" + keepAlive + '}';
     }
 
+    static long nextRequestId() {
+        return requestIdGenerator.incrementAndGet();
+    }
+
+    /**
+     * Called by the event loop of the channel.
+     *
+     * @return the request whose response is being written to the client
+     */
+    RequestHandler getRespondingRequest() {
+        return pendingRequests.peekFirst();
+    }
+
     void addPendingRequest(RequestHandler request) {
-        pendingRequests.add(request);
+        pendingRequests.addLast(request);
+        if (pendingRequests.size() == 1) {
+            // no response to wait for
+            request.releaseResponse();
+        }
     }
 
 }
@@ -154,6 +154,7 @@ public class HttpProxyServer implements AutoCloseable {
         this.dynamicCertificateManager = new DynamicCertificatesManager();
         if (mapper != null) {
             mapper.setDynamicCertificateManager(dynamicCertificateManager);
+            mapper.setConnectionsManagerStats(connectionsManager.getStats());
         }
     }
 
@@ -603,6 +604,7 @@ public class HttpProxyServer implements AutoCloseable {
             RuntimeServerConfiguration newConfiguration = buildValidConfiguration(storeWithConfig);
             EndpointMapper newMapper = buildMapper(newConfiguration.getMapperClassname(), storeWithConfig);
             newMapper.setDynamicCertificateManager(this.dynamicCertificateManager);
+            newMapper.setConnectionsManagerStats(this.connectionsManager.getStats());
             UserRealm newRealm = buildRealm(userRealmClassname, storeWithConfig);
 
             this.filters = buildFilters(newConfiguration);
@@ -634,6 +636,7 @@ public class HttpProxyServer implements AutoCloseable {
         this.mapper = mapper;
         if (mapper != null) {
             mapper.setDynamicCertificateManager(dynamicCertificateManager);
+            mapper.setConnectionsManagerStats(connectionsManager.getStats());
         }
     }
 
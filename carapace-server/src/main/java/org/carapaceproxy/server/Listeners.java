@@ -23,8 +23,11 @@ import com.google.common.annotations.VisibleForTesting;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.epoll.Epoll;
 import io.netty.channel.epoll.EpollEventLoopGroup;
@@ -32,13 +35,24 @@ import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpRequestDecoder;
 import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http2.Http2MultiplexCodecBuilder;
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.codec.http2.HttpConversionUtil;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
 import io.netty.handler.ssl.OpenSsl;
 import io.netty.handler.ssl.SniHandler;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
 import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
 import io.netty.util.AsyncMapping;
 import io.netty.util.concurrent.Promise;
 import io.prometheus.client.Gauge;
@@ -47,6 +61,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -79,6 +94,9 @@ public class Listeners {
     private static final Gauge CURRENT_CONNECTED_CLIENTS_GAUGE = PrometheusUtils.createGauge("clients", "current_connected",
             "currently connected clients").register();
 
+    // limits the number of concurrent requests on a single HTTP/2 connection
+    private static final int HTTP2_MAX_CONCURRENT_STREAMS = 100;
+
     private final EventLoopGroup bossGroup;
     private final EventLoopGroup workerGroup;
     private final HttpProxyServer parent;
@@ -154,12 +172,28 @@ public class Listeners {
                 LOG.log(Level.SEVERE, "required sslCiphers " + sslCiphers);
                 ciphers = Arrays.asList(sslCiphers.split(","));
             }
-            return SslContextBuilder
+            SslContextBuilder builder = SslContextBuilder
                     .forServer(keyFactory)
                     .enableOcsp(listener.isOcps() && OpenSsl.isOcspSupported())
                     .trustManager(trustManagerFactory)
-                    .sslProvider(SslProvider.OPENSSL)
-                    .ciphers(ciphers).build();
+                    .sslProvider(SslProvider.OPENSSL);
+            if (listener.isHttp2()) {
+                if (ciphers == null) {
+                    // HTTP/2 blacklists many ciphers, see RFC 7540 Appendix A
+                    builder.ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE);
+                } else {
+                    builder.ciphers(ciphers);
+                }
+                builder.applicationProtocolConfig(new ApplicationProtocolConfig(
+                        ApplicationProtocolConfig.Protocol.ALPN,
+                        ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                        ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                        ApplicationProtocolNames.HTTP_2,
+                        ApplicationProtocolNames.HTTP_1_1));
+            } else {
+                builder.ciphers(ciphers);
+            }
+            return builder.build();
         } catch (IOException | GeneralSecurityException err) {
             throw new ConfigurationNotValidException(err);
         }
@@ -168,7 +202,7 @@ public class Listeners {
 
     private void bootListener(NetworkListenerConfiguration listener) throws InterruptedException {
         int port = listener.getPort() + parent.getListenersOffsetPort();
-        LOG.log(Level.INFO, "Starting listener at {0}:{1} ssl:{2}", new Object[]{listener.getHost(), port, listener.isSsl()});
+        LOG.log(Level.INFO, "Starting listener at {0}:{1} ssl:{2} http2:{3}", new Object[]{listener.getHost(), port, listener.isSsl(), listener.isHttp2()});
 
         AsyncMapping<String, SslContext> sniMappings = (String sniHostname, Promise<SslContext> promise) -> {
             try {
@@ -192,23 +226,27 @@ public class Listeners {
                             SniHandler sni = new SniHandler(sniMappings);
                             channel.pipeline().addLast(sni);
                         }
-                        channel.pipeline().addLast(new HttpRequestDecoder());
-                        channel.pipeline().addLast(new HttpResponseEncoder());
-
-                        ClientConnectionHandler connHandler = new ClientConnectionHandler(parent.getMapper(),
-                                parent.getConnectionsManager(),
-                                parent.getFilters(), parent.getCache(),
-                                channel.remoteAddress(), parent.getStaticContentsManager(),
-                                () -> CURRENT_CONNECTED_CLIENTS_GAUGE.dec(),
-                                parent.getBackendHealthManager(),
-                                parent.getRequestsLogger(),
-                                listener.getHost(),
-                                port,
-                                listener.isSsl()
-                        );
-                        channel.pipeline().addLast(connHandler);
-
-                        listenersHandlers.put(key, connHandler);
+                        if (!listener.isSsl() || !listener.isHttp2()) {
+                            configureHttp1(channel.pipeline(), listener, key, channel.remoteAddress(),
+                                    () -> CURRENT_CONNECTED_CLIENTS_GAUGE.dec());
+                            return;
+                        }
+                        // the protocol is known only after the handshake,
+                        // there will be one handler per stream with HTTP/2
+                        channel.closeFuture().addListener((f) -> CURRENT_CONNECTED_CLIENTS_GAUGE.dec());
+                        channel.pipeline().addLast(new ApplicationProtocolNegotiationHandler(ApplicationProtocolNames.HTTP_1_1) {
+                            @Override
+                            protected void configurePipeline(ChannelHandlerContext ctx, String protocol) throws Exception {
+                                if (ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+                                    configureHttp2(ctx.pipeline(), listener, key, channel.remoteAddress());
+                                } else if (ApplicationProtocolNames.HTTP_1_1.equals(protocol)) {
+                                    configureHttp1(ctx.pipeline(), listener, key, channel.remoteAddress(), () -> {
+                                    });
+                                } else {
+                                    throw new IllegalStateException("unsupported protocol: " + protocol);
+                                }
+                            }
+                        });
                     }
                 })
                 .option(ChannelOption.SO_BACKLOG, 128)
@@ -220,6 +258,71 @@ public class Listeners {
 
     }
 
+    private void configureHttp1(ChannelPipeline pipeline, NetworkListenerConfiguration listener, HostPort key,
+            SocketAddress clientAddress, Runnable onClientDisconnected) {
+        pipeline.addLast(new HttpRequestDecoder());
+        pipeline.addLast(new HttpResponseEncoder());
+
+        ClientConnectionHandler connHandler = buildClientConnectionHandler(listener, key, clientAddress, onClientDisconnected);
+        pipeline.addLast(new ResponseCompressor(connHandler));
+        pipeline.addLast(connHandler);
+
+        listenersHandlers.put(key, connHandler);
+    }
+
+    private void configureHttp2(ChannelPipeline pipeline, NetworkListenerConfiguration listener, HostPort key,
+            SocketAddress clientAddress) {
+        // each stream is a child channel which sees plain HttpObjects, as an HTTP/1.1 connection
+        pipeline.addLast(Http2MultiplexCodecBuilder.forServer(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel stream) throws Exception {
+                stream.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(true));
+                stream.pipeline().addLast(new Http2ExtensionHeadersCleaner());
+
+                ClientConnectionHandler connHandler = buildClientConnectionHandler(listener, key, clientAddress, () -> {
+                });
+                stream.pipeline().addLast(new ResponseCompressor(connHandler));
+                stream.pipeline().addLast(connHandler);
+
+                listenersHandlers.put(key, connHandler);
+            }
+        }).initialSettings(Http2Settings.defaultSettings().maxConcurrentStreams(HTTP2_MAX_CONCURRENT_STREAMS))
+                .build());
+    }
+
+    private ClientConnectionHandler buildClientConnectionHandler(NetworkListenerConfiguration listener, HostPort key,
+            SocketAddress clientAddress, Runnable onClientDisconnected) {
+        return new ClientConnectionHandler(parent.getMapper(),
+                parent.getConnectionsManager(),
+                parent.getFilters(), parent.getCache(),
+                clientAddress, parent.getStaticContentsManager(),
+                onClientDisconnected,
+                parent.getBackendHealthManager(),
+                parent.getRequestsLogger(),
+                listener.getHost(),
+                key.getPort(),
+                listener.isSsl()
+        );
+    }
+
+    /**
+     * Drops the headers added by the conversion from HTTP/2 frames, they must
+     * not be forwarded to the backends
+     */
+    private static final class Http2ExtensionHeadersCleaner extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof HttpRequest) {
+                HttpHeaders headers = ((HttpRequest) msg).headers();
+                for (HttpConversionUtil.ExtensionHeaderNames name : HttpConversionUtil.ExtensionHeaderNames.values()) {
+                    headers.remove(name.text());
+                }
+            }
+            super.channelRead(ctx, msg);
+        }
+    }
+
     private KeyManagerFactory initKeyManagerFactory(String keyStoreType, File keyStoreLocation,
             String keyStorePassword) throws SecurityException, KeyStoreException, NoSuchAlgorithmException,
             CertificateException, IOException, UnrecoverableKeyException {
@@ -0,0 +1,106 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server;
+
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.util.ReferenceCountUtil;
+import java.util.ArrayDeque;
+import java.util.List;
+import org.carapaceproxy.server.config.RequestBufferConfiguration;
+
+/**
+ * Contents of the body of a request received from the client and not sent yet
+ * to the backend.
+ * <p>
+ * Contents are kept in memory, when more than
+ * {@link RequestBufferConfiguration#getMemorySize()} bytes are buffered the
+ * buffer is {@link #isFull() full} and the caller is expected to stop reading
+ * from the client.
+ * </p>
+ * Not thread safe, it is used only by the event loop of the client channel.
+ */
+class RequestBodyBuffer {
+
+    private final RequestBufferConfiguration configuration;
+    private final ArrayDeque<HttpContent> memory = new ArrayDeque<>();
+    private long memorySize;
+
+    RequestBodyBuffer(RequestBufferConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    /**
+     * Appends a content, the buffer takes ownership of it
+     *
+     * @param content
+     */
+    void add(HttpContent content) {
+        memory.addLast(content);
+        memorySize += content.content().readableBytes();
+    }
+
+    /**
+     * Puts the given contents in front of the buffer, for instance the
+     * contents to be sent again to another backend
+     *
+     * @param contents
+     */
+    void addFirst(List<HttpContent> contents) {
+        for (int i = contents.size() - 1; i >= 0; i--) {
+            HttpContent content = contents.get(i);
+            memory.addFirst(content);
+            memorySize += content.content().readableBytes();
+        }
+    }
+
+    /**
+     * Takes the next content, the caller takes ownership of it
+     *
+     * @return null if the buffer is empty
+     */
+    HttpContent poll() {
+        HttpContent content = memory.pollFirst();
+        if (content != null) {
+            memorySize -= content.content().readableBytes();
+        }
+        return content;
+    }
+
+    boolean isEmpty() {
+        return memory.isEmpty();
+    }
+
+    /**
+     * @return true if no more contents should be read from the client
+     */
+    boolean isFull() {
+        return memorySize >= configuration.getMemorySize();
+    }
+
+    /**
+     * Releases the contents
+     */
+    void release() {
+        memory.forEach(ReferenceCountUtil::release);
+        memory.clear();
+        memorySize = 0;
+    }
+
+}
@@ -21,17 +21,21 @@ package org.carapaceproxy.server;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
 import io.netty.handler.codec.DecoderResult;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.DefaultHttpRequest;
 import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpObject;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
@@ -44,19 +48,24 @@ import io.netty.handler.codec.http.HttpVersion;
 import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
 import io.prometheus.client.Counter;
 import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.carapaceproxy.MapResult;
 import org.carapaceproxy.client.EndpointConnection;
 import org.carapaceproxy.client.EndpointKey;
-import org.carapaceproxy.client.EndpointNotAvailableException;
 import org.carapaceproxy.client.impl.EndpointConnectionImpl;
 import org.carapaceproxy.server.backends.BackendHealthManager;
 import org.carapaceproxy.server.cache.ContentsCache;
@@ -64,6 +73,7 @@ import org.carapaceproxy.server.filters.UrlEncodedQueryString;
 import static org.carapaceproxy.server.StaticContentsManager.DEFAULT_INTERNAL_SERVER_ERROR;
 import org.carapaceproxy.server.mapper.CustomHeader.HeaderMode;
 import org.carapaceproxy.server.mapper.requestmatcher.MatchingContext;
+import org.carapaceproxy.server.mapper.requestmatcher.MatchingProperties;
 import org.carapaceproxy.utils.PrometheusUtils;
 
 /**
@@ -75,6 +85,8 @@ public class RequestHandler implements MatchingContext {
     public static final String PROTO_HTTPS = "https";
     public static final String PROTO_HTTP = "http";
 
+    private static final Counter RETRIES_COUNTER = PrometheusUtils.createCounter("listeners", "request_retries_total",
+            "requests sent again to another backend", "outcome").register();
     private static final Counter USER_REQUESTS_COUNTER = PrometheusUtils.createCounter("listeners", "user_requests_total",
             "inbound requests count", "userId").register();
 
@@ -84,6 +96,10 @@ public class RequestHandler implements MatchingContext {
     private MapResult action;
     private ContentsCache.ContentReceiver cacheReceiver;
     private ContentsCache.ContentSender cacheSender;
+    // byte ranges of the cached content being sent, owned by this request
+    private ContentsCache.ContentPayload partialContent;
+    // response in flight for the same contents, we are going to serve it as soon as it is received
+    private ContentsCache.ContentReceiver cacheFollowed;
     private AtomicReference<EndpointConnection> connectionToEndpoint = new AtomicReference<>();
     private final ClientConnectionHandler connectionToClient;
     private final ChannelHandlerContext channelToClient;
@@ -95,9 +111,33 @@ public class RequestHandler implements MatchingContext {
     private final String uri;
     private long startTs;
     private long backendStartTs = 0;
+    // when the request has been sent to the current connection to the backend
+    private volatile long requestSentTs;
     private volatile long lastActivity;
     private volatile boolean headerSent = false;
+    // set also by the event loop of the endpoint when a retry begins
+    private volatile boolean connectingToEndpoint;
+    // accessed only by the event loop of the client channel
+    private boolean clientRequestFinished;
+    private RequestBodyBuffer pendingClientContents;
+    // reads from the client paused because the backend is slower (or not connected yet)
+    private volatile boolean clientReadsPaused;
+    // the responses of pipelined requests are written in order: the writes are held
+    // until the previous requests are done, see ClientConnectionHandler
+    private final Object responseLock = new Object();
+    private volatile boolean responseReleased;
+    private List<Object> heldResponse;
     private UrlEncodedQueryString queryString;
+    // this handler refreshes a stale content on behalf of another one, nothing is sent to the client
+    private boolean backgroundRefresh;
+    // retries on other backends, see MapResult.retries
+    private volatile boolean retriable;
+    private int retries;
+    private int nextRetryBackend;
+    // copies of the contents sent to the backend, guarded by replayLock
+    private final Object replayLock = new Object();
+    private List<HttpContent> replayContents;
+    private long replayContentsSize;
 
     public RequestHandler(long id, HttpRequest request, List<RequestFilter> filters,
             ClientConnectionHandler parent, ChannelHandlerContext channelToClient, Runnable onRequestFinished,
@@ -113,6 +153,18 @@ public class RequestHandler implements MatchingContext {
         this.requestsLogger = requestsLogger;
     }
 
+    private RequestHandler(RequestHandler parent, HttpRequest refreshRequest, ContentsCache.ContentReceiver refreshReceiver) {
+        this(ClientConnectionHandler.nextRequestId(), refreshRequest, Collections.emptyList(), parent.connectionToClient,
+                parent.channelToClient, null, parent.backendHealthManager, parent.requestsLogger);
+        this.action = parent.action;
+        this.userId = parent.userId;
+        this.sessionId = parent.sessionId;
+        this.cacheReceiver = refreshReceiver;
+        this.backgroundRefresh = true;
+        this.startTs = System.currentTimeMillis();
+        this.lastActivity = startTs;
+    }
+
     public long getId() {
         return id;
     }
@@ -138,7 +190,7 @@ public class RequestHandler implements MatchingContext {
     }
 
     boolean isServedFromCache() {
-        return cacheSender != null;
+        return cacheSender != null || cacheFollowed != null;
     }
 
     InetSocketAddress getRemoteAddress() {
@@ -154,6 +206,7 @@ public class RequestHandler implements MatchingContext {
         if (handler != null) {
             handler.run();
         }
+        resumeClientReads();
     }
 
     public ClientConnectionHandler getClientConnectionHandler() {
@@ -185,6 +238,8 @@ public class RequestHandler implements MatchingContext {
         lastActivity = startTs;
         for (RequestFilter filter : filters) {
             filter.apply(request, connectionToClient, this);
+            // filters may change the headers
+            clearPropertiesCache();
         }
         action = connectionToClient.mapper.map(request, userId, sessionId, backendHealthManager, this);
         if (action == null) {
@@ -204,49 +259,47 @@ public class RequestHandler implements MatchingContext {
             LOG.log(Level.FINER, "{0} Mapped {1} to {2}, userid {3}", new Object[]{this, uri, action, userId});
         }
         switch (action.action) {
-            case NOTFOUND:
             case INTERNAL_ERROR:
+                if (action.staleIfError >= 0) {
+                    // no backend is available for a cache action
+                    cacheSender = connectionToClient.cache.serveStaleIfError(request);
+                }
+                return;
+            case NOTFOUND:
             case SYSTEM:
             case STATIC:
             case ACME_CHALLENGE:
             case REDIRECT:
                 return;
             case PROXY: {
-                EndpointConnection connection;
-                try {
-//                    LOG.log(Level.SEVERE, "TIME"+TIME_TRACKER.incrementAndGet()+" start " + this + " thread " + Thread.currentThread().getName());
-                    connection = connectionToClient.connectionsManager.getConnection(new EndpointKey(action.host, action.port));                    
-                } catch (EndpointNotAvailableException err) {
-                    fireRequestFinished();
-                    LOG.log(Level.INFO, "{0} error on endpoint {1}: {2}", new Object[]{this, action, err});
-                    return;
-                }
-                connectionToEndpoint.set(connection);
-                connection.sendRequest(request, this);
+                enableRetries();
+                connectToEndpoint();
                 return;
             }
             case CACHE: {
                 cacheSender = connectionToClient.cache.serveFromCache(this);
-                    if (cacheSender != null) {
+                if (cacheSender != null) {
                     return;
                 }
-                    EndpointConnection connection;
-                try {
-//                    LOG.log(Level.SEVERE, "TIME"+TIME_TRACKER.incrementAndGet()+" startc " + this + " thread " + Thread.currentThread().getName());                    
-                    connection = connectionToClient.connectionsManager.getConnection(new EndpointKey(
-                            action.host, action.port));                    
-                } catch (EndpointNotAvailableException err) {
-                    fireRequestFinished();
-                    LOG.log(Level.INFO, "{0} error on endpoint {1}: {2}", new Object[]{this, action, err});
+                cacheSender = connectionToClient.cache.serveStaleWhileRevalidate(this);
+                if (cacheSender != null) {
+                    // the client does not wait for the backend
+                    refreshInBackground();
                     return;
                 }
-                connectionToEndpoint.set(connection);
-                cacheReceiver = connectionToClient.cache.startCachingResponse(request);
+                cacheFollowed = connectionToClient.cache.followInflightResponse(request);
+                if (cacheFollowed != null) {
+                    return;
+                }
+                cacheReceiver = connectionToClient.cache.startCachingResponse(request, action.staleWhileRevalidate, action.staleIfError);
                 if (cacheReceiver != null) {
                     // https://tools.ietf.org/html/rfc7234#section-4.3.4
                     cleanRequestFromCacheValidators(request);
+                    // if we hold a stale content the backend may just confirm it
+                    cacheReceiver.addRevalidationHeaders(request);
                 }
-                connection.sendRequest(request, this);
+                enableRetries();
+                connectToEndpoint();
                 return;
             }
 
@@ -256,11 +309,217 @@ public class RequestHandler implements MatchingContext {
 
     }
 
+    private void connectToEndpoint() {
+        EndpointKey key = new EndpointKey(action.host, action.port);
+        connectingToEndpoint = true;
+        // the ConnectionsManager notifies us on the event loop of the client channel
+        connectionToClient.connectionsManager.getConnectionAsync(key, channelToClient.executor())
+                .addListener((Future<EndpointConnection> future) -> {
+                    connectingToEndpoint = false;
+                    if (!future.isSuccess()) {
+                        LOG.log(Level.INFO, "{0} error on endpoint {1}: {2}", new Object[]{this, action, future.cause()});
+                        if (retryOnNextBackend(future.cause())) {
+                            return;
+                        }
+                        disableRetries();
+                        if (serveStaleIfError()) {
+                            return;
+                        }
+                        abortCacheReceiver();
+                        releasePendingClientContents();
+                        fireRequestFinished();
+                        if (clientRequestFinished) {
+                            sendServiceNotAvailable();
+                        }
+                        return;
+                    }
+                    EndpointConnection connection = future.getNow();
+                    connectionToEndpoint.set(connection);
+                    requestSentTs = System.currentTimeMillis();
+                    connection.sendRequest(request, this);
+                    sendPendingClientContents(connection);
+                });
+    }
+
+    private boolean serveStaleIfError() {
+        ContentsCache.ContentReceiver receiver = cacheReceiver;
+        ContentsCache.ContentSender stale = receiver != null ? receiver.takeStaleIfError() : null;
+        if (stale == null) {
+            return false;
+        }
+        LOG.log(Level.INFO, "{0} serving stale content for {1}", new Object[]{this, uri});
+        cacheReceiver = null;
+        cacheSender = stale;
+        releasePendingClientContents();
+        if (clientRequestFinished) {
+            serveFromCache();
+        }
+        return true;
+    }
+
+    private void refreshInBackground() {
+        HttpRequest refreshRequest = new DefaultHttpRequest(request.protocolVersion(), request.method(), request.uri(), request.headers().copy());
+        ContentsCache.ContentReceiver receiver = connectionToClient.cache.startBackgroundRefresh(refreshRequest,
+                action.staleWhileRevalidate, action.staleIfError);
+        if (receiver == null) {
+            // another refresh is running
+            return;
+        }
+        cleanRequestFromCacheValidators(refreshRequest);
+        receiver.addRevalidationHeaders(refreshRequest);
+        new RequestHandler(this, refreshRequest, receiver).sendBackgroundRequest();
+    }
+
+    private void sendBackgroundRequest() {
+        EndpointKey key = new EndpointKey(action.host, action.port);
+        connectionToClient.connectionsManager.getConnectionAsync(key, channelToClient.executor())
+                .addListener((Future<EndpointConnection> future) -> {
+                    if (!future.isSuccess()) {
+                        LOG.log(Level.INFO, "{0} cannot refresh {1} from {2}: {3}", new Object[]{this, uri, action, future.cause()});
+                        abortCacheReceiver();
+                        return;
+                    }
+                    EndpointConnection connection = future.getNow();
+                    connectionToEndpoint.set(connection);
+                    requestSentTs = System.currentTimeMillis();
+                    connection.sendRequest(request, this);
+                    connection.sendLastHttpContent(LastHttpContent.EMPTY_LAST_CONTENT, this);
+                });
+    }
+
+    private void refreshedFromRemote(HttpObject msg, EndpointConnection connection) {
+        ContentsCache.ContentReceiver receiver = cacheReceiver;
+        if (receiver != null) {
+            receiver.receivedFromRemote(msg);
+        }
+        ReferenceCountUtil.release(msg);
+        if (msg instanceof LastHttpContent) {
+            if (receiver != null && receiver.isReplacedByStoredContent()) {
+                receiver.takeStoredContent().release();
+            }
+            cacheReceiver = null;
+            releaseConnectionToEndpoint(false, connection);
+        }
+    }
+
+    /**
+     * Sends the buffered contents to the backend, as long as it keeps up. The
+     * rest is sent when the backend becomes writable again, see
+     * {@link #endpointWritabilityChanged(org.carapaceproxy.client.EndpointConnection)}
+     */
+    private void sendPendingClientContents(EndpointConnection connection) {
+        while (pendingClientContents != null && connectionToEndpoint.get() == connection && connection.isWritable()) {
+            HttpContent content = pendingClientContents.poll();
+            if (content == null) {
+                releasePendingClientContents();
+                break;
+            }
+            sendToEndpoint(connection, content);
+        }
+        if (connectionToEndpoint.get() != connection) {
+            // failed meanwhile, or retrying on another backend
+            return;
+        }
+        if (pendingClientContents == null && connection.isWritable()) {
+            resumeClientReads();
+        } else {
+            pauseClientReads();
+        }
+    }
+
+    private void sendToEndpoint(EndpointConnection connection, HttpContent content) {
+        keepForReplay(content);
+        if (content instanceof LastHttpContent) {
+            connection.sendLastHttpContent((LastHttpContent) content, this);
+        } else {
+            connection.sendChunk(content, this);
+        }
+    }
+
+    /**
+     * The outbound buffer of the connection to the backend has crossed one of
+     * its watermarks, called by the event loop of the backend channel
+     *
+     * @param connection
+     */
+    public void endpointWritabilityChanged(EndpointConnection connection) {
+        channelToClient.executor().execute(() -> {
+            if (connectionToEndpoint.get() != connection || !connection.isWritable()) {
+                return;
+            }
+            sendPendingClientContents(connection);
+        });
+    }
+
+    /**
+     * The outbound buffer of the channel to the client has crossed one of its
+     * watermarks
+     */
+    void clientWritabilityChanged() {
+        EndpointConnection connection = connectionToEndpoint.get();
+        if (connection != null && responseReleased && channelToClient.channel().isWritable()) {
+            connection.setAutoRead(true);
+        }
+    }
+
+    private void pauseClientReads() {
+        if (!clientReadsPaused) {
+            clientReadsPaused = true;
+            channelToClient.channel().config().setAutoRead(false);
+        }
+    }
+
+    private void resumeClientReads() {
+        if (clientReadsPaused) {
+            clientReadsPaused = false;
+            channelToClient.channel().config().setAutoRead(true);
+        }
+    }
+
+    private void abortCacheReceiver() {
+        ContentsCache.ContentReceiver receiver = cacheReceiver;
+        if (receiver != null) {
+            // no-op if the response has been fully received
+            receiver.abort();
+        }
+    }
+
+    private void releasePendingClientContents() {
+        if (pendingClientContents == null) {
+            return;
+        }
+        pendingClientContents.release();
+        pendingClientContents = null;
+    }
+
+    private void addPendingClientContent(HttpContent content) {
+        if (pendingClientContents == null) {
+            pendingClientContents = new RequestBodyBuffer(connectionToClient.connectionsManager.getRequestBufferConfiguration());
+        }
+        pendingClientContents.add(content);
+        if (pendingClientContents.isFull()) {
+            // memory stays bounded, whatever the speed of the client
+            pauseClientReads();
+        }
+    }
+
     void continueClientRequest(HttpContent httpContent) {
         if (cacheSender != null) {
             LOG.log(Level.SEVERE, "{0} swallow chunk {1}, I am serving a cache content {2}", new Object[]{this, httpContent, cacheReceiver});
             return;
         }
+        if (cacheFollowed != null) {
+            // to be sent in case we need to connect to the backend
+            addPendingClientContent(httpContent.retain());
+            if (clientReadsPaused) {
+                // the followed response can be served only at the end of the request
+                LOG.log(Level.FINE, "{0} request body too big, connecting to the backend", this);
+                cacheFollowed.unfollow();
+                cacheFollowed = null;
+                connectToEndpoint();
+            }
+            return;
+        }
         switch (action.action) {
             case STATIC:
             case ACME_CHALLENGE:
@@ -273,12 +532,26 @@ public class RequestHandler implements MatchingContext {
                 break;
             case PROXY:
             case CACHE:
+                if (isWaitingForConnection()) {
+                    addPendingClientContent(httpContent.retain());
+                    return;
+                }
                 EndpointConnection connection = connectionToEndpoint.get();
                 if (connection == null) {
                     LOG.log(Level.INFO, "{0} swallow continued content {1}. Not connected", new Object[]{this, httpContent});
                     return;
                 }
-                connection.sendChunk(httpContent.retain(), this);
+                if (pendingClientContents != null) {
+                    // buffered contents go first
+                    addPendingClientContent(httpContent.retain());
+                    sendPendingClientContents(connection);
+                    return;
+                }
+                sendToEndpoint(connection, httpContent.retain());
+                if (connectionToEndpoint.get() == connection && !connection.isWritable()) {
+                    // the backend is slower than the client
+                    pauseClientReads();
+                }
                 break;
             default:
                 throw new IllegalStateException("not yet implemented action: " + action.action);
@@ -295,6 +568,12 @@ public class RequestHandler implements MatchingContext {
             serveFromCache();
             return;
         }
+        if (cacheFollowed != null) {
+            clientRequestFinished = true;
+            addPendingClientContent(trailer.retain());
+            sendFollowedChunk(cacheFollowed, 0);
+            return;
+        }
 
         if (action == null) {
             LOG.log(Level.SEVERE, "Impossible action NULL on request {0}", this.uri);
@@ -324,11 +603,19 @@ public class RequestHandler implements MatchingContext {
             }
             case CACHE:
             case PROXY: {
+                clientRequestFinished = true;
+                if (isWaitingForConnection()) {
+                    addPendingClientContent(trailer.retain());
+                    break;
+                }
                 EndpointConnection connection = connectionToEndpoint.get();
                 if (connection == null) {
                     sendServiceNotAvailable();
+                } else if (pendingClientContents != null) {
+                    addPendingClientContent(trailer.retain());
+                    sendPendingClientContents(connection);
                 } else {
-                    connection.sendLastHttpContent(trailer.copy(), this);
+                    sendToEndpoint(connection, trailer.retain());
                 }
                 break;
             }
@@ -365,7 +652,7 @@ public class RequestHandler implements MatchingContext {
 
     private void forceCloseChannelToClient() {
         // If keep-alive is off, close the connection once the content is fully written.
-        channelToClient.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        writeToClient(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
     }
 
     private void serveInternalErrorMessage(boolean forceClose) {
@@ -529,7 +816,7 @@ public class RequestHandler implements MatchingContext {
         }
 
         // Write the response.
-        channelToClient.writeAndFlush(response).addListener(future -> {
+        writeToClient(response).addListener(future -> {
             lastHttpContentSent();
         });
 
@@ -540,7 +827,7 @@ public class RequestHandler implements MatchingContext {
 //        LOG.info(this + " sendServiceNotAvailable due to " + cause + " to " + ctx);
         FullHttpResponse response
                 = connectionToClient.staticContentsManager.buildResponse(500, DEFAULT_INTERNAL_SERVER_ERROR);
-        channelToClient.writeAndFlush(response).addListener(new GenericFutureListener<Future<? super Void>>() {
+        writeToClient(response).addListener(new GenericFutureListener<Future<? super Void>>() {
             @Override
             public void operationComplete(Future<? super Void> future) throws Exception {
                 LOG.log(Level.INFO, "{0} sendServiceNotAvailable result: {1}, cause {2}",
@@ -552,9 +839,78 @@ public class RequestHandler implements MatchingContext {
 
     }
 
+    /**
+     * Writes (a part of) the response to the client, in the order of the
+     * pipelined requests. Can be called by any thread.
+     */
+    private ChannelFuture writeToClient(Object msg) {
+        ChannelPromise promise = channelToClient.newPromise();
+        if (msg instanceof LastHttpContent) {
+            // notified by the event loop of the client channel
+            promise.addListener(future -> connectionToClient.responseCompleted(this));
+        }
+        if (!responseReleased) {
+            synchronized (responseLock) {
+                if (!responseReleased) {
+                    if (heldResponse == null) {
+                        heldResponse = new ArrayList<>();
+                    }
+                    heldResponse.add(msg);
+                    heldResponse.add(promise);
+                    return promise;
+                }
+            }
+        }
+        channelToClient.writeAndFlush(msg, promise);
+        return promise;
+    }
+
+    /**
+     * The responses to the previous requests of the connection have been
+     * written, the response to this request can be sent to the client. Called
+     * by the event loop of the client channel.
+     */
+    void releaseResponse() {
+        synchronized (responseLock) {
+            // listeners of failed writes may write again
+            while (heldResponse != null) {
+                List<Object> held = heldResponse;
+                heldResponse = null;
+                for (int i = 0; i < held.size(); i += 2) {
+                    channelToClient.write(held.get(i), (ChannelPromise) held.get(i + 1));
+                }
+            }
+            responseReleased = true;
+        }
+        channelToClient.flush();
+        // the backend may have been paused meanwhile
+        clientWritabilityChanged();
+    }
+
+    /**
+     * The client disconnected before the response to this request could be
+     * sent
+     */
+    void discardResponse() {
+        synchronized (responseLock) {
+            while (heldResponse != null) {
+                List<Object> held = heldResponse;
+                heldResponse = null;
+                for (int i = 0; i < held.size(); i += 2) {
+                    ReferenceCountUtil.release(held.get(i));
+                    ((ChannelPromise) held.get(i + 1)).tryFailure(new ClosedChannelException());
+                }
+            }
+            // next writes will fail on the closed channel
+            responseReleased = true;
+        }
+    }
+
     public void lastHttpContentSent() {
         lastActivity = System.currentTimeMillis();
-        connectionToClient.lastHttpContentSent(this);
+        if (backgroundRefresh) {
+            return;
+        }
         requestsLogger.logRequest(this);
     }
 
@@ -589,10 +945,19 @@ public class RequestHandler implements MatchingContext {
 
     public boolean errorSendingRequest(EndpointConnectionImpl connection, Throwable cause) {
         LOG.log(Level.INFO,"errorSendingRequest to " + connection, cause);
+        if (retriable && detachConnectionForRetry(connection)) {
+            retryOrFail(cause, () -> {
+                connectionToClient.errorSendingRequest(this, connection, channelToClient, cause);
+                sendServiceNotAvailable();
+            });
+            return true;
+        }
         boolean ok = releaseConnectionToEndpoint(true, connection);
         if (ok) {
             connectionToClient.errorSendingRequest(this, connection, channelToClient, cause);
-            sendServiceNotAvailable();
+            if (!backgroundRefresh) {
+                sendServiceNotAvailable();
+            }
         }
         return ok;
 
@@ -602,18 +967,36 @@ public class RequestHandler implements MatchingContext {
         if (backendStartTs == 0) {
             backendStartTs = System.currentTimeMillis();
         }
+        if (msg instanceof HttpResponse) {
+            // the response is going to the client, it can't be retried anymore
+            disableRetries();
+        }
+        if (msg instanceof HttpResponse && backendHealthManager != null) {
+            // feeds the passive outlier detection
+            backendHealthManager.reportBackendResponse(connection.getKey().getHostPort(),
+                    ((HttpResponse) msg).status().code(), backendStartTs - requestSentTs);
+        }
+        if (backgroundRefresh) {
+            refreshedFromRemote(msg, connection);
+            return;
+        }
         if (connectionToClient == null) {
             // client no more connected
             if (cacheReceiver != null) {
                 cacheReceiver.abort();
             }
             LOG.log(Level.INFO, "receivedFromRemote with null connectionToClient");
+            ReferenceCountUtil.release(msg);
             releaseConnectionToEndpoint(true, connection);
             return;
         }
         if (cacheReceiver != null) {
-            // msg object won't be cached as-is but the cache will retain a clone of it
+            // msg object won't be cached as-is but the cache will retain a duplicate of it, sharing the same buffer
             cacheReceiver.receivedFromRemote(msg);
+            if (cacheReceiver.isReplacedByStoredContent()) {
+                replacedByStoredContent(msg, connection);
+                return;
+            }
             if (msg instanceof HttpResponse) {
                 HttpResponse httpMessage = (HttpResponse) msg;
                 cleanResponseForCachedData(httpMessage);
@@ -622,7 +1005,17 @@ public class RequestHandler implements MatchingContext {
 
         addCustomResponseHeaders(msg);
 
-        channelToClient.writeAndFlush(msg).addListener((Future<? super Void> future) -> {
+        ChannelFuture written = writeToClient(msg);
+        if (!responseReleased || !channelToClient.channel().isWritable()) {
+            // the client is slower than the backend, or the responses of the
+            // previous pipelined requests have not been written yet, see clientWritabilityChanged
+            connection.setAutoRead(false);
+            if (responseReleased && channelToClient.channel().isWritable()) {
+                // the client drained meanwhile
+                connection.setAutoRead(true);
+            }
+        }
+        written.addListener((Future<? super Void> future) -> {
             boolean returnConnection = false;
             if (future.isSuccess()) {
                 if (msg instanceof LastHttpContent) {
@@ -659,6 +1052,30 @@ public class RequestHandler implements MatchingContext {
         });
     }
 
+    private void replacedByStoredContent(HttpObject msg, EndpointConnection connection) {
+        // the response of the backend (304 or an error) is not sent to the client
+        ReferenceCountUtil.release(msg);
+        if (!(msg instanceof LastHttpContent)) {
+            return;
+        }
+        ContentsCache.ContentSender stored = cacheReceiver.takeStoredContent();
+        cacheReceiver = null;
+        // we are on the event loop of the backend, the state of the request belongs to the client
+        channelToClient.executor().execute(() -> {
+            if (connectionToEndpoint.compareAndSet(connection, null)) {
+                // the request is not finished yet, we are going to serve the cached content
+                connection.release(!clientRequestFinished, this);
+            }
+            // these are our own validators, not the ones of the client
+            request.headers().remove(HttpHeaderNames.IF_NONE_MATCH);
+            request.headers().remove(HttpHeaderNames.IF_MODIFIED_SINCE);
+            cacheSender = stored;
+            if (clientRequestFinished) {
+                serveFromCache();
+            }
+        });
+    }
+
     private void addCustomResponseHeaders(HttpObject msg) {
         // Custom response Headers
         if (msg instanceof HttpResponse && action != null && action.customHeaders != null) {
@@ -676,8 +1093,170 @@ public class RequestHandler implements MatchingContext {
         }
     }
 
+    private boolean isWaitingForConnection() {
+        // when retrying the failed connection is detached before the new one is requested
+        return connectingToEndpoint || (retriable && connectionToEndpoint.get() == null);
+    }
+
+    private void enableRetries() {
+        if (action.retries <= 0 || backgroundRefresh || !isIdempotent(request.method())) {
+            return;
+        }
+        retriable = true;
+        connectionToClient.connectionsManager.getRetryBudget().deposit();
+    }
+
+    private static boolean isIdempotent(HttpMethod method) {
+        return HttpMethod.GET.equals(method)
+                || HttpMethod.HEAD.equals(method)
+                || HttpMethod.OPTIONS.equals(method)
+                || HttpMethod.TRACE.equals(method)
+                || HttpMethod.PUT.equals(method)
+                || HttpMethod.DELETE.equals(method);
+    }
+
+    private void disableRetries() {
+        if (!retriable) {
+            return;
+        }
+        retriable = false;
+        releaseReplayContents();
+    }
+
+    /**
+     * Keeps a copy of a content sent to the backend, in order to send it again
+     * in case of retry
+     */
+    private void keepForReplay(HttpContent content) {
+        if (!retriable) {
+            return;
+        }
+        synchronized (replayLock) {
+            if (!retriable) {
+                return;
+            }
+            replayContentsSize += content.content().readableBytes();
+            if (replayContentsSize > action.retryBodySize) {
+                LOG.log(Level.FINE, "{0} body too big to be retried", this);
+                retriable = false;
+                releaseReplayContents();
+                return;
+            }
+            if (replayContents == null) {
+                replayContents = new ArrayList<>();
+            }
+            replayContents.add(content.retainedDuplicate());
+        }
+    }
+
+    private void releaseReplayContents() {
+        synchronized (replayLock) {
+            if (replayContents != null) {
+                replayContents.forEach(ReferenceCountUtil::release);
+                replayContents = null;
+            }
+            replayContentsSize = 0;
+        }
+    }
+
+    /**
+     * Detaches the connection to the endpoint which failed, without finishing
+     * the request. The contents received from the client meanwhile are kept as
+     * pending.
+     */
+    private boolean detachConnectionForRetry(EndpointConnection current) {
+        if (current == null) {
+            return false;
+        }
+        // set before the connection disappears, so that contents read by the
+        // client loop meanwhile are kept as pending, see isWaitingForConnection
+        connectingToEndpoint = true;
+        if (!connectionToEndpoint.compareAndSet(current, null)) {
+            // another connection is attached, or a concurrent detach is in
+            // progress and isWaitingForConnection already covers it
+            connectingToEndpoint = false;
+            return false;
+        }
+        current.release(true, this);
+        return true;
+    }
+
+    private void retryOrFail(Throwable cause, Runnable onFailure) {
+        Runnable task = () -> {
+            connectingToEndpoint = false;
+            if (retryOnNextBackend(cause)) {
+                return;
+            }
+            releasePendingClientContents();
+            disableRetries();
+            abortCacheReceiver();
+            fireRequestFinished();
+            if (!backgroundRefresh) {
+                onFailure.run();
+            }
+        };
+        if (channelToClient.executor().inEventLoop()) {
+            task.run();
+        } else {
+            channelToClient.executor().execute(task);
+        }
+    }
+
+    /**
+     * Sends again the request to the next available backend, on the event
+     * loop of the client channel
+     *
+     * @param cause
+     * @return true if the request has been retried
+     */
+    private boolean retryOnNextBackend(Throwable cause) {
+        if (!retriable || retries >= action.retries || backendStartTs != 0 || headerSent
+                || !channelToClient.channel().isActive()) {
+            return false;
+        }
+        EndpointKey next = null;
+        List<EndpointKey> candidates = action.retryBackends;
+        while (next == null && nextRetryBackend < candidates.size()) {
+            EndpointKey candidate = candidates.get(nextRetryBackend++);
+            if (backendHealthManager.isAvailable(candidate.getHostPort())) {
+                next = candidate;
+            }
+        }
+        if (next == null) {
+            return false;
+        }
+        if (!connectionToClient.connectionsManager.getRetryBudget().tryAcquire()) {
+            LOG.log(Level.INFO, "{0} retry budget exhausted, not retrying {1}", new Object[]{this, uri});
+            RETRIES_COUNTER.labels("budget_exhausted").inc();
+            return false;
+        }
+        retries++;
+        RETRIES_COUNTER.labels("retried").inc();
+        LOG.log(Level.INFO, "{0} retrying {1} on {2}, attempt {3}, after {4}", new Object[]{this, uri, next, retries, cause});
+        action = action.withBackend(next.getHost(), next.getPort());
+        // the contents already sent to the failed backend go first
+        List<HttpContent> replay;
+        synchronized (replayLock) {
+            replay = replayContents;
+            replayContents = null;
+            replayContentsSize = 0;
+        }
+        if (replay != null) {
+            if (pendingClientContents == null) {
+                pendingClientContents = new RequestBodyBuffer(connectionToClient.connectionsManager.getRequestBufferConfiguration());
+            }
+            pendingClientContents.addFirst(replay);
+        }
+        connectToEndpoint();
+        return true;
+    }
+
     private boolean releaseConnectionToEndpoint(boolean forceClose, EndpointConnection current) {
         if (connectionToEndpoint.compareAndSet(current, null)) {
+            disableRetries();
+            if (forceClose) {
+                abortCacheReceiver();
+            }
             fireRequestFinished();
             if (current != null) {
                 // return the connection the pool
@@ -705,12 +1284,82 @@ public class RequestHandler implements MatchingContext {
 
     public void serveFromCache() {
         ContentsCache.ContentPayload payload = cacheSender.getCached();
+        String range = request.headers().get(HttpHeaderNames.RANGE);
+        if (range != null && HttpMethod.GET.equals(request.method())) {
+            partialContent = payload.getRanges(range, request.headers().get(HttpHeaderNames.IF_RANGE));
+        }
+        if (partialContent != null) {
+            payload = partialContent;
+        } else if (isCompressedVariantAccepted(payload)) {
+            // if not built yet the response is compressed while being sent
+            ContentsCache.ContentPayload compressed = connectionToClient.cache.getCompressedVariant(cacheSender);
+            if (compressed != null) {
+                payload = compressed;
+            }
+        }
         sendCachedChunk(payload, 0);
     }
 
+    private boolean isCompressedVariantAccepted(ContentsCache.ContentPayload payload) {
+        List<HttpObject> chunks = payload.getChunks();
+        return action != null
+                && !chunks.isEmpty()
+                && chunks.get(0) instanceof HttpResponse
+                && ResponseCompressor.isCompressible(action.compression, (HttpResponse) chunks.get(0))
+                && ResponseCompressor.acceptsGzip(request.headers().get(HttpHeaderNames.ACCEPT_ENCODING));
+    }
+
     private void sendCachedChunk(ContentsCache.ContentPayload payload, int i) {
         int size = payload.getChunks().size();
         HttpObject object = payload.getChunks().get(i);
+        if (!(object instanceof HttpResponse)) {
+            object = ContentsCache.duplicateHttpObject(object);
+        }
+        writeCachedChunk(payload, object, i + 1 < size, () -> sendCachedChunk(payload, i + 1));
+    }
+
+    private void sendFollowedChunk(ContentsCache.ContentReceiver receiver, int i) {
+        HttpObject object;
+        try {
+            object = receiver.nextChunk(i, () -> {
+                channelToClient.executor().execute(() -> sendFollowedChunk(receiver, i));
+            });
+        } catch (CancellationException aborted) {
+            followedResponseAborted(i == 0);
+            return;
+        }
+        if (object == null) {
+            // not received yet, we will be woken up
+            return;
+        }
+        writeCachedChunk(receiver.getContent(), object, !(object instanceof LastHttpContent),
+                () -> sendFollowedChunk(receiver, i + 1));
+    }
+
+    private void followedResponseAborted(boolean nothingSent) {
+        cacheFollowed.unfollow();
+        cacheFollowed = null;
+        if (nothingSent) {
+            LOG.log(Level.FINE, "{0} followed response has been aborted, connecting to the backend", this);
+            // pending client contents (at least the trailer) will be sent to the backend
+            connectToEndpoint();
+        } else {
+            LOG.log(Level.INFO, "{0} followed response has been aborted, closing the connection", this);
+            releasePendingClientContents();
+            fireRequestFinished();
+            channelToClient.close();
+        }
+    }
+
+    private void finishFollowing() {
+        if (cacheFollowed != null) {
+            cacheFollowed.unfollow();
+            cacheFollowed = null;
+            releasePendingClientContents();
+        }
+    }
+
+    private void writeCachedChunk(ContentsCache.ContentPayload payload, HttpObject object, boolean hasMore, Runnable sendNext) {
         boolean notModified;
         boolean isLastHttpContent = object instanceof LastHttpContent;
         if (object instanceof HttpResponse) {
@@ -733,10 +1382,19 @@ public class RequestHandler implements MatchingContext {
                 headers.remove(HttpHeaderNames.EXPIRES);
                 headers.remove(HttpHeaderNames.ACCEPT_RANGES);
                 headers.remove(HttpHeaderNames.ETAG);
+                if ((resp.status().code() == HttpResponseStatus.OK.code() || resp.status().code() == HttpResponseStatus.PARTIAL_CONTENT.code())
+                        && !headers.contains(HttpHeaderNames.CONTENT_ENCODING)) {
+                    // byte ranges are served from the cached content
+                    headers.set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+                }
                 headers.add("X-Cached", "yes; ts=" + payload.getCreationTs());
                 headers.add("Expires", new java.util.Date(payload.getExpiresTs()));
+                // the age of the content keeps growing while it is in cache
+                long age = resp.headers().getInt(HttpHeaderNames.AGE, 0) + (System.currentTimeMillis() - payload.getCreationTs()) / 1000;
+                headers.set(HttpHeaderNames.AGE, age);
 
                 object = new DefaultHttpResponse(resp.protocolVersion(), resp.status(), headers);
+                addCustomResponseHeaders(object);
                 long contentLength = HttpUtil.getContentLength(resp, -1);
                 String transferEncoding = resp.headers().get(HttpHeaderNames.TRANSFER_ENCODING);
                 if (contentLength < 0 && !"chunked".equals(transferEncoding)) {
@@ -746,20 +1404,27 @@ public class RequestHandler implements MatchingContext {
                 notModified = false;
             }
         } else {
-            object = ContentsCache.cloneHttpObject(object);
             notModified = false;
         }
         HttpObject _object = object;
 
-        channelToClient.writeAndFlush(_object)
+        writeToClient(_object)
                 .addListener((g) -> {
                     if (isLastHttpContent || notModified) {
                         lastHttpContentSent();
                         connectionToClient.closeIfNotKeepAlive(channelToClient);
                     }
-                    if (i + 1 < size && g.isSuccess() && !notModified) {
-                        sendCachedChunk(payload, i + 1);
+                    if (hasMore && g.isSuccess() && !notModified) {
+                        sendNext.run();
                     } else {
+                        finishFollowing();
+                        if (cacheSender != null) {
+                            cacheSender.release();
+                        }
+                        if (partialContent != null) {
+                            partialContent.clear();
+                            partialContent = null;
+                        }
                         fireRequestFinished();
                     }
                 });
@@ -771,6 +1436,8 @@ public class RequestHandler implements MatchingContext {
         headers.remove(HttpHeaderNames.IF_MODIFIED_SINCE);
         headers.remove(HttpHeaderNames.IF_NONE_MATCH);
         headers.remove(HttpHeaderNames.IF_RANGE);
+        // the whole content is going to be cached
+        headers.remove(HttpHeaderNames.RANGE);
         headers.remove(HttpHeaderNames.IF_UNMODIFIED_SINCE);
         headers.remove(HttpHeaderNames.ETAG);
         headers.remove(HttpHeaderNames.CONNECTION);
@@ -805,7 +1472,9 @@ public class RequestHandler implements MatchingContext {
             LOG.log(Level.INFO, this + " connection appears stuck " + connectionToEndpoint + ", on request " + uri + " for userId: " + userId);
             onStuck.run();
             releaseConnectionToEndpoint(true, connectionToEndpoint.get());
-            serveInternalErrorMessage(true);
+            if (!backgroundRefresh) {
+                serveInternalErrorMessage(true);
+            }
         }
     }
 
@@ -815,8 +1484,15 @@ public class RequestHandler implements MatchingContext {
 
     public void badErrorOnRemote(Throwable cause) {
         LOG.log(Level.INFO, this + " badErrorOnRemote " + cause);
+        if (retriable && detachConnectionForRetry(connectionToEndpoint.get())) {
+            // typically the connection has been reset by a restarting backend
+            retryOrFail(cause, () -> serveInternalErrorMessage(true));
+            return;
+        }
         releaseConnectionToEndpoint(true, connectionToEndpoint.get());
-        serveInternalErrorMessage(true);
+        if (!backgroundRefresh) {
+            serveInternalErrorMessage(true);
+        }
     }
 
     /**
@@ -854,6 +1530,31 @@ public class RequestHandler implements MatchingContext {
         }
     }
 
+    // values of the properties by slot, filled on demand
+    private String[] propertiesCache;
+
+    @Override
+    public String getProperty(int slot) {
+        String[] values = propertiesCache;
+        if (values == null || slot >= values.length) {
+            int size = MatchingProperties.size();
+            values = values == null ? new String[size] : Arrays.copyOf(values, size);
+            propertiesCache = values;
+        }
+        String value = values[slot];
+        if (value == null) {
+            value = getProperty(MatchingProperties.nameOf(slot));
+            values[slot] = value;
+        }
+        return value;
+    }
+
+    private void clearPropertiesCache() {
+        if (propertiesCache != null) {
+            Arrays.fill(propertiesCache, null);
+        }
+    }
+
     @Override
     public boolean isSecure() {
         return connectionToClient.isSecure();
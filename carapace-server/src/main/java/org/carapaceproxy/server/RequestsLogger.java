@@ -21,48 +21,101 @@ package org.carapaceproxy.server;
 
 import com.google.common.annotations.VisibleForTesting;
 import io.netty.handler.codec.http.HttpHeaderNames;
-import java.io.BufferedWriter;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
 import java.io.Closeable;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.sql.Timestamp;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.FieldPosition;
 import java.text.SimpleDateFormat;
-import java.util.Locale;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.carapaceproxy.MapResult;
+import static org.carapaceproxy.server.RuntimeServerConfiguration.ACCESS_LOG_OVERFLOW_SAMPLE;
+import static org.carapaceproxy.server.RuntimeServerConfiguration.ACCESS_LOG_OVERFLOW_SPOOL;
 import org.carapaceproxy.server.cache.ContentsCache;
-import org.stringtemplate.v4.NoIndentWriter;
-import org.stringtemplate.v4.ST;
-import org.stringtemplate.v4.STWriter;
+import org.carapaceproxy.utils.PrometheusUtils;
 
 /**
+ * Writes the access log.
+ * <p>
+ * The format is compiled once for each configuration. Producers (the event
+ * loops) only copy the raw fields of the request into a preallocated ring of
+ * entries, the writer thread renders batches of entries directly into a
+ * direct buffer which is written to the file by a {@link FileChannel}.
+ * </p>
+ * <p>
+ * When the queue is full the request is dropped, unless an overflow policy
+ * is configured: <i>spool</i> stores the raw fields in a memory-mapped file
+ * which is drained as soon as the queue has been emptied, <i>sample</i> starts
+ * dropping requests (keeping one out of N) when the queue is half full.
+ * </p>
+ * <p>
+ * The file can be rotated by size and by time, see {@link AccessLogRotator}.
+ * </p>
  *
  * @author francesco.caliumi
  */
 public class RequestsLogger implements Runnable, Closeable {
     
     private static final Logger LOG = Logger.getLogger(ContentsCache.class.getName());
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_BATCH_SIZE = 1024;
+
+    private static final Counter DROPPED_COUNTER = PrometheusUtils.createCounter("accesslog", "dropped_total",
+            "requests not written to the access log", "reason").register();
+    private static final Counter SPOOLED_COUNTER = PrometheusUtils.createCounter("accesslog", "spooled_total",
+            "requests spooled as the queue was full").register();
+    private static final Gauge QUEUE_DEPTH_GAUGE = PrometheusUtils.createGauge("accesslog", "queue_depth",
+            "requests waiting to be written to the access log, including the spooled ones").register();
     
-    private final BlockingQueue<Entry> queue;
+    private volatile EntriesRing queue;
+    // queues replaced by a resize, still to be drained by the writer thread
+    private final ArrayDeque<EntriesRing> retiringQueues = new ArrayDeque<>();
+    private volatile String overflowPolicy;
+    private volatile int sampleRate;
+    private final AtomicLong sampleCounter = new AtomicLong();
+    private volatile OverflowSpool spool;
+    // entry read from the spool, owned by the writer thread
+    private final Entry spooledEntry = new Entry();
     
     private volatile RuntimeServerConfiguration currentConfiguration;
     private volatile RuntimeServerConfiguration newConfiguration = null;
+    // format of the current configuration, captured by the entries
+    private volatile AccessLogFormat currentFormat;
     private volatile boolean closeRequested = false;
     private volatile boolean closed = false;
     
     private boolean started = false;
     private final Thread thread;
     
-    private OutputStream os = null;
-    private OutputStreamWriter osw = null;
-    private BufferedWriter bw = null;
-    private STWriter stw = null;
+    private FileChannel channel = null;
+    // bytes in the current file and its opening time, owned by the writer thread
+    private long fileSize;
+    private long fileOpenTs;
+    private long lastRotationFailureTs;
+    private final AccessLogRotator rotator = new AccessLogRotator();
+    // rendered entries not yet written to the file, owned by the writer thread
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final BufferSink sink = new BufferSink();
     
     public long lastFlush = 0;
     
@@ -71,22 +124,100 @@ public class RequestsLogger implements Runnable, Closeable {
     
     public RequestsLogger(RuntimeServerConfiguration currentConfiguration) {
         this.currentConfiguration = currentConfiguration;
-        this.queue = new ArrayBlockingQueue<>(this.currentConfiguration.getAccessLogMaxQueueCapacity());
+        this.currentFormat = new AccessLogFormat(currentConfiguration.getAccessLogFormat(), currentConfiguration.getAccessLogTimestampFormat());
+        this.queue = new EntriesRing(this.currentConfiguration.getAccessLogMaxQueueCapacity());
+        applyOverflowPolicy(currentConfiguration);
         this.thread = new Thread(this);
     }
+
+    private void applyOverflowPolicy(RuntimeServerConfiguration configuration) {
+        if (ACCESS_LOG_OVERFLOW_SPOOL.equals(configuration.getAccessLogOverflowPolicy()) && spool == null) {
+            Path file = Paths.get(configuration.getAccessLogPath() + ".spool");
+            try {
+                spool = new OverflowSpool(file, (int) configuration.getAccessLogSpoolSize());
+            } catch (IOException | RuntimeException err) {
+                LOG.log(Level.SEVERE, "Cannot create access log spool " + file + ", requests will be dropped when the queue is full", err);
+            }
+        }
+        this.sampleRate = configuration.getAccessLogSampleRate();
+        this.overflowPolicy = configuration.getAccessLogOverflowPolicy();
+    }
+
+    private void resizeQueue(int capacity) {
+        EntriesRing old = queue;
+        queue = new EntriesRing(capacity);
+        // producers which are still using the old queue will retry with the new one
+        old.seal();
+        retiringQueues.add(old);
+        LOG.log(Level.INFO, "Access log queue resized from {0} to {1}", new Object[]{old.capacity(), capacity});
+    }
     
     private void ensureAccessLogFileOpened() throws IOException {
-        if (os != null) {
+        if (channel != null) {
             return;
         }
         
         if (verbose) {
             LOG.log(Level.INFO, "Opening file: {0}", currentConfiguration.getAccessLogPath());
         }
-        os = new FileOutputStream(currentConfiguration.getAccessLogPath(), true);
-        osw = new OutputStreamWriter(os, StandardCharsets.UTF_8);
-        bw = new BufferedWriter(osw);
-        stw = new NoIndentWriter(bw);
+        channel = FileChannel.open(Paths.get(currentConfiguration.getAccessLogPath()),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileSize = channel.size();
+        fileOpenTs = System.currentTimeMillis();
+    }
+
+    /**
+     * The file is rotated when it exceeds accesslog.rotation.maxsize or when
+     * it crosses a multiple of accesslog.rotation.interval (since the epoch, so
+     * a daily rotation happens at midnight UTC). Empty files are never
+     * rotated.
+     */
+    private boolean isRotationNeeded() {
+        if (channel == null || fileSize + buffer.position() == 0) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastRotationFailureTs < currentConfiguration.getAccessLogWaitBetweenFailures()) {
+            return false;
+        }
+        long maxSize = currentConfiguration.getAccessLogRotationMaxSize();
+        long interval = currentConfiguration.getAccessLogRotationInterval();
+        return (maxSize > 0 && fileSize + buffer.position() >= maxSize)
+                || (interval > 0 && now / interval != fileOpenTs / interval);
+    }
+
+    private void rotateAccessLogFile() throws IOException {
+        closeAccessLogFile();
+        try {
+            rotator.rotate(Paths.get(currentConfiguration.getAccessLogPath()),
+                    currentConfiguration.getAccessLogRotationCompression(),
+                    currentConfiguration.getAccessLogRotationRetention());
+        } catch (IOException err) {
+            // keep on appending to the same file
+            LOG.log(Level.SEVERE, "Cannot rotate access log file " + currentConfiguration.getAccessLogPath(), err);
+            lastRotationFailureTs = System.currentTimeMillis();
+        }
+        // the new file will be opened at next cycle start
+    }
+
+    @VisibleForTesting
+    void awaitRotations() throws InterruptedException {
+        rotator.awaitPendingTasks();
+    }
+
+    private void writeBuffer() throws IOException {
+        if (channel == null) {
+            // kept until the file is opened again
+            return;
+        }
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                fileSize += channel.write(buffer);
+            }
+        } finally {
+            buffer.compact();
+        }
     }
     
     @VisibleForTesting
@@ -94,15 +225,7 @@ public class RequestsLogger implements Runnable, Closeable {
         if (verbose) {
             LOG.log(Level.INFO, "Flushed");
         }
-        if (bw != null) {
-            bw.flush();
-        }
-        if (osw != null) {
-            osw.flush();
-        }
-        if (os != null) {
-            os.flush();
-        }
+        writeBuffer();
         lastFlush = System.currentTimeMillis();
     }
     
@@ -110,20 +233,13 @@ public class RequestsLogger implements Runnable, Closeable {
         if (verbose) {
             LOG.log(Level.INFO, "Closing file");
         }
-        if (stw != null) {
-            stw = null;
-        }
-        if (bw != null) {
-            bw.close();
-            bw = null;
-        }
-        if (osw != null) {
-            osw.close();
-            osw = null;
-        }
-        if (os != null) {
-            os.close();
-            os = null;
+        if (channel != null) {
+            try {
+                writeBuffer();
+            } finally {
+                channel.close();
+                channel = null;
+            }
         }
     }
     
@@ -140,8 +256,12 @@ public class RequestsLogger implements Runnable, Closeable {
             LOG.log(Level.INFO, "Reloading conf");
         }
         String oldAccessLogPath = this.currentConfiguration.getAccessLogPath();
-        if (newConfiguration.getAccessLogMaxQueueCapacity() != currentConfiguration.getAccessLogMaxQueueCapacity()) {
-            LOG.log(Level.SEVERE, "accesslog.queue.maxcapacity hot reload is not currently supported");
+        if (newConfiguration.getAccessLogMaxQueueCapacity() != queue.capacity()) {
+            resizeQueue(newConfiguration.getAccessLogMaxQueueCapacity());
+        }
+        applyOverflowPolicy(newConfiguration);
+        if (!currentFormat.isSameFormat(newConfiguration.getAccessLogFormat(), newConfiguration.getAccessLogTimestampFormat())) {
+            currentFormat = new AccessLogFormat(newConfiguration.getAccessLogFormat(), newConfiguration.getAccessLogTimestampFormat());
         }
         this.currentConfiguration = newConfiguration;
         if (!oldAccessLogPath.equals(newConfiguration.getAccessLogPath())) {
@@ -152,22 +272,61 @@ public class RequestsLogger implements Runnable, Closeable {
     }
     
     public void logRequest(RequestHandler request) {
-        Entry entry = new Entry(
-            request, currentConfiguration.getAccessLogFormat(), currentConfiguration.getAccessLogTimestampFormat());
-        
         if (closeRequested) {
-            LOG.log(Level.SEVERE, "Request {0} not logged to access log because RequestsLogger is closed", entry.render());
+            DROPPED_COUNTER.labels("closed").inc();
+            LOG.log(Level.SEVERE, "Request {0} not logged to access log because RequestsLogger is closed", request.getUri());
+            return;
+        }
+        OverflowSpool _spool = spool;
+        if (_spool != null && !_spool.isEmpty()) {
+            // requests are spooled until the spool has been drained, in order to keep them in order
+            spoolRequest(_spool, request);
             return;
         }
         
         // If configuration reloads already created entries will keep a possibile old format, but it doesn't really matter
-        boolean ret = queue.offer(entry);
-        
-        if (!ret) {
-            LOG.log(Level.SEVERE, "Request {0} not logged to access log because queue is full", entry.render());
+        while (true) {
+            EntriesRing ring = queue;
+            if (ACCESS_LOG_OVERFLOW_SAMPLE.equals(overflowPolicy)
+                    && ring.size() >= ring.capacity() / 2
+                    && sampleCounter.incrementAndGet() % sampleRate != 0) {
+                DROPPED_COUNTER.labels("sampled").inc();
+                return;
+            }
+            Entry entry = ring.claim();
+            if (entry == EntriesRing.SEALED) {
+                // the queue has been resized
+                continue;
+            }
+            if (entry == null) {
+                if (_spool != null && ACCESS_LOG_OVERFLOW_SPOOL.equals(overflowPolicy)) {
+                    spoolRequest(_spool, request);
+                    return;
+                }
+                DROPPED_COUNTER.labels("full").inc();
+                LOG.log(Level.SEVERE, "Request {0} not logged to access log because queue is full", request.getUri());
+                return;
+            }
+            try {
+                entry.capture(request, currentFormat);
+            } finally {
+                ring.publish(entry);
+            }
+            return;
         }
     }
 
+    private void spoolRequest(OverflowSpool _spool, RequestHandler request) {
+        if (_spool.append(request, currentFormat)) {
+            SPOOLED_COUNTER.inc();
+        } else {
+            DROPPED_COUNTER.labels("spool_full").inc();
+            LOG.log(Level.SEVERE, "Request {0} not logged to access log because queue and spool are full", request.getUri());
+        }
+        // the writer may be waiting for the queue
+        queue.wakeUp();
+    }
+
     @VisibleForTesting
     void setBreakRunForTests(boolean breakRunForTests) {
         this.breakRunForTests = breakRunForTests;
@@ -199,6 +358,57 @@ public class RequestsLogger implements Runnable, Closeable {
             LOG.log(Level.SEVERE, "Interrupted while stopping");
         }
     }
+
+    /**
+     * Writes the entries available in the queue, waiting for the first one
+     *
+     * @param waitTime
+     * @return the number of written entries
+     */
+    private int writeEntries(long waitTime) throws InterruptedException, IOException {
+        int count = 0;
+        while (!retiringQueues.isEmpty() && count < MAX_BATCH_SIZE) {
+            EntriesRing retiring = retiringQueues.peek();
+            count += writeEntries(retiring, retiring.peek(), MAX_BATCH_SIZE - count);
+            if (!retiring.isDrained()) {
+                // some producer has not published its entry yet
+                break;
+            }
+            retiringQueues.poll();
+        }
+        EntriesRing ring = queue;
+        OverflowSpool _spool = spool;
+        boolean spoolEmpty = _spool == null || _spool.isEmpty();
+        Entry entry = count == 0 && spoolEmpty ? ring.await(waitTime) : ring.peek();
+        count += writeEntries(ring, entry, MAX_BATCH_SIZE - count);
+        // spooled requests are newer than the ones in the queue
+        while (count < MAX_BATCH_SIZE && _spool != null && _spool.read(spooledEntry)) {
+            writeEntry(spooledEntry);
+            spooledEntry.clear();
+            count++;
+        }
+        QUEUE_DEPTH_GAUGE.set(ring.size() + (_spool != null ? _spool.size() : 0));
+        return count;
+    }
+
+    private int writeEntries(EntriesRing ring, Entry entry, int max) throws IOException {
+        int count = 0;
+        while (entry != null && count < max) {
+            writeEntry(entry);
+            ring.release(entry);
+            count++;
+            entry = ring.peek();
+        }
+        return count;
+    }
+
+    private void writeEntry(Entry entry) throws IOException {
+        if (verbose) {
+            LOG.log(Level.INFO, "writing entry: {0}", entry.render());
+        }
+        entry.format.write(entry, sink);
+        sink.putByte((byte) '\n');
+    }
     
     @Override
     public void run() {
@@ -206,7 +416,6 @@ public class RequestsLogger implements Runnable, Closeable {
             lastFlush = System.currentTimeMillis();
         }
         
-        Entry currentEntry = null;
         while (!closed) {
             try {
                 _reloadConfiguration();
@@ -229,21 +438,14 @@ public class RequestsLogger implements Runnable, Closeable {
                     0L;
                 waitTime = Math.max(waitTime, 0L);
                 
-                if (currentEntry == null) {
-                    currentEntry = queue.poll(waitTime, TimeUnit.MILLISECONDS);
-                }
-                
-                if (currentEntry != null) {
-                    if (verbose) {
-                        LOG.log(Level.INFO, "writing entry: {0}", currentEntry.render());
-                    }
-                    currentEntry.write(stw, bw);
-                    currentEntry = null;
-                } else {
-                    if (closeRequested) {
-                        closeAccessLogFile();
-                        closed = true;
-                    }
+                int written = writeEntries(waitTime);
+                if (written == 0 && closeRequested) {
+                    closeAccessLogFile();
+                    closeSpool();
+                    rotator.close();
+                    closed = true;
+                } else if (isRotationNeeded()) {
+                    rotateAccessLogFile();
                 }
                 
                 if (System.currentTimeMillis() - lastFlush >= currentConfiguration.getAccessLogFlushInterval()) {
@@ -257,6 +459,8 @@ public class RequestsLogger implements Runnable, Closeable {
                 } catch (IOException ex1) {
                     LOG.log(Level.SEVERE, null, ex1);
                 }
+                closeSpool();
+                rotator.close();
                 closed = true;
                 
             } catch (IOException ex) {
@@ -283,6 +487,146 @@ public class RequestsLogger implements Runnable, Closeable {
             }
         }
     }
+
+    private void closeSpool() {
+        OverflowSpool _spool = spool;
+        spool = null;
+        if (_spool != null) {
+            if (!_spool.isEmpty()) {
+                LOG.log(Level.SEVERE, "{0} spooled requests not written to access log", _spool.size());
+            }
+            _spool.close();
+        }
+    }
+
+    @VisibleForTesting
+    int getQueueCapacity() {
+        return queue.capacity();
+    }
+
+    /**
+     * Destination of the rendered fields
+     */
+    interface FieldsSink {
+
+        void put(CharSequence value) throws IOException;
+
+        void put(long value) throws IOException;
+
+        void put(byte[] utf8, String value) throws IOException;
+    }
+
+    /**
+     * Encodes the fields as UTF-8 into the buffer of the writer, writing the
+     * buffer to the file whenever it is full
+     */
+    private final class BufferSink implements FieldsSink {
+
+        // digits of a long, in reverse order
+        private final byte[] digits = new byte[20];
+
+        private void ensureRemaining(int size) throws IOException {
+            if (buffer.remaining() < size) {
+                writeBuffer();
+                if (buffer.remaining() < size) {
+                    throw new IOException("access log file is not available");
+                }
+            }
+        }
+
+        void putByte(byte b) throws IOException {
+            ensureRemaining(1);
+            buffer.put(b);
+        }
+
+        @Override
+        public void put(CharSequence value) throws IOException {
+            int length = value.length();
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    ensureRemaining(1);
+                    buffer.put((byte) c);
+                } else if (c < 0x800) {
+                    ensureRemaining(2);
+                    buffer.put((byte) (0xC0 | (c >> 6)));
+                    buffer.put((byte) (0x80 | (c & 0x3F)));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    ensureRemaining(4);
+                    buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                    buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                    buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                    buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+                } else if (Character.isSurrogate(c)) {
+                    // malformed
+                    ensureRemaining(1);
+                    buffer.put((byte) '?');
+                } else {
+                    ensureRemaining(3);
+                    buffer.put((byte) (0xE0 | (c >> 12)));
+                    buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                    buffer.put((byte) (0x80 | (c & 0x3F)));
+                }
+            }
+        }
+
+        @Override
+        public void put(long value) throws IOException {
+            if (value == Long.MIN_VALUE) {
+                put(Long.toString(value));
+                return;
+            }
+            ensureRemaining(digits.length + 1);
+            if (value < 0) {
+                buffer.put((byte) '-');
+                value = -value;
+            }
+            int n = 0;
+            do {
+                digits[n++] = (byte) ('0' + (value % 10));
+                value /= 10;
+            } while (value > 0);
+            while (n > 0) {
+                buffer.put(digits[--n]);
+            }
+        }
+
+        @Override
+        public void put(byte[] utf8, String value) throws IOException {
+            if (utf8.length > buffer.capacity()) {
+                put(value);
+                return;
+            }
+            ensureRemaining(utf8.length);
+            buffer.put(utf8);
+        }
+    }
+
+    private static final class StringSink implements FieldsSink {
+
+        private final StringBuilder builder = new StringBuilder();
+
+        @Override
+        public void put(CharSequence value) {
+            builder.append(value);
+        }
+
+        @Override
+        public void put(long value) {
+            builder.append(value);
+        }
+
+        @Override
+        public void put(byte[] utf8, String value) {
+            builder.append(value);
+        }
+
+        @Override
+        public String toString() {
+            return builder.toString();
+        }
+    }
     
     /* ---------------------------------------------------------------------------------------------------- */
     
@@ -302,43 +646,590 @@ public class RequestsLogger implements Runnable, Closeable {
             <user_id>: user id inferred by filters
             <session_id>: session id inferred by filters
     */
-    static final class Entry {
-        
-        private final ST format;
+    static final class AccessLogFormat {
+
+        private static final int LITERAL = 0;
+        private static final int CLIENT_IP = 1;
+        private static final int SERVER_IP = 2;
+        private static final int METHOD = 3;
+        private static final int HOST = 4;
+        private static final int URI = 5;
+        private static final int TIMESTAMP = 6;
+        private static final int BACKEND_TIME = 7;
+        private static final int TOTAL_TIME = 8;
+        private static final int ACTION_ID = 9;
+        private static final int ROUTE_ID = 10;
+        private static final int BACKEND_ID = 11;
+        private static final int USER_ID = 12;
+        private static final int SESSION_ID = 13;
+
+        private static final byte[] CACHED = "CACHED".getBytes(StandardCharsets.UTF_8);
+
+        private final String format;
+        private final String timestampFormat;
+        // the plan: a field (or a literal) for each part of the format
+        private final int[] fields;
+        private final String[] literals;
+        private final byte[][] encodedLiterals;
+        // used by the writer thread only
+        private final SimpleDateFormat timestampFormatter;
+        private final Date timestamp = new Date();
+        private final StringBuffer formattedTimestamp = new StringBuffer();
+        private long formattedTs = Long.MIN_VALUE;
+
+        AccessLogFormat(String format, String timestampFormat) {
+            this.format = format;
+            this.timestampFormat = timestampFormat;
+            this.timestampFormatter = new SimpleDateFormat(timestampFormat);
+            List<Integer> _fields = new ArrayList<>();
+            List<String> _literals = new ArrayList<>();
+            StringBuilder literal = new StringBuilder();
+            int i = 0;
+            while (i < format.length()) {
+                char c = format.charAt(i);
+                if (c == '\\' && i + 1 < format.length() && (format.charAt(i + 1) == '<' || format.charAt(i + 1) == '>')) {
+                    // escaped delimiter, as in StringTemplate
+                    literal.append(format.charAt(i + 1));
+                    i += 2;
+                    continue;
+                }
+                int end = c == '<' ? format.indexOf('>', i + 1) : -1;
+                if (end < 0) {
+                    literal.append(c);
+                    i++;
+                    continue;
+                }
+                if (literal.length() > 0) {
+                    _fields.add(LITERAL);
+                    _literals.add(literal.toString());
+                    literal.setLength(0);
+                }
+                String name = format.substring(i + 1, end).trim();
+                int field = parseField(name);
+                if (field == LITERAL) {
+                    // unknown attributes are rendered as empty strings
+                    LOG.log(Level.SEVERE, "Unknown access log field <{0}>", name);
+                } else {
+                    _fields.add(field);
+                    _literals.add(null);
+                }
+                i = end + 1;
+            }
+            if (literal.length() > 0) {
+                _fields.add(LITERAL);
+                _literals.add(literal.toString());
+            }
+            this.fields = _fields.stream().mapToInt(Integer::intValue).toArray();
+            this.literals = _literals.toArray(new String[0]);
+            this.encodedLiterals = new byte[literals.length][];
+            for (int j = 0; j < literals.length; j++) {
+                if (literals[j] != null) {
+                    encodedLiterals[j] = literals[j].getBytes(StandardCharsets.UTF_8);
+                }
+            }
+        }
+
+        private static int parseField(String name) {
+            switch (name) {
+                case "client_ip":
+                    return CLIENT_IP;
+                case "server_ip":
+                    return SERVER_IP;
+                case "method":
+                    return METHOD;
+                case "host":
+                    return HOST;
+                case "uri":
+                    return URI;
+                case "timestamp":
+                    return TIMESTAMP;
+                case "backend_time":
+                    return BACKEND_TIME;
+                case "total_time":
+                    return TOTAL_TIME;
+                case "action_id":
+                    return ACTION_ID;
+                case "route_id":
+                    return ROUTE_ID;
+                case "backend_id":
+                    return BACKEND_ID;
+                case "user_id":
+                    return USER_ID;
+                case "session_id":
+                    return SESSION_ID;
+                default:
+                    return LITERAL;
+            }
+        }
 
-        public Entry(RequestHandler request, String format, String timestampFormat) {
-            SimpleDateFormat tsFormatter = new SimpleDateFormat(timestampFormat);
+        boolean isSameFormat(String format, String timestampFormat) {
+            return this.format.equals(format) && this.timestampFormat.equals(timestampFormat);
+        }
 
-            this.format = new ST(format);
+        private CharSequence formatTimestamp(long ts) {
+            if (ts != formattedTs) {
+                timestamp.setTime(ts);
+                formattedTimestamp.setLength(0);
+                timestampFormatter.format(timestamp, formattedTimestamp, new FieldPosition(0));
+                formattedTs = ts;
+            }
+            return formattedTimestamp;
+        }
 
-            this.format.add("client_ip", request.getRemoteAddress().getAddress().getHostAddress());
-            this.format.add("server_ip", request.getLocalAddress().getAddress().getHostAddress());
-            this.format.add("method", request.getRequest().method().name());
-            this.format.add("host", request.getRequest().headers().getAsString(HttpHeaderNames.HOST));
-            this.format.add("uri", request.getUri());
-            this.format.add("timestamp", tsFormatter.format(new Timestamp(request.getStartTs())));
-            this.format.add("total_time", request.getLastActivity() - request.getStartTs());
-            this.format.add("action_id", request.getAction().action);
-            this.format.add("route_id", request.getAction().routeid);
-            this.format.add("user_id", request.getUserId());
-            this.format.add("session_id", request.getSessionId());
-            if (!request.isServedFromCache()) {
-                this.format.add("backend_id", String.format("%s:%s", request.getAction().host, request.getAction().port));
-                this.format.add("backend_time", request.getBackendStartTs() - request.getStartTs());
-            } else {
-                this.format.add("backend_id", "CACHED");
-                this.format.add("backend_time", "0");
+        private static void putNullable(FieldsSink sink, String value) throws IOException {
+            if (value != null) {
+                sink.put(value);
+            }
+        }
+
+        void write(Entry entry, FieldsSink sink) throws IOException {
+            for (int i = 0; i < fields.length; i++) {
+                switch (fields[i]) {
+                    case LITERAL:
+                        sink.put(encodedLiterals[i], literals[i]);
+                        break;
+                    case CLIENT_IP:
+                        putNullable(sink, entry.clientAddress == null ? null : entry.clientAddress.getHostAddress());
+                        break;
+                    case SERVER_IP:
+                        putNullable(sink, entry.serverAddress == null ? null : entry.serverAddress.getHostAddress());
+                        break;
+                    case METHOD:
+                        putNullable(sink, entry.method == null ? null : entry.method.name());
+                        break;
+                    case HOST:
+                        putNullable(sink, entry.host);
+                        break;
+                    case URI:
+                        putNullable(sink, entry.uri);
+                        break;
+                    case TIMESTAMP:
+                        sink.put(formatTimestamp(entry.startTs));
+                        break;
+                    case BACKEND_TIME:
+                        sink.put(entry.servedFromCache ? 0 : entry.backendStartTs - entry.startTs);
+                        break;
+                    case TOTAL_TIME:
+                        sink.put(entry.lastActivity - entry.startTs);
+                        break;
+                    case ACTION_ID:
+                        putNullable(sink, entry.action == null ? null : entry.action.name());
+                        break;
+                    case ROUTE_ID:
+                        putNullable(sink, entry.routeId);
+                        break;
+                    case BACKEND_ID:
+                        if (entry.servedFromCache) {
+                            sink.put(CACHED, "CACHED");
+                        } else {
+                            sink.put(String.valueOf(entry.backendHost));
+                            sink.put(":");
+                            sink.put(entry.backendPort);
+                        }
+                        break;
+                    case USER_ID:
+                        putNullable(sink, entry.userId);
+                        break;
+                    case SESSION_ID:
+                        putNullable(sink, entry.sessionId);
+                        break;
+                    default:
+                        throw new IllegalStateException("unknown field " + fields[i]);
+                }
             }
         }
+    }
+
+    /**
+     * Raw fields of a request, to be rendered by the writer thread. Entries
+     * are preallocated and reused.
+     */
+    static final class Entry {
+
+        // sequence of the entry in the ring, published by the producer
+        private volatile long published = -1;
+        private long sequence;
+
+        private AccessLogFormat format;
+        private InetAddress clientAddress;
+        private InetAddress serverAddress;
+        private HttpMethod method;
+        private String host;
+        private String uri;
+        private long startTs;
+        private long backendStartTs;
+        private long lastActivity;
+        private MapResult.Action action;
+        private String routeId;
+        private String backendHost;
+        private int backendPort;
+        private String userId;
+        private String sessionId;
+        private boolean servedFromCache;
+
+        void capture(RequestHandler request, AccessLogFormat format) {
+            this.format = format;
+            this.clientAddress = request.getRemoteAddress().getAddress();
+            this.serverAddress = request.getLocalAddress().getAddress();
+            HttpRequest httpRequest = request.getRequest();
+            this.method = httpRequest.method();
+            this.host = httpRequest.headers().getAsString(HttpHeaderNames.HOST);
+            this.uri = request.getUri();
+            this.startTs = request.getStartTs();
+            this.backendStartTs = request.getBackendStartTs();
+            this.lastActivity = request.getLastActivity();
+            MapResult mapResult = request.getAction();
+            this.action = mapResult.action;
+            this.routeId = mapResult.routeid;
+            this.backendHost = mapResult.host;
+            this.backendPort = mapResult.port;
+            this.userId = request.getUserId();
+            this.sessionId = request.getSessionId();
+            this.servedFromCache = request.isServedFromCache();
+        }
+
+        private void clear() {
+            format = null;
+            clientAddress = null;
+            serverAddress = null;
+            method = null;
+            host = null;
+            uri = null;
+            action = null;
+            routeId = null;
+            backendHost = null;
+            userId = null;
+            sessionId = null;
+        }
 
         @VisibleForTesting
         String render() {
-            return this.format.render(Locale.ITALY);
+            StringSink res = new StringSink();
+            try {
+                format.write(this, res);
+            } catch (IOException impossible) {
+                throw new IllegalStateException(impossible);
+            }
+            return res.toString();
+        }
+    }
+
+    /**
+     * Bounded multi-producer single-consumer ring of preallocated entries.
+     */
+    static final class EntriesRing {
+
+        // returned to the producers once the ring has been replaced
+        static final Entry SEALED = new Entry();
+        private static final long SEALED_BIT = 1L << 62;
+
+        private final Entry[] entries;
+        private final AtomicLong claimed = new AtomicLong();
+        private volatile long consumed;
+        // the consumer, if it is waiting for an entry
+        private volatile Thread waiter;
+
+        EntriesRing(int capacity) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("invalid capacity " + capacity);
+            }
+            this.entries = new Entry[capacity];
+            for (int i = 0; i < capacity; i++) {
+                entries[i] = new Entry();
+            }
+        }
+
+        /**
+         * Claims an entry, to be filled and then published
+         *
+         * @return null if the ring is full
+         */
+        Entry claim() {
+            while (true) {
+                long sequence = claimed.get();
+                if ((sequence & SEALED_BIT) != 0) {
+                    return SEALED;
+                }
+                if (sequence - consumed >= entries.length) {
+                    return null;
+                }
+                if (claimed.compareAndSet(sequence, sequence + 1)) {
+                    Entry entry = entries[(int) (sequence % entries.length)];
+                    entry.sequence = sequence;
+                    return entry;
+                }
+            }
+        }
+
+        void publish(Entry entry) {
+            entry.published = entry.sequence;
+            wakeUp();
+        }
+
+        void wakeUp() {
+            Thread _waiter = waiter;
+            if (_waiter != null) {
+                LockSupport.unpark(_waiter);
+            }
+        }
+
+        /**
+         * Refuses any other claim
+         */
+        void seal() {
+            while (true) {
+                long sequence = claimed.get();
+                if (claimed.compareAndSet(sequence, sequence | SEALED_BIT)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return true if the ring has been sealed and all of its entries
+         * have been released
+         */
+        boolean isDrained() {
+            long sequence = claimed.get();
+            return (sequence & SEALED_BIT) != 0 && (sequence & ~SEALED_BIT) == consumed;
+        }
+
+        int capacity() {
+            return entries.length;
+        }
+
+        /**
+         * @return the next published entry, or null
+         */
+        Entry peek() {
+            long sequence = consumed;
+            Entry entry = entries[(int) (sequence % entries.length)];
+            return entry.published == sequence ? entry : null;
+        }
+
+        Entry await(long timeout) throws InterruptedException {
+            Entry entry = peek();
+            if (entry != null || timeout <= 0) {
+                return entry;
+            }
+            long deadline = System.nanoTime() + timeout * 1_000_000;
+            waiter = Thread.currentThread();
+            try {
+                while ((entry = peek()) == null) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                }
+            } finally {
+                waiter = null;
+            }
+            return entry;
+        }
+
+        /**
+         * Gives back the entry, which must be the one returned by peek
+         *
+         * @param entry
+         */
+        void release(Entry entry) {
+            entry.clear();
+            consumed = entry.sequence + 1;
+        }
+
+        int size() {
+            return (int) ((claimed.get() & ~SEALED_BIT) - consumed);
+        }
+    }
+
+    /**
+     * Memory-mapped circular spool of the raw fields of the requests which do
+     * not fit the queue. Records are length-prefixed, a negative length marks
+     * the unused tail of the file.
+     */
+    static final class OverflowSpool implements Closeable {
+
+        private static final int WRAP = -1;
+        private static final int MAX_RECORD_SIZE = 64 * 1024;
+
+        private final Path file;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final int capacity;
+        // guarded by this
+        private final ByteBuffer record = ByteBuffer.allocate(MAX_RECORD_SIZE);
+        private final List<AccessLogFormat> formats = new ArrayList<>();
+        private int writePosition;
+        private int readPosition;
+        private int used;
+        private volatile int entries;
+
+        OverflowSpool(Path file, int capacity) throws IOException {
+            this.file = file;
+            this.capacity = capacity;
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+        boolean isEmpty() {
+            return entries == 0;
+        }
+
+        int size() {
+            return entries;
+        }
+
+        synchronized boolean append(RequestHandler request, AccessLogFormat format) {
+            record.clear();
+            try {
+                int formatIndex = formats.indexOf(format);
+                if (formatIndex < 0) {
+                    formats.add(format);
+                    formatIndex = formats.size() - 1;
+                }
+                record.putInt(formatIndex);
+                putAddress(request.getRemoteAddress().getAddress());
+                putAddress(request.getLocalAddress().getAddress());
+                HttpRequest httpRequest = request.getRequest();
+                putString(httpRequest.method().name());
+                putString(httpRequest.headers().getAsString(HttpHeaderNames.HOST));
+                putString(request.getUri());
+                record.putLong(request.getStartTs());
+                record.putLong(request.getBackendStartTs());
+                record.putLong(request.getLastActivity());
+                MapResult mapResult = request.getAction();
+                record.put((byte) (mapResult.action == null ? -1 : mapResult.action.ordinal()));
+                putString(mapResult.routeid);
+                putString(mapResult.host);
+                record.putInt(mapResult.port);
+                putString(request.getUserId());
+                putString(request.getSessionId());
+                record.put((byte) (request.isServedFromCache() ? 1 : 0));
+            } catch (BufferOverflowException tooBig) {
+                return false;
+            }
+            record.flip();
+            int size = 4 + record.remaining();
+            int tail = capacity - writePosition;
+            int needed = tail < size ? tail + size : size;
+            if (used + needed > capacity) {
+                return false;
+            }
+            if (tail < size) {
+                if (tail >= 4) {
+                    buffer.putInt(writePosition, WRAP);
+                }
+                used += tail;
+                writePosition = 0;
+            }
+            buffer.putInt(writePosition, record.remaining());
+            for (int i = 0; i < record.limit(); i++) {
+                buffer.put(writePosition + 4 + i, record.get(i));
+            }
+            writePosition += size;
+            used += size;
+            entries++;
+            return true;
         }
 
-        public void write(STWriter stw, BufferedWriter bw) throws IOException {
-            this.format.write(stw, Locale.ITALY);
-            bw.write("\n");
+        private void putAddress(InetAddress address) {
+            byte[] bytes = address == null ? new byte[0] : address.getAddress();
+            record.put((byte) bytes.length);
+            record.put(bytes);
+        }
+
+        private void putString(String value) {
+            if (value == null) {
+                record.putInt(-1);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            record.putInt(bytes.length);
+            record.put(bytes);
+        }
+
+        /**
+         * Reads the oldest spooled request
+         *
+         * @param entry
+         * @return false if the spool is empty
+         */
+        synchronized boolean read(Entry entry) throws IOException {
+            if (entries == 0) {
+                return false;
+            }
+            if (capacity - readPosition < 4 || buffer.getInt(readPosition) == WRAP) {
+                used -= capacity - readPosition;
+                readPosition = 0;
+            }
+            int size = buffer.getInt(readPosition);
+            int position = readPosition + 4;
+            ByteBuffer view = buffer.duplicate();
+            view.position(position);
+            view.limit(position + size);
+            entry.format = formats.get(view.getInt());
+            entry.clientAddress = getAddress(view);
+            entry.serverAddress = getAddress(view);
+            String method = getString(view);
+            entry.method = method == null ? null : HttpMethod.valueOf(method);
+            entry.host = getString(view);
+            entry.uri = getString(view);
+            entry.startTs = view.getLong();
+            entry.backendStartTs = view.getLong();
+            entry.lastActivity = view.getLong();
+            int action = view.get();
+            entry.action = action < 0 ? null : MapResult.Action.values()[action];
+            entry.routeId = getString(view);
+            entry.backendHost = getString(view);
+            entry.backendPort = view.getInt();
+            entry.userId = getString(view);
+            entry.sessionId = getString(view);
+            entry.servedFromCache = view.get() != 0;
+
+            readPosition = position + size;
+            used -= 4 + size;
+            if (--entries == 0) {
+                readPosition = 0;
+                writePosition = 0;
+                used = 0;
+                formats.clear();
+            }
+            return true;
+        }
+
+        private static InetAddress getAddress(ByteBuffer view) throws IOException {
+            int length = view.get();
+            if (length == 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            view.get(bytes);
+            return InetAddress.getByAddress(bytes);
+        }
+
+        private static String getString(ByteBuffer view) {
+            int length = view.getInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            view.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+                Files.deleteIfExists(file);
+            } catch (IOException err) {
+                LOG.log(Level.SEVERE, "Cannot delete access log spool " + file, err);
+            }
         }
     }
 }
@@ -0,0 +1,117 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server;
+
+import io.netty.handler.codec.http.HttpContentCompressor;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import java.util.Locale;
+import org.carapaceproxy.MapResult;
+import org.carapaceproxy.server.config.CompressionConfiguration;
+
+/**
+ * Compresses the responses to the clients, according to the Accept-Encoding
+ * header of the request and to the compression configuration of the action
+ * which served it.
+ * <p>
+ * Responses already encoded (by the backend or compressed variants from the
+ * cache) are sent as is.
+ * </p>
+ */
+class ResponseCompressor extends HttpContentCompressor {
+
+    private final ClientConnectionHandler connectionHandler;
+
+    ResponseCompressor(ClientConnectionHandler connectionHandler) {
+        this.connectionHandler = connectionHandler;
+    }
+
+    @Override
+    protected Result beginEncode(HttpResponse response, String acceptEncoding) throws Exception {
+        // called by the event loop, the response belongs to the first pending request
+        RequestHandler request = connectionHandler.getRespondingRequest();
+        MapResult action = request != null ? request.getAction() : null;
+        if (action == null || !isCompressible(action.compression, response)) {
+            return null;
+        }
+        // the representation depends on the request, even if not compressed
+        addVaryAcceptEncoding(response.headers());
+        return super.beginEncode(response, acceptEncoding);
+    }
+
+    static boolean isCompressible(CompressionConfiguration compression, HttpResponse response) {
+        HttpHeaders headers = response.headers();
+        return compression.isEnabled()
+                && response.status().code() != HttpResponseStatus.PARTIAL_CONTENT.code()
+                && !headers.contains(HttpHeaderNames.CONTENT_ENCODING)
+                && compression.isCompressible(headers.get(HttpHeaderNames.CONTENT_TYPE), HttpUtil.getContentLength(response, -1L));
+    }
+
+    static void addVaryAcceptEncoding(HttpHeaders headers) {
+        for (String vary : headers.getAll(HttpHeaderNames.VARY)) {
+            for (String name : vary.split(",")) {
+                String trimmed = name.trim();
+                if (trimmed.equals("*") || trimmed.equalsIgnoreCase(HttpHeaderNames.ACCEPT_ENCODING.toString())) {
+                    return;
+                }
+            }
+        }
+        headers.add(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+    }
+
+    /**
+     * @param acceptEncoding value of the Accept-Encoding header of the request
+     * @return true if the client accepts gzip encoded contents
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        boolean accepted = false;
+        for (String coding : acceptEncoding.split(",")) {
+            String name = coding;
+            float q = 1.0f;
+            int semicolon = coding.indexOf(';');
+            if (semicolon >= 0) {
+                name = coding.substring(0, semicolon);
+                String param = coding.substring(semicolon + 1).trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Float.parseFloat(param.substring(2));
+                    } catch (NumberFormatException err) {
+                        q = 0;
+                    }
+                }
+            }
+            name = name.trim().toLowerCase(Locale.ENGLISH);
+            if (name.equals(HttpHeaderValues.GZIP.toString())) {
+                // an explicit entry overrides the wildcard
+                return q > 0;
+            } else if (name.equals("*")) {
+                accepted = q > 0;
+            }
+        }
+        return accepted;
+    }
+}
@@ -35,6 +35,8 @@ import static org.carapaceproxy.configstore.ConfigurationStoreUtils.getLong;
 import static org.carapaceproxy.server.certiticates.DynamicCertificatesManager.DEFAULT_KEYPAIRS_SIZE;
 import org.carapaceproxy.server.config.ConfigurationNotValidException;
 import org.carapaceproxy.server.config.NetworkListenerConfiguration;
+import org.carapaceproxy.server.config.OutlierDetectionConfiguration;
+import org.carapaceproxy.server.config.RequestBufferConfiguration;
 import org.carapaceproxy.server.config.RequestFilterConfiguration;
 import org.carapaceproxy.server.config.SSLCertificateConfiguration;
 import org.carapaceproxy.server.config.SSLCertificateConfiguration.CertificateMode;
@@ -50,6 +52,12 @@ public class RuntimeServerConfiguration {
 
     private static final Logger LOG = Logger.getLogger(RuntimeServerConfiguration.class.getName());
 
+    public static final String ACCESS_LOG_OVERFLOW_DROP = "drop";
+    public static final String ACCESS_LOG_OVERFLOW_SPOOL = "spool";
+    public static final String ACCESS_LOG_OVERFLOW_SAMPLE = "sample";
+    public static final String ACCESS_LOG_COMPRESSION_NONE = "none";
+    public static final String ACCESS_LOG_COMPRESSION_GZIP = "gzip";
+
     private final List<NetworkListenerConfiguration> listeners = new ArrayList<>();
     private final Map<String, SSLCertificateConfiguration> certificates = new HashMap<>();
     private final List<RequestFilterConfiguration> requestFilters = new ArrayList<>();
@@ -58,8 +66,18 @@ public class RuntimeServerConfiguration {
     private int stuckRequestTimeout = 120000;
     private int connectTimeout = 10000;
     private int borrowTimeout = 60000;
+    private int retryBudgetPercent = 20;
+    private int retryBudgetMinRetriesPerSecond = 10;
+    private RequestBufferConfiguration requestBuffer = RequestBufferConfiguration.DEFAULT;
+    private boolean connectionsEventLoopAffinity = false;
     private long cacheMaxSize = 0;
     private long cacheMaxFileSize = 0;
+    private boolean cacheOffHeap = false;
+    private int cacheSlabSize = 4 * 1024 * 1024;
+    private String cacheDiskPath = "";
+    private long cacheDiskMaxSize = 1024L * 1024 * 1024;
+    private long cacheStaleRetention = 60 * 60 * 1000;
+    private int cacheAdmissionMinFrequency = 2;
     private String mapperClassname;
     private String accessLogPath = "access.log";
     private String accessLogTimestampFormat = "yyyy-MM-dd HH:mm:ss.SSS";
@@ -68,10 +86,21 @@ public class RuntimeServerConfiguration {
             + "server=<server_ip>, act=<action_id>, route=<route_id>, backend=<backend_id>. "
             + "time t=<total_time>ms b=<backend_time>ms";
     private int accessLogMaxQueueCapacity = 2000;
+    private String accessLogOverflowPolicy = ACCESS_LOG_OVERFLOW_DROP;
+    private long accessLogSpoolSize = 64L * 1024 * 1024;
+    private int accessLogSampleRate = 10;
     private int accessLogFlushInterval = 5000;
     private int accessLogWaitBetweenFailures = 10000;
+    private long accessLogRotationMaxSize = 0;
+    private long accessLogRotationInterval = 0;
+    private String accessLogRotationCompression = ACCESS_LOG_COMPRESSION_GZIP;
+    private int accessLogRotationRetention = 0;
     private String userRealmClassname;
     private int healthProbePeriod = 0;
+    private int healthProbeUnhealthyPeriod = 0;
+    private int healthProbeRise = 1;
+    private int healthProbeFall = 1;
+    private OutlierDetectionConfiguration outlierDetection = OutlierDetectionConfiguration.DISABLED;
     private int dynamicCertificatesManagerPeriod = 0;
     private int keyPairsSize = DEFAULT_KEYPAIRS_SIZE;
 
@@ -107,6 +136,30 @@ public class RuntimeServerConfiguration {
         this.accessLogMaxQueueCapacity = accessLogMaxQueueCapacity;
     }
 
+    public String getAccessLogOverflowPolicy() {
+        return accessLogOverflowPolicy;
+    }
+
+    public void setAccessLogOverflowPolicy(String accessLogOverflowPolicy) {
+        this.accessLogOverflowPolicy = accessLogOverflowPolicy;
+    }
+
+    public long getAccessLogSpoolSize() {
+        return accessLogSpoolSize;
+    }
+
+    public void setAccessLogSpoolSize(long accessLogSpoolSize) {
+        this.accessLogSpoolSize = accessLogSpoolSize;
+    }
+
+    public int getAccessLogSampleRate() {
+        return accessLogSampleRate;
+    }
+
+    public void setAccessLogSampleRate(int accessLogSampleRate) {
+        this.accessLogSampleRate = accessLogSampleRate;
+    }
+
     public int getAccessLogFlushInterval() {
         return accessLogFlushInterval;
     }
@@ -123,6 +176,38 @@ public class RuntimeServerConfiguration {
         this.accessLogWaitBetweenFailures = accessLogWaitBetweenFailures;
     }
 
+    public long getAccessLogRotationMaxSize() {
+        return accessLogRotationMaxSize;
+    }
+
+    public void setAccessLogRotationMaxSize(long accessLogRotationMaxSize) {
+        this.accessLogRotationMaxSize = accessLogRotationMaxSize;
+    }
+
+    public long getAccessLogRotationInterval() {
+        return accessLogRotationInterval;
+    }
+
+    public void setAccessLogRotationInterval(long accessLogRotationInterval) {
+        this.accessLogRotationInterval = accessLogRotationInterval;
+    }
+
+    public String getAccessLogRotationCompression() {
+        return accessLogRotationCompression;
+    }
+
+    public void setAccessLogRotationCompression(String accessLogRotationCompression) {
+        this.accessLogRotationCompression = accessLogRotationCompression;
+    }
+
+    public int getAccessLogRotationRetention() {
+        return accessLogRotationRetention;
+    }
+
+    public void setAccessLogRotationRetention(int accessLogRotationRetention) {
+        this.accessLogRotationRetention = accessLogRotationRetention;
+    }
+
     public String getMapperClassname() {
         return mapperClassname;
     }
@@ -171,6 +256,33 @@ public class RuntimeServerConfiguration {
         this.connectTimeout = connectTimeout;
     }
 
+    public int getRetryBudgetPercent() {
+        return retryBudgetPercent;
+    }
+
+    @VisibleForTesting
+    public void setRetryBudgetPercent(int retryBudgetPercent) {
+        this.retryBudgetPercent = retryBudgetPercent;
+    }
+
+    public int getRetryBudgetMinRetriesPerSecond() {
+        return retryBudgetMinRetriesPerSecond;
+    }
+
+    @VisibleForTesting
+    public void setRetryBudgetMinRetriesPerSecond(int retryBudgetMinRetriesPerSecond) {
+        this.retryBudgetMinRetriesPerSecond = retryBudgetMinRetriesPerSecond;
+    }
+
+    public RequestBufferConfiguration getRequestBuffer() {
+        return requestBuffer;
+    }
+
+    @VisibleForTesting
+    public void setRequestBuffer(RequestBufferConfiguration requestBuffer) {
+        this.requestBuffer = requestBuffer;
+    }
+
     public int getBorrowTimeout() {
         return borrowTimeout;
     }
@@ -179,6 +291,14 @@ public class RuntimeServerConfiguration {
         this.borrowTimeout = borrowTimeout;
     }
 
+    public boolean isConnectionsEventLoopAffinity() {
+        return connectionsEventLoopAffinity;
+    }
+
+    public void setConnectionsEventLoopAffinity(boolean connectionsEventLoopAffinity) {
+        this.connectionsEventLoopAffinity = connectionsEventLoopAffinity;
+    }
+
     public long getCacheMaxSize() {
         return cacheMaxSize;
     }
@@ -187,6 +307,22 @@ public class RuntimeServerConfiguration {
         this.cacheMaxSize = cacheMaxSize;
     }
 
+    public long getCacheStaleRetention() {
+        return cacheStaleRetention;
+    }
+
+    public void setCacheStaleRetention(long cacheStaleRetention) {
+        this.cacheStaleRetention = cacheStaleRetention;
+    }
+
+    public int getCacheAdmissionMinFrequency() {
+        return cacheAdmissionMinFrequency;
+    }
+
+    public void setCacheAdmissionMinFrequency(int cacheAdmissionMinFrequency) {
+        this.cacheAdmissionMinFrequency = cacheAdmissionMinFrequency;
+    }
+
     public long getCacheMaxFileSize() {
         return cacheMaxFileSize;
     }
@@ -195,6 +331,38 @@ public class RuntimeServerConfiguration {
         this.cacheMaxFileSize = cacheMaxFileSize;
     }
 
+    public boolean isCacheOffHeap() {
+        return cacheOffHeap;
+    }
+
+    public void setCacheOffHeap(boolean cacheOffHeap) {
+        this.cacheOffHeap = cacheOffHeap;
+    }
+
+    public int getCacheSlabSize() {
+        return cacheSlabSize;
+    }
+
+    public void setCacheSlabSize(int cacheSlabSize) {
+        this.cacheSlabSize = cacheSlabSize;
+    }
+
+    public String getCacheDiskPath() {
+        return cacheDiskPath;
+    }
+
+    public void setCacheDiskPath(String cacheDiskPath) {
+        this.cacheDiskPath = cacheDiskPath;
+    }
+
+    public long getCacheDiskMaxSize() {
+        return cacheDiskMaxSize;
+    }
+
+    public void setCacheDiskMaxSize(long cacheDiskMaxSize) {
+        this.cacheDiskMaxSize = cacheDiskMaxSize;
+    }
+
     public int getHealthProbePeriod() {
         return healthProbePeriod;
     }
@@ -204,6 +372,42 @@ public class RuntimeServerConfiguration {
         this.healthProbePeriod = healthProbePeriod;
     }
 
+    public int getHealthProbeUnhealthyPeriod() {
+        return healthProbeUnhealthyPeriod;
+    }
+
+    @VisibleForTesting
+    public void setHealthProbeUnhealthyPeriod(int healthProbeUnhealthyPeriod) {
+        this.healthProbeUnhealthyPeriod = healthProbeUnhealthyPeriod;
+    }
+
+    public int getHealthProbeRise() {
+        return healthProbeRise;
+    }
+
+    @VisibleForTesting
+    public void setHealthProbeRise(int healthProbeRise) {
+        this.healthProbeRise = healthProbeRise;
+    }
+
+    public int getHealthProbeFall() {
+        return healthProbeFall;
+    }
+
+    @VisibleForTesting
+    public void setHealthProbeFall(int healthProbeFall) {
+        this.healthProbeFall = healthProbeFall;
+    }
+
+    public OutlierDetectionConfiguration getOutlierDetection() {
+        return outlierDetection;
+    }
+
+    @VisibleForTesting
+    public void setOutlierDetection(OutlierDetectionConfiguration outlierDetection) {
+        this.outlierDetection = outlierDetection;
+    }
+
     public int getDynamicCertificatesManagerPeriod() {
         return dynamicCertificatesManagerPeriod;
     }
@@ -227,19 +431,52 @@ public class RuntimeServerConfiguration {
         this.stuckRequestTimeout = getInt("connectionsmanager.stuckrequesttimeout", stuckRequestTimeout, properties);
         this.connectTimeout = getInt("connectionsmanager.connecttimeout", connectTimeout, properties);
         this.borrowTimeout = getInt("connectionsmanager.borrowtimeout", borrowTimeout, properties);
+        this.connectionsEventLoopAffinity = Boolean.parseBoolean(properties.getProperty("connectionsmanager.eventloopaffinity", connectionsEventLoopAffinity + ""));
         LOG.info("connectionsmanager.maxconnectionsperendpoint=" + maxConnectionsPerEndpoint);
         LOG.info("connectionsmanager.idletimeout=" + idleTimeout);
         LOG.info("connectionsmanager.stuckrequesttimeout=" + stuckRequestTimeout);
         LOG.info("connectionsmanager.connecttimeout=" + connectTimeout);
         LOG.info("connectionsmanager.borrowtimeout=" + borrowTimeout);
+        LOG.info("connectionsmanager.eventloopaffinity=" + connectionsEventLoopAffinity);
+        this.retryBudgetPercent = getInt("connectionsmanager.retrybudget.percent", retryBudgetPercent, properties);
+        this.retryBudgetMinRetriesPerSecond = getInt("connectionsmanager.retrybudget.minretriespersecond", retryBudgetMinRetriesPerSecond, properties);
+        LOG.info("connectionsmanager.retrybudget.percent=" + retryBudgetPercent);
+        LOG.info("connectionsmanager.retrybudget.minretriespersecond=" + retryBudgetMinRetriesPerSecond);
+        if (retryBudgetPercent < 0 || retryBudgetMinRetriesPerSecond < 0) {
+            throw new ConfigurationNotValidException("Invalid connectionsmanager.retrybudget configuration, values cannot be negative");
+        }
+        this.requestBuffer = new RequestBufferConfiguration(
+                getLong("connectionsmanager.requestbuffer.memorysize", requestBuffer.getMemorySize(), properties));
+        LOG.info("connectionsmanager.requestbuffer=" + requestBuffer);
+        if (requestBuffer.getMemorySize() <= 0) {
+            throw new ConfigurationNotValidException("Invalid connectionsmanager.requestbuffer configuration " + requestBuffer);
+        }
 
         this.mapperClassname = getClassname("mapper.class", StandardEndpointMapper.class.getName(), properties);
         LOG.log(Level.INFO, "mapper.class={0}", this.mapperClassname);
 
         this.cacheMaxSize = getLong("cache.maxsize", cacheMaxSize, properties);
         this.cacheMaxFileSize = getLong("cache.maxfilesize", cacheMaxFileSize, properties);
+        this.cacheOffHeap = Boolean.parseBoolean(properties.getProperty("cache.offheap", cacheOffHeap + ""));
+        this.cacheSlabSize = getInt("cache.offheap.slabsize", cacheSlabSize, properties);
+        if (cacheSlabSize < 1024 || Integer.bitCount(cacheSlabSize) != 1) {
+            throw new ConfigurationNotValidException("Invalid value '" + cacheSlabSize + "' for cache.offheap.slabsize, it must be a power of two not less than 1024");
+        }
         LOG.info("cache.maxsize=" + cacheMaxSize);
         LOG.info("cache.maxfilesize=" + cacheMaxFileSize);
+        LOG.info("cache.offheap=" + cacheOffHeap);
+        this.cacheDiskPath = properties.getProperty("cache.disk.path", cacheDiskPath);
+        this.cacheDiskMaxSize = getLong("cache.disk.maxsize", cacheDiskMaxSize, properties);
+        LOG.info("cache.offheap.slabsize=" + cacheSlabSize);
+        LOG.info("cache.disk.path=" + cacheDiskPath);
+        LOG.info("cache.disk.maxsize=" + cacheDiskMaxSize);
+        this.cacheStaleRetention = getLong("cache.stale.retention", cacheStaleRetention, properties);
+        LOG.info("cache.stale.retention=" + cacheStaleRetention);
+        this.cacheAdmissionMinFrequency = getInt("cache.admission.minfrequency", cacheAdmissionMinFrequency, properties);
+        if (cacheAdmissionMinFrequency < 0) {
+            throw new ConfigurationNotValidException("Invalid value '" + cacheAdmissionMinFrequency + "' for cache.admission.minfrequency");
+        }
+        LOG.info("cache.admission.minfrequency=" + cacheAdmissionMinFrequency);
 
         this.accessLogPath = properties.getProperty("accesslog.path", accessLogPath);
         this.accessLogTimestampFormat = properties.getProperty("accesslog.format.timestamp", accessLogTimestampFormat);
@@ -247,6 +484,39 @@ public class RuntimeServerConfiguration {
         this.accessLogMaxQueueCapacity = getInt("accesslog.queue.maxcapacity", accessLogMaxQueueCapacity, properties);
         this.accessLogFlushInterval = getInt("accesslog.flush.interval", accessLogFlushInterval, properties);
         this.accessLogWaitBetweenFailures = getInt("accesslog.failure.wait", accessLogWaitBetweenFailures, properties);
+        this.accessLogOverflowPolicy = properties.getProperty("accesslog.queue.overflow", accessLogOverflowPolicy).trim().toLowerCase();
+        switch (accessLogOverflowPolicy) {
+            case ACCESS_LOG_OVERFLOW_DROP:
+            case ACCESS_LOG_OVERFLOW_SPOOL:
+            case ACCESS_LOG_OVERFLOW_SAMPLE:
+                break;
+            default:
+                throw new ConfigurationNotValidException("Invalid accesslog.queue.overflow='" + accessLogOverflowPolicy + "', it must be one of "
+                        + ACCESS_LOG_OVERFLOW_DROP + ", " + ACCESS_LOG_OVERFLOW_SPOOL + ", " + ACCESS_LOG_OVERFLOW_SAMPLE);
+        }
+        this.accessLogSpoolSize = getLong("accesslog.queue.overflow.spoolsize", accessLogSpoolSize, properties);
+        this.accessLogSampleRate = getInt("accesslog.queue.overflow.samplerate", accessLogSampleRate, properties);
+        if (accessLogMaxQueueCapacity <= 0) {
+            throw new ConfigurationNotValidException("Invalid accesslog.queue.maxcapacity='" + accessLogMaxQueueCapacity + "', it must be positive");
+        }
+        if (accessLogSampleRate <= 0) {
+            throw new ConfigurationNotValidException("Invalid accesslog.queue.overflow.samplerate='" + accessLogSampleRate + "', it must be positive");
+        }
+        if (accessLogSpoolSize < 1024 * 1024 || accessLogSpoolSize > Integer.MAX_VALUE) {
+            throw new ConfigurationNotValidException("Invalid accesslog.queue.overflow.spoolsize='" + accessLogSpoolSize + "', it must be between 1MB and 2GB");
+        }
+        this.accessLogRotationMaxSize = getLong("accesslog.rotation.maxsize", accessLogRotationMaxSize, properties);
+        this.accessLogRotationInterval = getLong("accesslog.rotation.interval", accessLogRotationInterval, properties);
+        this.accessLogRotationCompression = properties.getProperty("accesslog.rotation.compression", accessLogRotationCompression).trim().toLowerCase();
+        this.accessLogRotationRetention = getInt("accesslog.rotation.retention", accessLogRotationRetention, properties);
+        if (!ACCESS_LOG_COMPRESSION_NONE.equals(accessLogRotationCompression)
+                && !ACCESS_LOG_COMPRESSION_GZIP.equals(accessLogRotationCompression)) {
+            throw new ConfigurationNotValidException("Invalid accesslog.rotation.compression='" + accessLogRotationCompression + "', it must be one of "
+                    + ACCESS_LOG_COMPRESSION_NONE + ", " + ACCESS_LOG_COMPRESSION_GZIP);
+        }
+        if (accessLogRotationMaxSize < 0 || accessLogRotationInterval < 0 || accessLogRotationRetention < 0) {
+            throw new ConfigurationNotValidException("Invalid accesslog.rotation configuration, values cannot be negative");
+        }
         String tsFormatExample;
         try {
             SimpleDateFormat formatter = new SimpleDateFormat(this.accessLogTimestampFormat);
@@ -260,6 +530,13 @@ public class RuntimeServerConfiguration {
         LOG.info("accesslog.queue.maxcapacity=" + accessLogMaxQueueCapacity);
         LOG.info("accesslog.flush.interval=" + accessLogFlushInterval);
         LOG.info("accesslog.failure.wait=" + accessLogWaitBetweenFailures);
+        LOG.info("accesslog.queue.overflow=" + accessLogOverflowPolicy);
+        LOG.info("accesslog.queue.overflow.spoolsize=" + accessLogSpoolSize);
+        LOG.info("accesslog.queue.overflow.samplerate=" + accessLogSampleRate);
+        LOG.info("accesslog.rotation.maxsize=" + accessLogRotationMaxSize);
+        LOG.info("accesslog.rotation.interval=" + accessLogRotationInterval);
+        LOG.info("accesslog.rotation.compression=" + accessLogRotationCompression);
+        LOG.info("accesslog.rotation.retention=" + accessLogRotationRetention);
 
         for (int i = 0; i < 100; i++) {
             tryConfigureCertificate(i, properties);
@@ -276,6 +553,34 @@ public class RuntimeServerConfiguration {
         if (healthProbePeriod <= 0) {
             LOG.warning("BACKEND-HEALTH-MANAGER DISABLED");
         }
+        // unhealthy backends are probed more often, by default four times faster
+        healthProbeUnhealthyPeriod = getInt("healthmanager.unhealthyperiod", Math.max(1, healthProbePeriod / 4), properties);
+        LOG.info("healthmanager.unhealthyperiod=" + healthProbeUnhealthyPeriod);
+        healthProbeRise = getInt("healthmanager.rise", 1, properties);
+        LOG.info("healthmanager.rise=" + healthProbeRise);
+        healthProbeFall = getInt("healthmanager.fall", 1, properties);
+        LOG.info("healthmanager.fall=" + healthProbeFall);
+        if (healthProbeRise <= 0 || healthProbeFall <= 0) {
+            throw new ConfigurationNotValidException("Invalid healthmanager.rise/healthmanager.fall, they must be positive");
+        }
+
+        OutlierDetectionConfiguration defaultOutlierDetection = OutlierDetectionConfiguration.DISABLED;
+        outlierDetection = new OutlierDetectionConfiguration(
+                getInt("healthmanager.outlier.window", defaultOutlierDetection.getWindow(), properties),
+                getInt("healthmanager.outlier.minrequests", defaultOutlierDetection.getMinRequests(), properties),
+                getInt("healthmanager.outlier.errorrate", defaultOutlierDetection.getErrorRate(), properties),
+                getLong("healthmanager.outlier.slowthreshold", defaultOutlierDetection.getSlowThreshold(), properties),
+                getInt("healthmanager.outlier.slowrate", defaultOutlierDetection.getSlowRate(), properties),
+                getInt("healthmanager.outlier.ejectiontime", defaultOutlierDetection.getEjectionTime(), properties),
+                getInt("healthmanager.outlier.maxejectiontime", defaultOutlierDetection.getMaxEjectionTime(), properties));
+        LOG.info("healthmanager.outlier=" + outlierDetection);
+        if (outlierDetection.getWindow() <= 0 || outlierDetection.getMinRequests() <= 0
+                || outlierDetection.getErrorRate() < 0 || outlierDetection.getErrorRate() > 100
+                || outlierDetection.getSlowThreshold() < 0
+                || outlierDetection.getSlowRate() <= 0 || outlierDetection.getSlowRate() > 100
+                || outlierDetection.getEjectionTime() <= 0 || outlierDetection.getMaxEjectionTime() < outlierDetection.getEjectionTime()) {
+            throw new ConfigurationNotValidException("Invalid healthmanager.outlier configuration " + outlierDetection);
+        }
 
         dynamicCertificatesManagerPeriod = getInt("dynamiccertificatesmanager.period", 0, properties);
         LOG.info("dynamiccertificatesmanager.period=" + dynamicCertificatesManagerPeriod);
@@ -319,9 +624,13 @@ public class RuntimeServerConfiguration {
             String trustStorePassword = properties.getProperty(prefix + "ssltruststorepassword", "");
             String sslciphers = properties.getProperty(prefix + "sslciphers", "");
             String defautlSslCertificate = properties.getProperty(prefix + "defaultcertificate", "*");
+            boolean http2 = Boolean.parseBoolean(properties.getProperty(prefix + "http2", "false"));
+            if (http2 && !ssl) {
+                throw new ConfigurationNotValidException("HTTP/2 is supported only on ssl listeners, check " + prefix + "http2");
+            }
             NetworkListenerConfiguration config = new NetworkListenerConfiguration(host,
                     port, ssl, ocps, sslciphers, defautlSslCertificate,
-                    trustStoreFile, trustStorePassword);
+                    trustStoreFile, trustStorePassword, http2);
             this.addListener(config);
 
         }
@@ -19,15 +19,35 @@
  */
 package org.carapaceproxy.server.backends;
 
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.timeout.ReadTimeoutHandler;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
-import java.util.Objects;
-import org.carapaceproxy.utils.IOUtils;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -39,6 +59,10 @@ public class BackendHealthCheck {
     public final static int RESULT_FAILURE_CONNECTION = 2;
     public final static int RESULT_FAILURE_STATUS = 3;
 
+    private static final int MAX_REDIRECTS = 5;
+    // the body of the probe page is reported up to this size, in bytes
+    private static final int MAX_BODY_SIZE = 64 * 1024;
+
     private final String path;
     private final long startTs;
     private final long endTs;
@@ -92,80 +116,156 @@ public class BackendHealthCheck {
         return result == RESULT_SUCCESS;
     }
 
-    public static BackendHealthCheck check(String host, int port, String path, int timeoutMillis) {
-
+    /**
+     * Probes the backend without blocking the caller.
+     * <p>
+     * The returned future is always completed normally, failures are
+     * reported as a {@link BackendHealthCheck} with
+     * {@link #RESULT_FAILURE_CONNECTION} or {@link #RESULT_FAILURE_STATUS}
+     * result. Redirects are followed, as long as they point to plain http
+     * locations.
+     * </p>
+     *
+     * @param group
+     * @param host
+     * @param port
+     * @param path
+     * @param timeoutMillis connect and read timeout
+     * @return the result of the probe
+     */
+    public static CompletableFuture<BackendHealthCheck> check(EventLoopGroup group, String host, int port, String path, int timeoutMillis) {
+        long startts = System.currentTimeMillis();
         if (path == null || path.isEmpty()) {
-            long now = System.currentTimeMillis();
-            return new BackendHealthCheck(path, now, now, RESULT_SUCCESS, "OK", "MOCK OK");
-        } else {
-            long startts = System.currentTimeMillis();
-            URL url;
-            HttpURLConnection httpConn = null;
-            try {
-                url = new URL("http", host, port, path);
-                URLConnection conn = url.openConnection();
-                conn.setConnectTimeout(timeoutMillis);
-                conn.setReadTimeout(timeoutMillis);
-                conn.setUseCaches(false);
-
-                if (!(conn instanceof HttpURLConnection)) {
-                    throw new IllegalStateException("Only HttpURLConnection is supported");
-                }
-                httpConn = (HttpURLConnection) conn;
-                httpConn.setRequestMethod("GET");
-                httpConn.setInstanceFollowRedirects(true);
-
-                try (InputStream is = httpConn.getInputStream()) {
-                    int httpCode = httpConn.getResponseCode();
-                    String httpResponse = httpCode + " " + Objects.toString(httpConn.getResponseMessage(), "");
-                    String httpBody = IOUtils.toString(is, StandardCharsets.UTF_8);
-                    return new BackendHealthCheck(
-                            path,
-                            startts,
-                            System.currentTimeMillis(),
-                            httpCode >= 200 && httpCode <= 299 ? RESULT_SUCCESS : RESULT_FAILURE_STATUS,
-                            httpResponse,
-                            httpBody
-                    );
-                }
+            return CompletableFuture.completedFuture(new BackendHealthCheck(path, startts, startts, RESULT_SUCCESS, "OK", "MOCK OK"));
+        }
+        CompletableFuture<BackendHealthCheck> result = new CompletableFuture<>();
+        try {
+            int query = path.indexOf('?');
+            URI uri = query < 0
+                    ? new URI("http", null, host, port, path, null, null)
+                    : new URI("http", null, host, port, path.substring(0, query), path.substring(query + 1), null);
+            probe(group, uri, timeoutMillis, MAX_REDIRECTS, path, startts, result);
+        } catch (URISyntaxException | RuntimeException ex) {
+            completeWithError(result, path, startts, ex);
+        }
+        return result;
+    }
 
-            } catch (MalformedURLException ex) {
-                throw new RuntimeException(ex);
-
-            } catch (IOException | RuntimeException ex) {
-                int result = RESULT_FAILURE_STATUS;
-                int httpCode = 0;
-                String httpResponse = "";
-                String httpErrorBody = "";
-
-                if (httpConn != null) {
-                    try {
-                        httpCode = httpConn.getResponseCode();
-                        httpResponse = httpCode + " " + Objects.toString(httpConn.getResponseMessage(), "");
-                    } catch (IOException ex2) {
-                        // Ignore
-                    }
+    private static void probe(EventLoopGroup group, URI uri, int timeoutMillis, int redirects,
+            String path, long startts, CompletableFuture<BackendHealthCheck> result) {
+        String host = uri.getHost();
+        int port = uri.getPort() > 0 ? uri.getPort() : 80;
+        Bootstrap bootstrap = new Bootstrap();
+        bootstrap.group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, timeoutMillis)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    public void initChannel(SocketChannel channel) throws Exception {
+                        channel.pipeline().addLast("readTimeoutHandler", new ReadTimeoutHandler(timeoutMillis, TimeUnit.MILLISECONDS));
+                        channel.pipeline().addLast("codec", new HttpClientCodec());
+                        channel.pipeline().addLast("probe", new SimpleChannelInboundHandler<HttpObject>() {
 
-                    try {
-                        httpErrorBody = IOUtils.toString(httpConn.getErrorStream(), StandardCharsets.UTF_8);
-                    } catch (IOException ex2) {
-                        // Ignore
+                            private HttpResponse response;
+                            // redirected or completed, the closing of the channel is expected
+                            private boolean finished;
+                            // only the beginning of the body is reported, the rest is discarded
+                            private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+                            @Override
+                            protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) {
+                                if (msg instanceof HttpResponse) {
+                                    response = (HttpResponse) msg;
+                                    int httpCode = response.status().code();
+                                    String location = response.headers().get(HttpHeaderNames.LOCATION);
+                                    if (httpCode >= 300 && httpCode <= 399 && location != null && redirects > 0) {
+                                        try {
+                                            URI target = uri.resolve(location);
+                                            if ("http".equalsIgnoreCase(target.getScheme())) {
+                                                finished = true;
+                                                ctx.close();
+                                                probe(group, target, timeoutMillis, redirects - 1, path, startts, result);
+                                                return;
+                                            }
+                                        } catch (IllegalArgumentException ex) {
+                                            // not a valid location, report the redirect itself
+                                        }
+                                    }
+                                }
+                                if (response == null || finished) {
+                                    return;
+                                }
+                                if (msg instanceof HttpContent) {
+                                    ByteBuf content = ((HttpContent) msg).content();
+                                    int length = Math.min(content.readableBytes(), MAX_BODY_SIZE - body.size());
+                                    byte[] bytes = new byte[length];
+                                    content.getBytes(content.readerIndex(), bytes);
+                                    body.write(bytes, 0, length);
+                                }
+                                if (msg instanceof LastHttpContent || body.size() >= MAX_BODY_SIZE) {
+                                    finished = true;
+                                    ctx.close();
+                                    int httpCode = response.status().code();
+                                    result.complete(new BackendHealthCheck(
+                                            path,
+                                            startts,
+                                            System.currentTimeMillis(),
+                                            httpCode >= 200 && httpCode <= 299 ? RESULT_SUCCESS : RESULT_FAILURE_STATUS,
+                                            httpCode + " " + response.status().reasonPhrase(),
+                                            new String(body.toByteArray(), StandardCharsets.UTF_8)
+                                    ));
+                                }
+                            }
+
+                            @Override
+                            public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+                                ctx.close();
+                                if (!finished) {
+                                    completeWithError(result, path, startts, cause);
+                                }
+                            }
+
+                            @Override
+                            public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+                                if (!finished) {
+                                    completeWithError(result, path, startts, new IOException("Connection closed by " + host + ":" + port));
+                                }
+                                super.channelInactive(ctx);
+                            }
+                        });
                     }
+                });
+        bootstrap.connect(host, port).addListener((ChannelFuture future) -> {
+            if (!future.isSuccess()) {
+                completeWithError(result, path, startts, future.cause());
+                return;
+            }
+            String requestUri = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+            if (uri.getRawQuery() != null) {
+                requestUri += "?" + uri.getRawQuery();
+            }
+            FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, requestUri);
+            request.headers().set(HttpHeaderNames.HOST, port == 80 ? host : host + ":" + port);
+            request.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+            future.channel().writeAndFlush(request).addListener((ChannelFuture write) -> {
+                if (!write.isSuccess()) {
+                    write.channel().close();
+                    completeWithError(result, path, startts, write.cause());
                 }
+            });
+        });
+    }
 
-                if (httpCode <= 0) {
-                    result = RESULT_FAILURE_CONNECTION;
-                    httpResponse = ex.getMessage();
-                }
-                return new BackendHealthCheck(
-                        path,
-                        startts,
-                        System.currentTimeMillis(),
-                        result,
-                        httpResponse,
-                        httpErrorBody
-                );
-            }
-        }
+    private static void completeWithError(CompletableFuture<BackendHealthCheck> result, String path, long startts, Throwable cause) {
+        // a completed probe is not overwritten
+        String message = cause.getMessage() != null ? cause.getMessage() : cause.toString();
+        result.complete(new BackendHealthCheck(
+                path,
+                startts,
+                System.currentTimeMillis(),
+                RESULT_FAILURE_CONNECTION,
+                message,
+                ""
+        ));
     }
 }
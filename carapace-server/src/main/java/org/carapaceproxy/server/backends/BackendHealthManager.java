@@ -20,38 +20,68 @@
 package org.carapaceproxy.server.backends;
 
 import com.google.common.annotations.VisibleForTesting;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.prometheus.client.Counter;
 import io.prometheus.client.Gauge;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.carapaceproxy.EndpointMapper;
 import org.carapaceproxy.server.RuntimeServerConfiguration;
 import org.carapaceproxy.server.config.BackendConfiguration;
+import org.carapaceproxy.server.config.OutlierDetectionConfiguration;
 import org.carapaceproxy.utils.PrometheusUtils;
 
 /**
  * Keeps status about backends
+ * <p>
+ * Backends are probed asynchronously and in parallel on a dedicated Netty
+ * event loop. Every backend has got its own schedule: healthy backends are
+ * probed every {@code period} seconds, unhealthy ones every
+ * {@code unhealthyPeriod} seconds, both with a random jitter in order not to
+ * probe all the backends at the same time. A backend changes status only
+ * after {@code fall} consecutive failed probes or {@code rise} consecutive
+ * successful ones.
+ * </p>
+ * <p>
+ * The responses to the proxied requests feed a passive outlier detection
+ * (see {@link OutlierDetector}): backends answering with too many errors or
+ * too slowly are ejected from the pool without waiting for the next active
+ * probe.
+ * </p>
  *
  * @author enrico.olivelli
  */
 public class BackendHealthManager implements Runnable {
 
     public static final int DEFAULT_PERIOD = 60; // seconds
+    private static final long TICK_MILLIS = 500;
+    private static final double JITTER = 0.1;
     private static final Logger LOG = Logger.getLogger(BackendHealthManager.class.getName());
 
     private static final Gauge BACKEND_UPSTATUS_GAUGE = PrometheusUtils.createGauge("health", "backend_status",
             "backend status", "host").register();
+    private static final Counter BACKEND_EJECTIONS_COUNTER = PrometheusUtils.createCounter("health", "backend_ejections_total",
+            "backends ejected by the outlier detection", "host").register();
 
-    private EndpointMapper mapper;
+    private volatile EndpointMapper mapper;
 
     private ScheduledExecutorService timer;
     private ScheduledFuture<?> scheduledFuture;
@@ -59,7 +89,16 @@ public class BackendHealthManager implements Runnable {
     // can change at runtime
     private volatile int period;
     // can change at runtime
+    private volatile int unhealthyPeriod;
+    // can change at runtime
+    private volatile int rise;
+    // can change at runtime
+    private volatile int fall;
+    // can change at runtime
     private volatile int connectTimeout;
+    // can change at runtime
+    private volatile OutlierDetectionConfiguration outlierDetection;
+    private EventLoopGroup eventLoopGroup; // guarded by this
     private volatile boolean started; // keep track of start() calling
 
     private final ConcurrentHashMap<String, BackendHealthStatus> backends = new ConcurrentHashMap<>();
@@ -70,7 +109,11 @@ public class BackendHealthManager implements Runnable {
 
         // will be overridden before start
         this.period = DEFAULT_PERIOD;
+        this.unhealthyPeriod = conf.getHealthProbeUnhealthyPeriod();
+        this.rise = conf.getHealthProbeRise();
+        this.fall = conf.getHealthProbeFall();
         this.connectTimeout = conf.getConnectTimeout();
+        this.outlierDetection = conf.getOutlierDetection();
 
     }
 
@@ -90,8 +133,10 @@ public class BackendHealthManager implements Runnable {
         if (timer == null) {
             timer = Executors.newSingleThreadScheduledExecutor();
         }
-        LOG.info("Starting BackendHealthManager, period: " + period + " seconds");
-        scheduledFuture = timer.scheduleAtFixedRate(this, period, period, TimeUnit.SECONDS);
+        LOG.info("Starting BackendHealthManager, period: " + period + " seconds, unhealthy period: "
+                + getUnhealthyPeriod() + " seconds, rise: " + rise + ", fall: " + fall);
+        // the timer only looks for the backends to be probed, probes do not run on it
+        scheduledFuture = timer.scheduleAtFixedRate(this::probeScheduledBackends, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
     }
 
     public synchronized void stop() {
@@ -106,6 +151,22 @@ public class BackendHealthManager implements Runnable {
                 Thread.currentThread().interrupt();
             }
         }
+        if (eventLoopGroup != null) {
+            eventLoopGroup.shutdownGracefully();
+            eventLoopGroup = null;
+        }
+    }
+
+    private synchronized EventLoopGroup getEventLoopGroup() {
+        if (eventLoopGroup == null) {
+            eventLoopGroup = new NioEventLoopGroup(1, new DefaultThreadFactory("health-probe", true));
+        }
+        return eventLoopGroup;
+    }
+
+    private int getUnhealthyPeriod() {
+        int value = unhealthyPeriod;
+        return value > 0 ? value : Math.max(1, period / 4);
     }
 
     public synchronized void reloadConfiguration(RuntimeServerConfiguration newConfiguration, EndpointMapper mapper) {
@@ -122,11 +183,25 @@ public class BackendHealthManager implements Runnable {
             LOG.info("Applying health probe period " + period + " s");
         }
 
+        if (unhealthyPeriod != newConfiguration.getHealthProbeUnhealthyPeriod()
+                || rise != newConfiguration.getHealthProbeRise()
+                || fall != newConfiguration.getHealthProbeFall()) {
+            unhealthyPeriod = newConfiguration.getHealthProbeUnhealthyPeriod();
+            rise = newConfiguration.getHealthProbeRise();
+            fall = newConfiguration.getHealthProbeFall();
+            LOG.info("Applying health probe unhealthy period " + getUnhealthyPeriod() + " s, rise " + rise + ", fall " + fall);
+        }
+
         if (this.connectTimeout != newConfiguration.getConnectTimeout()) {
             this.connectTimeout = newConfiguration.getConnectTimeout();
             LOG.info("Applying new connect timeout " + this.connectTimeout + " ms");
         }
 
+        if (!this.outlierDetection.equals(newConfiguration.getOutlierDetection())) {
+            this.outlierDetection = newConfiguration.getOutlierDetection();
+            LOG.info("Applying new outlier detection configuration " + this.outlierDetection);
+        }
+
         this.mapper = mapper;
 
         if (restart || started) {
@@ -134,54 +209,116 @@ public class BackendHealthManager implements Runnable {
         }
     }
 
+    /**
+     * Probes all the backends, in parallel, and waits for the results
+     */
     @Override
     public void run() {
         if (mapper == null) {
             return;
         }
         Collection<BackendConfiguration> backendConfigurations = mapper.getBackends().values();
+        List<CompletableFuture<?>> probes = new ArrayList<>(backendConfigurations.size());
         for (BackendConfiguration bconf : backendConfigurations) {
-            String hostPort = bconf.getHostPort();
-            BackendHealthStatus status = backends.computeIfAbsent(hostPort, (_hostPort) -> new BackendHealthStatus(_hostPort));
+            BackendHealthStatus status = getBackendStatus(bconf.getHostPort());
+            probes.add(probe(bconf, status));
+        }
+        discardRemovedBackends(backendConfigurations);
+        try {
+            // every probe is bounded by the connect and read timeouts
+            CompletableFuture.allOf(probes.toArray(new CompletableFuture<?>[0]))
+                    .get(2L * connectTimeout + TimeUnit.SECONDS.toMillis(1), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException err) {
+            LOG.log(Level.SEVERE, "Health probes did not complete", err);
+        }
+    }
 
-            BackendHealthCheck checkResult = BackendHealthCheck.check(
-                    bconf.getHost(), bconf.getPort(), bconf.getProbePath(), connectTimeout);
+    /**
+     * Starts the probes of the backends whose schedule has expired, without
+     * waiting for the results
+     */
+    private void probeScheduledBackends() {
+        EndpointMapper _mapper = mapper;
+        if (_mapper == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Collection<BackendConfiguration> backendConfigurations = _mapper.getBackends().values();
+        for (BackendConfiguration bconf : backendConfigurations) {
+            BackendHealthStatus status = getBackendStatus(bconf.getHostPort());
+            long nextProbeTs = status.getNextProbeTs();
+            if (nextProbeTs == 0) {
+                // first time we see this backend: spread the probes over the period
+                status.setNextProbeTs(now + (long) (ThreadLocalRandom.current().nextDouble() * getProbeInterval(status)));
+            } else if (nextProbeTs <= now && status.startProbe()) {
+                probe(bconf, status).whenComplete((result, error) -> {
+                    status.endProbe(computeNextProbeTs(status));
+                });
+            }
+        }
+        discardRemovedBackends(backendConfigurations);
+    }
 
-            if (checkResult.isOk()) {
-                if (status.isReportedAsUnreachable()) {
+    private long getProbeInterval(BackendHealthStatus status) {
+        return TimeUnit.SECONDS.toMillis(status.isReportedAsUnreachable() ? getUnhealthyPeriod() : period);
+    }
+
+    private long computeNextProbeTs(BackendHealthStatus status) {
+        double jitter = ThreadLocalRandom.current().nextDouble(-JITTER, JITTER);
+        return System.currentTimeMillis() + (long) (getProbeInterval(status) * (1 + jitter));
+    }
+
+    private CompletableFuture<Void> probe(BackendConfiguration bconf, BackendHealthStatus status) {
+        return BackendHealthCheck.check(getEventLoopGroup(), bconf.getHost(), bconf.getPort(), bconf.getProbePath(), connectTimeout)
+                .thenAccept(checkResult -> applyProbeResult(bconf, status, checkResult));
+    }
+
+    private void applyProbeResult(BackendConfiguration bconf, BackendHealthStatus status, BackendHealthCheck checkResult) {
+        int consecutive = status.recordProbe(checkResult.isOk());
+        if (checkResult.isOk()) {
+            if (status.isReportedAsUnreachable()) {
+                if (consecutive >= rise) {
                     LOG.log(Level.WARNING, "backend {0} was unreachable, setting again to reachable. Response time {1}ms",
-                            new Object[]{status.getHostPort(), checkResult.getEndTs() - checkResult.getStartTs()});
+                            new Object[]{status.getHostPort(), checkResult.getResponseTime()});
                     reportBackendReachable(status.getHostPort());
                 } else {
-                    LOG.log(Level.FINE, "backend {0} seems reachable. Response time {1}ms",
-                            new Object[]{status.getHostPort(), checkResult.getEndTs() - checkResult.getStartTs()});
+                    LOG.log(Level.INFO, "backend {0} still unreachable, {1} successful probes of {2}",
+                            new Object[]{status.getHostPort(), consecutive, rise});
                 }
             } else {
-                if (status.isReportedAsUnreachable()) {
-                    LOG.log(Level.INFO, "backend {0} still unreachable. Cause: {1}", new Object[]{status.getHostPort(), checkResult.getHttpResponse()});
-                } else {
-                    LOG.log(Level.WARNING, "backend {0} became unreachable. Cause: {1}", new Object[]{status.getHostPort(), checkResult.getHttpResponse()});
-                    reportBackendUnreachable(status.getHostPort(), checkResult.getEndTs(), checkResult.getHttpResponse());
-                }
+                LOG.log(Level.FINE, "backend {0} seems reachable. Response time {1}ms",
+                        new Object[]{status.getHostPort(), checkResult.getResponseTime()});
             }
-            status.setLastProbe(checkResult);
-
+        } else {
             if (status.isReportedAsUnreachable()) {
-                BACKEND_UPSTATUS_GAUGE.labels(bconf.getHost() + "_" + bconf.getPort()).set(0);
+                LOG.log(Level.INFO, "backend {0} still unreachable. Cause: {1}", new Object[]{status.getHostPort(), checkResult.getHttpResponse()});
+            } else if (consecutive >= fall) {
+                LOG.log(Level.WARNING, "backend {0} became unreachable. Cause: {1}", new Object[]{status.getHostPort(), checkResult.getHttpResponse()});
+                reportBackendUnreachable(status.getHostPort(), checkResult.getEndTs(), checkResult.getHttpResponse());
             } else {
-                BACKEND_UPSTATUS_GAUGE.labels(bconf.getHost() + "_" + bconf.getPort()).set(1);
+                LOG.log(Level.INFO, "backend {0} failed {1} probes of {2}. Cause: {3}",
+                        new Object[]{status.getHostPort(), consecutive, fall, checkResult.getHttpResponse()});
             }
         }
+        status.setLastProbe(checkResult);
+
+        if (status.isReportedAsUnreachable()) {
+            BACKEND_UPSTATUS_GAUGE.labels(bconf.getHost() + "_" + bconf.getPort()).set(0);
+        } else {
+            BACKEND_UPSTATUS_GAUGE.labels(bconf.getHost() + "_" + bconf.getPort()).set(1);
+        }
+    }
+
+    private void discardRemovedBackends(Collection<BackendConfiguration> backendConfigurations) {
+        Set<String> configured = new HashSet<>();
+        for (BackendConfiguration bconf : backendConfigurations) {
+            configured.add(bconf.getHostPort());
+        }
         List<String> toRemove = new ArrayList<>();
         for (String key : backends.keySet()) {
-            boolean found = false;
-            for (BackendConfiguration bconf : backendConfigurations) {
-                if (bconf.getHostPort().equals(key)) {
-                    found = true;
-                    break;
-                }
-            }
-            if (!found) {
+            if (!configured.contains(key)) {
                 toRemove.add(key);
             }
         }
@@ -194,6 +331,11 @@ public class BackendHealthManager implements Runnable {
     public void reportBackendUnreachable(String hostPort, long timestamp, String cause) {
         BackendHealthStatus backend = getBackendStatus(hostPort);
         backend.reportAsUnreachable(timestamp);
+        // probe it again sooner, in order to detect its recovery
+        long nextProbeTs = computeNextProbeTs(backend);
+        if (backend.getNextProbeTs() > nextProbeTs) {
+            backend.setNextProbeTs(nextProbeTs);
+        }
     }
 
     private BackendHealthStatus getBackendStatus(String hostPort) {
@@ -204,6 +346,35 @@ public class BackendHealthManager implements Runnable {
         return status;
     }
 
+    /**
+     * Accounts a response of a backend to a proxied request
+     *
+     * @param hostPort
+     * @param httpCode
+     * @param responseTime time to the first byte of the response, in
+     * milliseconds
+     */
+    public void reportBackendResponse(String hostPort, int httpCode, long responseTime) {
+        OutlierDetectionConfiguration conf = outlierDetection;
+        if (!conf.isEnabled()) {
+            return;
+        }
+        BackendHealthStatus backend = getBackendStatus(hostPort);
+        boolean error = httpCode >= 500;
+        boolean slow = conf.getSlowThreshold() > 0 && responseTime > conf.getSlowThreshold();
+        OutlierDetector detector = backend.getOutlierDetector();
+        if (detector.recordResponse(System.currentTimeMillis(), error, slow, conf)) {
+            if (detector.getState() == OutlierDetector.State.OPEN) {
+                LOG.log(Level.WARNING, "backend {0} ejected until {1}, last response {2} in {3}ms",
+                        new Object[]{hostPort, new java.sql.Timestamp(detector.getEjectedUntilTs()), httpCode, responseTime});
+                BACKEND_EJECTIONS_COUNTER.labels(hostPort.replace(':', '_')).inc();
+            } else {
+                LOG.log(Level.WARNING, "backend {0} back in the pool, trial response {1} in {2}ms",
+                        new Object[]{hostPort, httpCode, responseTime});
+            }
+        }
+    }
+
     public void reportBackendReachable(String hostPort) {
         BackendHealthStatus backend = getBackendStatus(hostPort);
         backend.reportAsReachable();
@@ -215,7 +386,11 @@ public class BackendHealthManager implements Runnable {
 
     public boolean isAvailable(String hostPort) {
         BackendHealthStatus backend = getBackendStatus(hostPort);
-        return backend != null && backend.isAvailable();
+        if (backend == null || !backend.isAvailable()) {
+            return false;
+        }
+        OutlierDetectionConfiguration conf = outlierDetection;
+        return !conf.isEnabled() || backend.getOutlierDetector().allowRequest(System.currentTimeMillis(), conf);
     }
 
     @VisibleForTesting
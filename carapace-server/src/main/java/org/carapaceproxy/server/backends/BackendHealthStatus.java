@@ -19,6 +19,7 @@
  */
 package org.carapaceproxy.server.backends;
 
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,7 +37,15 @@ public class BackendHealthStatus {
     private volatile boolean reportedAsUnreachable;
     private long reportedAsUnreachableTs;
 
-    private BackendHealthCheck lastProbe;
+    private volatile BackendHealthCheck lastProbe;
+
+    // probing state, see BackendHealthManager
+    private final AtomicBoolean probing = new AtomicBoolean();
+    private volatile long nextProbeTs;
+    private int consecutiveSuccesses;
+    private int consecutiveFailures;
+
+    private final OutlierDetector outlierDetector = new OutlierDetector();
 
     public BackendHealthStatus(String hostPort) {
         this.hostPort = hostPort;
@@ -81,13 +90,63 @@ public class BackendHealthStatus {
         reportedAsUnreachableTs = 0;
     }
 
+    boolean startProbe() {
+        return probing.compareAndSet(false, true);
+    }
+
+    void endProbe(long nextProbeTs) {
+        this.nextProbeTs = nextProbeTs;
+        probing.set(false);
+    }
+
+    long getNextProbeTs() {
+        return nextProbeTs;
+    }
+
+    void setNextProbeTs(long nextProbeTs) {
+        this.nextProbeTs = nextProbeTs;
+    }
+
+    /**
+     * Accounts the result of a probe
+     *
+     * @param ok
+     * @return the number of consecutive probes with the same outcome,
+     * including this one
+     */
+    synchronized int recordProbe(boolean ok) {
+        if (ok) {
+            consecutiveFailures = 0;
+            return ++consecutiveSuccesses;
+        } else {
+            consecutiveSuccesses = 0;
+            return ++consecutiveFailures;
+        }
+    }
+
+    OutlierDetector getOutlierDetector() {
+        return outlierDetector;
+    }
+
+    /**
+     * @return true if the backend has been ejected by the outlier detection
+     * and no trial request has been let through yet
+     */
+    public boolean isEjected() {
+        return outlierDetector.getState() == OutlierDetector.State.OPEN;
+    }
+
+    public long getEjectedUntilTs() {
+        return outlierDetector.getEjectedUntilTs();
+    }
+
     public boolean isAvailable() {
         return !reportedAsUnreachable;
     }
 
     @Override
     public String toString() {
-        return "BackendHealthStatus{" + "hostPort=" + hostPort + ", reportedAsUnreachable=" + reportedAsUnreachable + ", reportedAsUnreachableTs=" + reportedAsUnreachableTs + '}';
+        return "BackendHealthStatus{" + "hostPort=" + hostPort + ", reportedAsUnreachable=" + reportedAsUnreachable + ", reportedAsUnreachableTs=" + reportedAsUnreachableTs + ", outlierDetector=" + outlierDetector + '}';
     }
 
 }
@@ -0,0 +1,193 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.backends;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.carapaceproxy.server.config.OutlierDetectionConfiguration;
+
+/**
+ * Passive outlier detection and circuit breaker of a backend.
+ * <p>
+ * Responses are accounted in a sliding window made of one second buckets.
+ * When the rate of errors or of slow responses exceeds the configured one
+ * the backend is ejected (the circuit is open) for a time which doubles at
+ * every consecutive ejection. When the ejection expires a single trial
+ * request is let through (the circuit is half-open): its outcome closes the
+ * circuit or ejects the backend again.
+ * </p>
+ */
+class OutlierDetector {
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private static final long BUCKET_MILLIS = 1000;
+    private static final int MAX_BACKOFF_SHIFT = 16;
+
+    private State state = State.CLOSED;
+    private long[] bucketIds = new long[0];
+    private int[] requests = new int[0];
+    private int[] errors = new int[0];
+    private int[] slow = new int[0];
+    private long ejectedUntilTs;
+    private long trialStartTs;
+    private int ejections;
+    private long closedTs;
+
+    synchronized State getState() {
+        return state;
+    }
+
+    synchronized long getEjectedUntilTs() {
+        return ejectedUntilTs;
+    }
+
+    /**
+     * Checks whether a request can be sent to the backend. In half-open state
+     * only one trial request at a time is allowed.
+     *
+     * @param now
+     * @param conf
+     * @return true if the backend can be used
+     */
+    synchronized boolean allowRequest(long now, OutlierDetectionConfiguration conf) {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now < ejectedUntilTs) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                trialStartTs = 0;
+            // fall through
+            case HALF_OPEN:
+                // do not wait forever for a trial request which got lost
+                if (trialStartTs == 0 || now - trialStartTs > TimeUnit.SECONDS.toMillis(conf.getEjectionTime())) {
+                    trialStartTs = now;
+                    return true;
+                }
+                return false;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Accounts a response of the backend
+     *
+     * @param now
+     * @param error
+     * @param slowResponse
+     * @param conf
+     * @return true if the state of the circuit changed
+     */
+    synchronized boolean recordResponse(long now, boolean error, boolean slowResponse, OutlierDetectionConfiguration conf) {
+        switch (state) {
+            case OPEN:
+                // response to a request sent before the ejection
+                return false;
+            case HALF_OPEN:
+                trialStartTs = 0;
+                if (error || slowResponse) {
+                    eject(now, conf);
+                } else {
+                    state = State.CLOSED;
+                    closedTs = now;
+                    resetWindow(conf.getWindow());
+                }
+                return true;
+            case CLOSED:
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+        if (bucketIds.length != conf.getWindow()) {
+            resetWindow(conf.getWindow());
+        }
+        long bucketId = now / BUCKET_MILLIS;
+        int bucket = (int) (bucketId % bucketIds.length);
+        if (bucketIds[bucket] != bucketId) {
+            bucketIds[bucket] = bucketId;
+            requests[bucket] = 0;
+            errors[bucket] = 0;
+            slow[bucket] = 0;
+        }
+        requests[bucket]++;
+        if (error) {
+            errors[bucket]++;
+        }
+        if (slowResponse) {
+            slow[bucket]++;
+        }
+
+        long totalRequests = 0;
+        long totalErrors = 0;
+        long totalSlow = 0;
+        for (int i = 0; i < bucketIds.length; i++) {
+            if (bucketId - bucketIds[i] < bucketIds.length) {
+                totalRequests += requests[i];
+                totalErrors += errors[i];
+                totalSlow += slow[i];
+            }
+        }
+        if (totalRequests < conf.getMinRequests()) {
+            return false;
+        }
+        if ((conf.getErrorRate() > 0 && totalErrors * 100 >= conf.getErrorRate() * totalRequests)
+                || (conf.getSlowThreshold() > 0 && totalSlow * 100 >= conf.getSlowRate() * totalRequests)) {
+            eject(now, conf);
+            return true;
+        }
+        return false;
+    }
+
+    private void eject(long now, OutlierDetectionConfiguration conf) {
+        long maxEjectionTime = TimeUnit.SECONDS.toMillis(conf.getMaxEjectionTime());
+        if (state == State.CLOSED && now - closedTs > maxEjectionTime) {
+            // the backend has been healthy for a while, forget about the past ejections
+            ejections = 0;
+        }
+        long ejectionTime = TimeUnit.SECONDS.toMillis(conf.getEjectionTime()) << Math.min(ejections, MAX_BACKOFF_SHIFT);
+        ejections++;
+        ejectedUntilTs = now + Math.min(ejectionTime, maxEjectionTime);
+        state = State.OPEN;
+        resetWindow(conf.getWindow());
+    }
+
+    private void resetWindow(int window) {
+        bucketIds = new long[window];
+        requests = new int[window];
+        errors = new int[window];
+        slow = new int[window];
+        // no bucket is valid
+        Arrays.fill(bucketIds, Long.MIN_VALUE / 2);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "OutlierDetector{" + "state=" + state + ", ejectedUntilTs=" + ejectedUntilTs + ", ejections=" + ejections + '}';
+    }
+
+}
@@ -0,0 +1,239 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.IllegalReferenceCountException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import org.carapaceproxy.server.cache.ContentsCache.ContentPayload;
+
+/**
+ * Byte ranges (https://tools.ietf.org/html/rfc7233) of cached contents.
+ * <p>
+ * The parts of the response are slices of the buffers of the cached content,
+ * data is never copied.
+ * </p>
+ */
+final class ByteRanges {
+
+    private static final String BYTES_UNIT = "bytes=";
+    // more ranges are not worth it, the whole content is sent
+    static final int MAX_RANGES = 16;
+
+    private ByteRanges() {
+    }
+
+    /**
+     * @param content a cached content
+     * @param range value of the Range header of the request
+     * @param ifRange value of the If-Range header of the request, may be null
+     * @return the partial content (206) or the notification that the range
+     * is not satisfiable (416), or null if the whole content has to be sent
+     */
+    static ContentPayload slice(ContentPayload content, String range, String ifRange) {
+        List<HttpObject> chunks = content.chunks;
+        if (chunks.isEmpty() || !(chunks.get(0) instanceof HttpResponse)) {
+            return null;
+        }
+        HttpResponse response = (HttpResponse) chunks.get(0);
+        if (response.status().code() != HttpResponseStatus.OK.code()
+                || response.headers().contains(HttpHeaderNames.CONTENT_ENCODING)
+                || (ifRange != null && !isValid(ifRange, content, response))) {
+            return null;
+        }
+        List<ByteBuf> buffers = new ArrayList<>();
+        long length = 0;
+        for (HttpObject o : chunks) {
+            if (o instanceof HttpContent) {
+                ByteBuf buffer = ((HttpContent) o).content();
+                buffers.add(buffer);
+                length += buffer.readableBytes();
+            }
+        }
+        List<long[]> ranges = parse(range, length);
+        if (ranges == null) {
+            return null;
+        }
+        ContentPayload res = new ContentPayload(content.creationTs);
+        res.lastModified = content.lastModified;
+        res.expiresTs = content.expiresTs;
+        res.retainUntilTs = content.retainUntilTs;
+        try {
+            if (ranges.isEmpty()) {
+                HttpHeaders headers = new DefaultHttpHeaders();
+                headers.set(HttpHeaderNames.CONTENT_RANGE, "bytes */" + length);
+                headers.set(HttpHeaderNames.CONTENT_LENGTH, 0);
+                res.addChunk(new DefaultHttpResponse(response.protocolVersion(), HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE, headers));
+                res.addChunk(new DefaultLastHttpContent());
+                return res;
+            }
+            HttpHeaders headers = new DefaultHttpHeaders();
+            headers.add(response.headers());
+            headers.remove(HttpHeaderNames.TRANSFER_ENCODING);
+            headers.set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+            HttpResponse partial = new DefaultHttpResponse(response.protocolVersion(), HttpResponseStatus.PARTIAL_CONTENT, headers);
+            res.addChunk(partial);
+            if (ranges.size() == 1) {
+                long[] r = ranges.get(0);
+                headers.set(HttpHeaderNames.CONTENT_RANGE, contentRange(r, length));
+                headers.set(HttpHeaderNames.CONTENT_LENGTH, r[1] - r[0] + 1);
+                addSlices(res, buffers, r);
+            } else {
+                String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+                String contentType = response.headers().get(HttpHeaderNames.CONTENT_TYPE);
+                long contentLength = 0;
+                for (int i = 0; i < ranges.size(); i++) {
+                    long[] r = ranges.get(i);
+                    StringBuilder part = new StringBuilder();
+                    if (i > 0) {
+                        part.append("\r\n");
+                    }
+                    part.append("--").append(boundary).append("\r\n");
+                    if (contentType != null) {
+                        part.append("Content-Type: ").append(contentType).append("\r\n");
+                    }
+                    part.append("Content-Range: ").append(contentRange(r, length)).append("\r\n\r\n");
+                    contentLength += addText(res, part.toString());
+                    contentLength += addSlices(res, buffers, r);
+                }
+                contentLength += addText(res, "\r\n--" + boundary + "--\r\n");
+                headers.set(HttpHeaderNames.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary);
+                headers.set(HttpHeaderNames.CONTENT_LENGTH, contentLength);
+            }
+            res.addChunk(new DefaultLastHttpContent());
+            return res;
+        } catch (IllegalReferenceCountException released) {
+            // evicted meanwhile
+            res.clear();
+            return null;
+        }
+    }
+
+    /**
+     * @return the satisfiable ranges (first and last byte, inclusive), empty
+     * if none is satisfiable, null if the Range header has to be ignored
+     */
+    static List<long[]> parse(String range, long length) {
+        range = range.trim();
+        if (!range.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+            return null;
+        }
+        String[] specs = range.substring(BYTES_UNIT.length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<>();
+        boolean valid = false;
+        for (String spec : specs) {
+            spec = spec.trim();
+            if (spec.isEmpty()) {
+                continue;
+            }
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            try {
+                if (first.isEmpty()) {
+                    // last N bytes
+                    long suffix = Long.parseLong(last);
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    start = Math.max(0, length - suffix);
+                    end = suffix == 0 ? -1 : length - 1;
+                } else {
+                    start = Long.parseLong(first);
+                    end = last.isEmpty() ? length - 1 : Long.parseLong(last);
+                    if (start < 0 || end < start) {
+                        return null;
+                    }
+                    end = Math.min(end, length - 1);
+                }
+            } catch (NumberFormatException err) {
+                return null;
+            }
+            valid = true;
+            if (start < length && start <= end) {
+                ranges.add(new long[]{start, end});
+            }
+        }
+        return valid ? ranges : null;
+    }
+
+    private static boolean isValid(String ifRange, ContentPayload content, HttpResponse response) {
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"")) {
+            // only strong validators
+            return ifRange.equals(response.headers().get(HttpHeaderNames.ETAG));
+        }
+        Date date = DateFormatter.parseHttpDate(ifRange);
+        return date != null && content.lastModified > 0 && date.getTime() / 1000 == content.lastModified / 1000;
+    }
+
+    private static String contentRange(long[] range, long length) {
+        return "bytes " + range[0] + "-" + range[1] + "/" + length;
+    }
+
+    private static long addSlices(ContentPayload res, List<ByteBuf> buffers, long[] range) {
+        long offset = 0;
+        for (ByteBuf buffer : buffers) {
+            long size = buffer.readableBytes();
+            long from = Math.max(range[0], offset);
+            long to = Math.min(range[1] + 1, offset + size);
+            if (from < to) {
+                int index = buffer.readerIndex() + (int) (from - offset);
+                res.addChunk(new DefaultHttpContent(buffer.retainedSlice(index, (int) (to - from))));
+            }
+            offset += size;
+            if (offset > range[1]) {
+                break;
+            }
+        }
+        return range[1] - range[0] + 1;
+    }
+
+    private static int addText(ContentPayload res, String text) {
+        ByteBuf buffer = Unpooled.copiedBuffer(text, StandardCharsets.US_ASCII);
+        res.addChunk(new DefaultHttpContent(buffer));
+        return buffer.readableBytes();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Snapshot of the status of a cached content, for inspection
+ */
+public final class CacheEntryInfo {
+
+    public static final Comparator<CacheEntryInfo> BY_HITS = Comparator.comparingLong(CacheEntryInfo::getHits);
+    public static final Comparator<CacheEntryInfo> BY_BYTES_SAVED = Comparator.comparingLong(CacheEntryInfo::getBytesSaved);
+
+    private final String method;
+    private final String host;
+    private final String uri;
+    private final String cacheKey;
+    private final long heapSize;
+    private final long directSize;
+    private final long totalSize;
+    private final long creationTs;
+    private final long expiresTs;
+    private final int hits;
+
+    CacheEntryInfo(ContentsCache.ContentKey key, ContentsCache.ContentPayload payload) {
+        this.method = key.method;
+        this.host = key.host;
+        this.uri = key.uri;
+        this.cacheKey = key.composeKey();
+        this.heapSize = payload.heapSize;
+        this.directSize = payload.directSize;
+        this.totalSize = key.getMemUsage() + payload.getMemUsage();
+        this.creationTs = payload.creationTs;
+        this.expiresTs = payload.expiresTs;
+        this.hits = payload.getHits();
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public String getCacheKey() {
+        return cacheKey;
+    }
+
+    public long getHeapSize() {
+        return heapSize;
+    }
+
+    public long getDirectSize() {
+        return directSize;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public long getCreationTs() {
+        return creationTs;
+    }
+
+    public long getExpiresTs() {
+        return expiresTs;
+    }
+
+    public int getHits() {
+        return hits;
+    }
+
+    /**
+     * @return estimate of the bytes which have not been requested to the
+     * backends thanks to this content
+     */
+    public long getBytesSaved() {
+        return hits * (heapSize + directSize);
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> entry = new HashMap<>();
+        entry.put("method", method);
+        entry.put("host", host);
+        entry.put("uri", uri);
+        entry.put("cacheKey", cacheKey);
+        entry.put("heapSize", heapSize);
+        entry.put("directSize", directSize);
+        entry.put("totalSize", totalSize);
+        entry.put("creationTs", creationTs);
+        entry.put("expiresTs", expiresTs);
+        entry.put("hits", hits);
+        entry.put("bytesSaved", getBytesSaved());
+        return entry;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheEntryInfo{" + "cacheKey=" + cacheKey + ", totalSize=" + totalSize + ", hits=" + hits + '}';
+    }
+
+}
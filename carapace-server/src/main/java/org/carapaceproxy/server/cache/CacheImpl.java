@@ -50,8 +50,10 @@ interface CacheImpl {
      * Adds an element to cache and updates the stats
      * @param key
      * @param payload 
+     * @return true if the payload has been stored as-is and it is now owned by the cache, false if the cache stored a
+     * copy of it (or nothing at all) and the caller still has to release it
      */
-    public void put(ContentKey key, ContentPayload payload);
+    public boolean put(ContentKey key, ContentPayload payload);
 
     /**
      * Gets an element from cache if presents and updates the stats
@@ -60,6 +62,14 @@ interface CacheImpl {
      */
     public ContentPayload get(ContentKey key);
 
+    /**
+     * Gets an element from cache even if it is expired, as long as it is still retained in order to be revalidated.
+     * Stats are not updated.
+     * @param key
+     * @return Cached element or null if key was not found in cache
+     */
+    public ContentPayload getStale(ContentKey key);
+
     /**
      * Removes an element from cache, frees its resources and updates the stats
      * 
@@ -91,6 +101,13 @@ interface CacheImpl {
         public void accept(ContentKey key, ContentPayload payload);
     } 
     
+    /**
+     * Sets a listener which is called whenever an element is evicted because the cache exceeded its maximum size. The
+     * listener is called before the resources of the element are freed, it has to retain whatever it needs.
+     * @param listener
+     */
+    public void setEvictionListener(CacheEntriesSink listener);
+
     /**
      * Calls "sink" for every current element in cache
      * @param sink 
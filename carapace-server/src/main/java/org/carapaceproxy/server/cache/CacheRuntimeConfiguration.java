@@ -19,6 +19,8 @@
  */
 package org.carapaceproxy.server.cache;
 
+import java.util.Objects;
+
 /**
  * Configuration for the ContentsCache
  *
@@ -28,10 +30,23 @@ public class CacheRuntimeConfiguration {
 
     private final long cacheMaxSize;
     private final long cacheMaxFileSize;
+    private final boolean cacheOffHeap;
+    private final int cacheSlabSize;
+    private final String cacheDiskPath;
+    private final long cacheDiskMaxSize;
 
     public CacheRuntimeConfiguration(long cacheMaxSize, long cacheMaxFileSize) {
+        this(cacheMaxSize, cacheMaxFileSize, false, 0, "", 0);
+    }
+
+    public CacheRuntimeConfiguration(long cacheMaxSize, long cacheMaxFileSize, boolean cacheOffHeap, int cacheSlabSize,
+            String cacheDiskPath, long cacheDiskMaxSize) {
         this.cacheMaxSize = cacheMaxSize;
         this.cacheMaxFileSize = cacheMaxFileSize;
+        this.cacheOffHeap = cacheOffHeap;
+        this.cacheSlabSize = cacheSlabSize;
+        this.cacheDiskPath = cacheDiskPath;
+        this.cacheDiskMaxSize = cacheDiskMaxSize;
     }
 
     @Override
@@ -39,6 +54,10 @@ public class CacheRuntimeConfiguration {
         int hash = 3;
         hash = 79 * hash + (int) (this.cacheMaxSize ^ (this.cacheMaxSize >>> 32));
         hash = 79 * hash + (int) (this.cacheMaxFileSize ^ (this.cacheMaxFileSize >>> 32));
+        hash = 79 * hash + (this.cacheOffHeap ? 1 : 0);
+        hash = 79 * hash + this.cacheSlabSize;
+        hash = 79 * hash + Objects.hashCode(this.cacheDiskPath);
+        hash = 79 * hash + (int) (this.cacheDiskMaxSize ^ (this.cacheDiskMaxSize >>> 32));
         return hash;
     }
 
@@ -60,7 +79,24 @@ public class CacheRuntimeConfiguration {
         if (this.cacheMaxFileSize != other.cacheMaxFileSize) {
             return false;
         }
-        return true;
+        if (this.cacheOffHeap != other.cacheOffHeap) {
+            return false;
+        }
+        if (this.cacheSlabSize != other.cacheSlabSize) {
+            return false;
+        }
+        return sameDiskConfiguration(other);
+    }
+
+    /**
+     * Compares only the configuration of the disk tier
+     *
+     * @param other
+     * @return
+     */
+    public boolean sameDiskConfiguration(CacheRuntimeConfiguration other) {
+        return Objects.equals(this.cacheDiskPath, other.cacheDiskPath)
+                && this.cacheDiskMaxSize == other.cacheDiskMaxSize;
     }
 
     public long getCacheMaxSize() {
@@ -71,4 +107,20 @@ public class CacheRuntimeConfiguration {
         return cacheMaxFileSize;
     }
 
+    public boolean isCacheOffHeap() {
+        return cacheOffHeap;
+    }
+
+    public int getCacheSlabSize() {
+        return cacheSlabSize;
+    }
+
+    public String getCacheDiskPath() {
+        return cacheDiskPath;
+    }
+
+    public long getCacheDiskMaxSize() {
+        return cacheDiskMaxSize;
+    }
+
 }
@@ -29,6 +29,10 @@ import static com.github.benmanes.caffeine.cache.RemovalCause.EXPLICIT;
 import static com.github.benmanes.caffeine.cache.RemovalCause.REPLACED;
 import static com.github.benmanes.caffeine.cache.RemovalCause.SIZE;
 import com.github.benmanes.caffeine.cache.RemovalListener;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -52,24 +56,35 @@ class CaffeineCacheImpl implements CacheImpl {
     
     private boolean verbose = false;
     private volatile RemovalListener removalListener;
+    private volatile CacheEntriesSink evictionListener;
 
     public CaffeineCacheImpl(CacheStats stats, long cacheMaxSize, Logger logger) {
+        this(stats, cacheMaxSize, logger, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param executor runs the removal of the entries, that is the release of
+     * their contents
+     */
+    CaffeineCacheImpl(CacheStats stats, long cacheMaxSize, Logger logger, Executor executor) {
         this.stats = stats;
         this.logger = logger;
         
         this.cache = Caffeine.<ContentKey, ContentPayload>newBuilder()
             .initialCapacity((int) INITIAL_CACHE_SIZE_CAPACITY)
+            .executor(executor)
             .maximumWeight(cacheMaxSize > 0 ? cacheMaxSize : Long.MAX_VALUE)
             .expireAfter(new Expiry<ContentKey, ContentPayload>() {
                 @Override
                 public long expireAfterCreate(ContentKey key, ContentPayload payload, long currentTime) {
                     // WARNING: provided current time is completely misleading, as stated in the doc. 
                     // System.currentTimeMillis() should be used instead.
-                    return (payload.expiresTs - System.currentTimeMillis()) * 1_000_000; // In nanos
+                    return (payload.getRetainUntilTs() - System.currentTimeMillis()) * 1_000_000; // In nanos
                 }
                 @Override
                 public long expireAfterUpdate(ContentKey key, ContentPayload payload, long currentTime, long currentDuration) {
-                    return currentDuration;
+                    // the content has been refreshed
+                    return (payload.getRetainUntilTs() - System.currentTimeMillis()) * 1_000_000; // In nanos
                 }
                 @Override
                 public long expireAfterRead(ContentKey key, ContentPayload payload, long currentTime, long currentDuration) {
@@ -104,6 +119,9 @@ class CaffeineCacheImpl implements CacheImpl {
                         if (verbose) {
                             logger.log(Level.FINE, "content {0}: removed due to max size exceeded", new Object[]{key.uri});
                         }
+                        if (evictionListener != null) {
+                            evictionListener.accept(key, payload);
+                        }
                         break;
                 }
                 if (removalListener != null) {
@@ -118,6 +136,11 @@ class CaffeineCacheImpl implements CacheImpl {
         this.removalListener = listener;
     }
     
+    @Override
+    public void setEvictionListener(CacheEntriesSink listener) {
+        this.evictionListener = listener;
+    }
+
     @Override
     public void setVerbose(boolean verbose) {
         this.verbose = verbose;
@@ -134,7 +157,7 @@ class CaffeineCacheImpl implements CacheImpl {
     }
 
     @Override
-    public void put(ContentKey key, ContentPayload payload) {
+    public boolean put(ContentKey key, ContentPayload payload) {
         cache.put(key, payload);
         
         stats.cached(payload.heapSize, payload.directSize, key.getMemUsage() + payload.getMemUsage());
@@ -142,19 +165,32 @@ class CaffeineCacheImpl implements CacheImpl {
         memSize.addAndGet(key.getMemUsage() + payload.getMemUsage());
         
         logger.log(Level.FINE, "adding content {0}", key.uri);
+        return true;
     }
 
     @Override
     public ContentPayload get(ContentKey key) {
         ContentPayload cached = cache.getIfPresent(key);
-        if (cached != null && cached.expiresTs < System.currentTimeMillis()) {
-            logger.log(Level.FINE, "expiring content {0}, expired at {1}", new Object[]{key.uri, new java.util.Date(cached.expiresTs)});
-            cache.invalidate(key);
+        long now = System.currentTimeMillis();
+        if (cached != null && cached.expiresTs < now) {
+            if (cached.getRetainUntilTs() < now) {
+                logger.log(Level.FINE, "expiring content {0}, expired at {1}", new Object[]{key.uri, new java.util.Date(cached.expiresTs)});
+                cache.invalidate(key);
+            }
             cached = null;
         }
         stats.update(cached != null);
         if (cached != null) {
-            cached.hits++;
+            cached.hit();
+        }
+        return cached;
+    }
+
+    @Override
+    public ContentPayload getStale(ContentKey key) {
+        ContentPayload cached = cache.getIfPresent(key);
+        if (cached != null && cached.getRetainUntilTs() < System.currentTimeMillis()) {
+            return null;
         }
         return cached;
     }
@@ -175,6 +211,27 @@ class CaffeineCacheImpl implements CacheImpl {
     public void evict() {
         cache.cleanUp();
     }
+
+    /**
+     * Evicts the entry which would be evicted first when the cache is full,
+     * even if the cache is not full. The entry is passed to the eviction
+     * listener as well.
+     *
+     * @return false if there is no entry to evict
+     */
+    boolean evictColdest() {
+        Map<ContentKey, ContentPayload> coldest = cache.policy().eviction()
+                .map(eviction -> eviction.coldest(1))
+                .orElse(Collections.emptyMap());
+        for (Map.Entry<ContentKey, ContentPayload> entry : coldest.entrySet()) {
+            if (evictionListener != null) {
+                evictionListener.accept(entry.getKey(), entry.getValue());
+            }
+            cache.asMap().remove(entry.getKey(), entry.getValue());
+            return true;
+        }
+        return false;
+    }
         
     @Override
     public int clear() {
@@ -19,32 +19,51 @@
  */
 package org.carapaceproxy.server.cache;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.google.common.annotations.VisibleForTesting;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
 import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.DefaultLastHttpContent;
 import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpObject;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
 import static io.netty.handler.codec.http.HttpStatusClass.REDIRECTION;
+import static io.netty.handler.codec.http.HttpStatusClass.SERVER_ERROR;
 import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.IllegalReferenceCountException;
 import io.netty.util.ReferenceCountUtil;
 import io.prometheus.client.Counter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 import org.carapaceproxy.server.RequestHandler;
 import org.carapaceproxy.server.RuntimeServerConfiguration;
 import org.carapaceproxy.utils.PrometheusUtils;
@@ -57,26 +76,95 @@ public class ContentsCache {
     private static final Logger LOG = Logger.getLogger(ContentsCache.class.getName());
 
     private static final Counter NO_CACHE_REQUESTS_COUNTER = PrometheusUtils.createCounter("cache", "non_cachable_requests_total", "not cachable requests").register();
+    private static final Counter COALESCED_REQUESTS_COUNTER = PrometheusUtils.createCounter("cache", "coalesced_requests_total", "requests served by following a response already in flight").register();
+    private static final Counter REVALIDATED_REQUESTS_COUNTER = PrometheusUtils.createCounter("cache", "revalidated_requests_total", "requests served by stale contents confirmed by the backend").register();
+    private static final Counter NOT_ADMITTED_REQUESTS_COUNTER = PrometheusUtils.createCounter("cache", "not_admitted_requests_total", "cachable responses not stored because requested too rarely").register();
+    private static final Counter STALE_REQUESTS_COUNTER = PrometheusUtils.createCounter("cache", "stale_requests_total", "requests served by stale contents, while revalidating or on backend errors", "reason").register();
 
     private CacheImpl cache;
+    // optional second tier, for contents evicted from memory
+    private volatile DiskCache diskCache;
 
     private final CacheStats stats;
     private final ScheduledExecutorService threadPool;
     private CacheRuntimeConfiguration currentConfiguration;
+    // how long expired contents with validators are kept in order to be revalidated
+    private volatile long staleRetention;
+    // recent requests of each content, for the admission of new contents
+    private volatile FrequencySketch frequencies;
+    private volatile int admissionMinFrequency;
+    // responses being received from the backends, concurrent requests for the same contents follow them
+    private final ConcurrentHashMap<ContentKey, ContentReceiver> inflightReceivers = new ConcurrentHashMap<>();
+    // at most one background refresh for each content
+    private final ConcurrentHashMap<ContentKey, ContentReceiver> backgroundRefreshes = new ConcurrentHashMap<>();
+    // compressed variants being built, at most one at a time for each content
+    private final ConcurrentHashMap<ContentKey, Boolean> pendingCompressions = new ConcurrentHashMap<>();
+    // names of the headers in the Vary header of the last response received for each content
+    private final Cache<ContentKey, List<String>> varyHeaders = Caffeine.newBuilder()
+            .maximumSize(MAX_VARY_ENTRIES)
+            .build();
 
     static final long DEFAULT_TTL = 1000 * 60 * 60;
+    // the admission policy applies only when the cache is almost full
+    private static final double ADMISSION_THRESHOLD = 0.9;
+    // guess of the average size of a content, for the sizing of the frequency sketch
+    private static final int AVERAGE_CONTENT_SIZE = 8 * 1024;
+    private static final int MAX_VARY_ENTRIES = 100_000;
+    // variant of the keys of the contents compressed by the proxy
+    private static final String COMPRESSED_VARIANT = "content-encoding=gzip;";
 
     public ContentsCache(RuntimeServerConfiguration currentConfiguration) {
         this.stats = new CacheStats();
         this.threadPool = Executors.newSingleThreadScheduledExecutor();
 
-        this.currentConfiguration = new CacheRuntimeConfiguration(currentConfiguration.getCacheMaxSize(), currentConfiguration.getCacheMaxFileSize());
+        this.currentConfiguration = toCacheConfiguration(currentConfiguration);
+        this.staleRetention = currentConfiguration.getCacheStaleRetention();
+        this.admissionMinFrequency = currentConfiguration.getCacheAdmissionMinFrequency();
 
-        this.cache = new CaffeineCacheImpl(stats, currentConfiguration.getCacheMaxSize(), LOG);
+        this.cache = createCacheImpl(this.currentConfiguration);
+        this.diskCache = createDiskCache(this.currentConfiguration);
+    }
+
+    private static CacheRuntimeConfiguration toCacheConfiguration(RuntimeServerConfiguration configuration) {
+        return new CacheRuntimeConfiguration(configuration.getCacheMaxSize(), configuration.getCacheMaxFileSize(),
+                configuration.isCacheOffHeap(), configuration.getCacheSlabSize(),
+                configuration.getCacheDiskPath(), configuration.getCacheDiskMaxSize());
+    }
+
+    private CacheImpl createCacheImpl(CacheRuntimeConfiguration configuration) {
+        CacheImpl res;
+        if (configuration.isCacheOffHeap()) {
+            res = new SlabCacheImpl(stats, configuration.getCacheMaxSize(), configuration.getCacheSlabSize(), LOG);
+        } else {
+            res = new CaffeineCacheImpl(stats, configuration.getCacheMaxSize(), LOG);
+        }
+        res.setEvictionListener(this::spillToDisk);
+        this.frequencies = new FrequencySketch(configuration.getCacheMaxSize() / AVERAGE_CONTENT_SIZE);
+        return res;
+    }
+
+    private static DiskCache createDiskCache(CacheRuntimeConfiguration configuration) {
+        String path = configuration.getCacheDiskPath();
+        if (path == null || path.isEmpty()) {
+            return null;
+        }
+        return new DiskCache(Paths.get(path), configuration.getCacheDiskMaxSize());
+    }
+
+    private void spillToDisk(ContentKey key, ContentPayload payload) {
+        DiskCache _diskCache = diskCache;
+        // compressed variants are cheaper to build again than to store
+        if (_diskCache != null && !key.isCompressedVariant()) {
+            _diskCache.spill(key, payload);
+        }
     }
 
     public void start() {
         this.threadPool.scheduleWithFixedDelay(new Evictor(), 1, 1, TimeUnit.MINUTES);
+        DiskCache _diskCache = diskCache;
+        if (_diskCache != null) {
+            _diskCache.start();
+        }
     }
 
     public void close() {
@@ -87,6 +175,10 @@ public class ContentsCache {
             Thread.currentThread().interrupt();
         }
         this.cache.close();
+        DiskCache _diskCache = diskCache;
+        if (_diskCache != null) {
+            _diskCache.close();
+        }
     }
 
     private boolean isContentLengthCachable(long contentLength) {
@@ -116,17 +208,19 @@ public class ContentsCache {
 
     private boolean isCachable(HttpResponse response) {
         HttpHeaders headers = response.headers();
-        if (headers.contains(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE, false)
-                || headers.contains(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_STORE, false)
+        if (getCacheControlDirective(headers, HttpHeaderValues.NO_CACHE.toString()) != null
+                || getCacheControlDirective(headers, HttpHeaderValues.NO_STORE.toString()) != null
+                || getCacheControlDirective(headers, HttpHeaderValues.PRIVATE.toString()) != null
                 || headers.contains(HttpHeaderNames.PRAGMA, HttpHeaderValues.NO_CACHE, false)
                 || !isContentLengthCachable(headers)) {
-            // never cache Pragma: no-cache, Cache-Control: nostore/no-cache
+            // never cache Pragma: no-cache, Cache-Control: nostore/no-cache/private
             LOG.log(Level.FINER, "not cachable {0}", response);
             return false;
         }
         switch (response.status().codeClass()) {
             case SUCCESS:
-                return true;
+                // parts of the content are not the content
+                return response.status().code() != HttpResponseStatus.PARTIAL_CONTENT.code();
             case REDIRECTION:
             case INFORMATIONAL:
             case SERVER_ERROR:
@@ -185,17 +279,306 @@ public class ContentsCache {
         return true;
     }
 
+    /**
+     * Admission of new contents (see TinyLFU): while there is room every
+     * content is stored, when the cache is almost full only the contents
+     * requested often enough are, so that contents requested once do not
+     * evict the popular ones.
+     */
+    private boolean isAdmitted(ContentKey key) {
+        int minFrequency = admissionMinFrequency;
+        long maxSize = currentConfiguration.getCacheMaxSize();
+        if (minFrequency <= 1 || maxSize <= 0 || cache.getMemSize() < maxSize * ADMISSION_THRESHOLD) {
+            return true;
+        }
+        return frequencies.frequency(key.hashCode()) >= minFrequency;
+    }
+
+    /**
+     * Requests of byte ranges are served from the cached contents, but on a
+     * miss they are forwarded as is to the backend: fetching the whole content
+     * for a few bytes may be way more expensive. "bytes=0-" asks for the whole
+     * content, it is fetched without the Range header and cached.
+     */
+    private static boolean isPartialRequest(HttpRequest request) {
+        String range = request.headers().get(HttpHeaderNames.RANGE);
+        return range != null && !range.replace(" ", "").equalsIgnoreCase("bytes=0-");
+    }
+
     @VisibleForTesting
     void runEvictor() {
         new Evictor().run();
     }
 
-    public ContentReceiver startCachingResponse(HttpRequest request) {
-        if (!isCachable(request, true)) {
+    /**
+     * Starts receiving a response from the backend in order to store it in
+     * the cache
+     *
+     * @param request
+     * @param staleWhileRevalidate default stale-while-revalidate window, in
+     * seconds, for responses which do not declare it
+     * @param staleIfError default stale-if-error window, in seconds, for
+     * responses which do not declare it
+     * @return null if the request is not cachable
+     */
+    public ContentReceiver startCachingResponse(HttpRequest request, int staleWhileRevalidate, int staleIfError) {
+        if (!isCachable(request, true) || isPartialRequest(request)) {
+            return null;
+        }
+        ContentReceiver receiver = new ContentReceiver(buildKey(request), request, staleWhileRevalidate, staleIfError);
+        // contents held for revalidation have already been admitted
+        if (!holdStaleContent(receiver) && !isAdmitted(receiver.key)) {
+            NOT_ADMITTED_REQUESTS_COUNTER.inc();
+            return null;
+        }
+        // if another response is already in flight this one won't be followed,
+        // a revalidation is followed as well: the followers will get either the
+        // new content or the stored one, see ContentReceiver#shareStoredContent
+        inflightReceivers.putIfAbsent(receiver.key, receiver);
+        return receiver;
+
+    }
+
+    /**
+     * Starts refreshing a stale content which is being served to the client
+     * (stale-while-revalidate). Only one refresh at a time is issued for the
+     * same content.
+     *
+     * @param request
+     * @param staleWhileRevalidate
+     * @param staleIfError
+     * @return null if a refresh for the content is already running
+     * @see #serveStaleWhileRevalidate(org.carapaceproxy.server.RequestHandler)
+     */
+    public ContentReceiver startBackgroundRefresh(HttpRequest request, int staleWhileRevalidate, int staleIfError) {
+        ContentReceiver receiver = new ContentReceiver(buildKey(request), request, staleWhileRevalidate, staleIfError);
+        if (backgroundRefreshes.putIfAbsent(receiver.inflightKey, receiver) != null) {
+            return null;
+        }
+        receiver.background = true;
+        holdStaleContent(receiver);
+        return receiver;
+    }
+
+    /**
+     * Keeps a snapshot of the stale content, if any, in order to revalidate
+     * it or to serve it in case of errors of the backend
+     *
+     * @return true if the stale content has been taken
+     */
+    private boolean holdStaleContent(ContentReceiver receiver) {
+        ContentPayload stale = cache.getStale(receiver.key);
+        if (stale == null
+                || (!isRevalidable(stale) && stale.expiresTs + stale.staleIfError < System.currentTimeMillis())) {
+            return false;
+        }
+        ContentPayload snapshot = stale.retainedDuplicate();
+        if (snapshot == null) {
+            return false;
+        }
+        // https://tools.ietf.org/html/rfc7234#section-4.3.1
+        receiver.revalidating = snapshot;
+        return true;
+    }
+
+    /**
+     * Serves an expired content while it is being refreshed in background
+     * (https://tools.ietf.org/html/rfc5861#section-3)
+     *
+     * @param handler
+     * @return null if there is no content within its stale-while-revalidate
+     * window
+     */
+    public ContentSender serveStaleWhileRevalidate(RequestHandler handler) {
+        return serveStale(handler.getRequest(), false);
+    }
+
+    /**
+     * Serves an expired content as the backend is not available
+     * (https://tools.ietf.org/html/rfc5861#section-4)
+     *
+     * @param request
+     * @return null if there is no content within its stale-if-error window
+     */
+    public ContentSender serveStaleIfError(HttpRequest request) {
+        return serveStale(request, true);
+    }
+
+    private ContentSender serveStale(HttpRequest request, boolean error) {
+        if (!isCachable(request, false)) {
+            return null;
+        }
+        ContentKey key = buildKey(request);
+        ContentPayload stale = cache.getStale(key);
+        if (stale == null
+                || stale.expiresTs + (error ? stale.staleIfError : stale.staleWhileRevalidate) < System.currentTimeMillis()) {
+            return null;
+        }
+        ContentPayload snapshot = stale.retainedDuplicate();
+        if (snapshot == null) {
+            return null;
+        }
+        STALE_REQUESTS_COUNTER.labels(error ? "error" : "revalidate").inc();
+        return new ContentSender(key, snapshot, true);
+    }
+
+    /**
+     * Joins a response for the same contents which is currently being
+     * received from the backend, in order to not issue the same request
+     * again.
+     *
+     * @param request
+     * @return null if no response is in flight for the request
+     * @see ContentReceiver#nextChunk(int, java.lang.Runnable)
+     */
+    public ContentReceiver followInflightResponse(HttpRequest request) {
+        if (!isCachable(request, false) || isPartialRequest(request)) {
+            return null;
+        }
+        ContentReceiver receiver = inflightReceivers.get(buildKey(request));
+        if (receiver == null || !receiver.follow()) {
             return null;
         }
-        return new ContentReceiver(new ContentKey(request));
+        COALESCED_REQUESTS_COUNTER.inc();
+        return receiver;
+    }
+
+    private static boolean isRevalidable(ContentPayload payload) {
+        return payload.lastModified > 0
+                || (!payload.chunks.isEmpty() && ((HttpResponse) payload.chunks.get(0)).headers().contains(HttpHeaderNames.ETAG));
+    }
+
+    private ContentKey buildKey(HttpRequest request) {
+        ContentKey key = new ContentKey(request);
+        List<String> vary = varyHeaders.getIfPresent(key);
+        return vary == null ? key : key.withVariant(request, vary);
+    }
+
+    /**
+     * Parses the Vary header of a response
+     *
+     * @param headers
+     * @return the lowercase names of the headers, sorted, or null in case of
+     * "Vary: *"
+     */
+    static List<String> parseVary(HttpHeaders headers) {
+        List<String> values = headers.getAll(HttpHeaderNames.VARY);
+        if (values.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> res = new ArrayList<>();
+        for (String value : values) {
+            for (String name : value.split(",")) {
+                name = name.trim().toLowerCase();
+                if (name.equals("*")) {
+                    return null;
+                }
+                if (!name.isEmpty() && !res.contains(name)) {
+                    res.add(name);
+                }
+            }
+        }
+        Collections.sort(res);
+        return res;
+    }
+
+    /**
+     * Looks for a directive in the Cache-Control header
+     *
+     * @param headers
+     * @param directive
+     * @return null if the directive is not present, the value of the directive
+     * or an empty string if the directive has no value
+     */
+    static String getCacheControlDirective(HttpHeaders headers, String directive) {
+        for (String value : headers.getAll(HttpHeaderNames.CACHE_CONTROL)) {
+            for (String token : value.split(",")) {
+                token = token.trim();
+                int eq = token.indexOf('=');
+                String name = eq < 0 ? token : token.substring(0, eq).trim();
+                if (name.equalsIgnoreCase(directive)) {
+                    if (eq < 0) {
+                        return "";
+                    }
+                    String directiveValue = token.substring(eq + 1).trim();
+                    if (directiveValue.length() >= 2 && directiveValue.startsWith("\"") && directiveValue.endsWith("\"")) {
+                        directiveValue = directiveValue.substring(1, directiveValue.length() - 1);
+                    }
+                    return directiveValue;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads a delta-seconds directive of the Cache-Control header
+     *
+     * @return the value in seconds, or -1 if it is missing or not valid
+     */
+    static long getCacheControlSeconds(HttpHeaders headers, String directive) {
+        String value = getCacheControlDirective(headers, directive);
+        if (value == null || value.isEmpty()) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Computes the current age of a response, as defined by RFC 7234
+     * (section 4.2.3), the response has just been received
+     *
+     * @param headers
+     * @param now
+     * @return age in milliseconds
+     */
+    static long computeAge(HttpHeaders headers, long now) {
+        long date = headers.getTimeMillis(HttpHeaderNames.DATE, -1);
+        long apparentAge = date > 0 ? Math.max(0, now - date) : 0;
+        long ageValue = 0;
+        String age = headers.get(HttpHeaderNames.AGE);
+        if (age != null) {
+            try {
+                ageValue = Math.max(0, Long.parseLong(age.trim())) * 1000;
+            } catch (NumberFormatException ex) {
+                // ignore
+            }
+        }
+        return Math.max(apparentAge, ageValue);
+    }
 
+    /**
+     * Computes when a response will become stale, as defined by RFC 7234 for
+     * shared caches: s-maxage takes precedence over max-age, which takes
+     * precedence over Expires, the current age of the response is taken into
+     * account.
+     *
+     * @param headers
+     * @param now
+     * @return the expiration timestamp or -1 if the response has no explicit
+     * freshness lifetime
+     */
+    static long computeExpiresTs(HttpHeaders headers, long now) {
+        long lifetime;
+        long sMaxAge = getCacheControlSeconds(headers, "s-maxage");
+        long maxAge = getCacheControlSeconds(headers, "max-age");
+        if (sMaxAge >= 0) {
+            lifetime = sMaxAge * 1000;
+        } else if (maxAge >= 0) {
+            lifetime = maxAge * 1000;
+        } else {
+            long expires = headers.getTimeMillis(HttpHeaderNames.EXPIRES, -1);
+            if (expires == -1) {
+                return -1;
+            }
+            long date = headers.getTimeMillis(HttpHeaderNames.DATE, -1);
+            lifetime = expires - (date > 0 ? date : now);
+        }
+        return now + lifetime - computeAge(headers, now);
     }
 
     public final long computeDefaultExpireDate() {
@@ -204,41 +587,96 @@ public class ContentsCache {
 
     public int clear() {
         LOG.info("clearing cache");
-        return this.cache.clear();
+        int res = this.cache.clear();
+        varyHeaders.invalidateAll();
+        DiskCache _diskCache = diskCache;
+        if (_diskCache != null) {
+            res += _diskCache.clear();
+        }
+        return res;
     }
 
     public List<Map<String, Object>> inspectCache() {
         List<Map<String, Object>> res = new ArrayList<>();
+        for (CacheEntryInfo entry : inspectCache(0, 0)) {
+            res.add(entry.toMap());
+        }
+        return res;
+    }
+
+    /**
+     * Lists a page of the contents in memory. The order is the one of the
+     * underlying cache, it is stable as long as the contents do not change.
+     *
+     * @param offset number of contents to skip
+     * @param limit maximum number of contents to return, 0 means no limit
+     * @return the contents
+     */
+    public List<CacheEntryInfo> inspectCache(int offset, int limit) {
+        List<CacheEntryInfo> res = new ArrayList<>();
+        int[] position = {0};
+        this.cache.inspectCache((key, payload) -> {
+            int current = position[0]++;
+            if (current >= offset && (limit <= 0 || res.size() < limit)) {
+                res.add(new CacheEntryInfo(key, payload));
+            }
+        });
+        return res;
+    }
+
+    /**
+     * @param n maximum number of contents to return
+     * @param order for instance {@link CacheEntryInfo#BY_HITS}
+     * @return the contents in memory with the greatest values, in descending
+     * order
+     */
+    public List<CacheEntryInfo> topEntries(int n, Comparator<CacheEntryInfo> order) {
+        if (n <= 0) {
+            return Collections.emptyList();
+        }
+        PriorityQueue<CacheEntryInfo> top = new PriorityQueue<>(n, order);
         this.cache.inspectCache((key, payload) -> {
-            Map<String, Object> entry = new HashMap<>();
-            entry.put("method", key.method);
-            entry.put("host", key.host);
-            entry.put("uri", key.uri);
-            entry.put("cacheKey", key.composeKey());
-            entry.put("heapSize", payload.heapSize);
-            entry.put("directSize", payload.directSize);
-            entry.put("totalSize", key.getMemUsage() + payload.getMemUsage());
-            entry.put("creationTs", payload.creationTs);
-            entry.put("expiresTs", payload.expiresTs);
-            entry.put("hits", payload.hits);
-            res.add(entry);
+            CacheEntryInfo entry = new CacheEntryInfo(key, payload);
+            if (top.size() < n) {
+                top.add(entry);
+            } else if (order.compare(entry, top.peek()) > 0) {
+                top.poll();
+                top.add(entry);
+            }
         });
+        List<CacheEntryInfo> res = new ArrayList<>(top);
+        res.sort(order.reversed());
         return res;
     }
 
     public void reloadConfiguration(RuntimeServerConfiguration newConfiguration) {
-        CacheRuntimeConfiguration newCacheConfiguration = new CacheRuntimeConfiguration(
-                newConfiguration.getCacheMaxSize(), newConfiguration.getCacheMaxFileSize());
+        CacheRuntimeConfiguration newCacheConfiguration = toCacheConfiguration(newConfiguration);
+        this.staleRetention = newConfiguration.getCacheStaleRetention();
+        this.admissionMinFrequency = newConfiguration.getCacheAdmissionMinFrequency();
         if (newCacheConfiguration.equals(currentConfiguration)) {
             LOG.info("Cache configuration not changed during hot reload");
             return;
         }
 
+        if (!newCacheConfiguration.sameDiskConfiguration(currentConfiguration)) {
+            LOG.info("Disk cache configuration changed during hot reload");
+            DiskCache oldDiskCache = this.diskCache;
+            this.diskCache = createDiskCache(newCacheConfiguration);
+            if (oldDiskCache != null) {
+                oldDiskCache.close();
+            }
+            if (this.diskCache != null) {
+                this.diskCache.start();
+            }
+        }
+
         LOG.info("Cache configuration changed during hot reload, flushing");
         // need to clear
         CacheImpl oldCache = this.cache;
-        this.cache = new CaffeineCacheImpl(stats, newCacheConfiguration.getCacheMaxSize(), LOG);
+        this.cache = createCacheImpl(newCacheConfiguration);
         currentConfiguration = newCacheConfiguration;
+        // contents in memory survive on the disk tier, if any
+        oldCache.inspectCache(this::spillToDisk);
         oldCache.clear();
     }
 
@@ -246,10 +684,26 @@ public class ContentsCache {
 
         private final ContentKey key;
         private final ContentPayload cached;
+        // the payload is not owned by the cache
+        private final boolean owned;
 
         private ContentSender(ContentKey key, ContentPayload cached) {
+            this(key, cached, false);
+        }
+
+        private ContentSender(ContentKey key, ContentPayload cached, boolean owned) {
             this.key = key;
             this.cached = cached;
+            this.owned = owned;
+        }
+
+        /**
+         * To be called once the content has been sent
+         */
+        public void release() {
+            if (owned) {
+                cached.clear();
+            }
         }
 
         public ContentKey getKey() {
@@ -266,24 +720,94 @@ public class ContentsCache {
         if (!isCachable(handler.getRequest(), false)) {
             return null;
         }
-        ContentKey key = new ContentKey(handler.getRequest());
+        ContentKey key = buildKey(handler.getRequest());
+        frequencies.increment(key.hashCode());
         ContentPayload cached = cache.get(key);
         if (cached == null) {
-            return null;
+            DiskCache _diskCache = diskCache;
+            if (_diskCache != null) {
+                cached = _diskCache.get(key);
+            }
+            if (cached == null) {
+                return null;
+            }
         }
         return new ContentSender(key, cached);
 
     }
 
+    /**
+     * Looks for the gzip encoded variant of a cached content. Variants are
+     * stored as distinct entries, so they are accounted in the size of the
+     * cache and evicted like any other content. A missing variant is built in
+     * background, meanwhile the content has to be compressed while being
+     * sent.
+     *
+     * @param sender the cached content
+     * @return null if the variant is not available yet
+     */
+    public ContentPayload getCompressedVariant(ContentSender sender) {
+        ContentPayload content = sender.getCached();
+        ContentKey variantKey = sender.getKey().compressedVariant();
+        ContentPayload variant = cache.getStale(variantKey);
+        // variants of replaced contents are stale
+        if (variant != null && variant.creationTs == content.creationTs) {
+            variant.hit();
+            return variant;
+        }
+        if (pendingCompressions.putIfAbsent(variantKey, Boolean.TRUE) != null) {
+            return null;
+        }
+        ContentPayload source = content.retainedDuplicate();
+        if (source == null) {
+            pendingCompressions.remove(variantKey);
+            return null;
+        }
+        try {
+            threadPool.execute(() -> {
+                try {
+                    ContentPayload compressed = source.compress();
+                    if (compressed != null && !cache.put(variantKey, compressed)) {
+                        compressed.clear();
+                    }
+                } finally {
+                    source.clear();
+                    pendingCompressions.remove(variantKey);
+                }
+            });
+        } catch (RejectedExecutionException closed) {
+            source.clear();
+            pendingCompressions.remove(variantKey);
+        }
+        return null;
+    }
+
     public static class ContentPayload {
 
+        private static final AtomicIntegerFieldUpdater<ContentPayload> HITS_UPDATER =
+                AtomicIntegerFieldUpdater.newUpdater(ContentPayload.class, "hits");
+
         final List<HttpObject> chunks = new ArrayList<>();
-        final long creationTs = System.currentTimeMillis();
+        final long creationTs;
         long lastModified;
         long expiresTs = -1;
+        // expired contents may be kept for a while in order to be revalidated
+        long retainUntilTs;
+        // https://tools.ietf.org/html/rfc5861, in milliseconds
+        long staleWhileRevalidate;
+        long staleIfError;
         long heapSize;
         long directSize;
-        int hits;
+        // counted by concurrent readers, see hit()
+        private volatile int hits;
+
+        public ContentPayload() {
+            this(System.currentTimeMillis());
+        }
+
+        ContentPayload(long creationTs) {
+            this.creationTs = creationTs;
+        }
 
         @Override
         public String toString() {
@@ -298,6 +822,10 @@ public class ContentsCache {
             return expiresTs;
         }
 
+        public long getRetainUntilTs() {
+            return Math.max(expiresTs, retainUntilTs);
+        }
+
         public long getCreationTs() {
             return creationTs;
         }
@@ -314,6 +842,10 @@ public class ContentsCache {
             return hits;
         }
 
+        void hit() {
+            HITS_UPDATER.incrementAndGet(this);
+        }
+
         public long getMemUsage() {
             // Just an estimate
             return chunks.size() * 8
@@ -327,14 +859,109 @@ public class ContentsCache {
             return chunks;
         }
 
-        void clear() {
+        /**
+         * Duplicates the payload, retaining the buffers
+         *
+         * @return the duplicate, or null if the payload has already been
+         * released
+         */
+        ContentPayload retainedDuplicate() {
+            ContentPayload res = new ContentPayload(creationTs);
+            res.lastModified = lastModified;
+            res.expiresTs = expiresTs;
+            res.retainUntilTs = retainUntilTs;
+            res.staleWhileRevalidate = staleWhileRevalidate;
+            res.staleIfError = staleIfError;
+            try {
+                for (HttpObject o : chunks) {
+                    res.addChunk(duplicateHttpObject(o));
+                }
+            } catch (IllegalReferenceCountException released) {
+                res.clear();
+                return null;
+            }
+            return res;
+        }
+
+        /**
+         * Releases the buffers
+         */
+        public void clear() {
             for (HttpObject o : chunks) {
                 ReferenceCountUtil.release(o);
             }
             chunks.clear();
         }
 
-        private void addChunk(HttpObject msg) {
+        /**
+         * Builds the response to a request of byte ranges of the content, the
+         * response has to be released once sent.
+         *
+         * @param range value of the Range header of the request
+         * @param ifRange value of the If-Range header of the request, may be
+         * null
+         * @return the partial content, or null if the whole content has to be
+         * sent
+         */
+        public ContentPayload getRanges(String range, String ifRange) {
+            return ByteRanges.slice(this, range, ifRange);
+        }
+
+        private static boolean varyAcceptEncoding(HttpHeaders headers) {
+            for (String vary : headers.getAll(HttpHeaderNames.VARY)) {
+                for (String name : vary.split(",")) {
+                    if (name.trim().equalsIgnoreCase(HttpHeaderNames.ACCEPT_ENCODING.toString())) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Builds the gzip encoded variant of the content, this is expensive
+         * and must not be called by the event loops
+         *
+         * @return null if the content cannot be compressed
+         */
+        private ContentPayload compress() {
+            if (chunks.isEmpty() || !(chunks.get(0) instanceof HttpResponse)) {
+                return null;
+            }
+            HttpResponse response = (HttpResponse) chunks.get(0);
+            ByteBuf buffer = PooledByteBufAllocator.DEFAULT.heapBuffer();
+            try (OutputStream out = new GZIPOutputStream(new ByteBufOutputStream(buffer))) {
+                for (HttpObject o : chunks) {
+                    if (o instanceof HttpContent) {
+                        ByteBuf content = ((HttpContent) o).content();
+                        content.getBytes(content.readerIndex(), out, content.readableBytes());
+                    }
+                }
+            } catch (IOException | IllegalReferenceCountException err) {
+                LOG.log(Level.FINE, "cannot compress " + this, err);
+                buffer.release();
+                return null;
+            }
+            HttpHeaders headers = new DefaultHttpHeaders();
+            headers.add(response.headers());
+            headers.remove(HttpHeaderNames.TRANSFER_ENCODING);
+            headers.set(HttpHeaderNames.CONTENT_ENCODING, HttpHeaderValues.GZIP);
+            headers.set(HttpHeaderNames.CONTENT_LENGTH, buffer.readableBytes());
+            if (!varyAcceptEncoding(headers)) {
+                headers.add(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+            }
+            ContentPayload res = new ContentPayload(creationTs);
+            res.lastModified = lastModified;
+            res.expiresTs = expiresTs;
+            res.retainUntilTs = retainUntilTs;
+            res.staleWhileRevalidate = staleWhileRevalidate;
+            res.staleIfError = staleIfError;
+            res.addChunk(new DefaultHttpResponse(response.protocolVersion(), response.status(), headers));
+            res.addChunk(new DefaultLastHttpContent(buffer));
+            return res;
+        }
+
+        void addChunk(HttpObject msg) {
             chunks.add(msg);
             heapSize += getHttpObjectHeapSize(msg);
             directSize += getHttpObjectDirectSize(msg);
@@ -409,24 +1036,63 @@ public class ContentsCache {
         final String method;
         final String host;
         final String uri;
+        // values of the request headers listed in the Vary header of the response
+        final String variant;
 
         ContentKey(String method, String host, String uri) {
+            this(method, host, uri, "");
+        }
+
+        ContentKey(String method, String host, String uri, String variant) {
             this.method = method;
             this.host = host;
             this.uri = uri;
+            this.variant = variant;
         }
 
         public ContentKey(HttpRequest request) {
             this.method = request.method().name();
             this.host = request.headers().getAsString(HttpHeaderNames.HOST);
             this.uri = request.uri();
+            this.variant = "";
+        }
+
+        /**
+         * Builds the key of the variant of the content selected by the given
+         * request headers
+         *
+         * @param request
+         * @param varyHeaders lowercase names of the headers, sorted
+         * @return
+         */
+        ContentKey withVariant(HttpRequest request, List<String> varyHeaders) {
+            if (varyHeaders.isEmpty()) {
+                return variant.isEmpty() ? this : new ContentKey(method, host, uri, "");
+            }
+            StringBuilder res = new StringBuilder();
+            for (String name : varyHeaders) {
+                res.append(name).append('=').append(String.join(",", request.headers().getAll(name))).append(';');
+            }
+            return new ContentKey(method, host, uri, res.toString());
+        }
+
+        /**
+         * @return the key of the gzip encoded variant of this content
+         */
+        ContentKey compressedVariant() {
+            return new ContentKey(method, host, uri, variant + COMPRESSED_VARIANT);
+        }
+
+        boolean isCompressedVariant() {
+            return variant.endsWith(COMPRESSED_VARIANT);
         }
 
         public long getMemUsage() {
             // Just an estimate
             return sizeof(method)
                     + sizeof(host)
-                    + sizeof(uri);
+                    + sizeof(uri)
+                    + sizeof(variant);
         }
 
         public String getMethod() {
@@ -441,13 +1107,20 @@ public class ContentsCache {
             return uri;
         }
 
+        public String getVariant() {
+            return variant;
+        }
+
         public String composeKey() {
-            return method + " | " + host + " | " + uri;
+            if (variant.isEmpty()) {
+                return method + " | " + host + " | " + uri;
+            }
+            return method + " | " + host + " | " + uri + " | " + variant;
         }
 
         @Override
         public String toString() {
-            return "ContentKey{" + "method=" + method + ", host=" + host + ", uri=" + uri + '}';
+            return "ContentKey{" + "method=" + method + ", host=" + host + ", uri=" + uri + ", variant=" + variant + '}';
         }
 
         @Override
@@ -456,6 +1129,7 @@ public class ContentsCache {
             hash = 83 * hash + Objects.hashCode(this.method);
             hash = 83 * hash + Objects.hashCode(this.host);
             hash = 83 * hash + Objects.hashCode(this.uri);
+            hash = 83 * hash + Objects.hashCode(this.variant);
             return hash;
         }
 
@@ -480,6 +1154,9 @@ public class ContentsCache {
             if (!Objects.equals(this.uri, other.uri)) {
                 return false;
             }
+            if (!Objects.equals(this.variant, other.variant)) {
+                return false;
+            }
             return true;
         }
     }
@@ -506,56 +1183,425 @@ public class ContentsCache {
         // Now we have the actual content size
         if (!isContentLengthCachable(content.heapSize + content.directSize)) {
             cache.remove(receiver.key); // just for make sure
-            return;
+            receiver.discard();
+        } else {
+            content.retainUntilTs = computeRetainUntilTs(content);
+            if (!cache.put(receiver.key, content)) {
+                // the cache stored its own copy of the content (or nothing at all)
+                receiver.discard();
+            }
+            DiskCache _diskCache = diskCache;
+            if (_diskCache != null) {
+                // stale copy
+                _diskCache.remove(receiver.key);
+            }
+        }
+        // new requests will find the content in cache
+        inflightReceivers.remove(receiver.inflightKey, receiver);
+        backgroundRefreshes.remove(receiver.inflightKey, receiver);
+    }
+
+    private long computeRetainUntilTs(ContentPayload content) {
+        long retention = Math.max(content.staleWhileRevalidate, content.staleIfError);
+        if (isRevalidable(content)) {
+            retention = Math.max(retention, staleRetention);
         }
-        cache.put(receiver.key, content);
+        return content.expiresTs + retention;
+    }
+
+    private static long getStaleWindow(HttpHeaders headers, String directive, long defaultValue) {
+        long seconds = getCacheControlSeconds(headers, directive);
+        return seconds >= 0 ? seconds * 1000 : defaultValue;
     }
 
     public class ContentReceiver {
 
-        private final ContentKey key;
+        // key of the content as guessed from the request, the response may select another variant
+        private final ContentKey inflightKey;
+        private final HttpRequest request;
+        private ContentKey key;
         private final ContentPayload content;
         private boolean notReallyCachable = false;
-
-        public ContentReceiver(ContentKey key) {
+        // state shared with the followers, guarded by this
+        private boolean completed;
+        private boolean aborted;
+        private boolean discarded;
+        private boolean notShared;
+        // stale content being revalidated, retained by the receiver
+        private ContentPayload revalidating;
+        // the response of the backend is replaced by the stored content (304 Not Modified or stale-if-error)
+        private boolean replaced;
+        private ContentPayload revalidated;
+        // defaults for the contents, in milliseconds
+        private final long defaultStaleWhileRevalidate;
+        private final long defaultStaleIfError;
+        private boolean background;
+        private int followers;
+        private List<Runnable> waiters;
+
+        public ContentReceiver(ContentKey key, HttpRequest request, int staleWhileRevalidate, int staleIfError) {
+            this.inflightKey = key;
             this.key = key;
+            this.request = request;
             this.content = new ContentPayload();
+            this.defaultStaleWhileRevalidate = Math.max(0, staleWhileRevalidate) * 1000L;
+            this.defaultStaleIfError = Math.max(0, staleIfError) * 1000L;
+        }
+
+        /**
+         * Adds the validators of the stale content, if any, to the request for
+         * the backend
+         *
+         * @param request
+         */
+        public void addRevalidationHeaders(HttpRequest request) {
+            if (revalidating == null) {
+                return;
+            }
+            String etag = ((HttpResponse) revalidating.chunks.get(0)).headers().get(HttpHeaderNames.ETAG);
+            if (etag != null) {
+                request.headers().set(HttpHeaderNames.IF_NONE_MATCH, etag);
+            }
+            if (revalidating.lastModified > 0) {
+                request.headers().set(HttpHeaderNames.IF_MODIFIED_SINCE, new java.util.Date(revalidating.lastModified));
+            }
+        }
+
+        /**
+         * @return true if the stale content has been confirmed by the backend
+         * or if it is going to be served in place of an error, the rest of the
+         * response of the backend has to be discarded
+         */
+        public boolean isReplacedByStoredContent() {
+            return replaced;
+        }
+
+        /**
+         * Takes the stored content, which has to be sent to the client in
+         * place of the response of the backend
+         *
+         * @return
+         * @see #isReplacedByStoredContent()
+         */
+        public ContentSender takeStoredContent() {
+            ContentSender res = new ContentSender(key, revalidated, true);
+            revalidated = null;
+            return res;
+        }
+
+        /**
+         * Takes the stale content in order to serve it in place of a failed
+         * response, and aborts the receiver
+         *
+         * @return null if there is no content within its stale-if-error
+         * window
+         */
+        public ContentSender takeStaleIfError() {
+            ContentPayload stale = revalidating;
+            if (stale == null || stale.expiresTs + stale.staleIfError < System.currentTimeMillis()) {
+                return null;
+            }
+            revalidating = null;
+            abort();
+            STALE_REQUESTS_COUNTER.labels("error").inc();
+            return new ContentSender(key, stale, true);
+        }
+
+        private void releaseRevalidation() {
+            if (revalidating != null) {
+                revalidating.clear();
+                revalidating = null;
+            }
+            if (revalidated != null) {
+                revalidated.clear();
+                revalidated = null;
+            }
+        }
+
+        private void refresh(HttpResponse notModifiedResponse) {
+            ContentPayload stale = revalidating;
+            revalidating = null;
+            replaced = true;
+            backgroundRefreshes.remove(inflightKey, this);
+            REVALIDATED_REQUESTS_COUNTER.inc();
+
+            // https://tools.ietf.org/html/rfc7234#section-4.3.4
+            HttpResponse storedResponse = (HttpResponse) stale.chunks.get(0);
+            HttpHeaders headers = storedResponse.headers().copy();
+            HttpHeaders newHeaders = notModifiedResponse.headers();
+            for (String name : newHeaders.names()) {
+                if (!HttpHeaderNames.CONTENT_LENGTH.contentEqualsIgnoreCase(name)
+                        && !HttpHeaderNames.TRANSFER_ENCODING.contentEqualsIgnoreCase(name)
+                        && !HttpHeaderNames.CONNECTION.contentEqualsIgnoreCase(name)
+                        && !HttpHeaderNames.KEEP_ALIVE.contentEqualsIgnoreCase(name)) {
+                    headers.set(name, newHeaders.getAll(name));
+                }
+            }
+            long now = System.currentTimeMillis();
+            long expiresTs = computeExpiresTs(headers, now);
+            if (expiresTs == -1) {
+                expiresTs = computeDefaultExpireDate();
+            }
+            headers.set(HttpHeaderNames.AGE, computeAge(headers, now) / 1000);
+            HttpResponse refreshedResponse;
+            if (storedResponse instanceof FullHttpResponse) {
+                // the content of the stale response is retained by the snapshot
+                refreshedResponse = ((FullHttpResponse) storedResponse).replace(((FullHttpResponse) storedResponse).content());
+                refreshedResponse.headers().set(headers);
+            } else {
+                refreshedResponse = new DefaultHttpResponse(storedResponse.protocolVersion(), storedResponse.status(), headers);
+            }
+            ContentPayload refreshed = new ContentPayload(now);
+            refreshed.lastModified = headers.getTimeMillis(HttpHeaderNames.LAST_MODIFIED, stale.lastModified);
+            refreshed.expiresTs = expiresTs;
+            refreshed.chunks.add(refreshedResponse);
+            for (int i = 1; i < stale.chunks.size(); i++) {
+                refreshed.chunks.add(stale.chunks.get(i));
+            }
+            refreshed.heapSize = stale.heapSize;
+            refreshed.directSize = stale.directSize;
+            refreshed.staleWhileRevalidate = getStaleWindow(headers, "stale-while-revalidate", defaultStaleWhileRevalidate);
+            refreshed.staleIfError = getStaleWindow(headers, "stale-if-error", defaultStaleIfError);
+            revalidated = refreshed;
+            shareStoredContent(refreshed);
+
+            if (expiresTs > now && isCachable(refreshedResponse)) {
+                ContentPayload toCache = refreshed.retainedDuplicate();
+                if (toCache != null) {
+                    toCache.retainUntilTs = computeRetainUntilTs(toCache);
+                    if (!cache.put(key, toCache)) {
+                        toCache.clear();
+                    }
+                }
+            }
+        }
+
+        /**
+         * The stored content replaces the response of the backend, the
+         * followers of this receiver get a copy of it
+         */
+        private void shareStoredContent(ContentPayload stored) {
+            List<Runnable> toWakeUp;
+            synchronized (this) {
+                if (aborted) {
+                    return;
+                }
+                content.lastModified = stored.lastModified;
+                content.expiresTs = stored.expiresTs;
+                content.staleWhileRevalidate = stored.staleWhileRevalidate;
+                content.staleIfError = stored.staleIfError;
+                for (HttpObject chunk : stored.chunks) {
+                    content.addChunk(duplicateHttpObject(chunk));
+                }
+                completed = true;
+                // the copy is not stored in the cache, it is released by the last follower
+                discard();
+                toWakeUp = takeWaiters();
+            }
+            inflightReceivers.remove(inflightKey, this);
+            toWakeUp.forEach(Runnable::run);
         }
 
         public void abort() {
-            LOG.log(Level.FINEST, "Aborting cache receiver for {0}", key);
-            content.clear();
+            releaseRevalidation();
+            List<Runnable> toWakeUp;
+            synchronized (this) {
+                if (completed) {
+                    // content is owned by the cache now
+                    return;
+                }
+                LOG.log(Level.FINEST, "Aborting cache receiver for {0}", key);
+                aborted = true;
+                content.clear();
+                toWakeUp = takeWaiters();
+            }
+            inflightReceivers.remove(inflightKey, this);
+            backgroundRefreshes.remove(inflightKey, this);
+            toWakeUp.forEach(Runnable::run);
+        }
+
+        public ContentPayload getContent() {
+            return content;
+        }
+
+        private synchronized boolean follow() {
+            if (aborted || discarded || notShared) {
+                return false;
+            }
+            followers++;
+            return true;
+        }
+
+        /**
+         * To be called by a follower which is not going to read any other
+         * chunk
+         */
+        public synchronized void unfollow() {
+            followers--;
+            if (followers == 0 && discarded) {
+                content.clear();
+            }
+        }
+
+        /**
+         * Completed content which won't be stored in cache, it will be
+         * released as soon as all the followers are done with it
+         */
+        private synchronized void discard() {
+            discarded = true;
+            if (followers == 0) {
+                content.clear();
+            }
+        }
+
+        /**
+         * Returns a chunk of the response. Content chunks are retained
+         * duplicates, the caller has to release them, while the HttpResponse
+         * is returned as-is and must not be modified.
+         *
+         * @param i
+         * @param wakeUp called (from any thread) when the chunk becomes
+         * available, if it has not been received yet
+         * @return the chunk or null if it has not been received yet
+         * @throws CancellationException if the response has been aborted or
+         * if it is a variant which may not match the request of the follower
+         */
+        public synchronized HttpObject nextChunk(int i, Runnable wakeUp) throws CancellationException {
+            if (notShared) {
+                throw new CancellationException("response for " + inflightKey + " selected variant " + key);
+            }
+            List<HttpObject> chunks = content.chunks;
+            if (i < chunks.size()) {
+                HttpObject chunk = chunks.get(i);
+                // headers are never modified once stored
+                return chunk instanceof HttpResponse ? chunk : duplicateHttpObject(chunk);
+            }
+            if (aborted || completed) {
+                // completed contents may have already been evicted from the cache
+                throw new CancellationException("response for " + key + " is no more available");
+            }
+            if (waiters == null) {
+                waiters = new ArrayList<>();
+            }
+            waiters.add(wakeUp);
+            return null;
+        }
+
+        private void selectVariant(List<String> vary) {
+            ContentKey baseKey = new ContentKey(key.method, key.host, key.uri);
+            if (vary.isEmpty()) {
+                varyHeaders.invalidate(baseKey);
+            } else {
+                varyHeaders.put(baseKey, vary);
+            }
+            ContentKey variantKey = baseKey.withVariant(request, vary);
+            if (variantKey.equals(key)) {
+                return;
+            }
+            LOG.log(Level.FINEST, "{0} response selected variant {1}", new Object[]{key, variantKey});
+            key = variantKey;
+            // followers have been matched using another set of headers
+            List<Runnable> toWakeUp;
+            synchronized (this) {
+                notShared = true;
+                toWakeUp = takeWaiters();
+            }
+            inflightReceivers.remove(inflightKey, this);
+            toWakeUp.forEach(Runnable::run);
+        }
+
+        private List<Runnable> takeWaiters() {
+            if (waiters == null) {
+                return Collections.emptyList();
+            }
+            List<Runnable> res = waiters;
+            waiters = null;
+            return res;
         }
 
         public void receivedFromRemote(HttpObject msg) {
+            if (replaced) {
+                // rest of the replaced response
+                return;
+            }
+            if (revalidating != null) {
+                if (msg instanceof HttpResponse && ((HttpResponse) msg).status().code() == HttpResponseStatus.NOT_MODIFIED.code()) {
+                    refresh((HttpResponse) msg);
+                    return;
+                }
+                if (msg instanceof HttpResponse && ((HttpResponse) msg).status().codeClass() == SERVER_ERROR
+                        && revalidating.expiresTs + revalidating.staleIfError >= System.currentTimeMillis()) {
+                    // https://tools.ietf.org/html/rfc5861#section-4
+                    STALE_REQUESTS_COUNTER.labels("error").inc();
+                    revalidated = revalidating;
+                    revalidating = null;
+                    replaced = true;
+                    backgroundRefreshes.remove(inflightKey, this);
+                    shareStoredContent(revalidated);
+                    return;
+                }
+                // a new content
+                releaseRevalidation();
+            }
             if (msg instanceof HttpResponse) {
                 HttpResponse response = (HttpResponse) msg;
                 if (!isCachable(response)) {
                     notReallyCachable = true;
                 }
-                long expiresTs = response.headers().getTimeMillis(HttpHeaderNames.EXPIRES, -1);
+                long now = System.currentTimeMillis();
+                long expiresTs = computeExpiresTs(response.headers(), now);
                 if (expiresTs == -1) {
                     expiresTs = computeDefaultExpireDate();
-                } else if (expiresTs < System.currentTimeMillis()) {
+                } else if (expiresTs <= now) {
                     // already expired ?
                     notReallyCachable = true;
                 }
                 content.expiresTs = expiresTs;
                 long lastModified = response.headers().getTimeMillis(HttpHeaderNames.LAST_MODIFIED, -1);
                 content.lastModified = lastModified;
+                content.staleWhileRevalidate = getStaleWindow(response.headers(), "stale-while-revalidate", defaultStaleWhileRevalidate);
+                content.staleIfError = getStaleWindow(response.headers(), "stale-if-error", defaultStaleIfError);
+                List<String> vary = parseVary(response.headers());
+                if (vary == null) {
+                    notReallyCachable = true;
+                } else if (!notReallyCachable) {
+                    selectVariant(vary);
+                }
             }
             if (notReallyCachable) {
                 LOG.log(Level.FINEST, "{0} rejecting non-cachable response", key);
                 abort();
                 return;
             }
-            msg = cloneHttpObject(msg);
+            if (msg instanceof HttpResponse && !(msg instanceof FullHttpResponse)) {
+                // the original headers will be modified while being sent to the client
+                HttpResponse response = (HttpResponse) msg;
+                msg = new DefaultHttpResponse(response.protocolVersion(), response.status(), response.headers().copy());
+            } else {
+                msg = duplicateHttpObject(msg);
+            }
+            if (msg instanceof HttpResponse) {
+                // age at the time of creation of the payload, the age of cached contents is computed from it
+                HttpHeaders headers = ((HttpResponse) msg).headers();
+                headers.set(HttpHeaderNames.AGE, computeAge(headers, content.creationTs) / 1000);
+            }
 //            LOG.info(key + " accepting chunk " + msg);
 
-            content.addChunk(msg);
-            if (msg instanceof LastHttpContent) {
+            boolean last = msg instanceof LastHttpContent;
+            List<Runnable> toWakeUp;
+            synchronized (this) {
+                if (aborted) {
+                    ReferenceCountUtil.release(msg);
+                    return;
+                }
+                content.addChunk(msg);
+                completed = last;
+                toWakeUp = takeWaiters();
+            }
+            if (last) {
                 cacheContent(this);
             }
+            toWakeUp.forEach(Runnable::run);
         }
     }
 
@@ -597,21 +1643,26 @@ public class ContentsCache {
         }
     }
 
-    public static HttpObject cloneHttpObject(HttpObject msg) {
+    /**
+     * Creates a new HttpObject which shares the content buffer with the given
+     * one. The buffer is retained, so the returned object has to be released
+     * independently. Reader and writer indexes are not shared, so the
+     * duplicate can be written to a channel while the original one is
+     * retained by the cache.
+     *
+     * @param msg
+     * @return
+     */
+    public static HttpObject duplicateHttpObject(HttpObject msg) {
         if (msg instanceof FullHttpResponse) {
             FullHttpResponse fr = (FullHttpResponse) msg;
-            return fr.copy();
+            return fr.retainedDuplicate();
         } else if (msg instanceof DefaultHttpResponse) {
             DefaultHttpResponse fr = (DefaultHttpResponse) msg;
             return new DefaultHttpResponse(fr.protocolVersion(), fr.status(), fr.headers());
-        } else if (msg instanceof DefaultLastHttpContent) {
-            DefaultLastHttpContent df = (DefaultLastHttpContent) msg;
-            return df.copy();
-        } else if (msg instanceof DefaultHttpContent) {
-            DefaultHttpContent df = (DefaultHttpContent) msg;
-            return df.copy();
-        } else if (msg instanceof LastHttpContent) {
-            return ((LastHttpContent) msg).copy();
+        } else if (msg instanceof HttpContent) {
+            // DefaultLastHttpContent keeps its trailing headers
+            return ((HttpContent) msg).retainedDuplicate();
         } else {
             LOG.severe("cannot duplicate HttpObject " + msg);
             throw new IllegalStateException("cannot duplicate HttpObject " + msg);
@@ -0,0 +1,597 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.IllegalReferenceCountException;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import org.carapaceproxy.server.cache.ContentsCache.ContentKey;
+import org.carapaceproxy.server.cache.ContentsCache.ContentPayload;
+import org.carapaceproxy.utils.PrometheusUtils;
+
+/**
+ * Second tier of the cache, on local disk.
+ * <p>
+ * Contents evicted from memory because of its maximum size are appended to
+ * segment files by a single writer thread. Every record is
+ * <pre>
+ * magic (int) | length (int) | crc32 of the rest of the record (int)
+ * creationTs | lastModified | expiresTs (long)
+ * method | host | uri | variant | status | reason | headers (DataOutput encoding)
+ * body length (int, -1 for a removal) | body
+ * </pre>
+ * Bodies are served as read-only memory-mapped views of the segments, without
+ * copying them. When the tier exceeds its maximum size the oldest segment is
+ * dropped as a whole. On startup the index is rebuilt by scanning the
+ * segments, a truncated or corrupted tail is cut away.
+ * </p>
+ */
+final class DiskCache {
+
+    private static final Logger LOG = Logger.getLogger(DiskCache.class.getName());
+
+    private static final int RECORD_MAGIC = 0xCA7AC0DE;
+    private static final int RECORD_HEADER_SIZE = 12;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".data";
+    private static final long MAX_SEGMENT_SIZE = 256 * 1024 * 1024;
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+    // contents waiting to be written are retained in memory
+    private static final long MAX_PENDING_BYTES = 64 * 1024 * 1024;
+
+    private static final Counter DISK_HITS_COUNTER = PrometheusUtils.createCounter("cache", "disk_hits_total",
+            "requests served by the disk cache").register();
+    private static final Counter DISK_SPILLED_COUNTER = PrometheusUtils.createCounter("cache", "disk_spilled_total",
+            "contents moved from memory to the disk cache").register();
+    private static final Counter DISK_DROPPED_COUNTER = PrometheusUtils.createCounter("cache", "disk_dropped_total",
+            "evicted contents not written to the disk cache because of too many pending writes").register();
+    private static final Gauge DISK_SIZE_GAUGE = PrometheusUtils.createGauge("cache", "disk_size_bytes",
+            "size of the disk cache segments").register();
+
+    private final Path directory;
+    private final long maxSize;
+    private final long segmentSize;
+    private final ConcurrentHashMap<ContentKey, DiskEntry> index = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final ExecutorService writer;
+    private final AtomicLong pendingBytes = new AtomicLong();
+
+    // accessed only by the writer thread
+    private Segment current;
+    private long totalSize;
+
+    private static final class Segment {
+
+        private final long id;
+        private final Path file;
+        private final FileChannel channel;
+        private volatile long size;
+        // whole segment, mapped once it is no longer written
+        private volatile MappedByteBuffer sealed;
+        // written part of the open segment, mapped again only when a read goes beyond it
+        private volatile MappedByteBuffer mapped;
+
+        private Segment(long id, Path file, FileChannel channel, long size) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.size = size;
+        }
+
+        private void seal() throws IOException {
+            if (size > 0) {
+                sealed = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            mapped = null;
+        }
+
+        private ByteBuffer map(long offset, int length) throws IOException {
+            MappedByteBuffer _mapped = sealed;
+            if (_mapped == null) {
+                _mapped = mapped;
+                if (_mapped == null || _mapped.capacity() < offset + length) {
+                    _mapped = remap(offset + length);
+                }
+            }
+            ByteBuffer view = _mapped.duplicate();
+            view.position((int) offset);
+            view.limit((int) offset + length);
+            return view.slice();
+        }
+
+        private synchronized MappedByteBuffer remap(long minSize) throws IOException {
+            MappedByteBuffer _mapped = mapped;
+            if (_mapped == null || _mapped.capacity() < minSize) {
+                // views of the previous mapping are still valid
+                _mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.max(size, minSize));
+                mapped = _mapped;
+            }
+            return _mapped;
+        }
+
+        @Override
+        public String toString() {
+            return "Segment{" + "id=" + id + ", file=" + file + ", size=" + size + '}';
+        }
+    }
+
+    private static final class DiskEntry {
+
+        private final Segment segment;
+        private final long bodyOffset;
+        private final int bodyLength;
+        private final HttpResponse response;
+        private final long creationTs;
+        private final long lastModified;
+        private final long expiresTs;
+
+        private DiskEntry(Segment segment, long bodyOffset, int bodyLength, HttpResponse response,
+                long creationTs, long lastModified, long expiresTs) {
+            this.segment = segment;
+            this.bodyOffset = bodyOffset;
+            this.bodyLength = bodyLength;
+            this.response = response;
+            this.creationTs = creationTs;
+            this.lastModified = lastModified;
+            this.expiresTs = expiresTs;
+        }
+    }
+
+    DiskCache(Path directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize > 0 ? maxSize : Long.MAX_VALUE;
+        this.segmentSize = Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, this.maxSize / 8));
+        this.writer = Executors.newSingleThreadExecutor((Runnable r) -> {
+            Thread thread = new Thread(r, "carapace-cache-disk-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Rebuilds the index from the segments on disk. Contents are not available
+     * until the recovery is completed.
+     */
+    void start() {
+        writer.execute(() -> {
+            try {
+                recover();
+            } catch (IOException err) {
+                LOG.log(Level.SEVERE, "cannot recover disk cache from " + directory, err);
+            }
+        });
+    }
+
+    void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException exit) {
+            Thread.currentThread().interrupt();
+        }
+        index.clear();
+        for (Segment segment : segments.values()) {
+            closeQuietly(segment);
+        }
+        segments.clear();
+    }
+
+    int getSize() {
+        return index.size();
+    }
+
+    /**
+     * Schedules the write of a content. The content is retained until written,
+     * if too many bytes are already waiting the content is dropped.
+     *
+     * @param key
+     * @param payload
+     */
+    void spill(ContentKey key, ContentPayload payload) {
+        if (payload.expiresTs < System.currentTimeMillis() || payload.chunks.isEmpty()
+                || !(payload.chunks.get(0) instanceof HttpResponse)) {
+            return;
+        }
+        HttpResponse response = (HttpResponse) payload.chunks.get(0);
+        List<ByteBuf> body = new ArrayList<>();
+        long length = 0;
+        try {
+            for (HttpObject chunk : payload.chunks) {
+                if (chunk instanceof HttpContent) {
+                    ByteBuf content = ((HttpContent) chunk).content();
+                    length += content.readableBytes();
+                    body.add(content.retainedDuplicate());
+                }
+            }
+        } catch (IllegalReferenceCountException alreadyReleased) {
+            body.forEach(ByteBuf::release);
+            return;
+        }
+        long _length = length;
+        if (length > segmentSize || pendingBytes.addAndGet(length) > MAX_PENDING_BYTES) {
+            pendingBytes.addAndGet(-length);
+            body.forEach(ByteBuf::release);
+            DISK_DROPPED_COUNTER.inc();
+            return;
+        }
+        HttpResponse headers = new DefaultHttpResponse(response.protocolVersion(), response.status(),
+                response.headers().copy());
+        try {
+            writer.execute(() -> {
+                try {
+                    append(key, headers, body, (int) _length, payload.creationTs, payload.lastModified, payload.expiresTs);
+                    DISK_SPILLED_COUNTER.inc();
+                } catch (IOException err) {
+                    LOG.log(Level.SEVERE, "cannot write " + key + " to disk cache " + directory, err);
+                } finally {
+                    body.forEach(ByteBuf::release);
+                    pendingBytes.addAndGet(-_length);
+                }
+            });
+        } catch (RejectedExecutionException closed) {
+            body.forEach(ByteBuf::release);
+            pendingBytes.addAndGet(-length);
+        }
+    }
+
+    /**
+     * Gets a content from the disk. The body is a read-only view of the
+     * segment file, the returned payload is not retained by anyone and can be
+     * discarded without being released.
+     *
+     * @param key
+     * @return the content or null if it has not been found
+     */
+    ContentPayload get(ContentKey key) {
+        DiskEntry entry = index.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresTs < System.currentTimeMillis()) {
+            index.remove(key, entry);
+            return null;
+        }
+        ByteBuf body;
+        if (entry.bodyLength == 0) {
+            body = Unpooled.EMPTY_BUFFER;
+        } else {
+            try {
+                body = Unpooled.wrappedBuffer(entry.segment.map(entry.bodyOffset, entry.bodyLength)).asReadOnly();
+            } catch (IOException err) {
+                // segment dropped in the meantime
+                LOG.log(Level.FINE, "cannot read " + key + " from " + entry.segment, err);
+                index.remove(key, entry);
+                return null;
+            }
+        }
+        ContentPayload payload = new ContentPayload(entry.creationTs);
+        payload.lastModified = entry.lastModified;
+        payload.expiresTs = entry.expiresTs;
+        payload.addChunk(entry.response);
+        payload.addChunk(new DefaultLastHttpContent(body));
+        payload.hit();
+        DISK_HITS_COUNTER.inc();
+        return payload;
+    }
+
+    /**
+     * Removes a content, the removal is persisted in order to not resurrect
+     * the content on restart.
+     *
+     * @param key
+     */
+    void remove(ContentKey key) {
+        if (index.remove(key) == null) {
+            return;
+        }
+        try {
+            writer.execute(() -> {
+                try {
+                    append(key, null, null, -1, 0, 0, 0);
+                } catch (IOException err) {
+                    LOG.log(Level.SEVERE, "cannot write removal of " + key + " to disk cache " + directory, err);
+                }
+            });
+        } catch (RejectedExecutionException closed) {
+            // cache closed
+        }
+    }
+
+    int clear() {
+        int size = index.size();
+        index.clear();
+        try {
+            writer.execute(() -> {
+                for (Segment segment : new ArrayList<>(segments.values())) {
+                    dropSegment(segment);
+                }
+                current = null;
+                try {
+                    rollSegment();
+                } catch (IOException err) {
+                    LOG.log(Level.SEVERE, "cannot create a new segment in " + directory, err);
+                }
+            });
+        } catch (RejectedExecutionException closed) {
+            // cache closed
+        }
+        return size;
+    }
+
+    private void append(ContentKey key, HttpResponse response, List<ByteBuf> body, int bodyLength,
+            long creationTs, long lastModified, long expiresTs) throws IOException {
+        ByteBuf header = Unpooled.buffer(512);
+        try {
+            header.writeInt(RECORD_MAGIC);
+            header.writeInt(0); // length
+            header.writeInt(0); // crc
+            try (DataOutputStream out = new DataOutputStream(new ByteBufOutputStream(header))) {
+                out.writeLong(creationTs);
+                out.writeLong(lastModified);
+                out.writeLong(expiresTs);
+                out.writeUTF(key.method);
+                writeNullableUTF(out, key.host);
+                out.writeUTF(key.uri);
+                out.writeUTF(key.variant);
+                if (response != null) {
+                    out.writeInt(response.status().code());
+                    out.writeUTF(response.status().reasonPhrase());
+                    HttpHeaders headers = response.headers();
+                    out.writeInt(headers.size());
+                    for (Map.Entry<String, String> h : headers) {
+                        out.writeUTF(h.getKey());
+                        out.writeUTF(h.getValue());
+                    }
+                } else {
+                    out.writeInt(0);
+                    out.writeUTF("");
+                    out.writeInt(0);
+                }
+                out.writeInt(bodyLength);
+            }
+            int metaLength = header.readableBytes() - RECORD_HEADER_SIZE;
+            int recordLength = metaLength + Math.max(bodyLength, 0);
+            CRC32 crc = new CRC32();
+            crc.update(header.nioBuffer(RECORD_HEADER_SIZE, metaLength));
+            if (body != null) {
+                for (ByteBuf b : body) {
+                    for (ByteBuffer nio : b.nioBuffers()) {
+                        crc.update(nio);
+                    }
+                }
+            }
+            header.setInt(4, recordLength);
+            header.setInt(8, (int) crc.getValue());
+
+            if (current == null || (current.size > 0 && current.size + RECORD_HEADER_SIZE + recordLength > segmentSize)) {
+                rollSegment();
+            }
+            Segment segment = current;
+            long position = segment.size;
+            long bodyOffset = position + header.readableBytes();
+            long end = writeFully(segment.channel, header.nioBuffer(), position);
+            if (body != null) {
+                for (ByteBuf b : body) {
+                    for (ByteBuffer nio : b.nioBuffers()) {
+                        end = writeFully(segment.channel, nio, end);
+                    }
+                }
+            }
+            totalSize += end - position;
+            segment.size = end;
+            DISK_SIZE_GAUGE.inc(end - position);
+            if (response != null) {
+                index.put(key, new DiskEntry(segment, bodyOffset, bodyLength, response, creationTs, lastModified, expiresTs));
+            }
+        } finally {
+            header.release();
+        }
+        while (totalSize > maxSize && segments.size() > 1) {
+            dropSegment(segments.firstEntry().getValue());
+        }
+    }
+
+    private static long writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return position;
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private void rollSegment() throws IOException {
+        if (current != null) {
+            current.seal();
+        }
+        long id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        Path file = directory.resolve(SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        current = new Segment(id, file, channel, 0);
+        segments.put(id, current);
+        LOG.log(Level.FINE, "new disk cache segment {0}", file);
+    }
+
+    private void dropSegment(Segment segment) {
+        LOG.log(Level.FINE, "dropping disk cache segment {0}", segment);
+        segments.remove(segment.id);
+        index.values().removeIf(entry -> entry.segment == segment);
+        totalSize -= segment.size;
+        DISK_SIZE_GAUGE.dec(segment.size);
+        closeQuietly(segment);
+        try {
+            Files.deleteIfExists(segment.file);
+        } catch (IOException err) {
+            LOG.log(Level.SEVERE, "cannot delete " + segment.file, err);
+        }
+    }
+
+    private static void closeQuietly(Segment segment) {
+        try {
+            segment.channel.close();
+        } catch (IOException err) {
+            LOG.log(Level.FINE, "cannot close " + segment.file, err);
+        }
+    }
+
+    private void recover() throws IOException {
+        Files.createDirectories(directory);
+        List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    ids.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException notASegment) {
+                    LOG.log(Level.WARNING, "ignoring unexpected file {0} in disk cache", file);
+                }
+            }
+        }
+        ids.sort(null);
+        long now = System.currentTimeMillis();
+        for (long id : ids) {
+            Path file = directory.resolve(SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment segment = new Segment(id, file, channel, channel.size());
+            segments.put(id, segment);
+            long valid = recoverSegment(segment, now);
+            if (valid < segment.size) {
+                LOG.log(Level.WARNING, "truncating disk cache segment {0} at {1}", new Object[]{segment, valid});
+                channel.truncate(valid);
+                segment.size = valid;
+            }
+            segment.seal();
+            totalSize += segment.size;
+            DISK_SIZE_GAUGE.inc(segment.size);
+        }
+        LOG.log(Level.INFO, "disk cache {0}: recovered {1} contents from {2} segments, {3} bytes",
+                new Object[]{directory, index.size(), segments.size(), totalSize});
+        // never append to recovered segments
+        rollSegment();
+        while (totalSize > maxSize && segments.size() > 1) {
+            dropSegment(segments.firstEntry().getValue());
+        }
+    }
+
+    /**
+     * Loads the index entries of a segment.
+     *
+     * @return the end of the last valid record
+     */
+    private long recoverSegment(Segment segment, long now) throws IOException {
+        if (segment.size == 0) {
+            return 0;
+        }
+        MappedByteBuffer mapped = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.size);
+        int position = 0;
+        int limit = mapped.limit();
+        while (limit - position >= RECORD_HEADER_SIZE) {
+            int magic = mapped.getInt(position);
+            int recordLength = mapped.getInt(position + 4);
+            int expectedCrc = mapped.getInt(position + 8);
+            int start = position + RECORD_HEADER_SIZE;
+            if (magic != RECORD_MAGIC || recordLength < 0 || recordLength > limit - start) {
+                break;
+            }
+            ByteBuffer record = mapped.duplicate();
+            record.position(start);
+            record.limit(start + recordLength);
+            record = record.slice();
+            CRC32 crc = new CRC32();
+            crc.update(record.duplicate());
+            if ((int) crc.getValue() != expectedCrc) {
+                break;
+            }
+            ByteBuf buf = Unpooled.wrappedBuffer(record);
+            try (DataInputStream in = new DataInputStream(new ByteBufInputStream(buf))) {
+                long creationTs = in.readLong();
+                long lastModified = in.readLong();
+                long expiresTs = in.readLong();
+                ContentKey key = new ContentKey(in.readUTF(), readNullableUTF(in), in.readUTF(), in.readUTF());
+                int status = in.readInt();
+                String reason = in.readUTF();
+                int headersCount = in.readInt();
+                HttpHeaders headers = new DefaultHttpHeaders();
+                for (int i = 0; i < headersCount; i++) {
+                    headers.add(in.readUTF(), in.readUTF());
+                }
+                int bodyLength = in.readInt();
+                if (bodyLength < 0) {
+                    index.remove(key);
+                } else if (expiresTs < now) {
+                    index.remove(key);
+                } else {
+                    HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+                            new HttpResponseStatus(status, reason), headers);
+                    long bodyOffset = start + buf.readerIndex();
+                    index.put(key, new DiskEntry(segment, bodyOffset, bodyLength, response, creationTs, lastModified, expiresTs));
+                }
+            }
+            position = start + recordLength;
+        }
+        return position;
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+/**
+ * Approximate counts of the recent requests of each content (a count-min
+ * sketch, as in TinyLFU: https://arxiv.org/abs/1512.00727).
+ * <p>
+ * Counters saturate at 15 and they are all halved after a number of
+ * increments proportional to the width of the sketch, so that old popularity
+ * fades out. Access is not synchronized: concurrent updates may get lost, this
+ * is acceptable for an estimate.
+ * </p>
+ */
+final class FrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int MIN_WIDTH = 1024;
+    private static final int MAX_WIDTH = 1 << 20;
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+
+    private final byte[][] counters;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param expectedEntries expected number of distinct contents
+     */
+    FrequencySketch(long expectedEntries) {
+        int width = MIN_WIDTH;
+        while (width < expectedEntries && width < MAX_WIDTH) {
+            width <<= 1;
+        }
+        this.counters = new byte[DEPTH][width];
+        this.mask = width - 1;
+        this.sampleSize = 10 * width;
+    }
+
+    void increment(int hash) {
+        boolean added = false;
+        for (int i = 0; i < DEPTH; i++) {
+            byte[] row = counters[i];
+            int index = indexOf(hash, i);
+            if (row[index] < MAX_COUNT) {
+                row[index]++;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    int frequency(int hash) {
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            frequency = Math.min(frequency, counters[i][indexOf(hash, i)]);
+        }
+        return frequency;
+    }
+
+    private int indexOf(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h ^= h >>> 32;
+        return (int) h & mask;
+    }
+
+    private void reset() {
+        for (byte[] row : counters) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] = (byte) (row[i] >>> 1);
+            }
+        }
+        additions = 0;
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.buffer.UnpooledDirectByteBuf;
+import io.prometheus.client.Gauge;
+import java.util.ArrayDeque;
+import org.carapaceproxy.utils.PrometheusUtils;
+
+/**
+ * Allocates cache contents inside big direct memory slabs.
+ * <p>
+ * Every slab is split into slots of the same size, slot sizes are powers of
+ * two from {@link #MIN_SLOT_SIZE} up to the slab size. A slab is allocated
+ * when no slab of the needed size class has a free slot and it is given back
+ * to the system as soon as all its slots are free, so that the direct memory
+ * used by the cache is bounded and exactly known.
+ * </p>
+ * <p>
+ * Allocated regions are reference counted ByteBufs, the slot is freed when
+ * the region is released.
+ * </p>
+ */
+final class SlabAllocator {
+
+    static final int MIN_SLOT_SIZE = 1024;
+
+    private static final Gauge SLAB_MEMORY_GAUGE = PrometheusUtils.createGauge("cache", "slab_memory_bytes",
+            "direct memory used by the off-heap cache", "area").register();
+    private static final Gauge.Child RESERVED_MEMORY_GAUGE = SLAB_MEMORY_GAUGE.labels("reserved");
+    private static final Gauge.Child ALLOCATED_MEMORY_GAUGE = SLAB_MEMORY_GAUGE.labels("allocated");
+    private static final Gauge.Child USED_MEMORY_GAUGE = SLAB_MEMORY_GAUGE.labels("used");
+
+    private final int slabSize;
+    private final long maxMemory;
+    private final SizeClass[] sizeClasses;
+
+    // guarded by this
+    private long reservedMemory;
+    private long allocatedMemory;
+    private long usedMemory;
+
+    private static final class SizeClass {
+
+        private final int slotSize;
+        // slabs with at least a free slot
+        private final ArrayDeque<Slab> available = new ArrayDeque<>();
+
+        private SizeClass(int slotSize) {
+            this.slotSize = slotSize;
+        }
+    }
+
+    private static final class Slab {
+
+        private final SizeClass sizeClass;
+        private final ByteBuf memory;
+        private final int[] freeSlots;
+        private int freeCount;
+
+        private Slab(SizeClass sizeClass, int slabSize) {
+            this.sizeClass = sizeClass;
+            this.memory = Unpooled.directBuffer(slabSize, slabSize);
+            this.freeSlots = new int[slabSize / sizeClass.slotSize];
+            for (int i = 0; i < freeSlots.length; i++) {
+                // lower slots first
+                freeSlots[i] = freeSlots.length - 1 - i;
+            }
+            this.freeCount = freeSlots.length;
+        }
+    }
+
+    /**
+     * A region of a slab, when released the slot returns to the allocator
+     */
+    private final class SlabRegion extends UnpooledDirectByteBuf {
+
+        private final Slab slab;
+        private final int slot;
+        private final int length;
+
+        private SlabRegion(Slab slab, int slot, int length) {
+            super(UnpooledByteBufAllocator.DEFAULT, slab.memory.nioBuffer(slot * slab.sizeClass.slotSize, length), length);
+            this.slab = slab;
+            this.slot = slot;
+            this.length = length;
+        }
+
+        @Override
+        protected void deallocate() {
+            // the memory belongs to the slab, the region must not free it
+            free(slab, slot, length);
+        }
+    }
+
+    SlabAllocator(int slabSize, long maxMemory) {
+        if (slabSize < MIN_SLOT_SIZE || Integer.bitCount(slabSize) != 1) {
+            throw new IllegalArgumentException("invalid slab size " + slabSize);
+        }
+        this.slabSize = slabSize;
+        this.maxMemory = maxMemory > 0 ? maxMemory : Long.MAX_VALUE;
+        this.sizeClasses = new SizeClass[Integer.numberOfTrailingZeros(slabSize) - Integer.numberOfTrailingZeros(MIN_SLOT_SIZE) + 1];
+        for (int i = 0; i < sizeClasses.length; i++) {
+            sizeClasses[i] = new SizeClass(MIN_SLOT_SIZE << i);
+        }
+    }
+
+    int getSlabSize() {
+        return slabSize;
+    }
+
+    /**
+     * Allocates a region of exactly the given length (the writerIndex is set
+     * at the end of the region).
+     *
+     * @param length
+     * @return the region, or null if the length exceeds the slab size or if
+     * the maximum memory would be exceeded
+     */
+    ByteBuf allocate(int length) {
+        if (length <= 0 || length > slabSize) {
+            return null;
+        }
+        SizeClass sizeClass = sizeClasses[sizeClassIndex(length)];
+        Slab slab;
+        int slot;
+        synchronized (this) {
+            slab = sizeClass.available.peekFirst();
+            if (slab == null) {
+                if (reservedMemory + slabSize > maxMemory) {
+                    return null;
+                }
+                slab = new Slab(sizeClass, slabSize);
+                sizeClass.available.addFirst(slab);
+                reservedMemory += slabSize;
+                RESERVED_MEMORY_GAUGE.inc(slabSize);
+            }
+            slot = slab.freeSlots[--slab.freeCount];
+            if (slab.freeCount == 0) {
+                sizeClass.available.pollFirst();
+            }
+            allocatedMemory += sizeClass.slotSize;
+            usedMemory += length;
+        }
+        ALLOCATED_MEMORY_GAUGE.inc(sizeClass.slotSize);
+        USED_MEMORY_GAUGE.inc(length);
+        return new SlabRegion(slab, slot, length);
+    }
+
+    private void free(Slab slab, int slot, int length) {
+        SizeClass sizeClass = slab.sizeClass;
+        boolean releaseSlab = false;
+        synchronized (this) {
+            slab.freeSlots[slab.freeCount++] = slot;
+            if (slab.freeCount == slab.freeSlots.length) {
+                sizeClass.available.remove(slab);
+                reservedMemory -= slabSize;
+                releaseSlab = true;
+            } else if (slab.freeCount == 1) {
+                sizeClass.available.addLast(slab);
+            }
+            allocatedMemory -= sizeClass.slotSize;
+            usedMemory -= length;
+        }
+        if (releaseSlab) {
+            slab.memory.release();
+            RESERVED_MEMORY_GAUGE.dec(slabSize);
+        }
+        ALLOCATED_MEMORY_GAUGE.dec(sizeClass.slotSize);
+        USED_MEMORY_GAUGE.dec(length);
+    }
+
+    /**
+     * Size of the slot which holds a region of the given length
+     *
+     * @param length
+     * @return
+     */
+    static int getSlotSize(int length) {
+        return MIN_SLOT_SIZE << sizeClassIndex(length);
+    }
+
+    private static int sizeClassIndex(int length) {
+        if (length <= MIN_SLOT_SIZE) {
+            return 0;
+        }
+        // ceil(log2(length)) - log2(MIN_SLOT_SIZE)
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - Integer.numberOfTrailingZeros(MIN_SLOT_SIZE);
+    }
+
+    /**
+     * Direct memory held by the slabs
+     *
+     * @return
+     */
+    synchronized long getReservedMemory() {
+        return reservedMemory;
+    }
+
+    /**
+     * Memory of the slots currently in use
+     *
+     * @return
+     */
+    synchronized long getAllocatedMemory() {
+        return allocatedMemory;
+    }
+
+    /**
+     * Bytes actually requested by the allocations currently in use
+     *
+     * @return
+     */
+    synchronized long getUsedMemory() {
+        return usedMemory;
+    }
+
+}
@@ -0,0 +1,181 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.carapaceproxy.server.cache.ContentsCache.ContentKey;
+import org.carapaceproxy.server.cache.ContentsCache.ContentPayload;
+
+/**
+ * Cache which keeps the bodies of the contents in off-heap slabs.
+ * <p>
+ * The body of every content is copied into a single contiguous region
+ * allocated by a {@link SlabAllocator} and it is served as a read-only view
+ * of that region. Indexing, expiration and eviction are delegated to a
+ * {@link CaffeineCacheImpl}, releasing an entry gives its region back to the
+ * allocator.
+ * </p>
+ */
+class SlabCacheImpl implements CacheImpl {
+
+    // bounds the work of a single put when the allocator is exhausted
+    private static final int MAX_EVICTIONS_PER_PUT = 256;
+
+    private final CaffeineCacheImpl index;
+    private final SlabAllocator allocator;
+    private final Logger logger;
+
+    public SlabCacheImpl(CacheStats stats, long cacheMaxSize, int slabSize, Logger logger) {
+        // removed entries give their slots back to the allocator right away
+        this.index = new CaffeineCacheImpl(stats, cacheMaxSize, logger, Runnable::run);
+        this.allocator = new SlabAllocator(slabSize, cacheMaxSize);
+        this.logger = logger;
+    }
+
+    @Override
+    public void setEvictionListener(CacheEntriesSink listener) {
+        index.setEvictionListener(listener);
+    }
+
+    @Override
+    public void setVerbose(boolean verbose) {
+        index.setVerbose(verbose);
+    }
+
+    @Override
+    public int getSize() {
+        return index.getSize();
+    }
+
+    @Override
+    public long getMemSize() {
+        return index.getMemSize();
+    }
+
+    SlabAllocator getAllocator() {
+        return allocator;
+    }
+
+    @Override
+    public boolean put(ContentKey key, ContentPayload payload) {
+        List<HttpObject> chunks = payload.chunks;
+        if (chunks.isEmpty()
+                || !(chunks.get(0) instanceof HttpResponse)
+                || chunks.get(0) instanceof FullHttpResponse) {
+            // nothing to move off-heap
+            return index.put(key, payload);
+        }
+        long length = 0;
+        LastHttpContent last = null;
+        for (int i = 1; i < chunks.size(); i++) {
+            HttpContent chunk = (HttpContent) chunks.get(i);
+            length += chunk.content().readableBytes();
+            if (chunk instanceof LastHttpContent) {
+                last = (LastHttpContent) chunk;
+            }
+        }
+        if (length == 0) {
+            return index.put(key, payload);
+        }
+        if (length > allocator.getSlabSize()) {
+            logger.log(Level.FINE, "content {0} ({1} bytes) does not fit the off-heap cache", new Object[]{key.uri, length});
+            return false;
+        }
+        ByteBuf region = allocator.allocate((int) length);
+        // the allocator may run out of slabs for this size class while the index is
+        // not full yet (free slots of the other size classes), make room evicting
+        // the coldest contents
+        for (int i = 0; region == null && i < MAX_EVICTIONS_PER_PUT && index.evictColdest(); i++) {
+            region = allocator.allocate((int) length);
+        }
+        if (region == null) {
+            logger.log(Level.FINE, "content {0} ({1} bytes) does not fit the off-heap cache", new Object[]{key.uri, length});
+            return false;
+        }
+        int position = 0;
+        for (int i = 1; i < chunks.size(); i++) {
+            ByteBuf content = ((HttpContent) chunks.get(i)).content();
+            int readable = content.readableBytes();
+            region.setBytes(position, content, content.readerIndex(), readable);
+            position += readable;
+        }
+        ContentPayload packed = new ContentPayload(payload.creationTs);
+        packed.lastModified = payload.lastModified;
+        packed.expiresTs = payload.expiresTs;
+        packed.retainUntilTs = payload.retainUntilTs;
+        packed.staleWhileRevalidate = payload.staleWhileRevalidate;
+        packed.staleIfError = payload.staleIfError;
+        packed.addChunk(chunks.get(0));
+        DefaultLastHttpContent body = new DefaultLastHttpContent(region.asReadOnly());
+        if (last != null) {
+            body.trailingHeaders().set(last.trailingHeaders());
+        }
+        packed.addChunk(body);
+        // weighed by the slot it takes
+        packed.directSize = SlabAllocator.getSlotSize((int) length);
+        index.put(key, packed);
+        return false;
+    }
+
+    @Override
+    public ContentPayload get(ContentKey key) {
+        return index.get(key);
+    }
+
+    @Override
+    public ContentPayload getStale(ContentKey key) {
+        return index.getStale(key);
+    }
+
+    @Override
+    public void remove(ContentKey key) {
+        index.remove(key);
+    }
+
+    @Override
+    public void evict() {
+        index.evict();
+    }
+
+    @Override
+    public int clear() {
+        return index.clear();
+    }
+
+    @Override
+    public void close() {
+        index.close();
+    }
+
+    @Override
+    public void inspectCache(CacheEntriesSink sink) {
+        index.inspectCache(sink);
+    }
+
+}
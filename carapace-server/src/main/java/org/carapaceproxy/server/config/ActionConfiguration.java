@@ -46,7 +46,11 @@ public class ActionConfiguration {
     private String redirectHost;
     private int redirectPort;
     private String redirectPath;
-
+    private int staleWhileRevalidate;
+    private int staleIfError;
+    private int retries;
+    private int retryBodySize;
+    private CompressionConfiguration compression = CompressionConfiguration.DISABLED;
 
     public ActionConfiguration(String id, String type, String director, String file, int errorcode) {
         this.id = id;
@@ -130,9 +134,54 @@ public class ActionConfiguration {
         return redirectPath;
     }
 
+    public ActionConfiguration setStaleWhileRevalidate(int staleWhileRevalidate) {
+        this.staleWhileRevalidate = staleWhileRevalidate;
+        return this;
+    }
+
+    public int getStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    public ActionConfiguration setStaleIfError(int staleIfError) {
+        this.staleIfError = staleIfError;
+        return this;
+    }
+
+    public int getStaleIfError() {
+        return staleIfError;
+    }
+
+    public ActionConfiguration setRetries(int retries) {
+        this.retries = retries;
+        return this;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    public ActionConfiguration setRetryBodySize(int retryBodySize) {
+        this.retryBodySize = retryBodySize;
+        return this;
+    }
+
+    public int getRetryBodySize() {
+        return retryBodySize;
+    }
+
+    public CompressionConfiguration getCompression() {
+        return compression;
+    }
+
+    public ActionConfiguration setCompression(CompressionConfiguration compression) {
+        this.compression = compression;
+        return this;
+    }
+
     @Override
     public String toString() {
-        return "ActionConfiguration{" + "id=" + id + ", type=" + type + ", director=" + director + ", file=" + file + ", errorcode=" + errorcode + ", customHeaders=" + customHeaders + ", redirectLocation=" + redirectLocation + ", redirectProto=" + redirectProto + ", redirectHost=" + redirectHost + ", redirectPort=" + redirectPort + ", redirectPath=" + redirectPath + '}';
+        return "ActionConfiguration{" + "id=" + id + ", type=" + type + ", director=" + director + ", file=" + file + ", errorcode=" + errorcode + ", customHeaders=" + customHeaders + ", redirectLocation=" + redirectLocation + ", redirectProto=" + redirectProto + ", redirectHost=" + redirectHost + ", redirectPort=" + redirectPort + ", redirectPath=" + redirectPath + ", staleWhileRevalidate=" + staleWhileRevalidate + ", staleIfError=" + staleIfError + ", retries=" + retries + ", retryBodySize=" + retryBodySize + ", compression=" + compression + '}';
     }
 
 }
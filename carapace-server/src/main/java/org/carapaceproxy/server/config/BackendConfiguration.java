@@ -28,12 +28,18 @@ public class BackendConfiguration {
     private final String host;
     private final int port;
     private final String probePath;
+    private final int weight;
 
     public BackendConfiguration(String id, String host, int port, String probePath) {
+        this(id, host, port, probePath, 1);
+    }
+
+    public BackendConfiguration(String id, String host, int port, String probePath, int weight) {
         this.id = id;
         this.host = host;
         this.port = port;
         this.probePath = probePath;
+        this.weight = weight;
     }
 
     public String getId() {
@@ -52,12 +58,19 @@ public class BackendConfiguration {
         return probePath;
     }
 
+    /**
+     * @return relative capacity of the backend, used by weighted strategies
+     */
+    public int getWeight() {
+        return weight;
+    }
+
     public String getHostPort() {
         return host + ":" + port;
     }
 
     @Override
     public String toString() {
-        return "BackendConfiguration{" + "id=" + id + ", host=" + host + ", port=" + port + ", probePath=" + probePath + '}';
+        return "BackendConfiguration{" + "id=" + id + ", host=" + host + ", port=" + port + ", probePath=" + probePath + ", weight=" + weight + '}';
     }
 }
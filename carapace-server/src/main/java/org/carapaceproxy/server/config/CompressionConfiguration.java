@@ -0,0 +1,98 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.config;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Compression of the responses to the clients, for an action.
+ * <p>
+ * Content types are matched without parameters, a "type/*" entry matches every
+ * subtype.
+ * </p>
+ */
+public class CompressionConfiguration {
+
+    public static final CompressionConfiguration DISABLED = new CompressionConfiguration(Collections.emptySet(), 0);
+
+    private final Set<String> contentTypes;
+    private final int minSize;
+
+    /**
+     * @param contentTypes content types to compress, empty disables the
+     * compression
+     * @param minSize responses with a smaller Content-Length are sent as is
+     */
+    public CompressionConfiguration(Set<String> contentTypes, int minSize) {
+        Set<String> types = new HashSet<>();
+        for (String type : contentTypes) {
+            types.add(type.trim().toLowerCase(Locale.ENGLISH));
+        }
+        this.contentTypes = Collections.unmodifiableSet(types);
+        this.minSize = minSize;
+    }
+
+    public Set<String> getContentTypes() {
+        return contentTypes;
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public boolean isEnabled() {
+        return !contentTypes.isEmpty();
+    }
+
+    /**
+     * @param contentType Content-Type of the response
+     * @param contentLength Content-Length of the response, negative if not
+     * known (the response is chunked)
+     * @return true if the response has to be compressed
+     */
+    public boolean isCompressible(String contentType, long contentLength) {
+        if (contentTypes.isEmpty() || contentType == null) {
+            return false;
+        }
+        if (contentLength >= 0 && contentLength < minSize) {
+            return false;
+        }
+        String mimeType = contentType;
+        int semicolon = mimeType.indexOf(';');
+        if (semicolon >= 0) {
+            mimeType = mimeType.substring(0, semicolon);
+        }
+        mimeType = mimeType.trim().toLowerCase(Locale.ENGLISH);
+        if (contentTypes.contains(mimeType)) {
+            return true;
+        }
+        int slash = mimeType.indexOf('/');
+        return slash > 0 && contentTypes.contains(mimeType.substring(0, slash) + "/*");
+    }
+
+    @Override
+    public String toString() {
+        return "CompressionConfiguration{" + "contentTypes=" + contentTypes + ", minSize=" + minSize + '}';
+    }
+
+}
@@ -30,14 +30,30 @@ import java.util.List;
 public class DirectorConfiguration {
 
     private final String id;
+    private final String strategy;
     private final List<String> backends = new ArrayList<>();
 
     public static final String DEFAULT = "*";
 
     public static final String ALL_BACKENDS = "*";
 
+    /**
+     * Load balancing strategies
+     */
+    public static final String STRATEGY_RANDOM = "random";
+    public static final String STRATEGY_LEAST_REQUESTS = "leastrequests";
+    public static final String STRATEGY_PEAK_EWMA = "ewma";
+    public static final String STRATEGY_POWER_OF_TWO_CHOICES = "p2c";
+    public static final String STRATEGY_WEIGHTED_ROUND_ROBIN = "roundrobin";
+    public static final String STRATEGY_CONSISTENT_HASH = "sticky";
+
     public DirectorConfiguration(String id) {
+        this(id, STRATEGY_RANDOM);
+    }
+
+    public DirectorConfiguration(String id, String strategy) {
         this.id = id;
+        this.strategy = strategy;
     }
 
     public DirectorConfiguration addBackend(String id) {
@@ -51,6 +67,10 @@ public class DirectorConfiguration {
         return id;
     }
 
+    public String getStrategy() {
+        return strategy;
+    }
+
     public List<String> getBackends() {
         // no copy for efficiency, at runtime this bean is immutable
         return backends;
@@ -34,6 +34,7 @@ public class NetworkListenerConfiguration {
     private final String defaultCertificate;
     private final String sslTrustoreFile;
     private final String sslTrustorePassword;
+    private final boolean http2;
 
     public HostPort getKey() {
         return new HostPort(host, port);
@@ -102,10 +103,21 @@ public class NetworkListenerConfiguration {
         this.defaultCertificate = null;
         this.sslTrustoreFile = null;
         this.sslTrustorePassword = null;
+        this.http2 = false;
     }
 
     public NetworkListenerConfiguration(String host, int port, boolean ssl,
             boolean ocps, String sslCiphers, String defaultCertificate, String sslTrustoreFile, String sslTrustorePassword) {
+        this(host, port, ssl, ocps, sslCiphers, defaultCertificate, sslTrustoreFile, sslTrustorePassword, false);
+    }
+
+    /**
+     * @param http2 enables negotiation of HTTP/2 by ALPN, only for ssl
+     * listeners
+     */
+    public NetworkListenerConfiguration(String host, int port, boolean ssl,
+            boolean ocps, String sslCiphers, String defaultCertificate, String sslTrustoreFile, String sslTrustorePassword,
+            boolean http2) {
         this.host = host;
         this.port = port;
         this.ssl = ssl;
@@ -114,6 +126,7 @@ public class NetworkListenerConfiguration {
         this.ocps = ocps;
         this.sslTrustoreFile = sslTrustoreFile;
         this.sslTrustorePassword = sslTrustorePassword;
+        this.http2 = http2;
     }
 
     public String getSslTrustoreFile() {
@@ -148,6 +161,10 @@ public class NetworkListenerConfiguration {
         return sslCiphers;
     }
 
+    public boolean isHttp2() {
+        return http2;
+    }
+
     @Override
     public int hashCode() {
         int hash = 5;
@@ -159,6 +176,7 @@ public class NetworkListenerConfiguration {
         hash = 29 * hash + Objects.hashCode(this.defaultCertificate);
         hash = 29 * hash + Objects.hashCode(this.sslTrustoreFile);
         hash = 29 * hash + Objects.hashCode(this.sslTrustorePassword);
+        hash = 29 * hash + (this.http2 ? 1 : 0);
         return hash;
     }
 
@@ -183,6 +201,9 @@ public class NetworkListenerConfiguration {
         if (this.ocps != other.ocps) {
             return false;
         }
+        if (this.http2 != other.http2) {
+            return false;
+        }
         if (!Objects.equals(this.host, other.host)) {
             return false;
         }
@@ -0,0 +1,132 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.config;
+
+/**
+ * Parameters of the passive outlier detection of the backends, based on the
+ * responses to the proxied requests
+ */
+public class OutlierDetectionConfiguration {
+
+    public static final OutlierDetectionConfiguration DISABLED = new OutlierDetectionConfiguration(10, 20, 0, 0, 50, 5, 300);
+
+    private final int window;
+    private final int minRequests;
+    private final int errorRate;
+    private final long slowThreshold;
+    private final int slowRate;
+    private final int ejectionTime;
+    private final int maxEjectionTime;
+
+    /**
+     * @param window length of the sliding window, in seconds
+     * @param minRequests minimum number of requests in the window in order to
+     * evaluate the backend
+     * @param errorRate percentage of 5xx responses which ejects the backend, 0
+     * disables the check
+     * @param slowThreshold responses slower than this (in milliseconds) are
+     * accounted as slow, 0 disables the check
+     * @param slowRate percentage of slow responses which ejects the backend
+     * @param ejectionTime base ejection time, in seconds, it doubles for every
+     * consecutive ejection
+     * @param maxEjectionTime maximum ejection time, in seconds
+     */
+    public OutlierDetectionConfiguration(int window, int minRequests, int errorRate, long slowThreshold,
+            int slowRate, int ejectionTime, int maxEjectionTime) {
+        this.window = window;
+        this.minRequests = minRequests;
+        this.errorRate = errorRate;
+        this.slowThreshold = slowThreshold;
+        this.slowRate = slowRate;
+        this.ejectionTime = ejectionTime;
+        this.maxEjectionTime = maxEjectionTime;
+    }
+
+    public boolean isEnabled() {
+        return errorRate > 0 || slowThreshold > 0;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public int getMinRequests() {
+        return minRequests;
+    }
+
+    public int getErrorRate() {
+        return errorRate;
+    }
+
+    public long getSlowThreshold() {
+        return slowThreshold;
+    }
+
+    public int getSlowRate() {
+        return slowRate;
+    }
+
+    public int getEjectionTime() {
+        return ejectionTime;
+    }
+
+    public int getMaxEjectionTime() {
+        return maxEjectionTime;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 59 * hash + this.window;
+        hash = 59 * hash + this.minRequests;
+        hash = 59 * hash + this.errorRate;
+        hash = 59 * hash + (int) (this.slowThreshold ^ (this.slowThreshold >>> 32));
+        hash = 59 * hash + this.slowRate;
+        hash = 59 * hash + this.ejectionTime;
+        hash = 59 * hash + this.maxEjectionTime;
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final OutlierDetectionConfiguration other = (OutlierDetectionConfiguration) obj;
+        return this.window == other.window
+                && this.minRequests == other.minRequests
+                && this.errorRate == other.errorRate
+                && this.slowThreshold == other.slowThreshold
+                && this.slowRate == other.slowRate
+                && this.ejectionTime == other.ejectionTime
+                && this.maxEjectionTime == other.maxEjectionTime;
+    }
+
+    @Override
+    public String toString() {
+        return "OutlierDetectionConfiguration{" + "window=" + window + ", minRequests=" + minRequests + ", errorRate=" + errorRate
+                + ", slowThreshold=" + slowThreshold + ", slowRate=" + slowRate + ", ejectionTime=" + ejectionTime
+                + ", maxEjectionTime=" + maxEjectionTime + '}';
+    }
+
+}
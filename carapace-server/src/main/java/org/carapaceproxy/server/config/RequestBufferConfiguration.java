@@ -0,0 +1,68 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.config;
+
+/**
+ * Limits of the buffering of the bodies of the requests, while the connection
+ * to the backend is not ready yet or the backend is slower than the client
+ */
+public class RequestBufferConfiguration {
+
+    public static final RequestBufferConfiguration DEFAULT = new RequestBufferConfiguration(1024 * 1024);
+
+    private final long memorySize;
+
+    /**
+     * @param memorySize bytes of the body kept in memory for each request,
+     * reading from the client is paused when the limit is reached
+     */
+    public RequestBufferConfiguration(long memorySize) {
+        this.memorySize = memorySize;
+    }
+
+    public long getMemorySize() {
+        return memorySize;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 3;
+        hash = 41 * hash + (int) (this.memorySize ^ (this.memorySize >>> 32));
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final RequestBufferConfiguration other = (RequestBufferConfiguration) obj;
+        return this.memorySize == other.memorySize;
+    }
+
+    @Override
+    public String toString() {
+        return "RequestBufferConfiguration{" + "memorySize=" + memorySize + '}';
+    }
+
+}
@@ -0,0 +1,270 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.mapper;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.carapaceproxy.EndpointStats;
+import org.carapaceproxy.client.ConnectionsManagerStats;
+import org.carapaceproxy.client.EndpointKey;
+import org.carapaceproxy.server.config.BackendConfiguration;
+import static org.carapaceproxy.server.config.DirectorConfiguration.STRATEGY_CONSISTENT_HASH;
+import static org.carapaceproxy.server.config.DirectorConfiguration.STRATEGY_LEAST_REQUESTS;
+import static org.carapaceproxy.server.config.DirectorConfiguration.STRATEGY_PEAK_EWMA;
+import static org.carapaceproxy.server.config.DirectorConfiguration.STRATEGY_POWER_OF_TWO_CHOICES;
+import static org.carapaceproxy.server.config.DirectorConfiguration.STRATEGY_WEIGHTED_ROUND_ROBIN;
+
+/**
+ * Chooses the backend of a director according to its load balancing
+ * strategy.
+ * <p>
+ * For every backend the list which starts with it and continues with the
+ * other ones (to be tried if the first is not available) is built in
+ * advance, so that choosing a backend does not allocate memory.
+ * </p>
+ * <p>
+ * The sticky strategy hashes the session (or the user) on a ring of virtual
+ * nodes, so that it is served by the same backend and only the sessions of a
+ * removed backend are moved. Load is bounded: a backend with more than
+ * {@value #HASH_LOAD_FACTOR} times the average outstanding requests is
+ * skipped and the next one on the ring is chosen.
+ * </p>
+ */
+class BackendsBalancer {
+
+    private static final int VIRTUAL_NODES = 100;
+    private static final double HASH_LOAD_FACTOR = 1.25;
+    private static final HashFunction HASH = Hashing.murmur3_32();
+
+    private final String strategy;
+    private final EndpointKey[] keys;
+    private final int[] weights;
+    private final int totalWeight;
+    private final List<String>[] orderings;
+    // smooth weighted round robin, guarded by this
+    private final int[] currentWeights;
+    // spreads the load among backends with the same score
+    private final AtomicInteger offset = new AtomicInteger();
+    // sticky strategy: sorted hashes of the virtual nodes and their backends
+    private final String[] ids;
+    private final int[] ringHashes;
+    private final int[] ringBackends;
+    // backends in ring order, starting from a virtual node, built on demand
+    private final AtomicReferenceArray<List<String>> ringOrderings;
+
+    @SuppressWarnings("unchecked")
+    BackendsBalancer(String strategy, List<BackendConfiguration> backends) {
+        this.strategy = strategy;
+        int size = backends.size();
+        this.keys = new EndpointKey[size];
+        this.weights = new int[size];
+        this.currentWeights = new int[size];
+        this.orderings = new List[size];
+        this.ids = new String[size];
+        int total = 0;
+        for (int i = 0; i < size; i++) {
+            BackendConfiguration backend = backends.get(i);
+            ids[i] = backend.getId();
+            keys[i] = EndpointKey.make(backend.getHost(), backend.getPort());
+            weights[i] = backend.getWeight();
+            total += weights[i];
+            List<String> ordering = new ArrayList<>(size);
+            for (int j = 0; j < size; j++) {
+                ordering.add(backends.get((i + j) % size).getId());
+            }
+            orderings[i] = Collections.unmodifiableList(ordering);
+        }
+        this.totalWeight = total;
+
+        if (STRATEGY_CONSISTENT_HASH.equals(strategy)) {
+            long[] ring = new long[size * VIRTUAL_NODES];
+            for (int i = 0; i < size; i++) {
+                for (int v = 0; v < VIRTUAL_NODES; v++) {
+                    int hash = hash(ids[i] + "#" + v);
+                    // hash in the high bits, backend in the low bits
+                    ring[i * VIRTUAL_NODES + v] = ((long) hash << 32) | i;
+                }
+            }
+            Arrays.sort(ring);
+            this.ringHashes = new int[ring.length];
+            this.ringBackends = new int[ring.length];
+            for (int i = 0; i < ring.length; i++) {
+                ringHashes[i] = (int) (ring[i] >> 32);
+                ringBackends[i] = (int) ring[i];
+            }
+            this.ringOrderings = new AtomicReferenceArray<>(ring.length);
+        } else {
+            this.ringHashes = null;
+            this.ringBackends = null;
+            this.ringOrderings = null;
+        }
+    }
+
+    private static int hash(String key) {
+        return HASH.hashString(key, StandardCharsets.UTF_8).asInt();
+    }
+
+    /**
+     * @param stats live stats of the backends, may be null
+     * @param userId
+     * @param sessionId
+     * @return the backends, in order of preference
+     */
+    List<String> select(ConnectionsManagerStats stats, String userId, String sessionId) {
+        int size = keys.length;
+        if (size == 0) {
+            return Collections.emptyList();
+        }
+        if (size == 1) {
+            return orderings[0];
+        }
+        switch (strategy) {
+            case STRATEGY_LEAST_REQUESTS:
+                return orderings[leastLoaded(stats, false)];
+            case STRATEGY_PEAK_EWMA:
+                return orderings[leastLoaded(stats, true)];
+            case STRATEGY_POWER_OF_TWO_CHOICES:
+                return orderings[powerOfTwoChoices(stats)];
+            case STRATEGY_WEIGHTED_ROUND_ROBIN:
+                return orderings[nextWeighted()];
+            case STRATEGY_CONSISTENT_HASH: {
+                String key = sessionId != null ? sessionId : userId;
+                if (key == null) {
+                    return orderings[leastLoaded(stats, false)];
+                }
+                return ringOrdering(consistentHash(key, stats));
+            }
+            default:
+                return orderings[ThreadLocalRandom.current().nextInt(size)];
+        }
+    }
+
+    private int leastLoaded(ConnectionsManagerStats stats, boolean latency) {
+        int size = keys.length;
+        int start = Math.floorMod(offset.getAndIncrement(), size);
+        int best = start;
+        double bestCost = Double.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            int candidate = (start + i) % size;
+            double cost = cost(stats, candidate, latency);
+            if (cost < bestCost) {
+                best = candidate;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    private int powerOfTwoChoices(ConnectionsManagerStats stats) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int size = keys.length;
+        int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if (second >= first) {
+            second++;
+        }
+        return cost(stats, second, false) < cost(stats, first, false) ? second : first;
+    }
+
+    /**
+     * Outstanding requests, multiplied by the latency of the backend (peak
+     * EWMA) if requested
+     */
+    private double cost(ConnectionsManagerStats stats, int backend, boolean latency) {
+        EndpointStats endpointStats = stats != null ? stats.getEndpointStats(keys[backend]) : null;
+        if (endpointStats == null) {
+            // never used
+            return 0;
+        }
+        int active = endpointStats.getActiveConnections().get();
+        if (!latency) {
+            return active;
+        }
+        return Math.max(endpointStats.getLatencyEwma(), 1) * (active + 1);
+    }
+
+    /**
+     * @return the position on the ring of the first virtual node, after the
+     * hash of the key, whose backend is not overloaded
+     */
+    private int consistentHash(String key, ConnectionsManagerStats stats) {
+        int start = Arrays.binarySearch(ringHashes, hash(key));
+        if (start < 0) {
+            start = -start - 1;
+        }
+        if (start == ringHashes.length) {
+            start = 0;
+        }
+        if (stats == null) {
+            return start;
+        }
+        double total = 0;
+        for (int i = 0; i < keys.length; i++) {
+            total += cost(stats, i, false);
+        }
+        double capacity = Math.ceil(HASH_LOAD_FACTOR * (total + 1) / keys.length);
+        for (int i = 0; i < ringHashes.length; i++) {
+            int position = (start + i) % ringHashes.length;
+            if (cost(stats, ringBackends[position], false) < capacity) {
+                return position;
+            }
+        }
+        return start;
+    }
+
+    private List<String> ringOrdering(int position) {
+        List<String> ordering = ringOrderings.get(position);
+        if (ordering == null) {
+            Set<String> distinct = new LinkedHashSet<>();
+            for (int i = 0; i < ringBackends.length && distinct.size() < ids.length; i++) {
+                distinct.add(ids[ringBackends[(position + i) % ringBackends.length]]);
+            }
+            ordering = Collections.unmodifiableList(new ArrayList<>(distinct));
+            ringOrderings.set(position, ordering);
+        }
+        return ordering;
+    }
+
+    /**
+     * Smooth weighted round robin: the backend with the highest current
+     * weight is chosen and its current weight is lowered by the total.
+     */
+    private synchronized int nextWeighted() {
+        int best = 0;
+        for (int i = 0; i < currentWeights.length; i++) {
+            currentWeights[i] += weights[i];
+            if (currentWeights[i] > currentWeights[best]) {
+                best = i;
+            }
+        }
+        currentWeights[best] -= totalWeight;
+        return best;
+    }
+}
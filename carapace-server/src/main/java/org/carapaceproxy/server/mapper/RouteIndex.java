@@ -0,0 +1,184 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.mapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import static org.carapaceproxy.server.RequestHandler.PROPERTY_HEADERS;
+import static org.carapaceproxy.server.RequestHandler.PROPERTY_URI;
+import org.carapaceproxy.server.config.RouteConfiguration;
+import org.carapaceproxy.server.mapper.requestmatcher.MatchingContext;
+import org.carapaceproxy.server.mapper.requestmatcher.MatchingProperties;
+
+/**
+ * Index of the enabled routes, built once per configuration.
+ * <p>
+ * For the host header and the uri of the request the literal prefix required
+ * by every route (see
+ * {@link org.carapaceproxy.server.mapper.requestmatcher.RequestMatcher#getRequiredPrefix(java.lang.String)})
+ * is stored in a trie: looking up the request values yields the set of
+ * candidate routes, the matchers of the other routes can't be satisfied.
+ * Candidates are returned in configuration order, so that the first matching
+ * route still wins.
+ * </p>
+ */
+class RouteIndex {
+
+    static final String PROPERTY_HOST = PROPERTY_HEADERS + "host";
+    private static final String[] INDEXED_PROPERTIES = {PROPERTY_HOST, PROPERTY_URI};
+    private static final int[] INDEXED_SLOTS = {
+        MatchingProperties.slotOf(PROPERTY_HOST), MatchingProperties.slotOf(PROPERTY_URI)
+    };
+
+    private final RouteConfiguration[] routes;
+    private final PrefixTrie[] tries = new PrefixTrie[INDEXED_PROPERTIES.length];
+
+    RouteIndex(List<RouteConfiguration> allRoutes) {
+        List<RouteConfiguration> enabled = new ArrayList<>();
+        for (RouteConfiguration route : allRoutes) {
+            if (route.isEnabled()) {
+                enabled.add(route);
+            }
+        }
+        this.routes = enabled.toArray(new RouteConfiguration[0]);
+        for (int p = 0; p < INDEXED_PROPERTIES.length; p++) {
+            PrefixTrie trie = new PrefixTrie();
+            for (int i = 0; i < routes.length; i++) {
+                String prefix = routes[i].getMatcher().getRequiredPrefix(INDEXED_PROPERTIES[p]);
+                if (prefix == null) {
+                    trie.unconstrained.set(i);
+                } else {
+                    trie.add(prefix, i);
+                }
+            }
+            tries[p] = trie;
+        }
+    }
+
+    RouteConfiguration getRoute(int index) {
+        return routes[index];
+    }
+
+    int size() {
+        return routes.length;
+    }
+
+    /**
+     * @param context
+     * @return indexes of the routes which may match the request, in
+     * configuration order
+     */
+    BitSet candidates(MatchingContext context) {
+        BitSet result = null;
+        for (int p = 0; p < INDEXED_PROPERTIES.length; p++) {
+            PrefixTrie trie = tries[p];
+            if (trie.isEmpty()) {
+                // no route has got constraints on this property
+                continue;
+            }
+            BitSet candidates = trie.lookup(context.getProperty(INDEXED_SLOTS[p]));
+            if (result == null) {
+                result = candidates;
+            } else {
+                result.and(candidates);
+            }
+        }
+        if (result == null) {
+            result = new BitSet(routes.length);
+            result.set(0, routes.length);
+        }
+        return result;
+    }
+
+    private static final class PrefixTrie {
+
+        private final BitSet unconstrained = new BitSet();
+        private final Node root = new Node();
+        private boolean empty = true;
+
+        void add(String prefix, int route) {
+            Node node = root;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.getOrCreateChild(prefix.charAt(i));
+            }
+            if (node.routes == null) {
+                node.routes = new BitSet();
+            }
+            node.routes.set(route);
+            empty = false;
+        }
+
+        boolean isEmpty() {
+            return empty;
+        }
+
+        BitSet lookup(String value) {
+            BitSet result = (BitSet) unconstrained.clone();
+            Node node = root;
+            int i = 0;
+            while (node != null) {
+                if (node.routes != null) {
+                    result.or(node.routes);
+                }
+                if (i == value.length()) {
+                    break;
+                }
+                node = node.getChild(value.charAt(i++));
+            }
+            return result;
+        }
+    }
+
+    private static final class Node {
+
+        // sorted
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        // routes whose prefix ends here
+        private BitSet routes;
+
+        Node getChild(char c) {
+            int pos = Arrays.binarySearch(keys, c);
+            return pos >= 0 ? children[pos] : null;
+        }
+
+        Node getOrCreateChild(char c) {
+            int pos = Arrays.binarySearch(keys, c);
+            if (pos >= 0) {
+                return children[pos];
+            }
+            int insert = -pos - 1;
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, insert);
+            System.arraycopy(children, 0, newChildren, 0, insert);
+            System.arraycopy(keys, insert, newKeys, insert + 1, keys.length - insert);
+            System.arraycopy(children, insert, newChildren, insert + 1, children.length - insert);
+            Node child = new Node();
+            newKeys[insert] = c;
+            newChildren[insert] = child;
+            keys = newKeys;
+            children = newChildren;
+            return child;
+        }
+    }
+}
@@ -22,6 +22,7 @@ package org.carapaceproxy.server.mapper;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -33,6 +34,8 @@ import java.util.logging.Logger;
 import org.carapaceproxy.EndpointMapper;
 import org.carapaceproxy.MapResult;
 import org.carapaceproxy.MapResult.Action;
+import org.carapaceproxy.client.ConnectionsManagerStats;
+import org.carapaceproxy.client.EndpointKey;
 import org.carapaceproxy.configstore.ConfigurationStore;
 import org.carapaceproxy.server.RequestHandler;
 import static org.carapaceproxy.server.RequestHandler.PROPERTY_URI;
@@ -44,6 +47,7 @@ import org.carapaceproxy.server.certiticates.DynamicCertificatesManager;
 import org.carapaceproxy.server.config.ActionConfiguration;
 import org.carapaceproxy.server.config.BackendConfiguration;
 import org.carapaceproxy.server.config.BackendSelector;
+import org.carapaceproxy.server.config.CompressionConfiguration;
 import org.carapaceproxy.server.config.ConfigurationNotValidException;
 import org.carapaceproxy.server.config.DirectorConfiguration;
 import static org.carapaceproxy.server.config.DirectorConfiguration.ALL_BACKENDS;
@@ -65,6 +69,9 @@ public class StandardEndpointMapper extends EndpointMapper {
     private final Map<String, DirectorConfiguration> directors = new HashMap<>();
     private final List<String> allbackendids = new ArrayList<>();
     private final List<RouteConfiguration> routes = new ArrayList<>();
+    private volatile RouteIndex routeIndex; // built on first use, reset whenever a route is added
+    private volatile Map<String, BackendsBalancer> balancers; // built on first use, reset whenever a director or a backend is added
+    private volatile ConnectionsManagerStats connectionsManagerStats;
     private final Map<String, ActionConfiguration> actions = new HashMap<>();
     public final Map<String, CustomHeader> headers = new HashMap();
     private final BackendSelector backendSelector;
@@ -74,6 +81,8 @@ public class StandardEndpointMapper extends EndpointMapper {
     private String forceBackendParameter = "x-backend";
 
     private static final int MAX_IDS = 200;
+    private static final int DEFAULT_RETRY_BODY_SIZE = 64 * 1024;
+    private static final int DEFAULT_COMPRESSION_MIN_SIZE = 1024;
     private static final Logger LOG = Logger.getLogger(StandardEndpointMapper.class.getName());
     private static final String ACME_CHALLENGE_URI_PATTERN = "/\\.well-known/acme-challenge/";
     private DynamicCertificatesManager dynamicCertificateManger;
@@ -180,11 +189,47 @@ public class StandardEndpointMapper extends EndpointMapper {
                     }
                 }
 
+                // Action of type CACHE, defaults for contents which do not declare them
+                _action.setStaleWhileRevalidate(Integer.parseInt(properties.getProperty(prefix + "stalewhilerevalidate", "0")));
+                _action.setStaleIfError(Integer.parseInt(properties.getProperty(prefix + "staleiferror", "0")));
+                if (_action.getStaleWhileRevalidate() < 0 || _action.getStaleIfError() < 0) {
+                    throw new ConfigurationNotValidException("while configuring action '" + id
+                            + "': stalewhilerevalidate and staleiferror must not be negative");
+                }
+
+                // Actions of type PROXY and CACHE, retries of idempotent requests on the other backends
+                _action.setRetries(Integer.parseInt(properties.getProperty(prefix + "retries", "0")));
+                _action.setRetryBodySize(Integer.parseInt(properties.getProperty(prefix + "retrybodysize", DEFAULT_RETRY_BODY_SIZE + "")));
+                if (_action.getRetries() < 0 || _action.getRetryBodySize() < 0) {
+                    throw new ConfigurationNotValidException("while configuring action '" + id
+                            + "': retries and retrybodysize must not be negative");
+                }
+
+                // Actions of type PROXY and CACHE, compression of the responses
+                String compressionContentTypes = properties.getProperty(prefix + "compression.contenttypes", "").trim();
+                int compressionMinSize = Integer.parseInt(properties.getProperty(prefix + "compression.minsize", DEFAULT_COMPRESSION_MIN_SIZE + ""));
+                if (compressionMinSize < 0) {
+                    throw new ConfigurationNotValidException("while configuring action '" + id
+                            + "': compression.minsize must not be negative");
+                }
+                if (!compressionContentTypes.isEmpty()) {
+                    Set<String> contentTypes = new HashSet<>();
+                    for (String contentType : compressionContentTypes.split(",")) {
+                        if (!contentType.trim().isEmpty()) {
+                            contentTypes.add(contentType);
+                        }
+                    }
+                    _action.setCompression(new CompressionConfiguration(contentTypes, compressionMinSize));
+                }
+
                 addAction(_action);
                 LOG.info("configured action " + id + " type=" + action + " enabled:" + enabled + " headers:" + headersIds
                         + " redirect location:" + redirectLocation + " redirect proto:" + _action.getRedirectProto()
                         + " redirect host:" + _action.getRedirectHost() + " redirect port:" + _action.getRedirectPort()
                         + " redirect path:" + _action.getRedirectPath()
+                        + " stale-while-revalidate:" + _action.getStaleWhileRevalidate() + " stale-if-error:" + _action.getStaleIfError()
+                        + " retries:" + _action.getRetries() + " retry-body-size:" + _action.getRetryBodySize()
+                        + " compression:" + _action.getCompression()
                 );
             }
         }
@@ -200,9 +245,13 @@ public class StandardEndpointMapper extends EndpointMapper {
                 String host = properties.getProperty(prefix + "host", "localhost");
                 int port = Integer.parseInt(properties.getProperty(prefix + "port", "8086"));
                 String probePath = properties.getProperty(prefix + "probePath", null);
-                LOG.info("configured backend " + id + " " + host + ":" + port + " enabled:" + enabled);
+                int weight = Integer.parseInt(properties.getProperty(prefix + "weight", "1"));
+                if (weight <= 0) {
+                    throw new ConfigurationNotValidException("invalid weight " + weight + " for backend " + id + ", it must be positive");
+                }
+                LOG.info("configured backend " + id + " " + host + ":" + port + " weight:" + weight + " enabled:" + enabled);
                 if (enabled) {
-                    BackendConfiguration config = new BackendConfiguration(id, host, port, probePath);
+                    BackendConfiguration config = new BackendConfiguration(id, host, port, probePath, weight);
                     addBackend(config);
                 }
             }
@@ -217,9 +266,21 @@ public class StandardEndpointMapper extends EndpointMapper {
             if (!id.isEmpty()) {
                 boolean enabled = Boolean.parseBoolean(properties.getProperty(prefix + "enabled", "false"));
                 String backends = properties.getProperty(prefix + "backends", "");
-                LOG.info("configured director " + id + " backends:" + backends + ", enabled:" + enabled);
+                String strategy = properties.getProperty(prefix + "strategy", DirectorConfiguration.STRATEGY_RANDOM).trim().toLowerCase();
+                switch (strategy) {
+                    case DirectorConfiguration.STRATEGY_RANDOM:
+                    case DirectorConfiguration.STRATEGY_LEAST_REQUESTS:
+                    case DirectorConfiguration.STRATEGY_PEAK_EWMA:
+                    case DirectorConfiguration.STRATEGY_POWER_OF_TWO_CHOICES:
+                    case DirectorConfiguration.STRATEGY_WEIGHTED_ROUND_ROBIN:
+                    case DirectorConfiguration.STRATEGY_CONSISTENT_HASH:
+                        break;
+                    default:
+                        throw new ConfigurationNotValidException("invalid strategy " + strategy + " for director " + id);
+                }
+                LOG.info("configured director " + id + " backends:" + backends + ", strategy:" + strategy + ", enabled:" + enabled);
                 if (enabled) {
-                    DirectorConfiguration config = new DirectorConfiguration(id);
+                    DirectorConfiguration config = new DirectorConfiguration(id, strategy);
                     String[] backendids = backends.split(",");
                     for (String backendId : backendids) {
                         if (!backendId.equals(DirectorConfiguration.ALL_BACKENDS) && !this.backends.containsKey(backendId)) {
@@ -254,34 +315,50 @@ public class StandardEndpointMapper extends EndpointMapper {
                 }
             }
         }
+        routeIndex = new RouteIndex(routes);
+        balancers = buildBalancers();
     }
 
-    private final class RandomBackendSelector implements BackendSelector {
+    private Map<String, BackendsBalancer> buildBalancers() {
+        Map<String, BackendsBalancer> result = new HashMap<>();
+        for (DirectorConfiguration director : directors.values()) {
+            List<String> ids = director.getBackends().contains(ALL_BACKENDS) ? allbackendids : director.getBackends();
+            List<BackendConfiguration> directorBackends = new ArrayList<>(ids.size());
+            for (String id : ids) {
+                BackendConfiguration backend = backends.get(id);
+                if (backend != null) {
+                    directorBackends.add(backend);
+                }
+            }
+            result.put(director.getId(), new BackendsBalancer(director.getStrategy(), directorBackends));
+        }
+        return result;
+    }
+
+    /**
+     * Selects the backends using the load balancing strategy of the director
+     */
+    private final class DirectorBackendSelector implements BackendSelector {
 
         @Override
         public List<String> selectBackends(String userId, String sessionId, String director) {
-            DirectorConfiguration directorConfig = directors.get(director);
-            if (directorConfig == null) {
+            Map<String, BackendsBalancer> _balancers = balancers;
+            if (_balancers == null) {
+                _balancers = buildBalancers();
+                balancers = _balancers;
+            }
+            BackendsBalancer balancer = _balancers.get(director);
+            if (balancer == null) {
                 LOG.log(Level.SEVERE, "Director '" + director + "' not configured, while handling request  + userId=" + userId + " sessionId=" + sessionId);
                 return Collections.emptyList();
             }
-            if (directorConfig.getBackends().contains(ALL_BACKENDS)) {
-                ArrayList<String> result = new ArrayList<>(allbackendids);
-                Collections.shuffle(result);
-                return result;
-            } else if (directorConfig.getBackends().size() == 1) {
-                return directorConfig.getBackends();
-            } else {
-                ArrayList<String> result = new ArrayList<>(directorConfig.getBackends());
-                Collections.shuffle(result);
-                return result;
-            }
+            return balancer.select(connectionsManagerStats, userId, sessionId);
         }
 
     }
 
     public StandardEndpointMapper() {
-        this.backendSelector = new RandomBackendSelector();
+        this.backendSelector = new DirectorBackendSelector();
     }
 
     private void addHeader(String id, String name, String value, String mode) throws ConfigurationNotValidException {
@@ -309,6 +386,7 @@ public class StandardEndpointMapper extends EndpointMapper {
         if (directors.put(service.getId(), service) != null) {
             throw new ConfigurationNotValidException("service " + service.getId() + " is already configured");
         }
+        balancers = null;
     }
 
     public void addBackend(BackendConfiguration backend) throws ConfigurationNotValidException {
@@ -316,6 +394,7 @@ public class StandardEndpointMapper extends EndpointMapper {
             throw new ConfigurationNotValidException("backend " + backend.getId() + " is already configured");
         }
         allbackendids.add(backend.getId());
+        balancers = null;
     }
 
     public void addAction(ActionConfiguration action) throws ConfigurationNotValidException {
@@ -329,6 +408,16 @@ public class StandardEndpointMapper extends EndpointMapper {
             throw new ConfigurationNotValidException("route " + route.getId() + " is already configured");
         }
         routes.add(route);
+        routeIndex = null;
+    }
+
+    private RouteIndex getRouteIndex() {
+        RouteIndex index = routeIndex;
+        if (index == null) {
+            index = new RouteIndex(routes);
+            routeIndex = index;
+        }
+        return index;
     }
 
 
@@ -363,13 +452,20 @@ public class StandardEndpointMapper extends EndpointMapper {
         this.dynamicCertificateManger = manager;
     }
 
+    @Override
+    public void setConnectionsManagerStats(ConnectionsManagerStats stats) {
+        this.connectionsManagerStats = stats;
+    }
+
     @Override
     public MapResult map(HttpRequest request, String userId, String sessionId, BackendHealthManager backendHealthManager, RequestHandler requestHandler) {
         boolean somethingMatched = false;
-        for (RouteConfiguration route : routes) {
-            if (!route.isEnabled()) {
-                continue;
-            }
+        // cache action without available backends, stale contents may be served
+        ActionConfiguration unavailableCacheAction = null;
+        RouteIndex index = getRouteIndex();
+        BitSet candidates = index.candidates(requestHandler);
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            RouteConfiguration route = index.getRoute(i);
             boolean matchResult = route.matches(requestHandler);
             if (LOG.isLoggable(Level.FINER)) {
                 LOG.finer("route " + route.getId() + ", map " + request.uri() + " -> " + matchResult);
@@ -452,19 +548,56 @@ public class StandardEndpointMapper extends EndpointMapper {
                                     + backendId;
                             customHeaders.add(new CustomHeader(DEBUGGING_HEADER_ID, debuggingHeaderName, routingPath, HeaderMode.ADD));
                         }
-                        return new MapResult(backend.getHost(), backend.getPort(), selectedAction, route.getId())
-                                .setCustomHeaders(customHeaders);
+                        MapResult result = new MapResult(backend.getHost(), backend.getPort(), selectedAction, route.getId())
+                                .setCustomHeaders(customHeaders)
+                                .setCompression(action.getCompression());
+                        if (selectedAction == MapResult.Action.CACHE) {
+                            result.setStaleWhileRevalidate(action.getStaleWhileRevalidate())
+                                    .setStaleIfError(action.getStaleIfError());
+                        }
+                        if (action.getRetries() > 0) {
+                            result.setRetries(action.getRetries(), action.getRetryBodySize(),
+                                    retryBackends(selectedBackends, backendId));
+                        }
+                        return result;
+                    }
+                    if (selectedAction == MapResult.Action.CACHE && unavailableCacheAction == null) {
+                        unavailableCacheAction = action;
                     }
                 }
             }
         }
         if (somethingMatched) {
-            return MapResult.INTERNAL_ERROR(MapResult.NO_ROUTE);
+            MapResult result = MapResult.INTERNAL_ERROR(MapResult.NO_ROUTE);
+            if (unavailableCacheAction != null) {
+                result.setStaleIfError(unavailableCacheAction.getStaleIfError());
+            }
+            return result;
         } else {
             return MapResult.NOT_FOUND(MapResult.NO_ROUTE);
         }
     }
 
+    /**
+     * The backends following the selected one, availability is checked only
+     * in case of retry
+     */
+    private List<EndpointKey> retryBackends(List<String> selectedBackends, String selected) {
+        List<EndpointKey> result = new ArrayList<>();
+        boolean found = false;
+        for (String backendId : selectedBackends) {
+            if (found) {
+                BackendConfiguration backend = this.backends.get(backendId);
+                if (backend != null) {
+                    result.add(EndpointKey.make(backend.getHost(), backend.getPort()));
+                }
+            } else {
+                found = backendId.equals(selected);
+            }
+        }
+        return result;
+    }
+
     public String getDefaultNotFoundAction() {
         return defaultNotFoundAction;
     }
@@ -46,6 +46,19 @@ public class AndRequestMatcher implements RequestMatcher {
         return true;
     }
 
+    @Override
+    public String getRequiredPrefix(String name) {
+        // all the conditions must hold, the most selective one is used
+        String result = null;
+        for (RequestMatcher matcher : matchers) {
+            String prefix = matcher.getRequiredPrefix(name);
+            if (prefix != null && (result == null || prefix.length() > result.length())) {
+                result = prefix;
+            }
+        }
+        return result;
+    }
+
     @Override
     public String getDescription() {
         return matchers.stream()
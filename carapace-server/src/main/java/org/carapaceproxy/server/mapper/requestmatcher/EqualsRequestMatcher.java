@@ -27,20 +27,27 @@ package org.carapaceproxy.server.mapper.requestmatcher;
 public class EqualsRequestMatcher implements RequestMatcher {
 
     private final String name;
+    private final int slot;
     private final String value;
 
     public EqualsRequestMatcher(String key, String value) {
         this.name = key.toLowerCase();
+        this.slot = MatchingProperties.slotOf(name);
         this.value = value;
     }
 
     @Override
     public boolean matches(MatchingContext context) {
-        return context.getProperty(name).equals(value);
+        return context.getProperty(slot).equals(value);
     }
 
     public String getDescription() {
         return name + " = " + value;
     }
 
+    @Override
+    public String getRequiredPrefix(String name) {
+        return this.name.equals(name) ? value : null;
+    }
+
 }
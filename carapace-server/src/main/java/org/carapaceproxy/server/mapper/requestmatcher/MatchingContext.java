@@ -33,6 +33,15 @@ public interface MatchingContext {
      */
     String getProperty(String name);
 
+    /**
+     *
+     * @param slot see {@link MatchingProperties#slotOf(java.lang.String)}.
+     * @return property value or empty string whether not exists.
+     */
+    default String getProperty(int slot) {
+        return getProperty(MatchingProperties.nameOf(slot));
+    }
+
     /**
      *
      * @return true whether HTTPS is used.
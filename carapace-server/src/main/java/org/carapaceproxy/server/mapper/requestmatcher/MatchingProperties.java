@@ -0,0 +1,73 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.mapper.requestmatcher;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Registry of the names of the properties used by the matchers.
+ * <p>
+ * Every property is resolved to an integer slot when the matcher is created,
+ * so that a {@link MatchingContext} can keep the values in an array.
+ * Slots are never released.
+ * </p>
+ */
+public final class MatchingProperties {
+
+    private static final Map<String, Integer> SLOTS = new HashMap<>();
+    private static volatile String[] names = new String[0];
+
+    private MatchingProperties() {
+    }
+
+    /**
+     * @param name property name, converted to lowercase.
+     * @return the slot of the property.
+     */
+    public static synchronized int slotOf(String name) {
+        String key = name.toLowerCase();
+        Integer slot = SLOTS.get(key);
+        if (slot == null) {
+            slot = names.length;
+            String[] newNames = Arrays.copyOf(names, slot + 1);
+            newNames[slot] = key;
+            SLOTS.put(key, slot);
+            names = newNames;
+        }
+        return slot;
+    }
+
+    /**
+     * @param slot
+     * @return lowercase name of the property.
+     */
+    public static String nameOf(int slot) {
+        return names[slot];
+    }
+
+    /**
+     * @return number of known properties.
+     */
+    public static int size() {
+        return names.length;
+    }
+}
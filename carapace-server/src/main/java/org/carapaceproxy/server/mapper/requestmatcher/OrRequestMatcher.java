@@ -48,6 +48,29 @@ public class OrRequestMatcher implements RequestMatcher {
         return false;
     }
 
+    @Override
+    public String getRequiredPrefix(String name) {
+        // common prefix of the alternatives
+        String result = null;
+        for (RequestMatcher matcher : matchers) {
+            String prefix = matcher.getRequiredPrefix(name);
+            if (prefix == null) {
+                return null;
+            }
+            if (result == null) {
+                result = prefix;
+            } else {
+                int length = 0;
+                while (length < result.length() && length < prefix.length()
+                        && result.charAt(length) == prefix.charAt(length)) {
+                    length++;
+                }
+                result = result.substring(0, length);
+            }
+        }
+        return result;
+    }
+
     @Override
     public String getDescription() {
         String desc = wrap ? "(" : "";
@@ -30,21 +30,73 @@ import org.carapaceproxy.server.config.ConfigurationNotValidException;
  */
 public class RegexpRequestMatcher implements RequestMatcher {
 
+    private static final String METACHARS = "\\^$.|?*+()[]{}";
+    private static final String QUANTIFIERS = "?*{";
+
     private final String name;
+    private final int slot;
     private final Pattern expression;
+    private final String literalPrefix;
 
     public RegexpRequestMatcher(String name, String expression) throws ConfigurationNotValidException {
         this.name = name;
+        this.slot = MatchingProperties.slotOf(name);
         try {
             this.expression = Pattern.compile(expression);
         } catch (PatternSyntaxException err) {
             throw new ConfigurationNotValidException(err);
         }
+        this.literalPrefix = literalPrefix(expression);
+    }
+
+    /**
+     * Literal characters every matching string starts with.
+     */
+    static String literalPrefix(String expression) {
+        if (expression.indexOf('|') >= 0) {
+            // alternatives, not worth to be analyzed
+            return "";
+        }
+        StringBuilder prefix = new StringBuilder();
+        int i = expression.startsWith("^") ? 1 : 0;
+        while (i < expression.length()) {
+            char c = expression.charAt(i);
+            char literal;
+            int next;
+            if (c == '\\') {
+                if (i + 1 >= expression.length()) {
+                    break;
+                }
+                literal = expression.charAt(i + 1);
+                if (Character.isLetterOrDigit(literal)) {
+                    // character classes, back references, quoting...
+                    break;
+                }
+                next = i + 2;
+            } else if (METACHARS.indexOf(c) >= 0) {
+                break;
+            } else {
+                literal = c;
+                next = i + 1;
+            }
+            if (next < expression.length() && QUANTIFIERS.indexOf(expression.charAt(next)) >= 0) {
+                // optional character
+                break;
+            }
+            prefix.append(literal);
+            i = next;
+        }
+        return prefix.toString();
     }
 
     @Override
     public boolean matches(MatchingContext context) {
-        return expression.matcher(context.getProperty(name)).matches();
+        return expression.matcher(context.getProperty(slot)).matches();
+    }
+
+    @Override
+    public String getRequiredPrefix(String name) {
+        return this.name.equalsIgnoreCase(name) && !literalPrefix.isEmpty() ? literalPrefix : null;
     }
 
     @Override
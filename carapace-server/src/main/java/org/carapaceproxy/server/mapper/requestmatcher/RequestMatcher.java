@@ -35,4 +35,15 @@ public interface RequestMatcher {
      * @return description of the matcher (used by UI).
      */
     String getDescription();
+
+    /**
+     * Necessary condition on a property, used to index the routes.
+     *
+     * @param name property name (lowercase).
+     * @return a prefix the property must start with in order to match the
+     * request, null whether there are no constraints.
+     */
+    default String getRequiredPrefix(String name) {
+        return null;
+    }
 }
@@ -37,6 +37,7 @@ import org.apache.commons.io.IOUtils;
 import org.carapaceproxy.client.ConnectionsManagerStats;
 import org.carapaceproxy.client.EndpointKey;
 import org.carapaceproxy.server.HttpProxyServer;
+import org.carapaceproxy.server.config.RequestBufferConfiguration;
 import org.carapaceproxy.utils.TestEndpointMapper;
 import org.carapaceproxy.utils.TestUtils;
 import static org.junit.Assert.assertEquals;
@@ -108,6 +109,48 @@ public class BigUploadTest {
         }
     }
 
+    /**
+     * Reads the request very slowly and responds with the number of bytes of
+     * the body
+     */
+    public static class SlowDrainingHandler implements ClientHandler {
+
+        @Override
+        public void handle(Socket client) throws Exception {
+            try (Socket _client = client; // autoclose
+                    InputStream in = client.getInputStream();
+                    OutputStream out = client.getOutputStream()) {
+                StringBuilder headers = new StringBuilder();
+                while (!headers.toString().endsWith("\r\n\r\n")) {
+                    int b = in.read();
+                    if (b == -1) {
+                        return;
+                    }
+                    headers.append((char) b);
+                }
+                long contentLength = 0;
+                for (String header : headers.toString().split("\r\n")) {
+                    if (header.toLowerCase().startsWith("content-length:")) {
+                        contentLength = Long.parseLong(header.substring("content-length:".length()).trim());
+                    }
+                }
+                byte[] buffer = new byte[8 * 1024];
+                long count = 0;
+                while (count < contentLength) {
+                    int read = in.read(buffer);
+                    if (read == -1) {
+                        break;
+                    }
+                    count += read;
+                    Thread.sleep(1);
+                }
+                String body = count + "";
+                out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: " + body.length() + "\r\n\r\n" + body)
+                        .getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+    }
+
     public static final class SimpleBlockingTcpServer implements AutoCloseable {
 
         private final ServerSocket socket;
@@ -223,6 +266,50 @@ public class BigUploadTest {
 
     }
 
+    @Test
+    public void testSlowEndpoint() throws Exception {
+
+        try (SimpleBlockingTcpServer mockServer = new SimpleBlockingTcpServer(SlowDrainingHandler::new)) {
+
+            mockServer.start();
+
+            TestEndpointMapper mapper = new TestEndpointMapper("localhost", mockServer.getPort());
+            EndpointKey key = new EndpointKey("localhost", mockServer.getPort());
+
+            int size = 2_000_000;
+
+            ConnectionsManagerStats stats;
+            try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+                server.getCurrentConfiguration().setRequestBuffer(new RequestBufferConfiguration(64 * 1024));
+                server.getConnectionsManager().applyNewConfiguration(server.getCurrentConfiguration());
+                server.start();
+                int port = server.getLocalPort();
+                URL url = new URL("http://localhost:" + port + "/index.html");
+                HttpURLConnection con = (HttpURLConnection) url.openConnection();
+                con.setDoOutput(true);
+                con.setFixedLengthStreamingMode(size * 3L);
+
+                byte[] contents = "foo".getBytes(StandardCharsets.US_ASCII);
+                try (OutputStream o = con.getOutputStream()) {
+                    for (int i = 0; i < size; i++) {
+                        o.write(contents);
+                    }
+                }
+                try (InputStream in = con.getInputStream()) {
+                    // the whole body reached the endpoint
+                    assertEquals(size * 3 + "", IOUtils.toString(in, StandardCharsets.US_ASCII));
+                }
+                con.disconnect();
+
+                stats = server.getConnectionsManager().getStats();
+                assertNotNull(stats.getEndpoints().get(key));
+            }
+
+            TestUtils.waitForCondition(TestUtils.ALL_CONNECTIONS_CLOSED(stats), 100);
+        }
+
+    }
+
     @Test
     public void testBlockingServerWorks() throws Exception {
 
@@ -26,9 +26,12 @@ import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import static org.hamcrest.CoreMatchers.containsString;
 
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import java.net.ServerSocket;
 import java.net.URL;
 import org.apache.commons.io.IOUtils;
 import org.carapaceproxy.client.ConnectionsManagerStats;
+import org.carapaceproxy.client.EndpointConnection;
 import org.carapaceproxy.client.EndpointKey;
 import org.carapaceproxy.server.HttpProxyServer;
 import org.carapaceproxy.utils.RawHttpClient;
@@ -36,6 +39,7 @@ import org.carapaceproxy.utils.TestEndpointMapper;
 import org.carapaceproxy.utils.TestUtils;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
@@ -48,6 +52,7 @@ import java.util.Properties;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.carapaceproxy.client.EndpointNotAvailableException;
 import org.carapaceproxy.client.impl.ConnectionsManagerImpl;
 import org.carapaceproxy.client.impl.EndpointConnectionImpl;
@@ -228,4 +233,268 @@ public class ConnectionPoolTest {
         TestUtils.waitForCondition(TestUtils.ALL_CONNECTIONS_CLOSED(stats), 100);
 
     }
+
+    @Test
+    public void testEventLoopAffinity() throws Exception {
+
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Content-Length", "2")
+                        .withBody("ok")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port());
+        EndpointKey key = new EndpointKey("localhost", wireMockRule.port());
+
+        ConnectionsManagerStats stats;
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            Properties props = new Properties();
+            props.setProperty("connectionsmanager.eventloopaffinity", "true");
+            props.setProperty("connectionsmanager.maxconnectionsperendpoint", "1");
+            props.setProperty("connectionsmanager.borrowtimeout", "1000");
+
+            server.configureAtBoot(new PropertiesConfigurationStore(props));
+            server.start();
+            assertTrue(server.getCurrentConfiguration().isConnectionsEventLoopAffinity());
+            stats = server.getConnectionsManager().getStats();
+            int port = server.getLocalPort();
+
+            // the same client connection is always served by the same event loop
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                assertEquals("ok", client.get("/index.html").getBodyString().trim());
+                TestUtils.waitForCondition(TestUtils.NO_ACTIVE_CONNECTION(stats), 100);
+                assertEquals("ok", client.get("/index.html").getBodyString().trim());
+                TestUtils.waitForCondition(TestUtils.NO_ACTIVE_CONNECTION(stats), 100);
+            }
+            EndpointStats epstats = stats.getEndpointStats(key);
+            assertEquals(1, epstats.getTotalConnections().intValue());
+            assertEquals(0, epstats.getActiveConnections().intValue());
+            assertEquals(2, epstats.getTotalRequests().intValue());
+
+            ExecutorService threadPool = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<?>> all = new ArrayList<>();
+                for (int i = 0; i < 20; i++) {
+                    all.add(
+                            threadPool.submit(() -> {
+                                try {
+                                    assertEquals("ok", IOUtils.
+                                            toString(new URL("http://localhost:" + port + "/index.html").toURI(),
+                                                    "utf-8"));
+                                } catch (Exception err) {
+                                    throw new RuntimeException(err);
+                                }
+                            }));
+                }
+                for (Future<?> handle : all) {
+                    handle.get();
+                }
+            } finally {
+                threadPool.shutdownNow();
+            }
+            TestUtils.waitForCondition(TestUtils.NO_ACTIVE_CONNECTION(stats), 100);
+            assertEquals(22, epstats.getTotalRequests().intValue());
+            // maxconnectionsperendpoint is shared by all the event loops
+            TestUtils.waitForCondition(() -> epstats.getOpenConnections().intValue() <= 1
+                    && epstats.getIdleConnections().intValue() <= 1, 100);
+        }
+
+        TestUtils.waitForCondition(TestUtils.ALL_CONNECTIONS_CLOSED(stats), 100);
+
+    }
+
+    @Test
+    public void testEventLoopIdleConnections() throws Exception {
+
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Content-Length", "2")
+                        .withBody("ok")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port());
+        EndpointKey key = new EndpointKey("localhost", wireMockRule.port());
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            Properties props = new Properties();
+            props.setProperty("connectionsmanager.eventloopaffinity", "true");
+            props.setProperty("connectionsmanager.idletimeout", "2000");
+
+            server.configureAtBoot(new PropertiesConfigurationStore(props));
+            server.start();
+            ConnectionsManagerStats stats = server.getConnectionsManager().getStats();
+            int port = server.getLocalPort();
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                assertEquals("ok", client.get("/index.html").getBodyString().trim());
+            }
+            EndpointStats epstats = stats.getEndpointStats(key);
+            TestUtils.waitForCondition(() -> epstats.getIdleConnections().intValue() == 1, 100);
+            assertEquals(1, epstats.getOpenConnections().intValue());
+
+            // the idle connection is closed by the event loop
+            TestUtils.waitForCondition(() -> epstats.getIdleConnections().intValue() == 0
+                    && epstats.getOpenConnections().intValue() == 0, 100);
+            assertEquals(1, epstats.getTotalConnections().intValue());
+        }
+    }
+
+    @Test
+    public void testPendingAcquisitions() throws Exception {
+
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Content-Length", "2")
+                        .withBody("ok")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port());
+        EndpointKey key = new EndpointKey("localhost", wireMockRule.port());
+
+        ConnectionsManagerStats stats;
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            Properties props = new Properties();
+            props.setProperty("connectionsmanager.maxconnectionsperendpoint", "1");
+            props.setProperty("connectionsmanager.borrowtimeout", "1000");
+
+            server.configureAtBoot(new PropertiesConfigurationStore(props));
+            server.start();
+            stats = server.getConnectionsManager().getStats();
+            ConnectionsManagerImpl connectionsManager = (ConnectionsManagerImpl) server.getConnectionsManager();
+
+            EndpointConnectionImpl connection1 = (EndpointConnectionImpl) connectionsManager.getConnection(key);
+
+            // the pool is exhausted, the requests wait without blocking the caller
+            io.netty.util.concurrent.Future<EndpointConnection> waiter1 = connectionsManager.getConnectionAsync(key, GlobalEventExecutor.INSTANCE);
+            long _start = System.currentTimeMillis();
+            io.netty.util.concurrent.Future<EndpointConnection> waiter2 = connectionsManager.getConnectionAsync(key, GlobalEventExecutor.INSTANCE);
+            assertFalse(waiter1.isDone());
+            assertFalse(waiter2.isDone());
+
+            // the first waiter is served as soon as the connection is released
+            connectionsManager.returnConnection(connection1);
+            assertTrue(waiter1.await(500, TimeUnit.MILLISECONDS));
+            assertTrue(waiter1.isSuccess());
+            assertFalse(waiter2.isDone());
+
+            // the other one gives up after the borrow timeout
+            assertTrue(waiter2.await(5000, TimeUnit.MILLISECONDS));
+            long delta = System.currentTimeMillis() - _start;
+            assertFalse(waiter2.isSuccess());
+            assertTrue(waiter2.cause() instanceof EndpointNotAvailableException);
+            assertThat(waiter2.cause().getMessage(), containsString("Too many"));
+            assertTrue("ERROR AFTER: " + delta, delta >= connectionsManager.getBorrowTimeout());
+
+            connectionsManager.returnConnection((EndpointConnectionImpl) waiter1.getNow());
+            assertEquals(0, connectionsManager.getConnections().getNumActive(key));
+        }
+
+        TestUtils.waitForCondition(TestUtils.ALL_CONNECTIONS_CLOSED(stats), 100);
+
+    }
+
+    @Test
+    public void testPendingAcquisitionsOnInvalidatedConnections() throws Exception {
+
+        // nobody listens on this port
+        int deadPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            deadPort = socket.getLocalPort();
+        }
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port());
+        EndpointKey key = new EndpointKey("localhost", deadPort);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            Properties props = new Properties();
+            props.setProperty("connectionsmanager.maxconnectionsperendpoint", "1");
+            props.setProperty("connectionsmanager.borrowtimeout", "10000");
+
+            server.configureAtBoot(new PropertiesConfigurationStore(props));
+            server.start();
+            ConnectionsManagerImpl connectionsManager = (ConnectionsManagerImpl) server.getConnectionsManager();
+
+            long _start = System.currentTimeMillis();
+            io.netty.util.concurrent.Future<EndpointConnection> first = connectionsManager.getConnectionAsync(key, GlobalEventExecutor.INSTANCE);
+            io.netty.util.concurrent.Future<EndpointConnection> waiter = connectionsManager.getConnectionAsync(key, GlobalEventExecutor.INSTANCE);
+
+            // the failed connection is invalidated and the waiter tries with a new one
+            assertTrue(first.await(5000, TimeUnit.MILLISECONDS));
+            assertFalse(first.isSuccess());
+            assertTrue(waiter.await(5000, TimeUnit.MILLISECONDS));
+            assertFalse(waiter.isSuccess());
+            assertThat(waiter.cause().getMessage(), containsString("Endpoint error while connecting"));
+            long delta = System.currentTimeMillis() - _start;
+            assertTrue("WAITED FOR: " + delta, delta < connectionsManager.getBorrowTimeout());
+            assertEquals(0, connectionsManager.getConnections().getNumActive(key));
+        }
+
+    }
+
+    @Test
+    public void testClientClosedWhileWaitingForConnection() throws Exception {
+
+        stubFor(get(urlEqualTo("/slow.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withFixedDelay(1000)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Content-Length", "2")
+                        .withBody("ok")));
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Content-Length", "2")
+                        .withBody("ok")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port());
+        EndpointKey key = new EndpointKey("localhost", wireMockRule.port());
+
+        ConnectionsManagerStats stats;
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            Properties props = new Properties();
+            props.setProperty("connectionsmanager.maxconnectionsperendpoint", "1");
+            props.setProperty("connectionsmanager.borrowtimeout", "5000");
+
+            server.configureAtBoot(new PropertiesConfigurationStore(props));
+            server.start();
+            stats = server.getConnectionsManager().getStats();
+            ConnectionsManagerImpl connectionsManager = (ConnectionsManagerImpl) server.getConnectionsManager();
+            int port = server.getLocalPort();
+
+            ExecutorService threadPool = Executors.newSingleThreadExecutor();
+            try {
+                // holds the only connection for a while
+                Future<String> slow = threadPool.submit(() -> {
+                    try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                        return client.get("/slow.html").getBodyString().trim();
+                    }
+                });
+                Thread.sleep(200);
+
+                // this client does not wait for its turn
+                try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                    client.sendRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                    Thread.sleep(200);
+                }
+
+                assertEquals("ok", slow.get(10, TimeUnit.SECONDS));
+            } finally {
+                threadPool.shutdownNow();
+            }
+
+            // the connection borrowed on behalf of the closed client is back in the pool
+            TestUtils.waitForCondition(TestUtils.NO_ACTIVE_CONNECTION(stats), 100);
+            TestUtils.waitForCondition(() -> connectionsManager.getConnections().getNumActive(key) == 0, 100);
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                assertEquals("ok", client.get("/index.html").getBodyString().trim());
+            }
+        }
+
+        TestUtils.waitForCondition(TestUtils.ALL_CONNECTIONS_CLOSED(stats), 100);
+
+    }
 }
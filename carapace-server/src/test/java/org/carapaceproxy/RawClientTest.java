@@ -370,6 +370,42 @@ public class RawClientTest {
 
     }
 
+    @Test
+    public void testPipelinedRequests() throws Exception {
+
+        stubFor(get(urlEqualTo("/slow.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withFixedDelay(1000)
+                        .withBody("slow")));
+        stubFor(get(urlEqualTo("/fast.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withBody("fast")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port());
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                // the second response is ready first, but it has to wait for the first one
+                client.sendRequest("GET /slow.html HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                        + "GET /fast.html HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                        + "GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertEquals("slow", client.readResponse().getBodyString());
+                assertEquals("fast", client.readResponse().getBodyString());
+                assertTrue(client.readResponse().getStatusLine().startsWith("HTTP/1.1 404 "));
+
+                // the connection is still usable
+                assertEquals("fast", client.executeRequest("GET /fast.html HTTP/1.1\r\nHost: localhost\r\n\r\n").getBodyString());
+            }
+        }
+    }
+
     @Test
     public void endpointKeyTest() throws Exception {
         {
@@ -0,0 +1,200 @@
+package org.carapaceproxy.listeners;
+
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static org.carapaceproxy.server.config.SSLCertificateConfiguration.CertificateMode.STATIC;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.Http2MultiplexCodecBuilder;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.codec.http2.HttpConversionUtil;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.carapaceproxy.EndpointStats;
+import org.carapaceproxy.client.ConnectionsManagerStats;
+import org.carapaceproxy.client.EndpointKey;
+import org.carapaceproxy.server.HttpProxyServer;
+import org.carapaceproxy.server.config.NetworkListenerConfiguration;
+import org.carapaceproxy.server.config.SSLCertificateConfiguration;
+import org.carapaceproxy.utils.RawHttpClient;
+import org.carapaceproxy.utils.TestEndpointMapper;
+import org.carapaceproxy.utils.TestUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class Http2ListenerTest {
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(0);
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    @Test
+    public void testHttp2AndHttp11OnTheSameListener() throws Exception {
+
+        String nonLocalhost = InetAddress.getLocalHost().getCanonicalHostName();
+
+        String certificate = TestUtils.deployResource("localhost.p12", tmpDir.getRoot());
+
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Content-Length", "it <b>works</b> !!".length() + "")
+                        .withBody("it <b>works</b> !!")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+        EndpointKey key = new EndpointKey("localhost", wireMockRule.port());
+
+        ConnectionsManagerStats stats;
+        try (HttpProxyServer server = new HttpProxyServer(mapper, tmpDir.getRoot());) {
+
+            server.addCertificate(new SSLCertificateConfiguration(nonLocalhost, certificate, "testproxy", STATIC));
+
+            server.addListener(new NetworkListenerConfiguration(nonLocalhost, 0,
+                    true, false, null, nonLocalhost /* default */,
+                    null, null, true));
+
+            server.start();
+            stats = server.getConnectionsManager().getStats();
+            int port = server.getLocalPort();
+
+            // clients without ALPN fall back to HTTP/1.1
+            try (RawHttpClient client = new RawHttpClient(nonLocalhost, port, true, nonLocalhost)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                assertTrue(resp.toString().endsWith("it <b>works</b> !!"));
+            }
+
+            SslContext sslContext = SslContextBuilder.forClient()
+                    .sslProvider(SslProvider.OPENSSL)
+                    .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                    .applicationProtocolConfig(new ApplicationProtocolConfig(
+                            ApplicationProtocolConfig.Protocol.ALPN,
+                            ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                            ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                            ApplicationProtocolNames.HTTP_2))
+                    .build();
+            EventLoopGroup group = new NioEventLoopGroup(1);
+            try {
+                Bootstrap b = new Bootstrap()
+                        .group(group)
+                        .channel(NioSocketChannel.class)
+                        .handler(new ChannelInitializer<SocketChannel>() {
+                            @Override
+                            protected void initChannel(SocketChannel ch) throws Exception {
+                                ch.pipeline().addLast(sslContext.newHandler(ch.alloc(), nonLocalhost, port));
+                                ch.pipeline().addLast(Http2MultiplexCodecBuilder.forClient(new ChannelInboundHandlerAdapter()).build());
+                            }
+                        });
+                Channel channel = b.connect(nonLocalhost, port).sync().channel();
+                SslHandler sslHandler = channel.pipeline().get(SslHandler.class);
+                sslHandler.handshakeFuture().sync();
+                assertEquals(ApplicationProtocolNames.HTTP_2, sslHandler.applicationProtocol());
+
+                // concurrent requests on the same connection
+                List<CompletableFuture<FullHttpResponse>> responses = new ArrayList<>();
+                for (int i = 0; i < 3; i++) {
+                    CompletableFuture<FullHttpResponse> response = new CompletableFuture<>();
+                    Http2StreamChannel stream = new Http2StreamChannelBootstrap(channel)
+                            .handler(new ChannelInitializer<Channel>() {
+                                @Override
+                                protected void initChannel(Channel ch) throws Exception {
+                                    ch.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(false));
+                                    ch.pipeline().addLast(new HttpObjectAggregator(1024 * 1024));
+                                    ch.pipeline().addLast(new SimpleChannelInboundHandler<FullHttpResponse>() {
+                                        @Override
+                                        protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse msg) {
+                                            response.complete(msg.retain());
+                                        }
+
+                                        @Override
+                                        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+                                            response.completeExceptionally(cause);
+                                        }
+                                    });
+                                }
+                            }).open().sync().getNow();
+                    FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/index.html");
+                    request.headers().set(HttpHeaderNames.HOST, "localhost");
+                    request.headers().set(HttpConversionUtil.ExtensionHeaderNames.SCHEME.text(), "https");
+                    stream.writeAndFlush(request);
+                    responses.add(response);
+                }
+                for (CompletableFuture<FullHttpResponse> response : responses) {
+                    FullHttpResponse resp = response.get(10, TimeUnit.SECONDS);
+                    try {
+                        assertEquals(200, resp.status().code());
+                        assertEquals("it <b>works</b> !!", resp.content().toString(StandardCharsets.UTF_8));
+                    } finally {
+                        resp.release();
+                    }
+                }
+                channel.close().sync();
+            } finally {
+                group.shutdownGracefully();
+            }
+
+            TestUtils.waitForCondition(TestUtils.NO_ACTIVE_CONNECTION(stats), 100);
+            EndpointStats epstats = stats.getEndpointStats(key);
+            assertEquals(4, epstats.getTotalRequests().intValue());
+        }
+
+        TestUtils.waitForCondition(TestUtils.ALL_CONNECTIONS_CLOSED(stats), 100);
+
+    }
+
+}
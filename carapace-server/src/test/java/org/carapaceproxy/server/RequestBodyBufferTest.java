@@ -0,0 +1,107 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.LastHttpContent;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.carapaceproxy.server.config.RequestBufferConfiguration;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Buffering of the request bodies
+ */
+public class RequestBodyBufferTest {
+
+    @Test
+    public void testMemoryOnly() throws Exception {
+        RequestBodyBuffer buffer = new RequestBodyBuffer(new RequestBufferConfiguration(10));
+        assertTrue(buffer.isEmpty());
+        buffer.add(content("hello"));
+        assertFalse(buffer.isFull());
+        buffer.add(content("world"));
+        // reads from the client have to be paused
+        assertTrue(buffer.isFull());
+        buffer.add(content("!"));
+
+        assertEquals("helloworld!", readAll(buffer));
+        assertTrue(buffer.isEmpty());
+        assertFalse(buffer.isFull());
+    }
+
+    @Test
+    public void testRetry() throws Exception {
+        RequestBodyBuffer buffer = new RequestBodyBuffer(new RequestBufferConfiguration(12));
+        buffer.add(content("hello"));
+        buffer.add(content("world"));
+        DefaultLastHttpContent last = new DefaultLastHttpContent(Unpooled.copiedBuffer("!!", StandardCharsets.US_ASCII));
+        last.trailingHeaders().add("foo", "bar");
+        buffer.add(last);
+        assertTrue(buffer.isFull());
+
+        // contents sent to a failed backend go first
+        buffer.addFirst(Arrays.asList(content("retry")));
+
+        StringBuilder body = new StringBuilder();
+        HttpContent content;
+        LastHttpContent trailer = null;
+        while ((content = buffer.poll()) != null) {
+            body.append(content.content().toString(StandardCharsets.US_ASCII));
+            if (content instanceof LastHttpContent) {
+                trailer = (LastHttpContent) content;
+            }
+            content.release();
+        }
+        assertEquals("retryhelloworld!!", body.toString());
+        assertEquals("bar", trailer.trailingHeaders().get("foo"));
+        assertTrue(buffer.isEmpty());
+        assertFalse(buffer.isFull());
+
+        buffer.add(content("hello"));
+        buffer.release();
+        assertTrue(buffer.isEmpty());
+        assertNull(buffer.poll());
+    }
+
+    private static HttpContent content(String text) {
+        return new DefaultHttpContent(Unpooled.copiedBuffer(text, StandardCharsets.US_ASCII));
+    }
+
+    private static String readAll(RequestBodyBuffer buffer) throws Exception {
+        StringBuilder result = new StringBuilder();
+        HttpContent content;
+        while ((content = buffer.poll()) != null) {
+            ByteBuf data = content.content();
+            result.append(data.toString(StandardCharsets.US_ASCII));
+            content.release();
+        }
+        return result.toString();
+    }
+
+}
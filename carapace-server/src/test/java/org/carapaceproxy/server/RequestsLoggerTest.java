@@ -29,12 +29,20 @@ import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpRequest;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 import org.carapaceproxy.EndpointStats;
 import org.carapaceproxy.MapResult;
 import org.carapaceproxy.client.ConnectionsManagerStats;
@@ -471,6 +479,177 @@ public class RequestsLoggerTest {
 
     }
 
+    @Test
+    public void testFormat() throws Exception {
+        RuntimeServerConfiguration c = genConf();
+        c.setAccessLogFlushInterval(100);
+        c.setAccessLogFormat("\\<<method>\\> <uri> <unknown>[<backend_id>] <total_time>ms");
+        c.setAccessLogMaxQueueCapacity(3);
+
+        RequestsLogger reqLogger = new RequestsLogger(c);
+        reqLogger.setBreakRunForTests(true);
+
+        // more requests than the capacity of the queue, which is reused
+        for (int i = 0; i < 5; i++) {
+            MockRequestHandler r = new MockRequestHandler();
+            r.reqMethod = HttpMethod.GET;
+            r.reqHost = "thehost";
+            r.reqUri = "/città/" + i + "/\uD83D\uDE00";
+            r.remoteIp = "123.123.123.123";
+            r.localIp = "234.234.234.234";
+            r.startTs = "2018-10-23 10:10:10.000";
+            r.backendStartTs = "2018-10-23 10:10:10.542";
+            r.endTs = "2018-10-23 10:10:11.012";
+            r.action = new MapResult("host", 1111, MapResult.Action.PROXY, "routeid_1");
+            reqLogger.logRequest(createMockRequestHandler(r));
+            run(reqLogger);
+        }
+        reqLogger.flushAccessLogFile();
+
+        List<String> rows = readFile(accessLogFilePath);
+        assertThat(rows.size(), is(5));
+        for (int i = 0; i < 5; i++) {
+            assertThat(rows.get(i), is("<GET> /città/" + i + "/\uD83D\uDE00 [host:1111] 1012ms"));
+        }
+    }
+
+    private static RequestHandler createSimpleRequest(int i) throws Exception {
+        MockRequestHandler r = new MockRequestHandler();
+        r.reqMethod = HttpMethod.GET;
+        r.reqHost = "thehost";
+        r.reqUri = "/index/" + i + "/\u00e8";
+        r.remoteIp = "123.123.123.123";
+        r.localIp = "234.234.234.234";
+        r.startTs = "2018-10-23 10:10:10.000";
+        r.backendStartTs = "2018-10-23 10:10:10.542";
+        r.endTs = "2018-10-23 10:10:11.012";
+        r.action = new MapResult("host", 1111, MapResult.Action.PROXY, "routeid_1");
+        return createMockRequestHandler(r);
+    }
+
+    @Test
+    public void testOverflowSpool() throws Exception {
+        RuntimeServerConfiguration c = genConf();
+        c.setAccessLogFlushInterval(100);
+        c.setAccessLogFormat("<client_ip> <method> <uri> [<backend_id>] <total_time>ms");
+        c.setAccessLogMaxQueueCapacity(2);
+        c.setAccessLogOverflowPolicy(RuntimeServerConfiguration.ACCESS_LOG_OVERFLOW_SPOOL);
+        c.setAccessLogSpoolSize(1024 * 1024);
+
+        RequestsLogger reqLogger = new RequestsLogger(c);
+        reqLogger.setBreakRunForTests(true);
+        assertTrue(new File(accessLogFilePath + ".spool").isFile());
+
+        // more requests than the capacity of the queue, nothing is dropped
+        for (int i = 0; i < 5; i++) {
+            reqLogger.logRequest(createSimpleRequest(i));
+        }
+        run(reqLogger);
+        reqLogger.flushAccessLogFile();
+
+        List<String> rows = readFile(accessLogFilePath);
+        assertThat(rows.size(), is(5));
+        for (int i = 0; i < 5; i++) {
+            assertThat(rows.get(i), is("123.123.123.123 GET /index/" + i + "/\u00e8 [host:1111] 1012ms"));
+        }
+
+        // the spool is empty, requests use the queue again
+        for (int i = 5; i < 7; i++) {
+            reqLogger.logRequest(createSimpleRequest(i));
+        }
+        run(reqLogger);
+        reqLogger.flushAccessLogFile();
+        rows = readFile(accessLogFilePath);
+        assertThat(rows.size(), is(7));
+        assertThat(rows.get(6), is("123.123.123.123 GET /index/6/\u00e8 [host:1111] 1012ms"));
+
+        reqLogger.close();
+        run(reqLogger);
+        assertFalse(new File(accessLogFilePath + ".spool").exists());
+    }
+
+    @Test
+    public void testQueueCapacityReload() throws Exception {
+        RuntimeServerConfiguration c = genConf();
+        c.setAccessLogFlushInterval(100);
+        c.setAccessLogFormat("<method> <uri>");
+        c.setAccessLogMaxQueueCapacity(2);
+
+        RequestsLogger reqLogger = new RequestsLogger(c);
+        reqLogger.setBreakRunForTests(true);
+
+        for (int i = 0; i < 3; i++) {
+            reqLogger.logRequest(createSimpleRequest(i));
+        }
+
+        RuntimeServerConfiguration c2 = genConf();
+        c2.setAccessLogFlushInterval(100);
+        c2.setAccessLogFormat("<method> <uri>");
+        c2.setAccessLogMaxQueueCapacity(4);
+        reqLogger.reloadConfiguration(c2);
+        // the old queue is drained after the resize
+        run(reqLogger);
+        assertThat(reqLogger.getQueueCapacity(), is(4));
+
+        for (int i = 3; i < 7; i++) {
+            reqLogger.logRequest(createSimpleRequest(i));
+        }
+        run(reqLogger);
+        reqLogger.flushAccessLogFile();
+
+        List<String> rows = readFile(accessLogFilePath);
+        // the third request did not fit the old queue
+        assertThat(rows.size(), is(6));
+        assertThat(rows.get(0), is("GET /index/0/\u00e8"));
+        assertThat(rows.get(1), is("GET /index/1/\u00e8"));
+        for (int i = 2; i < 6; i++) {
+            assertThat(rows.get(i), is("GET /index/" + (i + 1) + "/\u00e8"));
+        }
+    }
+
+    @Test
+    public void testRotation() throws Exception {
+        RuntimeServerConfiguration c = genConf();
+        c.setAccessLogFlushInterval(100);
+        c.setAccessLogFormat("<method> <uri>");
+        c.setAccessLogRotationMaxSize(40);
+        c.setAccessLogRotationRetention(2);
+
+        RequestsLogger reqLogger = new RequestsLogger(c);
+        reqLogger.setBreakRunForTests(true);
+
+        // every round exceeds the max size of the file
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 3; i++) {
+                reqLogger.logRequest(createSimpleRequest(round * 3 + i));
+            }
+            run(reqLogger);
+            assertFalse(new File(accessLogFilePath).exists());
+            reqLogger.awaitRotations();
+        }
+
+        File[] segments = tmpDir.getRoot().listFiles((dir, name) -> name.startsWith("access.log.") && name.endsWith(".gz"));
+        assertThat(segments.length, is(2));
+        List<String> rows = new ArrayList<>();
+        for (File segment : segments) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(new FileInputStream(segment)), StandardCharsets.UTF_8))) {
+                rows.addAll(reader.lines().collect(Collectors.toList()));
+            }
+        }
+        Collections.sort(rows);
+        // the oldest segment has been deleted
+        assertThat(rows, is(Arrays.asList(
+                "GET /index/3/\u00e8", "GET /index/4/\u00e8", "GET /index/5/\u00e8",
+                "GET /index/6/\u00e8", "GET /index/7/\u00e8", "GET /index/8/\u00e8")));
+
+        // a new file is opened
+        reqLogger.logRequest(createSimpleRequest(9));
+        run(reqLogger);
+        reqLogger.flushAccessLogFile();
+        assertThat(readFile(accessLogFilePath), is(Arrays.asList("GET /index/9/\u00e8")));
+    }
+
     @Test
     public void testWithServer() throws Exception {
 
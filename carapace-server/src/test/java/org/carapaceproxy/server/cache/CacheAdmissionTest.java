@@ -0,0 +1,171 @@
+package org.carapaceproxy.server.cache;
+
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import java.net.URL;
+import java.util.List;
+import org.apache.commons.io.IOUtils;
+import org.carapaceproxy.server.HttpProxyServer;
+import org.carapaceproxy.utils.TestEndpointMapper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Admission of new contents and inspection of the cache
+ */
+public class CacheAdmissionTest {
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(0);
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    private static String stub(String uri) {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            body.append(uri).append(" <b>works</b> !!\n");
+        }
+        stubFor(get(urlEqualTo(uri))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Content-Length", body.length() + "")
+                        .withBody(body.toString())));
+        return body.toString();
+    }
+
+    private static String request(int port, String uri) throws Exception {
+        return IOUtils.toString(new URL("http://localhost:" + port + uri).toURI(), "utf-8");
+    }
+
+    @Test
+    public void testRarelyRequestedContentsNotAdmittedWhenFull() throws Exception {
+        String bodyA = stub("/a.html");
+        String bodyB = stub("/b.html");
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+
+            // while there is room every content is admitted
+            assertEquals(bodyA, request(port, "/a.html"));
+            assertEquals(1, server.getCache().getCacheSize());
+            long entrySize = server.getCache().getCacheMemSize();
+
+            // only one content fits, the cache is flushed
+            server.getCurrentConfiguration().setCacheMaxSize(entrySize + entrySize / 20);
+            server.getCache().reloadConfiguration(server.getCurrentConfiguration());
+            assertEquals(0, server.getCache().getCacheSize());
+
+            assertEquals(bodyA, request(port, "/a.html"));
+            assertEquals(bodyA, request(port, "/a.html"));
+            assertEquals(1, server.getCache().getCacheSize());
+
+            // the cache is full, a content requested once does not evict the others
+            assertEquals(bodyB, request(port, "/b.html"));
+            List<CacheEntryInfo> entries = server.getCache().inspectCache(0, 0);
+            assertEquals(1, entries.size());
+            assertEquals("/a.html", entries.get(0).getUri());
+
+            // anything is admitted
+            server.getCurrentConfiguration().setCacheAdmissionMinFrequency(0);
+            server.getCache().reloadConfiguration(server.getCurrentConfiguration());
+            assertEquals(bodyB, request(port, "/b.html"));
+            assertTrue(server.getCache().inspectCache(0, 0).stream().anyMatch(e -> e.getUri().equals("/b.html")));
+        }
+    }
+
+    @Test
+    public void testInspectAndTopEntries() throws Exception {
+        String[] bodies = new String[5];
+        for (int i = 0; i < bodies.length; i++) {
+            bodies[i] = stub("/index" + i + ".html");
+        }
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+
+            // content i gets i hits
+            for (int i = 0; i < bodies.length; i++) {
+                for (int j = 0; j <= i; j++) {
+                    assertEquals(bodies[i], request(port, "/index" + i + ".html"));
+                }
+            }
+            ContentsCache cache = server.getCache();
+            assertEquals(5, cache.getCacheSize());
+
+            // pages
+            assertEquals(2, cache.inspectCache(0, 2).size());
+            assertEquals(2, cache.inspectCache(2, 2).size());
+            assertEquals(1, cache.inspectCache(4, 2).size());
+            assertEquals(0, cache.inspectCache(5, 2).size());
+            assertEquals(5, cache.inspectCache(0, 0).size());
+
+            List<CacheEntryInfo> top = cache.topEntries(3, CacheEntryInfo.BY_HITS);
+            assertEquals(3, top.size());
+            assertEquals("/index4.html", top.get(0).getUri());
+            assertEquals(4, top.get(0).getHits());
+            assertEquals("/index3.html", top.get(1).getUri());
+            assertEquals("/index2.html", top.get(2).getUri());
+            assertEquals(top.get(0).getHits() * (top.get(0).getHeapSize() + top.get(0).getDirectSize()), top.get(0).getBytesSaved());
+
+            top = cache.topEntries(1, CacheEntryInfo.BY_BYTES_SAVED);
+            assertEquals("/index4.html", top.get(0).getUri());
+        }
+    }
+
+    @Test
+    public void testFrequencySketch() {
+        FrequencySketch sketch = new FrequencySketch(0);
+        int hot = "hot".hashCode();
+        int cold = "cold".hashCode();
+        for (int i = 0; i < 5; i++) {
+            sketch.increment(hot);
+        }
+        sketch.increment(cold);
+        assertEquals(5, sketch.frequency(hot));
+        assertEquals(1, sketch.frequency(cold));
+        assertEquals(0, sketch.frequency("other".hashCode()));
+
+        // counters saturate
+        for (int i = 0; i < 100; i++) {
+            sketch.increment(hot);
+        }
+        assertEquals(15, sketch.frequency(hot));
+
+        // and they fade out
+        for (int i = 0; i < 10 * 1024; i++) {
+            sketch.increment(i);
+        }
+        assertTrue(sketch.frequency(hot) < 15);
+    }
+}
@@ -0,0 +1,143 @@
+package org.carapaceproxy.server.cache;
+
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.util.ResourceLeakDetector;
+import io.netty.util.ResourceLeakDetectorFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.carapaceproxy.server.HttpProxyServer;
+import org.carapaceproxy.utils.RawHttpClient;
+import org.carapaceproxy.utils.TestEndpointMapper;
+import org.carapaceproxy.utils.TestUtils;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Ownership of the buffers shared between the response relayed to the client
+ * and the cache
+ */
+public class CacheBufferLeakTest {
+
+    private static final List<String> LEAKS = new CopyOnWriteArrayList<>();
+
+    static {
+        // the detector must be in place before any buffer is allocated, test classes do not share the JVM
+        ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.PARANOID);
+        ResourceLeakDetectorFactory.setResourceLeakDetectorFactory(new ResourceLeakDetectorFactory() {
+            @Override
+            public <T> ResourceLeakDetector<T> newResourceLeakDetector(Class<T> resource, int samplingInterval, long maxActive) {
+                return new ResourceLeakDetector<T>(resource, samplingInterval) {
+                    @Override
+                    protected void reportTracedLeak(String resourceType, String records) {
+                        LEAKS.add(resourceType + records);
+                    }
+
+                    @Override
+                    protected void reportUntracedLeak(String resourceType) {
+                        LEAKS.add(resourceType);
+                    }
+                };
+            }
+        });
+    }
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(0);
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    @Test
+    public void testMultiChunkResponse() throws Exception {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            body.append("chunk ").append(i).append('\n');
+        }
+        String expected = body.toString();
+
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withBody(expected)
+                        .withChunkedDribbleDelay(5, 500)));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertEquals(expected, resp.getBodyString());
+                assertFalse(resp.getHeaderLines().stream().anyMatch(h -> h.contains("X-Cached")));
+
+                resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertEquals(expected, resp.getBodyString());
+                assertTrue(resp.getHeaderLines().stream().anyMatch(h -> h.contains("X-Cached")));
+            }
+            assertEquals(1, server.getCache().getCacheSize());
+
+            List<ByteBuf> stored = new ArrayList<>();
+            server.getCache().getInnerCache().inspectCache((key, payload) -> {
+                for (HttpObject chunk : payload.getChunks()) {
+                    // the empty last content is a shared constant
+                    if (chunk instanceof HttpContent && ((HttpContent) chunk).content().capacity() > 0) {
+                        stored.add(((HttpContent) chunk).content());
+                    }
+                }
+            });
+            assertTrue(stored.size() > 1);
+
+            // the buffers written to the client have been released, exactly once
+            TestUtils.waitForCondition(() -> stored.stream().allMatch(buffer -> buffer.refCnt() == 1), 100);
+
+            // the buffers are freed as soon as the cache lets them go
+            server.getCache().clear();
+            TestUtils.waitForCondition(() -> stored.stream().allMatch(buffer -> buffer.refCnt() == 0), 100);
+        }
+
+        // leaks are reported while tracking new buffers, once the leaked ones have been collected
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            Thread.sleep(100);
+            PooledByteBufAllocator.DEFAULT.directBuffer(16).release();
+        }
+        assertEquals(Collections.emptyList(), LEAKS);
+    }
+
+}
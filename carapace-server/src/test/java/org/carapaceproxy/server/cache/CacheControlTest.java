@@ -0,0 +1,381 @@
+package org.carapaceproxy.server.cache;
+
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.absent;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.findAll;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.carapaceproxy.server.HttpProxyServer;
+import org.carapaceproxy.utils.HttpUtils;
+import org.carapaceproxy.utils.RawHttpClient;
+import org.carapaceproxy.utils.TestEndpointMapper;
+import org.carapaceproxy.utils.TestUtils;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CacheControlTest {
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(0);
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    @Test
+    public void testComputeExpiresTs() {
+        long now = 1_000_000_000L;
+        HttpHeaders headers = new DefaultHttpHeaders();
+        assertEquals(-1, ContentsCache.computeExpiresTs(headers, now));
+
+        headers.set("Expires", HttpUtils.formatDateHeader(new java.util.Date(now + 60_000)));
+        assertEquals(now + 60_000, ContentsCache.computeExpiresTs(headers, now));
+
+        // max-age wins over Expires
+        headers.set("Cache-Control", "public, max-age=10");
+        assertEquals(now + 10_000, ContentsCache.computeExpiresTs(headers, now));
+
+        // s-maxage wins over max-age, for shared caches
+        headers.set("Cache-Control", "max-age=10, s-maxage=\"20\"");
+        assertEquals(now + 20_000, ContentsCache.computeExpiresTs(headers, now));
+
+        // the age of the response is subtracted
+        headers.set("Age", "5");
+        assertEquals(now + 15_000, ContentsCache.computeExpiresTs(headers, now));
+        headers.set("Date", HttpUtils.formatDateHeader(new java.util.Date(now - 8_000)));
+        assertEquals(now + 12_000, ContentsCache.computeExpiresTs(headers, now));
+
+        assertEquals(Arrays.asList("accept-encoding", "accept-language"),
+                ContentsCache.parseVary(new DefaultHttpHeaders().add("Vary", "Accept-Language, accept-encoding")));
+        assertNull(ContentsCache.parseVary(new DefaultHttpHeaders().add("Vary", "*")));
+    }
+
+    @Test
+    public void testCacheControl() throws Exception {
+
+        stubFor(get(urlEqualTo("/shared.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Cache-Control", "max-age=0, s-maxage=120")
+                        .withHeader("Age", "10")
+                        .withHeader("Content-Length", "it <b>works</b> !!".length() + "")
+                        .withBody("it <b>works</b> !!")));
+
+        stubFor(get(urlEqualTo("/private.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Cache-Control", "private, max-age=120")
+                        .withHeader("Content-Length", "it <b>works</b> !!".length() + "")
+                        .withBody("it <b>works</b> !!")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+
+            for (int i = 0; i < 2; i++) {
+                try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                    RawHttpClient.HttpResponse resp = client.executeRequest("GET /shared.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                    assertTrue(resp.toString().endsWith("it <b>works</b> !!"));
+                    if (i == 1) {
+                        assertTrue(resp.getHeaderLines().stream().anyMatch(h -> h.startsWith("X-Cached")));
+                        assertTrue(resp.getHeaderLines().stream().anyMatch(h -> h.matches("Age: 1[0-9]\\s*")));
+                    }
+                }
+                try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                    RawHttpClient.HttpResponse resp = client.executeRequest("GET /private.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                    assertTrue(resp.toString().endsWith("it <b>works</b> !!"));
+                    assertFalse(resp.getHeaderLines().stream().anyMatch(h -> h.startsWith("X-Cached")));
+                }
+            }
+            verify(1, getRequestedFor(urlEqualTo("/shared.html")));
+            verify(2, getRequestedFor(urlEqualTo("/private.html")));
+            assertEquals(1, server.getCache().getCacheSize());
+        }
+    }
+
+    @Test
+    public void testVary() throws Exception {
+
+        stubFor(get(urlEqualTo("/index.html"))
+                .withHeader("Accept-Language", equalTo("it"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Vary", "Accept-Language")
+                        .withHeader("Content-Length", "funziona".length() + "")
+                        .withBody("funziona")));
+        stubFor(get(urlEqualTo("/index.html"))
+                .withHeader("Accept-Language", absent())
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Vary", "Accept-Language")
+                        .withHeader("Content-Length", "it works".length() + "")
+                        .withBody("it works")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+
+            for (int i = 0; i < 2; i++) {
+                try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                    RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nAccept-Language: it\r\n\r\n");
+                    assertTrue(resp.toString().endsWith("funziona"));
+                }
+                try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                    RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                    assertTrue(resp.toString().endsWith("it works"));
+                }
+            }
+            // one entry for each variant
+            verify(2, getRequestedFor(urlEqualTo("/index.html")));
+            assertEquals(2, server.getCache().getCacheSize());
+        }
+    }
+
+    @Test
+    public void testRevalidation() throws Exception {
+
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Cache-Control", "max-age=1")
+                        .withHeader("ETag", "\"v1\"")
+                        .withHeader("Content-Length", "it <b>works</b> !!".length() + "")
+                        .withBody("it <b>works</b> !!")));
+        stubFor(get(urlEqualTo("/index.html"))
+                .withHeader("If-None-Match", equalTo("\"v1\""))
+                .willReturn(aResponse()
+                        .withStatus(304)
+                        .withHeader("Cache-Control", "max-age=120")
+                        .withHeader("ETag", "\"v1\"")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertTrue(resp.toString().endsWith("it <b>works</b> !!"));
+                assertFalse(resp.getHeaderLines().stream().anyMatch(h -> h.startsWith("X-Cached")));
+            }
+
+            // let the content expire, it will be kept in order to be revalidated
+            Thread.sleep(1500);
+            assertEquals(1, server.getCache().getCacheSize());
+
+            for (int i = 0; i < 2; i++) {
+                try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                    RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                    assertTrue(resp.getStatusLine().contains("200"));
+                    assertTrue(resp.toString().endsWith("it <b>works</b> !!"));
+                    assertTrue(resp.getHeaderLines().stream().anyMatch(h -> h.startsWith("X-Cached")));
+                }
+            }
+            // only the first request after the expiration reaches the backend
+            verify(2, getRequestedFor(urlEqualTo("/index.html")));
+            verify(1, getRequestedFor(urlEqualTo("/index.html")).withHeader("If-None-Match", equalTo("\"v1\"")));
+            assertEquals(1, server.getCache().getCacheSize());
+        }
+    }
+
+    @Test
+    public void testConcurrentRevalidation() throws Exception {
+
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Cache-Control", "max-age=1")
+                        .withHeader("ETag", "\"v1\"")
+                        .withHeader("Last-Modified", "Wed, 21 Oct 2015 07:28:00 GMT")
+                        .withHeader("Content-Length", "it <b>works</b> !!".length() + "")
+                        .withBody("it <b>works</b> !!")));
+        // the backend is slow enough to let all the requests join the revalidation
+        stubFor(get(urlEqualTo("/index.html"))
+                .withHeader("If-None-Match", equalTo("\"v1\""))
+                .willReturn(aResponse()
+                        .withStatus(304)
+                        .withFixedDelay(1000)
+                        .withHeader("Cache-Control", "max-age=120")
+                        .withHeader("ETag", "\"v1\"")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertTrue(resp.toString().endsWith("it <b>works</b> !!"));
+            }
+
+            // let the content expire, it will be kept in order to be revalidated
+            Thread.sleep(1500);
+
+            int n = 5;
+            ExecutorService threadPool = Executors.newFixedThreadPool(n);
+            try {
+                List<Future<String>> responses = new ArrayList<>();
+                for (int i = 0; i < n; i++) {
+                    responses.add(threadPool.submit(() -> {
+                        try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                            return client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n").toString();
+                        }
+                    }));
+                    if (i == 0) {
+                        // the first request starts the revalidation
+                        Thread.sleep(200);
+                    }
+                }
+                for (Future<String> response : responses) {
+                    String resp = response.get(10, TimeUnit.SECONDS);
+                    assertTrue(resp, resp.startsWith("HTTP/1.1 200"));
+                    assertTrue(resp, resp.endsWith("it <b>works</b> !!"));
+                }
+            } finally {
+                threadPool.shutdown();
+            }
+            // a single revalidation reached the backend
+            verify(2, getRequestedFor(urlEqualTo("/index.html")));
+            verify(1, getRequestedFor(urlEqualTo("/index.html")).withHeader("If-None-Match", equalTo("\"v1\"")));
+            assertEquals(1, server.getCache().getCacheSize());
+        }
+    }
+
+    @Test
+    public void testStaleWhileRevalidate() throws Exception {
+
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Cache-Control", "max-age=1, stale-while-revalidate=60")
+                        .withHeader("Content-Length", "version 1".length() + "")
+                        .withBody("version 1")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertTrue(resp.toString().endsWith("version 1"));
+            }
+            Thread.sleep(1500);
+
+            stubFor(get(urlEqualTo("/index.html"))
+                    .willReturn(aResponse()
+                            .withStatus(200)
+                            .withHeader("Content-Type", "text/html")
+                            .withHeader("Cache-Control", "max-age=120")
+                            .withHeader("Content-Length", "version 2".length() + "")
+                            .withBody("version 2")));
+
+            // the stale content is served at once, it is refreshed in background
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertTrue(resp.toString().endsWith("version 1"));
+                assertTrue(resp.getHeaderLines().stream().anyMatch(h -> h.startsWith("X-Cached")));
+            }
+            TestUtils.waitForCondition(() -> findAll(getRequestedFor(urlEqualTo("/index.html"))).size() == 2, 10);
+            TestUtils.waitForCondition(() -> {
+                try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                    RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                    return resp.toString().endsWith("version 2")
+                            && resp.getHeaderLines().stream().anyMatch(h -> h.startsWith("X-Cached"));
+                }
+            }, 10);
+            verify(2, getRequestedFor(urlEqualTo("/index.html")));
+        }
+    }
+
+    @Test
+    public void testStaleIfError() throws Exception {
+
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Cache-Control", "max-age=1, stale-if-error=60")
+                        .withHeader("Content-Length", "it <b>works</b> !!".length() + "")
+                        .withBody("it <b>works</b> !!")));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertTrue(resp.toString().endsWith("it <b>works</b> !!"));
+            }
+            Thread.sleep(1500);
+
+            stubFor(get(urlEqualTo("/index.html"))
+                    .willReturn(aResponse()
+                            .withStatus(503)
+                            .withHeader("Content-Length", "down".length() + "")
+                            .withBody("down")));
+
+            try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                RawHttpClient.HttpResponse resp = client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertTrue(resp.getStatusLine().contains("200"));
+                assertTrue(resp.toString().endsWith("it <b>works</b> !!"));
+                assertTrue(resp.getHeaderLines().stream().anyMatch(h -> h.startsWith("X-Cached")));
+            }
+            verify(2, getRequestedFor(urlEqualTo("/index.html")));
+        }
+    }
+
+}
@@ -21,11 +21,17 @@ package org.carapaceproxy.server.cache;
  */
 import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.carapaceproxy.EndpointStats;
 import org.carapaceproxy.client.ConnectionsManagerStats;
 import org.carapaceproxy.client.EndpointKey;
@@ -539,4 +545,52 @@ public class CacheTest {
 
     }
 
+
+    @Test
+    public void testCoalesceConcurrentMisses() throws Exception {
+
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withHeader("Content-Length", "it <b>works</b> !!".length() + "")
+                        .withBody("it <b>works</b> !!")
+                        .withFixedDelay(2000)));
+
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+
+            ExecutorService threadPool = Executors.newFixedThreadPool(5);
+            try {
+                List<Future<RawHttpClient.HttpResponse>> all = new ArrayList<>();
+                for (int i = 0; i < 5; i++) {
+                    all.add(threadPool.submit(() -> {
+                        try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                            return client.executeRequest("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                        }
+                    }));
+                    // let the first request reach the backend
+                    Thread.sleep(100);
+                }
+                int followers = 0;
+                for (Future<RawHttpClient.HttpResponse> handle : all) {
+                    RawHttpClient.HttpResponse resp = handle.get();
+                    assertTrue(resp.toString().endsWith("it <b>works</b> !!"));
+                    if (resp.getHeaderLines().stream().anyMatch(h -> h.contains("X-Cached"))) {
+                        followers++;
+                    }
+                }
+                assertEquals(4, followers);
+            } finally {
+                threadPool.shutdownNow();
+            }
+
+            // only one request reached the backend
+            verify(1, getRequestedFor(urlEqualTo("/index.html")));
+            assertEquals(1, server.getCache().getCacheSize());
+        }
+    }
 }
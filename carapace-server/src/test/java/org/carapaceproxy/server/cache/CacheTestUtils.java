@@ -0,0 +1,99 @@
+package org.carapaceproxy.server.cache;
+
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import org.apache.commons.io.IOUtils;
+import org.carapaceproxy.server.cache.ContentsCache.ContentPayload;
+
+/**
+ * Utility for the tests of the cache
+ */
+class CacheTestUtils {
+
+    private CacheTestUtils() {
+    }
+
+    /**
+     * Builds a cacheable text/html response, one chunk for each string
+     *
+     * @param chunks
+     * @return
+     */
+    static ContentPayload buildPayload(String... chunks) {
+        ContentPayload payload = new ContentPayload();
+        DefaultHttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.headers().set("Content-Type", "text/html");
+        payload.addChunk(response);
+        for (int i = 0; i < chunks.length; i++) {
+            ByteBuf buf = Unpooled.copiedBuffer(chunks[i], StandardCharsets.UTF_8);
+            payload.addChunk(i == chunks.length - 1 ? new DefaultLastHttpContent(buf) : new DefaultHttpContent(buf));
+        }
+        payload.lastModified = System.currentTimeMillis() - 1000;
+        payload.expiresTs = System.currentTimeMillis() + 60 * 60 * 1000;
+        return payload;
+    }
+
+    /**
+     * Opens a connection to the proxy, without reading the response
+     *
+     * @param port
+     * @param uri
+     * @param headers names and values of the request headers, headers with a
+     * null value are not sent
+     * @return
+     * @throws Exception
+     */
+    static HttpURLConnection open(int port, String uri, String... headers) throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + uri).openConnection();
+        for (int i = 0; i < headers.length; i += 2) {
+            if (headers[i + 1] != null) {
+                conn.setRequestProperty(headers[i], headers[i + 1]);
+            }
+        }
+        return conn;
+    }
+
+    static String read(HttpURLConnection conn) throws Exception {
+        try (InputStream in = conn.getInputStream()) {
+            return IOUtils.toString(in, "utf-8");
+        }
+    }
+
+    /**
+     * @param payload
+     * @return the first chunk of the body of the given payload
+     */
+    static String body(ContentPayload payload) {
+        return ((HttpContent) payload.getChunks().get(1)).content().toString(StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,199 @@
+package org.carapaceproxy.server.cache;
+
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.io.IOUtils;
+import org.carapaceproxy.server.HttpProxyServer;
+import static org.carapaceproxy.server.RequestHandler.PROPERTY_URI;
+import static org.carapaceproxy.server.cache.CacheTestUtils.read;
+import org.carapaceproxy.server.config.ActionConfiguration;
+import org.carapaceproxy.server.config.BackendConfiguration;
+import org.carapaceproxy.server.config.CompressionConfiguration;
+import org.carapaceproxy.server.config.DirectorConfiguration;
+import org.carapaceproxy.server.config.RouteConfiguration;
+import org.carapaceproxy.server.mapper.StandardEndpointMapper;
+import org.carapaceproxy.server.mapper.requestmatcher.RegexpRequestMatcher;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Compression of the responses and compressed variants of the cached contents
+ */
+public class CompressionTest {
+
+    private static final String BODY;
+
+    static {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            body.append("it <b>works</b> !!\n");
+        }
+        BODY = body.toString();
+    }
+
+    // the backend must not compress the responses by itself
+    @Rule
+    public WireMockRule backend1 = new WireMockRule(options().dynamicPort().gzipDisabled(true));
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    private StandardEndpointMapper buildMapper(String actionType) throws Exception {
+        StandardEndpointMapper mapper = new StandardEndpointMapper();
+        mapper.addBackend(new BackendConfiguration("backend-1", "localhost", backend1.port(), "/", 1));
+        mapper.addDirector(new DirectorConfiguration("director-1").addBackend("backend-1"));
+        mapper.addAction(new ActionConfiguration("action-1", actionType, "director-1", null, -1)
+                .setCompression(new CompressionConfiguration(new HashSet<>(Arrays.asList("text/*", "application/json")), 1024)));
+        mapper.addRoute(new RouteConfiguration("route-1", "action-1", true, new RegexpRequestMatcher(PROPERTY_URI, ".*")));
+        return mapper;
+    }
+
+    private static void stub(String uri, String contentType, String body) {
+        stubFor(get(urlEqualTo(uri))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", contentType)
+                        .withHeader("Content-Length", body.length() + "")
+                        .withBody(body)));
+    }
+
+    @Test
+    public void testCompressResponses() throws Exception {
+        stub("/index.html", "text/html; charset=utf-8", BODY);
+        stub("/small.html", "text/html", "small");
+        stub("/image.png", "image/png", BODY);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, buildMapper(ActionConfiguration.TYPE_PROXY), tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+
+            HttpURLConnection conn = open(port, "/index.html", "gzip, deflate");
+            assertEquals("gzip", conn.getHeaderField("Content-Encoding"));
+            assertTrue(conn.getHeaderField("Vary").contains("Accept-Encoding"));
+            assertEquals(BODY, readGzip(conn));
+
+            // gzip not accepted
+            conn = open(port, "/index.html", "gzip;q=0, identity");
+            assertNull(conn.getHeaderField("Content-Encoding"));
+            assertEquals(BODY, read(conn));
+
+            // too small
+            conn = open(port, "/small.html", "gzip");
+            assertNull(conn.getHeaderField("Content-Encoding"));
+            assertEquals("small", read(conn));
+
+            // content type not configured
+            conn = open(port, "/image.png", "gzip");
+            assertNull(conn.getHeaderField("Content-Encoding"));
+            assertEquals(BODY, read(conn));
+        }
+    }
+
+    @Test
+    public void testCompressedVariantInCache() throws Exception {
+        stub("/index.html", "text/html", BODY);
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, buildMapper(ActionConfiguration.TYPE_CACHE), tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+
+            // compressed while streaming the response from the backend
+            HttpURLConnection conn = open(port, "/index.html", "gzip");
+            assertEquals("gzip", conn.getHeaderField("Content-Encoding"));
+            assertNull(conn.getHeaderField("X-Cached"));
+            assertEquals(BODY, readGzip(conn));
+
+            // the cached content is compressed while being sent, the variant is built in background
+            conn = open(port, "/index.html", "gzip");
+            assertEquals("gzip", conn.getHeaderField("Content-Encoding"));
+            assertTrue(conn.getHeaderField("X-Cached").startsWith("yes"));
+            assertEquals(BODY, readGzip(conn));
+            long identitySize = server.getCache().getCacheMemSize();
+            for (int i = 0; i < 100 && server.getCache().getCacheSize() < 2; i++) {
+                Thread.sleep(100);
+            }
+            // the variant is a distinct entry, accounted in the size of the cache
+            assertEquals(2, server.getCache().getCacheSize());
+            assertTrue(server.getCache().getCacheMemSize() > identitySize);
+
+            // compressed once, then served as is
+            for (int i = 0; i < 3; i++) {
+                conn = open(port, "/index.html", "gzip");
+                assertEquals("gzip", conn.getHeaderField("Content-Encoding"));
+                assertTrue(conn.getHeaderField("X-Cached").startsWith("yes"));
+                assertTrue(conn.getHeaderField("Vary").contains("Accept-Encoding"));
+                assertTrue(conn.getContentLength() > 0);
+                assertTrue(conn.getContentLength() < BODY.length());
+                assertEquals(BODY, readGzip(conn));
+            }
+
+            // the original content is still available
+            conn = open(port, "/index.html", null);
+            assertNull(conn.getHeaderField("Content-Encoding"));
+            assertTrue(conn.getHeaderField("X-Cached").startsWith("yes"));
+            assertEquals(BODY, read(conn));
+
+            assertEquals(2, server.getCache().getCacheSize());
+            verify(1, getRequestedFor(urlEqualTo("/index.html")));
+        }
+    }
+
+    @Test
+    public void testCompressionConfiguration() {
+        CompressionConfiguration configuration = new CompressionConfiguration(new HashSet<>(Arrays.asList("Text/*", " application/json")), 100);
+        assertTrue(configuration.isEnabled());
+        assertTrue(configuration.isCompressible("text/html", 100));
+        assertTrue(configuration.isCompressible("APPLICATION/JSON; charset=utf-8", -1));
+        assertFalse(configuration.isCompressible("text/html", 99));
+        assertFalse(configuration.isCompressible("application/javascript", 1000));
+        assertFalse(configuration.isCompressible(null, 1000));
+        assertFalse(CompressionConfiguration.DISABLED.isCompressible("text/html", 1000));
+    }
+
+    private static HttpURLConnection open(int port, String uri, String acceptEncoding) throws Exception {
+        HttpURLConnection conn = CacheTestUtils.open(port, uri, "Accept-Encoding", acceptEncoding);
+        assertEquals(200, conn.getResponseCode());
+        return conn;
+    }
+
+    private static String readGzip(HttpURLConnection conn) throws Exception {
+        try (InputStream in = new GZIPInputStream(conn.getInputStream())) {
+            return IOUtils.toString(in, "utf-8");
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpResponse;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import org.carapaceproxy.server.cache.ContentsCache.ContentKey;
+import org.carapaceproxy.server.cache.ContentsCache.ContentPayload;
+import static org.carapaceproxy.server.cache.CacheTestUtils.body;
+import static org.carapaceproxy.server.cache.CacheTestUtils.buildPayload;
+import org.carapaceproxy.utils.TestUtils;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DiskCacheTest {
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    @Test
+    public void testSpillAndRecover() throws Exception {
+        File directory = tmpDir.newFolder();
+        ContentKey key1 = new ContentKey("GET", "localhost", "/index.html");
+        ContentKey key2 = new ContentKey("GET", "localhost", "/removed.html");
+        ContentPayload payload = buildPayload("it <b>", "works", "</b> !!");
+
+        DiskCache diskCache = new DiskCache(directory.toPath(), 0);
+        diskCache.start();
+        try {
+            diskCache.spill(key1, payload);
+            diskCache.spill(key2, payload);
+            payload.clear();
+            TestUtils.waitForCondition(() -> diskCache.getSize() == 2, 10);
+
+            ContentPayload cached = diskCache.get(key1);
+            HttpResponse response = (HttpResponse) cached.getChunks().get(0);
+            assertEquals(200, response.status().code());
+            assertEquals("text/html", response.headers().get("Content-Type"));
+            assertEquals("it <b>works</b> !!", body(cached));
+            assertTrue(((HttpContent) cached.getChunks().get(1)).content().isReadOnly());
+
+            diskCache.remove(key2);
+            assertNull(diskCache.get(key2));
+        } finally {
+            diskCache.close();
+        }
+
+        // simulate a crash while writing
+        File segment = directory.listFiles()[0];
+        Files.write(segment.toPath(), new byte[]{(byte) 0xCA, 0x7A, 0}, StandardOpenOption.APPEND);
+
+        DiskCache recovered = new DiskCache(directory.toPath(), 0);
+        recovered.start();
+        try {
+            TestUtils.waitForCondition(() -> recovered.getSize() == 1, 10);
+            ContentPayload cached = recovered.get(key1);
+            assertEquals("it <b>works</b> !!", body(cached));
+            assertEquals(payload.lastModified, cached.lastModified);
+            assertEquals(payload.expiresTs, cached.expiresTs);
+            assertNull(recovered.get(key2));
+
+            recovered.clear();
+            assertNull(recovered.get(key1));
+        } finally {
+            recovered.close();
+        }
+    }
+
+    @Test
+    public void testReadOpenSegment() throws Exception {
+        File directory = tmpDir.newFolder();
+        ContentKey key1 = new ContentKey("GET", "localhost", "/index.html");
+        ContentKey key2 = new ContentKey("GET", "localhost", "/other.html");
+
+        DiskCache diskCache = new DiskCache(directory.toPath(), 0);
+        diskCache.start();
+        try {
+            ContentPayload payload = buildPayload("it <b>works</b> !!");
+            diskCache.spill(key1, payload);
+            payload.clear();
+            TestUtils.waitForCondition(() -> diskCache.getSize() == 1, 10);
+            ContentPayload first = diskCache.get(key1);
+            assertEquals("it <b>works</b> !!", body(first));
+            assertEquals("it <b>works</b> !!", body(diskCache.get(key1)));
+
+            // the segment grows while being read
+            payload = buildPayload("other");
+            diskCache.spill(key2, payload);
+            payload.clear();
+            TestUtils.waitForCondition(() -> diskCache.getSize() == 2, 10);
+            assertEquals("other", body(diskCache.get(key2)));
+            assertEquals("it <b>works</b> !!", body(diskCache.get(key1)));
+            // contents read before are still valid
+            assertEquals("it <b>works</b> !!", body(first));
+        } finally {
+            diskCache.close();
+        }
+    }
+
+}
@@ -0,0 +1,160 @@
+package org.carapaceproxy.server.cache;
+
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.absent;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import java.net.HttpURLConnection;
+import java.util.List;
+import org.carapaceproxy.server.HttpProxyServer;
+import static org.carapaceproxy.server.cache.CacheTestUtils.open;
+import static org.carapaceproxy.server.cache.CacheTestUtils.read;
+import org.carapaceproxy.utils.TestEndpointMapper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Byte ranges served from the cached contents
+ */
+public class RangeRequestTest {
+
+    private static final String BODY = "0123456789abcdefghij";
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(0);
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    private void stub() {
+        stubFor(get(urlEqualTo("/video.mp4"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "video/mp4")
+                        .withHeader("Content-Length", BODY.length() + "")
+                        .withBody(BODY)));
+    }
+
+    @Test
+    public void testRangesFromCache() throws Exception {
+        stub();
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+
+            // the first request fetches the whole content
+            HttpURLConnection conn = open(port, "/video.mp4", "Range", "bytes=0-");
+            assertEquals(200, conn.getResponseCode());
+            assertEquals(BODY, read(conn));
+            assertEquals(1, server.getCache().getCacheSize());
+
+            conn = open(port, "/video.mp4", "Range", "bytes=2-5");
+            assertEquals(206, conn.getResponseCode());
+            assertTrue(conn.getHeaderField("X-Cached").startsWith("yes"));
+            assertEquals("bytes 2-5/20", conn.getHeaderField("Content-Range"));
+            assertEquals(4, conn.getContentLength());
+            assertEquals("2345", read(conn));
+
+            conn = open(port, "/video.mp4", "Range", "bytes=-3");
+            assertEquals(206, conn.getResponseCode());
+            assertEquals("bytes 17-19/20", conn.getHeaderField("Content-Range"));
+            assertEquals("hij", read(conn));
+
+            conn = open(port, "/video.mp4", "Range", "bytes=15-100");
+            assertEquals(206, conn.getResponseCode());
+            assertEquals("bytes 15-19/20", conn.getHeaderField("Content-Range"));
+            assertEquals("fghij", read(conn));
+
+            conn = open(port, "/video.mp4", "Range", "bytes=0-1,5-6");
+            assertEquals(206, conn.getResponseCode());
+            assertTrue(conn.getContentType().startsWith("multipart/byteranges; boundary="));
+            String multipart = read(conn);
+            assertEquals(conn.getContentLength(), multipart.length());
+            assertTrue(multipart.contains("Content-Type: video/mp4\r\nContent-Range: bytes 0-1/20\r\n\r\n01\r\n"));
+            assertTrue(multipart.contains("Content-Range: bytes 5-6/20\r\n\r\n56\r\n"));
+
+            conn = open(port, "/video.mp4", "Range", "bytes=50-60");
+            assertEquals(416, conn.getResponseCode());
+            assertEquals("bytes */20", conn.getHeaderField("Content-Range"));
+
+            // not a valid range, the whole content is sent
+            conn = open(port, "/video.mp4", "Range", "bytes=5-2");
+            assertEquals(200, conn.getResponseCode());
+            assertEquals("bytes", conn.getHeaderField("Accept-Ranges"));
+            assertEquals(BODY, read(conn));
+
+            // the content changed
+            conn = open(port, "/video.mp4", "Range", "bytes=2-5", "If-Range", "\"other\"");
+            assertEquals(200, conn.getResponseCode());
+            assertNull(conn.getHeaderField("Content-Range"));
+            assertEquals(BODY, read(conn));
+
+            verify(1, getRequestedFor(urlEqualTo("/video.mp4")));
+            verify(getRequestedFor(urlEqualTo("/video.mp4")).withHeader("Range", absent()));
+        }
+    }
+
+    @Test
+    public void testPartialRequestNotCached() throws Exception {
+        stub();
+        TestEndpointMapper mapper = new TestEndpointMapper("localhost", wireMockRule.port(), true);
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, mapper, tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+
+            // forwarded as is to the backend
+            HttpURLConnection conn = open(port, "/video.mp4", "Range", "bytes=2-5");
+            read(conn);
+            assertEquals(0, server.getCache().getCacheSize());
+            verify(getRequestedFor(urlEqualTo("/video.mp4")).withHeader("Range", equalTo("bytes=2-5")));
+        }
+    }
+
+    @Test
+    public void testParse() {
+        List<long[]> ranges = ByteRanges.parse("bytes=0-0, -5, 8-", 10);
+        assertEquals(3, ranges.size());
+        assertEquals(0, ranges.get(0)[0]);
+        assertEquals(0, ranges.get(0)[1]);
+        assertEquals(5, ranges.get(1)[0]);
+        assertEquals(9, ranges.get(1)[1]);
+        assertEquals(8, ranges.get(2)[0]);
+        assertEquals(9, ranges.get(2)[1]);
+        // not satisfiable
+        assertTrue(ByteRanges.parse("bytes=10-20", 10).isEmpty());
+        assertTrue(ByteRanges.parse("bytes=-0", 10).isEmpty());
+        // ignored
+        assertNull(ByteRanges.parse("items=0-5", 10));
+        assertNull(ByteRanges.parse("bytes=a-5", 10));
+        assertNull(ByteRanges.parse("bytes=5", 10));
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpContent;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+import org.carapaceproxy.server.cache.ContentsCache.ContentKey;
+import org.carapaceproxy.server.cache.ContentsCache.ContentPayload;
+import static org.carapaceproxy.server.cache.CacheTestUtils.buildPayload;
+import org.carapaceproxy.utils.TestUtils;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class SlabCacheImplTest {
+
+    @Test
+    public void testAllocator() {
+        SlabAllocator allocator = new SlabAllocator(8192, 16384);
+        ByteBuf small = allocator.allocate(100);
+        assertEquals(100, small.readableBytes());
+        assertEquals(8192, allocator.getReservedMemory());
+        assertEquals(SlabAllocator.MIN_SLOT_SIZE, allocator.getAllocatedMemory());
+        assertEquals(100, allocator.getUsedMemory());
+
+        // another size class, another slab
+        ByteBuf big = allocator.allocate(5000);
+        assertEquals(16384, allocator.getReservedMemory());
+        assertEquals(SlabAllocator.MIN_SLOT_SIZE + 8192, allocator.getAllocatedMemory());
+
+        // memory exhausted
+        assertNull(allocator.allocate(3000));
+        assertNull(allocator.allocate(10000));
+
+        // same slab of the first one
+        ByteBuf small2 = allocator.allocate(SlabAllocator.MIN_SLOT_SIZE);
+        assertEquals(16384, allocator.getReservedMemory());
+
+        big.release();
+        assertEquals(8192, allocator.getReservedMemory());
+        small.release();
+        small2.release();
+        assertEquals(0, allocator.getReservedMemory());
+        assertEquals(0, allocator.getAllocatedMemory());
+        assertEquals(0, allocator.getUsedMemory());
+    }
+
+    @Test
+    public void testPutGetRemove() throws Exception {
+        CacheStats stats = new CacheStats();
+        SlabCacheImpl cache = new SlabCacheImpl(stats, 1024 * 1024, 64 * 1024, Logger.getLogger(SlabCacheImplTest.class.getName()));
+        SlabAllocator allocator = cache.getAllocator();
+        try {
+            ContentKey key = new ContentKey("", "", "/index.html");
+            ContentPayload payload = buildPayload("it <b>", "works", "</b> !!");
+
+            // the cache stores its own copy
+            assertFalse(cache.put(key, payload));
+            payload.clear();
+            assertEquals(1, cache.getSize());
+            assertEquals("it <b>works</b> !!".length(), allocator.getUsedMemory());
+
+            ContentPayload cached = cache.get(key);
+            assertNotNull(cached);
+            assertEquals(2, cached.getChunks().size());
+            ByteBuf body = ((HttpContent) cached.getChunks().get(1)).content();
+            assertTrue(body.isDirect());
+            assertTrue(body.isReadOnly());
+            assertEquals("it <b>works</b> !!", body.toString(StandardCharsets.UTF_8));
+
+            // a response is being sent to a client
+            ByteBuf sending = body.retainedDuplicate();
+            cache.remove(key);
+            TestUtils.waitForCondition(() -> cache.getSize() == 0, 10);
+            assertEquals("it <b>works</b> !!", sending.toString(StandardCharsets.UTF_8));
+            assertEquals("it <b>works</b> !!".length(), allocator.getUsedMemory());
+            sending.release();
+            assertEquals(0, allocator.getUsedMemory());
+            assertEquals(0, allocator.getReservedMemory());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testFragmentedAllocator() throws Exception {
+        CacheStats stats = new CacheStats();
+        SlabCacheImpl cache = new SlabCacheImpl(stats, 64 * 1024, 16 * 1024, Logger.getLogger(SlabCacheImplTest.class.getName()));
+        SlabAllocator allocator = cache.getAllocator();
+        try {
+            // a content for each size class, every one takes a whole slab
+            int[] lengths = {1000, 2000, 4000, 8000};
+            for (int i = 0; i < lengths.length; i++) {
+                ContentPayload payload = buildPayload(new String(new char[lengths[i]]).replace('\0', 'a'));
+                assertFalse(cache.put(new ContentKey("", "", "/content" + i), payload));
+                payload.clear();
+            }
+            assertEquals(4, cache.getSize());
+            assertEquals(64 * 1024, allocator.getReservedMemory());
+            // the index is far from full, weighing the slots
+            assertEquals(1024 + 2048 + 4096 + 8192, allocator.getAllocatedMemory());
+            assertTrue(cache.getMemSize() < 32 * 1024);
+
+            // no slab left for a new size class, old contents are evicted to make room
+            ContentKey key = new ContentKey("", "", "/big.html");
+            ContentPayload payload = buildPayload(new String(new char[16000]).replace('\0', 'b'));
+            assertFalse(cache.put(key, payload));
+            payload.clear();
+            ContentPayload cached = cache.get(key);
+            assertNotNull(cached);
+            assertEquals(16000, ((HttpContent) cached.getChunks().get(1)).content().readableBytes());
+            assertTrue(cache.getSize() < 5);
+            assertTrue(allocator.getReservedMemory() <= 64 * 1024);
+        } finally {
+            cache.close();
+        }
+    }
+
+}
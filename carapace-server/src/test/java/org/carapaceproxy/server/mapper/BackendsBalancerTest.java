@@ -0,0 +1,208 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.mapper;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.carapaceproxy.EndpointStats;
+import org.carapaceproxy.client.ConnectionsManagerStats;
+import org.carapaceproxy.client.EndpointKey;
+import org.carapaceproxy.server.config.BackendConfiguration;
+import org.carapaceproxy.server.config.DirectorConfiguration;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class BackendsBalancerTest {
+
+    private static final List<BackendConfiguration> BACKENDS = Arrays.asList(
+            new BackendConfiguration("a", "localhost", 1001, "/", 5),
+            new BackendConfiguration("b", "localhost", 1002, "/", 1),
+            new BackendConfiguration("c", "localhost", 1003, "/", 1));
+
+    private static final class Stats implements ConnectionsManagerStats {
+
+        private final Map<EndpointKey, EndpointStats> endpoints = new HashMap<>();
+
+        EndpointStats get(int port) {
+            return endpoints.computeIfAbsent(EndpointKey.make("localhost", port), EndpointStats::new);
+        }
+
+        @Override
+        public Map<EndpointKey, EndpointStats> getEndpoints() {
+            return endpoints;
+        }
+    }
+
+    @Test
+    public void testWeightedRoundRobin() {
+        BackendsBalancer balancer = new BackendsBalancer(DirectorConfiguration.STRATEGY_WEIGHTED_ROUND_ROBIN, BACKENDS);
+        StringBuilder sequence = new StringBuilder();
+        for (int i = 0; i < 14; i++) {
+            sequence.append(balancer.select(null, null, null).get(0));
+        }
+        // smooth: the heaviest backend is not chosen many times in a row
+        assertEquals("aabacaaaabacaa", sequence.toString());
+    }
+
+    @Test
+    public void testOrderings() {
+        BackendsBalancer balancer = new BackendsBalancer(DirectorConfiguration.STRATEGY_WEIGHTED_ROUND_ROBIN, BACKENDS);
+        balancer.select(null, null, null);
+        balancer.select(null, null, null);
+        // the other backends follow the chosen one
+        List<String> selected = balancer.select(null, null, null);
+        assertEquals(Arrays.asList("b", "c", "a"), selected);
+        // no copies
+        balancer.select(null, null, null);
+        balancer.select(null, null, null);
+        balancer.select(null, null, null);
+        balancer.select(null, null, null);
+        balancer.select(null, null, null);
+        balancer.select(null, null, null);
+        assertSame(selected, balancer.select(null, null, null));
+    }
+
+    @Test
+    public void testLeastRequests() {
+        Stats stats = new Stats();
+        stats.get(1001).getActiveConnections().set(3);
+        stats.get(1002).getActiveConnections().set(1);
+        stats.get(1003).getActiveConnections().set(2);
+        BackendsBalancer balancer = new BackendsBalancer(DirectorConfiguration.STRATEGY_LEAST_REQUESTS, BACKENDS);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("b", balancer.select(stats, null, null).get(0));
+        }
+
+        // backends never used come first
+        stats.getEndpoints().remove(EndpointKey.make("localhost", 1003));
+        assertEquals("c", balancer.select(stats, null, null).get(0));
+    }
+
+    @Test
+    public void testPowerOfTwoChoices() {
+        Stats stats = new Stats();
+        stats.get(1001).getActiveConnections().set(10);
+        stats.get(1002).getActiveConnections().set(0);
+        BackendsBalancer balancer = new BackendsBalancer(DirectorConfiguration.STRATEGY_POWER_OF_TWO_CHOICES, BACKENDS.subList(0, 2));
+        for (int i = 0; i < 10; i++) {
+            assertEquals("b", balancer.select(stats, null, null).get(0));
+        }
+    }
+
+    @Test
+    public void testPeakEwma() {
+        Stats stats = new Stats();
+        stats.get(1001).recordLatency(TimeUnit.MILLISECONDS.toNanos(100));
+        stats.get(1002).recordLatency(TimeUnit.MILLISECONDS.toNanos(10));
+        stats.get(1003).recordLatency(TimeUnit.MILLISECONDS.toNanos(50));
+        BackendsBalancer balancer = new BackendsBalancer(DirectorConfiguration.STRATEGY_PEAK_EWMA, BACKENDS);
+        assertEquals("b", balancer.select(stats, null, null).get(0));
+
+        // the fastest backend is busy
+        stats.get(1002).getActiveConnections().set(9);
+        assertEquals("c", balancer.select(stats, null, null).get(0));
+
+        // peaks are taken immediately
+        stats.get(1002).getActiveConnections().set(19);
+        stats.get(1003).recordLatency(TimeUnit.SECONDS.toNanos(1));
+        assertEquals("a", balancer.select(stats, null, null).get(0));
+    }
+
+    @Test
+    public void testPeakEwmaDecay() throws Exception {
+        Stats stats = new Stats();
+        EndpointStats epstats = stats.get(1001);
+        epstats.recordLatency(TimeUnit.SECONDS.toNanos(1));
+        double peak = epstats.getLatencyEwma();
+        assertTrue(peak <= TimeUnit.SECONDS.toNanos(1));
+
+        // without new samples the average decays
+        Thread.sleep(1000);
+        assertTrue(epstats.getLatencyEwma() < peak * 0.95);
+    }
+
+    @Test
+    public void testSticky() {
+        List<BackendConfiguration> backends = Arrays.asList(
+                new BackendConfiguration("a", "localhost", 1001, "/"),
+                new BackendConfiguration("b", "localhost", 1002, "/"),
+                new BackendConfiguration("c", "localhost", 1003, "/"),
+                new BackendConfiguration("d", "localhost", 1004, "/"));
+        BackendsBalancer balancer = new BackendsBalancer(DirectorConfiguration.STRATEGY_CONSISTENT_HASH, backends);
+        Map<String, String> assignments = new HashMap<>();
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            String session = "session" + i;
+            List<String> selected = balancer.select(null, null, session);
+            assertEquals(4, selected.size());
+            assignments.put(session, selected.get(0));
+            counts.merge(selected.get(0), 1, Integer::sum);
+            // the same session goes to the same backend
+            assertEquals(selected, balancer.select(null, "user", session));
+        }
+        // sessions are spread among all the backends
+        for (BackendConfiguration backend : backends) {
+            assertTrue(counts.get(backend.getId()) > 100);
+        }
+
+        // removing a backend moves only its sessions
+        BackendsBalancer reduced = new BackendsBalancer(DirectorConfiguration.STRATEGY_CONSISTENT_HASH, backends.subList(0, 3));
+        for (Map.Entry<String, String> assignment : assignments.entrySet()) {
+            String selected = reduced.select(null, null, assignment.getKey()).get(0);
+            if (!assignment.getValue().equals("d")) {
+                assertEquals(assignment.getValue(), selected);
+            }
+        }
+
+        // the user is used when there is no session
+        assertEquals(balancer.select(null, null, "user1"), balancer.select(null, "user1", null));
+    }
+
+    @Test
+    public void testStickyBoundedLoad() {
+        List<BackendConfiguration> backends = BACKENDS;
+        BackendsBalancer balancer = new BackendsBalancer(DirectorConfiguration.STRATEGY_CONSISTENT_HASH, backends);
+        Stats stats = new Stats();
+        String sticky = balancer.select(stats, null, "session").get(0);
+        int port = backends.stream().filter(b -> b.getId().equals(sticky)).findFirst().get().getPort();
+
+        // a little more load than the average is fine
+        for (BackendConfiguration backend : backends) {
+            stats.get(backend.getPort()).getActiveConnections().set(2);
+        }
+        stats.get(port).getActiveConnections().set(3);
+        assertEquals(sticky, balancer.select(stats, null, "session").get(0));
+
+        // overloaded
+        stats.get(port).getActiveConnections().set(10);
+        String other = balancer.select(stats, null, "session").get(0);
+        assertNotEquals(sticky, other);
+
+        // back to the original backend
+        stats.get(port).getActiveConnections().set(0);
+        assertEquals(sticky, balancer.select(stats, null, "session").get(0));
+    }
+}
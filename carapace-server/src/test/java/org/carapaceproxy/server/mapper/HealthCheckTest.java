@@ -32,6 +32,7 @@ import org.carapaceproxy.server.backends.BackendHealthCheck;
 import org.carapaceproxy.server.backends.BackendHealthManager;
 import org.carapaceproxy.server.backends.BackendHealthStatus;
 import org.carapaceproxy.server.config.BackendConfiguration;
+import org.carapaceproxy.server.config.OutlierDetectionConfiguration;
 import org.carapaceproxy.utils.TestEndpointMapper;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
@@ -223,4 +224,159 @@ public class HealthCheckTest {
         }
 
     }
+
+    @Test
+    public void testRiseAndFall() throws Exception {
+
+        Map<String, BackendConfiguration> backends = new HashMap<>();
+        BackendConfiguration b1conf = new BackendConfiguration("myid", "localhost", wireMockRule.port(), "/status.html");
+        backends.put(b1conf.getHostPort(), b1conf);
+
+        EndpointMapper mapper = new TestEndpointMapper(null, 0, false, backends);
+        RuntimeServerConfiguration conf = new RuntimeServerConfiguration();
+        conf.setHealthProbeRise(2);
+        conf.setHealthProbeFall(3);
+
+        BackendHealthManager hman = new BackendHealthManager(conf, mapper);
+
+        stubFor(get(urlEqualTo("/status.html"))
+                .willReturn(aResponse()
+                        .withStatus(500)
+                        .withBody("ERROR"))
+        );
+        hman.run();
+        hman.run();
+        BackendHealthStatus status = hman.getBackendsSnapshot().get(b1conf.getHostPort());
+        assertThat(status.getLastProbe().isOk(), is(false));
+        assertThat(status.isAvailable(), is(true));
+
+        hman.run();
+        status = hman.getBackendsSnapshot().get(b1conf.getHostPort());
+        assertThat(status.isAvailable(), is(false));
+
+        stubFor(get(urlEqualTo("/status.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("Ok..."))
+        );
+        hman.run();
+        status = hman.getBackendsSnapshot().get(b1conf.getHostPort());
+        assertThat(status.getLastProbe().isOk(), is(true));
+        assertThat(status.isAvailable(), is(false));
+
+        hman.run();
+        status = hman.getBackendsSnapshot().get(b1conf.getHostPort());
+        assertThat(status.isAvailable(), is(true));
+        hman.stop();
+    }
+
+    @Test
+    public void testLargeProbePage() throws Exception {
+
+        Map<String, BackendConfiguration> backends = new HashMap<>();
+        BackendConfiguration b1conf = new BackendConfiguration("myid", "localhost", wireMockRule.port(), "/status.html");
+        backends.put(b1conf.getHostPort(), b1conf);
+
+        EndpointMapper mapper = new TestEndpointMapper(null, 0, false, backends);
+        RuntimeServerConfiguration conf = new RuntimeServerConfiguration();
+
+        BackendHealthManager hman = new BackendHealthManager(conf, mapper);
+
+        StringBuilder body = new StringBuilder();
+        while (body.length() < 1024 * 1024) {
+            body.append("Ok...\n");
+        }
+        stubFor(get(urlEqualTo("/status.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody(body.toString()))
+        );
+        hman.run();
+        BackendHealthStatus status = hman.getBackendsSnapshot().get(b1conf.getHostPort());
+        BackendHealthCheck lastProbe = status.getLastProbe();
+        assertThat(lastProbe.isOk(), is(true));
+        assertThat(lastProbe.getHttpResponse(), is("200 OK"));
+        // only the beginning of the page is reported
+        assertThat(body.toString().startsWith(lastProbe.getHttpBody()), is(true));
+        assertThat(lastProbe.getHttpBody().length() < body.length(), is(true));
+        assertThat(status.isAvailable(), is(true));
+        hman.stop();
+    }
+
+    @Test
+    public void testOutlierDetection() throws Exception {
+
+        Map<String, BackendConfiguration> backends = new HashMap<>();
+        BackendConfiguration b1conf = new BackendConfiguration("myid", "localhost", wireMockRule.port(), "/status.html");
+        backends.put(b1conf.getHostPort(), b1conf);
+
+        EndpointMapper mapper = new TestEndpointMapper(null, 0, false, backends);
+        RuntimeServerConfiguration conf = new RuntimeServerConfiguration();
+        // 50% of errors over at least 10 requests, ejection for 1 second
+        conf.setOutlierDetection(new OutlierDetectionConfiguration(10, 10, 50, 0, 50, 1, 4));
+
+        BackendHealthManager hman = new BackendHealthManager(conf, mapper);
+        String hostPort = b1conf.getHostPort();
+
+        for (int i = 0; i < 5; i++) {
+            hman.reportBackendResponse(hostPort, 200, 10);
+        }
+        for (int i = 0; i < 4; i++) {
+            hman.reportBackendResponse(hostPort, 503, 10);
+        }
+        assertThat(hman.isAvailable(hostPort), is(true));
+        hman.reportBackendResponse(hostPort, 500, 10);
+        assertThat(hman.isAvailable(hostPort), is(false));
+        BackendHealthStatus status = hman.getBackendsSnapshot().get(hostPort);
+        assertThat(status.isEjected(), is(true));
+        // ejection does not affect the active health status
+        assertThat(status.isReportedAsUnreachable(), is(false));
+
+        // half-open: only one trial request
+        Thread.sleep(status.getEjectedUntilTs() - System.currentTimeMillis() + 100);
+        assertThat(hman.isAvailable(hostPort), is(true));
+        assertThat(hman.isAvailable(hostPort), is(false));
+
+        // the trial fails, ejected again for twice the time
+        long now = System.currentTimeMillis();
+        hman.reportBackendResponse(hostPort, 500, 10);
+        assertThat(hman.isAvailable(hostPort), is(false));
+        assertThat(status.getEjectedUntilTs() >= now + 2000, is(true));
+
+        Thread.sleep(status.getEjectedUntilTs() - System.currentTimeMillis() + 100);
+        assertThat(hman.isAvailable(hostPort), is(true));
+        hman.reportBackendResponse(hostPort, 200, 10);
+        assertThat(status.isEjected(), is(false));
+        assertThat(hman.isAvailable(hostPort), is(true));
+        assertThat(hman.isAvailable(hostPort), is(true));
+    }
+
+    @Test
+    public void testOutlierDetectionSlowResponses() throws Exception {
+
+        Map<String, BackendConfiguration> backends = new HashMap<>();
+        BackendConfiguration b1conf = new BackendConfiguration("myid", "localhost", wireMockRule.port(), "/status.html");
+        backends.put(b1conf.getHostPort(), b1conf);
+
+        EndpointMapper mapper = new TestEndpointMapper(null, 0, false, backends);
+        RuntimeServerConfiguration conf = new RuntimeServerConfiguration();
+        // more than 30% of the responses slower than 100ms
+        conf.setOutlierDetection(new OutlierDetectionConfiguration(10, 10, 0, 100, 30, 60, 60));
+
+        BackendHealthManager hman = new BackendHealthManager(conf, mapper);
+        String hostPort = b1conf.getHostPort();
+
+        for (int i = 0; i < 20; i++) {
+            hman.reportBackendResponse(hostPort, 500, 10);
+        }
+        // errors are not accounted
+        assertThat(hman.isAvailable(hostPort), is(true));
+
+        for (int i = 0; i < 8; i++) {
+            hman.reportBackendResponse(hostPort, 200, 500);
+        }
+        assertThat(hman.isAvailable(hostPort), is(true));
+        hman.reportBackendResponse(hostPort, 200, 500);
+        assertThat(hman.isAvailable(hostPort), is(false));
+    }
 }
@@ -0,0 +1,174 @@
+package org.carapaceproxy.server.mapper;
+
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.put;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import org.apache.commons.io.IOUtils;
+import org.carapaceproxy.client.RetryBudget;
+import org.carapaceproxy.server.HttpProxyServer;
+import static org.carapaceproxy.server.RequestHandler.PROPERTY_URI;
+import org.carapaceproxy.server.config.ActionConfiguration;
+import org.carapaceproxy.server.config.BackendConfiguration;
+import org.carapaceproxy.server.config.DirectorConfiguration;
+import org.carapaceproxy.server.config.RouteConfiguration;
+import org.carapaceproxy.server.mapper.requestmatcher.RegexpRequestMatcher;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Retries of the requests on other backends
+ */
+public class RetryTest {
+
+    @Rule
+    public WireMockRule backend1 = new WireMockRule(0);
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    private StandardEndpointMapper buildMapper(int retries) throws Exception {
+        int deadPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            deadPort = socket.getLocalPort();
+        }
+        StandardEndpointMapper mapper = new StandardEndpointMapper();
+        // the dead backend is always the first choice of the director
+        mapper.addBackend(new BackendConfiguration("dead", "localhost", deadPort, "/", 10));
+        mapper.addBackend(new BackendConfiguration("alive", "localhost", backend1.port(), "/", 1));
+        mapper.addDirector(new DirectorConfiguration("director-1", DirectorConfiguration.STRATEGY_WEIGHTED_ROUND_ROBIN)
+                .addBackend("dead")
+                .addBackend("alive"));
+        mapper.addAction(new ActionConfiguration("proxy-1", ActionConfiguration.TYPE_PROXY, "director-1", null, -1)
+                .setRetries(retries)
+                .setRetryBodySize(1024));
+        mapper.addRoute(new RouteConfiguration("route-1", "proxy-1", true, new RegexpRequestMatcher(PROPERTY_URI, ".*index.html.*")));
+        return mapper;
+    }
+
+    @Test
+    public void testRetryOnNextBackend() throws Exception {
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withBody("it <b>works</b> !!")));
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, buildMapper(1), tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+            String s = IOUtils.toString(new URL("http://localhost:" + port + "/index.html").toURI(), "utf-8");
+            assertEquals("it <b>works</b> !!", s);
+        }
+    }
+
+    @Test
+    public void testNoRetries() throws Exception {
+        stubFor(get(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withBody("it <b>works</b> !!")));
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, buildMapper(0), tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+            try {
+                IOUtils.toString(new URL("http://localhost:" + port + "/index.html").toURI(), "utf-8");
+                fail("expected an error");
+            } catch (IOException ok) {
+            }
+        }
+    }
+
+    @Test
+    public void testRetryRequestWithBody() throws Exception {
+        stubFor(post(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withBody("it <b>works</b> !!")));
+        stubFor(put(urlEqualTo("/index.html"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/html")
+                        .withBody("it <b>works</b> !!")));
+
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, buildMapper(1), tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+            // PUT is idempotent
+            assertEquals(200, send(port, "PUT", "hello"));
+        }
+        try (HttpProxyServer server = HttpProxyServer.buildForTests("localhost", 0, buildMapper(1), tmpDir.newFolder());) {
+            server.start();
+            int port = server.getLocalPort();
+            // POST is not
+            assertEquals(500, send(port, "POST", "hello"));
+        }
+    }
+
+    private static int send(int port, String method, String body) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/index.html").openConnection();
+        conn.setRequestMethod(method);
+        conn.setDoOutput(true);
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        try {
+            return conn.getResponseCode();
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    @Test
+    public void testRetryBudget() throws Exception {
+        // 50%, no minimum
+        RetryBudget budget = new RetryBudget(50, 0);
+        assertFalse(budget.tryAcquire());
+        budget.deposit();
+        assertFalse(budget.tryAcquire());
+        budget.deposit();
+        assertTrue(budget.tryAcquire());
+        assertFalse(budget.tryAcquire());
+
+        // always a few retries per second
+        budget.configure(0, 2);
+        assertTrue(budget.tryAcquire());
+        assertTrue(budget.tryAcquire());
+    }
+}
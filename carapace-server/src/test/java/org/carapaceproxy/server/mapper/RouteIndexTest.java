@@ -0,0 +1,101 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package org.carapaceproxy.server.mapper;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import org.carapaceproxy.server.ClientConnectionHandler;
+import org.carapaceproxy.server.RequestHandler;
+import org.carapaceproxy.server.config.RouteConfiguration;
+import org.carapaceproxy.server.mapper.requestmatcher.RequestMatcher;
+import org.carapaceproxy.server.mapper.requestmatcher.parser.RequestMatchParser;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+
+public class RouteIndexTest {
+
+    private static String prefix(String condition, String property) throws Exception {
+        return new RequestMatchParser(condition).parse().getRequiredPrefix(property);
+    }
+
+    @Test
+    public void testRequiredPrefix() throws Exception {
+        assertEquals("/api/", prefix("request.uri ~ \"/api/.*\"", "request.uri"));
+        assertEquals("/api/", prefix("request.uri ~ \"^/api/v?.*\"", "request.uri"));
+        assertEquals("/a.b", prefix("request.uri ~ \"/a\\.b\\d+\"", "request.uri"));
+        assertEquals("/test", prefix("request.uri ~ \"/tests*\"", "request.uri"));
+        assertEquals("/a", prefix("request.uri ~ \"/a+\"", "request.uri"));
+        assertNull(prefix("request.uri ~ \".*test.*\"", "request.uri"));
+        assertNull(prefix("request.uri ~ \"/a|/b\"", "request.uri"));
+        assertNull(prefix("request.uri ~ \"/api/.*\"", "request.headers.host"));
+        assertNull(prefix("not request.uri ~ \"/api/.*\"", "request.uri"));
+        assertNull(prefix("all", "request.uri"));
+
+        assertEquals("example.com", prefix("request.headers.host = \"example.com\"", "request.headers.host"));
+        assertEquals("/api/v1", prefix("request.uri ~ \"/api/.*\" and request.uri ~ \"/api/v1.*\"", "request.uri"));
+        assertEquals("/api/v", prefix("request.uri ~ \"/api/v1.*\" or request.uri ~ \"/api/v2.*\"", "request.uri"));
+        assertNull(prefix("request.uri ~ \"/api/v1.*\" or secure", "request.uri"));
+    }
+
+    @Test
+    public void testCandidates() throws Exception {
+        List<RouteConfiguration> routes = new ArrayList<>();
+        routes.add(route("r0", "request.uri ~ \"/api/v1/.*\""));
+        routes.add(route("r1", "request.uri ~ \".*\\.png\""));
+        routes.add(route("r2", "request.headers.host = \"example.com\" and request.uri ~ \"/api/.*\""));
+        routes.add(route("r3", "request.headers.host = \"other.com\""));
+        routes.add(new RouteConfiguration("r4", "proxy-all", false, new RequestMatchParser("all").parse()));
+        routes.add(route("r5", "request.uri ~ \"/static/.*\""));
+        RouteIndex index = new RouteIndex(routes);
+        // disabled routes are not indexed
+        assertEquals(5, index.size());
+
+        assertEquals("[r0, r1, r2]", candidates(index, "example.com", "/api/v1/users"));
+        assertEquals("[r1, r2]", candidates(index, "example.com", "/api/v2/users"));
+        assertEquals("[r0, r1, r3]", candidates(index, "other.com", "/api/v1/users"));
+        assertEquals("[r1, r3, r5]", candidates(index, "other.com", "/static/logo.png"));
+        assertEquals("[r1]", candidates(index, "", "/"));
+    }
+
+    private static RouteConfiguration route(String id, String condition) throws Exception {
+        RequestMatcher matcher = new RequestMatchParser(condition).parse();
+        return new RouteConfiguration(id, "proxy-all", true, matcher);
+    }
+
+    private static String candidates(RouteIndex index, String host, String uri) {
+        DefaultHttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+        if (!host.isEmpty()) {
+            request.headers().add("Host", host);
+        }
+        RequestHandler handler = new RequestHandler(0, request, null, mock(ClientConnectionHandler.class), null, null, null, null);
+        BitSet candidates = index.candidates(handler);
+        List<String> ids = new ArrayList<>();
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            ids.add(index.getRoute(i).getId());
+        }
+        return ids.toString();
+    }
+}
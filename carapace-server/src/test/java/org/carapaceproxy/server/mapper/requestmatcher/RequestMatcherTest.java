@@ -35,6 +35,8 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -294,4 +296,32 @@ public class RequestMatcherTest {
             assertFalse(matcher.matches(handler));
         }
     }
+
+    @Test
+    public void testPropertySlots() throws Exception {
+        DefaultHttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_0, HttpMethod.GET, "/test.html");
+        request.headers().add(HttpHeaders.CONTENT_TYPE, "text/html");
+
+        ClientConnectionHandler cch = mock(ClientConnectionHandler.class);
+        when(cch.getListenerHost()).thenReturn("localhost");
+        when(cch.getListenerPort()).thenReturn(8080);
+
+        RequestHandler handler = new RequestHandler(0, request, null, cch, null, null, null, null);
+
+        // names are resolved when parsing
+        int slot = MatchingProperties.slotOf("listener.address");
+        assertEquals(slot, MatchingProperties.slotOf("Listener.Address"));
+        assertEquals("listener.address", MatchingProperties.nameOf(slot));
+
+        RequestMatcher matcher = new RequestMatchParser(
+                "listener.address = \"localhost:8080\" and request.content-type ~ \"text/.*\""
+        ).parse();
+        RequestMatcher other = new RequestMatchParser("listener.address ~ \"localhost:.*\"").parse();
+        assertTrue(matcher.matches(handler));
+        assertTrue(other.matches(handler));
+        assertEquals("localhost:8080", handler.getProperty(slot));
+
+        // the value is computed once per request
+        verify(cch, times(1)).getListenerHost();
+    }
 }